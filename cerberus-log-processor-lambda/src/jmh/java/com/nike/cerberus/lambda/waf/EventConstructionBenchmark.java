@@ -0,0 +1,51 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the events for a run, from raw log lines (S3 source) and from Athena result rows.
+ * Every invocation builds events events, cycling through at most SyntheticAccessLogs.MAX_POOL_SIZE distinct lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EventConstructionBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    private int events;
+
+    private List<String> lines;
+
+    private List<List<String>> rows;
+
+    @Setup
+    public void setup() {
+        lines = SyntheticAccessLogs.lines(Math.min(events, SyntheticAccessLogs.MAX_POOL_SIZE), events / 50, 1);
+        rows = SyntheticAccessLogs.rows(lines);
+    }
+
+    @Benchmark
+    public void fromLine(Blackhole blackhole) {
+        for (int i = 0; i < events; i++) {
+            blackhole.consume(new ALBAccessLogEvent(lines.get(i % lines.size())));
+        }
+    }
+
+    @Benchmark
+    public void fromRow(Blackhole blackhole) {
+        for (int i = 0; i < events; i++) {
+            blackhole.consume(new ALBAccessLogEvent(rows.get(i % rows.size())));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to turn a 5 minute window worth of lines (or Athena rows) into events with the ParallelLogParser sized to 1, 2,
+ * 4 and 6 threads. The scaling only shows on a machine with at least that many cores, Lambda gets a vCPU per 1769 MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelParseBenchmark {
+
+    @Param({"1", "2", "4", "6"})
+    private int parallelism;
+
+    @Param({"200000"})
+    private int events;
+
+    private List<String> lines;
+
+    private List<List<String>> rows;
+
+    private ParallelLogParser parser;
+
+    @Setup
+    public void setup() {
+        lines = SyntheticAccessLogs.lines(events, 5000, 1);
+        rows = SyntheticAccessLogs.rows(lines);
+        parser = new ParallelLogParser(parallelism);
+    }
+
+    @TearDown
+    public void tearDown() {
+        parser.close();
+    }
+
+    @Benchmark
+    public List<ALBAccessLogEvent> parseLines() {
+        return parser.parse(lines, line -> {
+            ALBAccessLogEvent event = new ALBAccessLogEvent(line);
+            event.getTimeInEpochMicros();
+            return event;
+        });
+    }
+
+    @Benchmark
+    public List<ALBAccessLogEvent> parseRows() {
+        return parser.parse(rows, row -> {
+            ALBAccessLogEvent event = new ALBAccessLogEvent(row);
+            event.getTimeInEpochMicros();
+            return event;
+        });
+    }
+}
@@ -0,0 +1,72 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Per event cost of reading the hostname, port and URI out of the request URL, comparing the old approach of running
+ * REQUEST_FIELD_PATTERN once per accessor with the cached single split.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestUrlSplitBenchmark {
+
+    private List<String> lines;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        lines = SyntheticAccessLogs.lines(10000, 1000, 1);
+    }
+
+    /**
+     * What the accessors used to do, one regex run per part
+     */
+    @Benchmark
+    public void regexPerAccessor(Blackhole blackhole) {
+        ALBAccessLogEvent event = nextEvent();
+        blackhole.consume(regexGroup(event, "host"));
+        blackhole.consume(regexGroup(event, "port"));
+        blackhole.consume(regexGroup(event, "uri"));
+    }
+
+    @Benchmark
+    public void cachedSplit(Blackhole blackhole) {
+        ALBAccessLogEvent event = nextEvent();
+        blackhole.consume(event.getHostname());
+        blackhole.consume(event.getRequestPort());
+        blackhole.consume(event.getRequestUri());
+    }
+
+    /**
+     * TlsVerificationProcessor reads the URI twice for events it reports
+     */
+    @Benchmark
+    public void cachedSplitRepeatedUri(Blackhole blackhole) {
+        ALBAccessLogEvent event = nextEvent();
+        blackhole.consume(event.getRequestUri());
+        blackhole.consume(event.getRequestUri());
+    }
+
+    private ALBAccessLogEvent nextEvent() {
+        next = (next + 1) % lines.size();
+        return new ALBAccessLogEvent(lines.get(next));
+    }
+
+    private static String regexGroup(ALBAccessLogEvent event, String group) {
+        Matcher matcher = ALBAccessLogEvent.REQUEST_FIELD_PATTERN.matcher(event.getRequestUrl());
+        return matcher.find() ? matcher.group(group) : null;
+    }
+}
@@ -0,0 +1,110 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates realistic looking ALB access log lines for the benchmarks
+ */
+public final class SyntheticAccessLogs {
+
+    private static final String[] URIS = {
+            "/dashboard/", "/v1/secret/app/foo/config", "/v2/auth/user", "/v2/auth/iam-principal",
+            "/v1/sdb?limit=100&offset=0", "/healthcheck"
+    };
+
+    private static final String[] USER_AGENTS = {
+            "\"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_12_6) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/61.0\"",
+            "\"aws-sdk-java/1.11.229 Linux/4.9.62 OpenJDK_64-Bit_Server_VM/25.141-b16/1.8.0_141\"",
+            "\"CerberusJavaClient/2.1.0\"",
+            "\"curl/7.54.0\""
+    };
+
+    private static final String[] PROTOCOLS = {"TLSv1.2", "TLSv1.2", "TLSv1.2", "TLSv1"};
+
+    /**
+     * The most distinct lines EventConstructionBenchmark generates, it builds new events from them on every pass so
+     * larger inputs cycle through them to keep the heap bounded
+     */
+    public static final int MAX_POOL_SIZE = 200000;
+
+    private SyntheticAccessLogs() {
+    }
+
+    /**
+     * @param count The number of lines
+     * @param distinctIps The number of distinct client ips the requests are spread over
+     * @param seed Seed for the random generator so runs are repeatable
+     */
+    public static List<String> lines(int count, int distinctIps, long seed) {
+        Random random = new Random(seed);
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(line(random, timeInMillis(i, count), distinctIps));
+        }
+        return lines;
+    }
+
+    /**
+     * Builds count distinct events, each from its own line, without holding on to the lines. An event takes about
+     * 1 KB of heap once its ip is parsed, so 10M events need a heap of over 10 GB.
+     *
+     * @param count The number of events
+     * @param distinctIps The number of distinct client ips the requests are spread over
+     * @param seed Seed for the random generator so runs are repeatable
+     */
+    public static List<ALBAccessLogEvent> events(int count, int distinctIps, long seed) {
+        Random random = new Random(seed);
+        List<ALBAccessLogEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new ALBAccessLogEvent(line(random, timeInMillis(i, count), distinctIps)));
+        }
+        return events;
+    }
+
+    /**
+     * @return the lines as the List of columns Athena returns for each row
+     */
+    public static List<List<String>> rows(List<String> lines) {
+        List<List<String>> rows = new ArrayList<>(lines.size());
+        int[] offsets = new int[ALBAccessLogLineTokenizer.OFFSETS_LENGTH];
+        for (String line : lines) {
+            ALBAccessLogLineTokenizer.tokenize(line, offsets);
+            List<String> row = new ArrayList<>(ALBAccessLogLineTokenizer.NUM_FIELDS + 1);
+            for (int field = 0; field < ALBAccessLogLineTokenizer.NUM_FIELDS; field++) {
+                row.add(line.substring(offsets[2 * field], offsets[2 * field + 1]));
+            }
+            row.add("2017-10-02");
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * @return the time of the i-th of count requests, spread evenly over 20 minutes
+     */
+    private static long timeInMillis(int i, int count) {
+        return 1506966504000L + i * 20L * 60 * 1000 / Math.max(count, 1);
+    }
+
+    private static String line(Random random, long millis, int distinctIps) {
+        int ip = 0x32276400 + random.nextInt(Math.max(distinctIps, 1));
+        String time = new DateTime(millis, DateTimeZone.UTC)
+                .toString("yyyy-MM-dd'T'HH:mm:ss.SSS") + String.format("%03dZ", random.nextInt(1000));
+        int status = random.nextInt(20) == 0 ? 404 : 200;
+        return "h2 " + time + " app/cerberus-alb/50dc6c495c0c9188 "
+                + (ip >>> 24) + "." + ((ip >> 16) & 0xff) + "." + ((ip >> 8) & 0xff) + "." + (ip & 0xff)
+                + ":" + (1024 + random.nextInt(60000)) + " 10.0.1.23:8443 0.000 0." + String.format("%03d", random.nextInt(1000))
+                + " 0.000 " + status + " " + status + " " + (200 + random.nextInt(800)) + " " + random.nextInt(20000)
+                + " \"GET https://cerberus.oss.nike.com:443" + URIS[random.nextInt(URIS.length)] + " HTTP/2.0\" "
+                + USER_AGENTS[random.nextInt(USER_AGENTS.length)] + " ECDHE-RSA-AES128-GCM-SHA256 "
+                + PROTOCOLS[random.nextInt(PROTOCOLS.length)]
+                + " arn:aws:elasticloadbalancing:us-west-2:111111111111:targetgroup/cerberus/73e2d6bc24d8a067"
+                + " \"Root=1-58337262-36d228ad5d99923122bbe354\" \"cerberus.oss.nike.com\""
+                + " \"arn:aws:acm:us-west-2:111111111111:certificate/12345678-1234-1234-1234-123456789012\"";
+    }
+}
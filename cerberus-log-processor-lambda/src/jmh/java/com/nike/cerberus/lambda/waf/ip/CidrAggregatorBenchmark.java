@@ -0,0 +1,66 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregating candidate violators, half of them packed into a few hundred /24s the way a botnet at one hosting
+ * provider looks and half spread over the address space, against the 1000 range do not block index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CidrAggregatorBenchmark {
+
+    private static final int DO_NOT_BLOCK_RANGES = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    private int candidates;
+
+    private IpPrefix[] blocks;
+
+    private IpRangeIndex doNotBlockRangeIndex;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(11);
+        blocks = new IpPrefix[candidates];
+        int clusters = Math.max(candidates / 400, 1);
+        int[] clusterBases = new int[clusters];
+        for (int i = 0; i < clusters; i++) {
+            clusterBases[i] = random.nextInt() & 0xFFFFFF00;
+        }
+        for (int i = 0; i < candidates; i++) {
+            int address = i % 2 == 0
+                    ? clusterBases[random.nextInt(clusters)] | random.nextInt(256)
+                    : random.nextInt();
+            blocks[i] = IpPrefix.of(IpAddress.ofIpv4(address));
+        }
+        IpRangeIndex.Builder doNotBlockRanges = IpRangeIndex.builder();
+        for (int i = 0; i < DO_NOT_BLOCK_RANGES; i++) {
+            doNotBlockRanges.addPrefix(IpAddress.ofIpv4(random.nextInt()), 24);
+        }
+        doNotBlockRangeIndex = doNotBlockRanges.build();
+    }
+
+    @Benchmark
+    public List<CidrAggregator.Aggregate> aggregate() {
+        CidrAggregator aggregator = new CidrAggregator(0.5, doNotBlockRangeIndex);
+        for (int i = 0; i < blocks.length; i++) {
+            aggregator.add(blocks[i], i);
+        }
+        return aggregator.aggregate();
+    }
+}
@@ -0,0 +1,97 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting 1M requests per client IP with the HashMap RateLimitingProcessor used to keep against the primitive
+ * IpAddressCounter, for a growing number of distinct clients. The IPs are parsed up front, like the events do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class IpAddressCounterBenchmark {
+
+    private static final int REQUESTS = 1000000;
+
+    @Param({"1000", "100000", "1000000"})
+    private int distinctIps;
+
+    private IpAddress[] ips;
+
+    private IpAddressCounter counter;
+
+    private Map<IpAddress, Integer> map;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(9);
+        IpAddress[] clients = new IpAddress[distinctIps];
+        for (int i = 0; i < distinctIps; i++) {
+            clients[i] = IpAddress.ofIpv4(random.nextInt());
+        }
+        ips = new IpAddress[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            ips[i] = clients[random.nextInt(distinctIps)];
+        }
+        map = hashMap();
+        counter = ipAddressCounter();
+    }
+
+    @Benchmark
+    public Map<IpAddress, Integer> hashMap() {
+        Map<IpAddress, Integer> counts = new HashMap<>();
+        for (IpAddress ip : ips) {
+            counts.merge(ip, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    @Benchmark
+    public IpAddressCounter ipAddressCounter() {
+        IpAddressCounter counts = new IpAddressCounter();
+        for (IpAddress ip : ips) {
+            counts.increment(ip);
+        }
+        return counts;
+    }
+
+    /**
+     * The scan getCurrentViolators does, over every entry
+     */
+    @Benchmark
+    public long iterateHashMap() {
+        long total = 0;
+        for (Map.Entry<IpAddress, Integer> entry : map.entrySet()) {
+            if (entry.getValue() > 1) {
+                total += entry.getValue();
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long iterateIpAddressCounter() {
+        long total = 0;
+        for (int ordinal = 0; ordinal < counter.size(); ordinal++) {
+            int count = counter.getCount(ordinal);
+            if (count > 1) {
+                total += count;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,100 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import org.apache.commons.net.util.SubnetUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1M do not block lookups against white and black lists of a growing number of CIDRs, the Guava TreeRangeSet of signed
+ * ints (with the SubnetUtils per candidate RateLimitingProcessor used to build) against the IpRangeIndex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class IpRangeIndexBenchmark {
+
+    private static final int LOOKUPS = 1000000;
+
+    @Param({"1000", "50000"})
+    private int cidrs;
+
+    private String[] cidrList;
+
+    private IpAddress[] candidates;
+
+    private RangeSet<Integer> rangeSet;
+
+    private IpRangeIndex rangeIndex;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(13);
+        cidrList = new String[cidrs];
+        for (int i = 0; i < cidrs; i++) {
+            // /24 to /32, below 128.0.0.0 so the signed range set can hold them
+            cidrList[i] = IpAddress.formatIpv4(random.nextInt() & 0x7FFFFFFF) + "/" + (24 + random.nextInt(9));
+        }
+        candidates = new IpAddress[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            candidates[i] = IpAddress.ofIpv4(random.nextInt() & 0x7FFFFFFF);
+        }
+        rangeSet = treeRangeSet();
+        rangeIndex = ipRangeIndex();
+    }
+
+    @Benchmark
+    public RangeSet<Integer> treeRangeSet() {
+        RangeSet<Integer> ranges = TreeRangeSet.create();
+        for (String cidr : cidrList) {
+            SubnetUtils.SubnetInfo info = new SubnetUtils(cidr).getInfo();
+            ranges.add(Range.closed(info.asInteger(info.getNetworkAddress()), info.asInteger(info.getBroadcastAddress())));
+        }
+        return ranges;
+    }
+
+    @Benchmark
+    public IpRangeIndex ipRangeIndex() {
+        IpRangeIndex.Builder ranges = IpRangeIndex.builder();
+        for (String cidr : cidrList) {
+            ranges.addCidr(cidr);
+        }
+        return ranges.build();
+    }
+
+    @Benchmark
+    public int treeRangeSetLookups() {
+        int found = 0;
+        for (IpAddress candidate : candidates) {
+            SubnetUtils subnetUtils = new SubnetUtils(candidate.toCidr());
+            if (rangeSet.contains(subnetUtils.getInfo().asInteger(subnetUtils.getInfo().getAddress()))) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int ipRangeIndexLookups() {
+        int found = 0;
+        for (IpAddress candidate : candidates) {
+            if (rangeIndex.contains(candidate)) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,64 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Keeping the 1000 violators with the highest rates, the size of the auto block IP set, by sorting all of them the way
+ * RateLimitingProcessor used to against the bounded TopIpAddresses heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TopIpAddressesBenchmark {
+
+    private static final int LIMIT = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    private int violators;
+
+    private Map<IpAddress, Integer> rates;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(7);
+        rates = new HashMap<>(violators * 2);
+        while (rates.size() < violators) {
+            // a long tail of clients just over the limit and a few far above it
+            rates.put(IpAddress.ofIpv4(random.nextInt()), 100 + (int) Math.abs(random.nextGaussian() * 50));
+        }
+    }
+
+    @Benchmark
+    public Map<IpAddress, Integer> sortAndLimit() {
+        return rates.entrySet().stream()
+                .sorted((o1, o2) -> Integer.compare(o2.getValue(), o1.getValue()))
+                .limit(LIMIT)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+
+    @Benchmark
+    public Map<IpAddress, Integer> topIpAddresses() {
+        TopIpAddresses<Integer> top = new TopIpAddresses<>(LIMIT);
+        rates.forEach((ip, rate) -> {
+            if (top.wouldKeep(ip, rate)) {
+                top.offer(ip, rate, rate);
+            }
+        });
+        return top.toMap();
+    }
+}
@@ -0,0 +1,59 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.SyntheticAccessLogs;
+import com.nike.cerberus.lambda.waf.ip.RuleIpCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting 1M events against a growing number of rate limit rules, the time per event should stay flat since the
+ * rules of a dimension are matched in one lookup or one trie walk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RateLimitRulesBenchmark {
+
+    private static final int EVENTS = 1000000;
+
+    @Param({"1", "10", "100"})
+    private int rulesPerDimension;
+
+    private List<ALBAccessLogEvent> events;
+
+    private RateLimitRules rules;
+
+    @Setup
+    public void setup() {
+        events = SyntheticAccessLogs.events(EVENTS, 20000, 1);
+
+        StringBuilder config = new StringBuilder("path:/v2/auth/=100,method:GET=1000,user_agent:curl/=100");
+        for (int i = 1; i < rulesPerDimension; i++) {
+            config.append(",path:/v2/auth/unused").append(i).append("=100")
+                    .append(",method:UNUSED").append(i).append("=100")
+                    .append(",user_agent:unused").append(i).append("=100");
+        }
+        rules = new RateLimitRules(RateLimitRule.parseAll(config.toString()));
+    }
+
+    @Benchmark
+    public RuleIpCounter count() {
+        RuleIpCounter counter = new RuleIpCounter();
+        for (ALBAccessLogEvent event : events) {
+            rules.count(event, counter);
+        }
+        return counter;
+    }
+}
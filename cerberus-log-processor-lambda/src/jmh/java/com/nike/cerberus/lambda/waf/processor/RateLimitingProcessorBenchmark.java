@@ -0,0 +1,117 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
+import com.nike.cerberus.lambda.waf.SyntheticAccessLogs;
+import com.nike.cerberus.lambda.waf.ViolationMetaData;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+import com.nike.cerberus.lambda.waf.ip.IpAddressCounter;
+import com.nike.cerberus.lambda.waf.ip.IpPrefix;
+import com.nike.cerberus.lambda.waf.ip.IpRangeIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps of a RateLimitingProcessor run that scale with the number of events, for a run over events requests
+ * from events / 50 distinct clients. Every event is its own object built from its own line, so the 10M case needs a
+ * heap of about 12 GB. The WAF and S3 calls are left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx12g")
+public class RateLimitingProcessorBenchmark {
+
+    private static final int DO_NOT_BLOCK_RANGES = 1000;
+
+    @Param({"10000", "1000000", "10000000"})
+    private int events;
+
+    private RateLimitingProcessor processor;
+
+    private LogProcessorLambdaConfig config;
+
+    private List<ALBAccessLogEvent> eventList;
+
+    private IpAddressCounter counts;
+
+    private Map<IpAddress, ViolationMetaData> violators;
+
+    private IpRangeIndex doNotBlockRangeIndex;
+
+    private List<IpPrefix> blocks;
+
+    @Setup
+    public void setup() {
+        processor = new RateLimitingProcessor(null, null, null);
+        int distinctIps = Math.max(events / 50, 1);
+        eventList = SyntheticAccessLogs.events(events, distinctIps, 1);
+
+        counts = new IpAddressCounter();
+        eventList.forEach(event -> processor.processRequest(event, counts));
+        // roughly one in ten clients is over the limit
+        blocks = new ArrayList<>(counts.size());
+        int[] sortedCounts = new int[counts.size()];
+        for (int ordinal = 0; ordinal < counts.size(); ordinal++) {
+            blocks.add(IpPrefix.of(counts.getIpAddress(ordinal)));
+            sortedCounts[ordinal] = counts.getCount(ordinal);
+        }
+        Arrays.sort(sortedCounts);
+        int limit = sortedCounts.length == 0 ? 0 : sortedCounts[(int) (sortedCounts.length * 9L / 10)];
+        config = new LogProcessorLambdaConfig("benchmark", "white", "black", "auto", 60, limit, 20,
+                null, null, null, null, null, null, null, null);
+        violators = processor.getCurrentViolators(counts, config);
+
+        // 1000 random /24s spread over the address space, the size of a full manual IP set
+        Random random = new Random(5);
+        IpRangeIndex.Builder doNotBlockRanges = IpRangeIndex.builder();
+        for (int i = 0; i < DO_NOT_BLOCK_RANGES; i++) {
+            doNotBlockRanges.addPrefix(IpAddress.ofIpv4(random.nextInt()), 24);
+        }
+        doNotBlockRangeIndex = doNotBlockRanges.build();
+    }
+
+    @Benchmark
+    public IpAddressCounter processRequest() {
+        IpAddressCounter reqIdCounter = new IpAddressCounter();
+        for (ALBAccessLogEvent event : eventList) {
+            processor.processRequest(event, reqIdCounter);
+        }
+        return reqIdCounter;
+    }
+
+    @Benchmark
+    public Map<IpAddress, ViolationMetaData> getCurrentViolators() {
+        return processor.getCurrentViolators(counts, config);
+    }
+
+    @Benchmark
+    public Map<IpAddress, ViolationMetaData> filterAndTruncateViolators() {
+        return processor.filterAndTruncateViolators(config, doNotBlockRangeIndex, violators);
+    }
+
+    /**
+     * One lookup per event, against the 1000 range index
+     */
+    @Benchmark
+    public void canAddToAutoBlackList(Blackhole blackhole) {
+        for (int i = 0; i < events; i++) {
+            blackhole.consume(processor.canAddToAutoBlackList(doNotBlockRangeIndex, blocks.get(i % blocks.size())));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
+import com.nike.cerberus.lambda.waf.SyntheticAccessLogs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TlsVerificationProcessor.processLogEvents over events requests, a quarter of which use TLSv1. The report is
+ * replaced by a count, building and logging a message with millions of lines would drown out the scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx12g")
+public class TlsVerificationProcessorBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    private int events;
+
+    private List<ALBAccessLogEvent> eventList;
+
+    private CountingTlsVerificationProcessor processor;
+
+    private LogProcessorLambdaConfig config;
+
+    @Setup
+    public void setup() {
+        eventList = SyntheticAccessLogs.events(events, Math.max(events / 50, 1), 1);
+        processor = new CountingTlsVerificationProcessor();
+        config = new LogProcessorLambdaConfig("benchmark", "white", "black", "auto", 60, 300, 20,
+                null, null, null, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public int processLogEvents() {
+        processor.processLogEvents(eventList, config, "bucket");
+        return processor.reported;
+    }
+
+    private static class CountingTlsVerificationProcessor extends TlsVerificationProcessor {
+
+        private int reported;
+
+        @Override
+        protected void reportNonAcceptableEvents(List<ALBAccessLogEvent> nonAcceptableEvents,
+                                                 LogProcessorLambdaConfig config) {
+            reported = nonAcceptableEvents.size();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nike.cerberus.lambda.waf.ViolationMetaData;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading the violators data the processors keep between runs, as the legacy JSON map keyed by the ip as
+ * a String against the binary ViolatorDataFormat. The decode benchmarks include building the map the processor uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ViolatorDataFormatBenchmark {
+
+    private static final TypeReference<HashMap<String, ViolationMetaData>> JSON_TYPE =
+            new TypeReference<HashMap<String, ViolationMetaData>>() {};
+
+    @Param({"1000", "10000", "100000"})
+    private int violators;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private Map<IpAddress, ViolationMetaData> violatorData;
+
+    private byte[] json;
+
+    private byte[] binary;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(7);
+        long now = System.currentTimeMillis();
+        violatorData = new HashMap<>(violators * 2);
+        while (violatorData.size() < violators) {
+            // violations spread over the last day, rates a little over the limit
+            violatorData.put(IpAddress.ofIpv4(random.nextInt()), new ViolationMetaData(
+                    new Date(now - random.nextInt(24 * 60 * 60 * 1000)), 300 + random.nextInt(200)));
+        }
+        json = encodeJson();
+        binary = encodeBinary();
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws IOException {
+        Map<String, ViolationMetaData> serializedViolators = new HashMap<>(violatorData.size() * 2);
+        violatorData.forEach((ip, metaData) -> serializedViolators.put(ip.toString(), metaData));
+        return objectMapper.writeValueAsBytes(serializedViolators);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() throws IOException {
+        return ViolatorDataFormat.write(violatorData);
+    }
+
+    @Benchmark
+    public Map<IpAddress, ViolationMetaData> decodeJson() throws IOException {
+        Map<String, ViolationMetaData> serializedViolators = objectMapper.readValue(json, JSON_TYPE);
+        Map<IpAddress, ViolationMetaData> decoded = new HashMap<>(serializedViolators.size() * 2);
+        serializedViolators.forEach((ip, metaData) -> decoded.put(IpAddress.parse(ip), metaData));
+        return decoded;
+    }
+
+    @Benchmark
+    public Map<IpAddress, ViolationMetaData> decodeBinary() throws IOException {
+        return ViolatorDataFormat.read(new ByteArrayInputStream(binary)).toMap();
+    }
+}
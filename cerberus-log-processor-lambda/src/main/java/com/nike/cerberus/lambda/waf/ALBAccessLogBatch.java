@@ -0,0 +1,167 @@
+package com.nike.cerberus.lambda.waf;
+
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Column oriented view of a batch of Application Load Balancer access log events.
+ *
+ * Most processors only scan one or two fields of every event, so the batch lays those fields out in parallel
+ * primitive arrays (one entry per row), which a scan reads sequentially without parsing or chasing a pointer per
+ * event. The low cardinality SSL protocol is dictionary encoded, so a processor can make its decision once per
+ * distinct value and then scan an int array. High cardinality text, like the request URI, is not encoded, a processor
+ * reads it from the event of the few rows its column scan leaves.
+ *
+ * The batch does not save memory, it adds its columns on top of the events it was built from. Those are kept, the
+ * processors that take events need them anyway, so that processors can still read any other field of the rows they
+ * end up reporting on.
+ */
+public class ALBAccessLogBatch {
+
+    /**
+     * The value of {@link #getClientIpv4(int)} for rows whose client is not an IPv4 address
+     */
+    public static final int NO_IPV4 = 0;
+
+    private final List<ALBAccessLogEvent> events;
+
+    private final int size;
+
+    private final long[] timeInEpochMicros;
+
+    private final int[] clientIpv4s;
+
+    // only allocated once a client that is not an IPv4 address shows up, -1 for IPv4 rows
+    private int[] otherClientIpCodes;
+
+    private final StringDictionary otherClientIps = new StringDictionary();
+
+    private final short[] loadBalancerStatusCodes;
+
+    private final short[] targetStatusCodes;
+
+    private final int[] sslProtocolCodes;
+
+    private final StringDictionary sslProtocols = new StringDictionary();
+
+    private ALBAccessLogBatch(List<ALBAccessLogEvent> events) {
+        this.events = events;
+        size = events.size();
+        timeInEpochMicros = new long[size];
+        clientIpv4s = new int[size];
+        loadBalancerStatusCodes = new short[size];
+        targetStatusCodes = new short[size];
+        sslProtocolCodes = new int[size];
+
+        int row = 0;
+        for (ALBAccessLogEvent event : events) {
+            timeInEpochMicros[row] = event.getTimeInEpochMicros();
+            setClientIp(row, event);
+            loadBalancerStatusCodes[row] = (short) event.getLoadBalancerStatusCodeAsInt();
+            targetStatusCodes[row] = (short) event.getTargetStatusCodeAsInt();
+            sslProtocolCodes[row] = sslProtocols.encode(event.getSslProtocol());
+            row++;
+        }
+    }
+
+    /**
+     * @param events The events to lay out in columns, a null list is treated as an empty batch
+     */
+    public static ALBAccessLogBatch fromEvents(List<ALBAccessLogEvent> events) {
+        return new ALBAccessLogBatch(events == null ? Collections.emptyList() : events);
+    }
+
+    private void setClientIp(int row, ALBAccessLogEvent event) {
+        IpAddress ip = event.getRequestingClientIpAddress();
+        if (ip != null && ip.isIpv4()) {
+            clientIpv4s[row] = ip.getIpv4();
+            if (otherClientIpCodes != null) {
+                otherClientIpCodes[row] = -1;
+            }
+            return;
+        }
+        if (otherClientIpCodes == null) {
+            otherClientIpCodes = new int[size];
+            for (int i = 0; i < row; i++) {
+                otherClientIpCodes[i] = -1;
+            }
+        }
+        otherClientIpCodes[row] = otherClientIps.encode(event.getRequestingClientIp());
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the event a row was built from
+     */
+    public ALBAccessLogEvent getEvent(int row) {
+        return events.get(row);
+    }
+
+    /**
+     * @return the events the batch was built from, for processors that still work on events
+     */
+    public List<ALBAccessLogEvent> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return when the request completed in microseconds since the epoch, see ALBAccessLogEvent.getTimeInEpochMicros()
+     */
+    public long getTimeInEpochMicros(int row) {
+        return timeInEpochMicros[row];
+    }
+
+    public boolean isClientIpv4(int row) {
+        return otherClientIpCodes == null || otherClientIpCodes[row] < 0;
+    }
+
+    /**
+     * @return the client IPv4 address as an int (unsigned), or {@link #NO_IPV4} if the client used another format
+     */
+    public int getClientIpv4(int row) {
+        return isClientIpv4(row) ? clientIpv4s[row] : NO_IPV4;
+    }
+
+    /**
+     * @return the client IP as a String, only meant for reporting
+     */
+    public String getClientIp(int row) {
+        if (isClientIpv4(row)) {
+            return IpAddress.formatIpv4(clientIpv4s[row]);
+        }
+        return otherClientIps.decode(otherClientIpCodes[row]);
+    }
+
+    /**
+     * @return the load balancer status code or -1
+     */
+    public short getLoadBalancerStatusCode(int row) {
+        return loadBalancerStatusCodes[row];
+    }
+
+    /**
+     * @return the target status code or -1
+     */
+    public short getTargetStatusCode(int row) {
+        return targetStatusCodes[row];
+    }
+
+    public int getSslProtocolCode(int row) {
+        return sslProtocolCodes[row];
+    }
+
+    /**
+     * @return the distinct SSL protocols, indexed by the codes returned from {@link #getSslProtocolCode(int)}
+     */
+    public StringDictionary getSslProtocols() {
+        return sslProtocols;
+    }
+}
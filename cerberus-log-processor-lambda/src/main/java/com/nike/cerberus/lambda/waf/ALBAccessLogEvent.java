@@ -1,12 +1,11 @@
 package com.nike.cerberus.lambda.waf;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
 import org.joda.time.DateTime;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.joda.time.DateTimeZone;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -22,53 +21,90 @@ import java.util.regex.Pattern;
  * http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html
  */
 public class ALBAccessLogEvent {
-    private final Logger logger = LoggerFactory.getLogger(getClass());
 
     // same regex pattern used in Athena https://docs.aws.amazon.com/athena/latest/ug/application-load-balancer-logs.html
-    private static final Pattern LOG_MATCH_PATTERN = Pattern.compile("([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*):([0-9]*) ([^ ]*)[:-]([0-9]*) ([-.0-9]*) ([-.0-9]*) ([-.0-9]*) (|[-0-9]*) (-|[-0-9]*) ([-0-9]*) ([-0-9]*) \"([^ ]*) ([^ ]*) (- |[^ ]*)\" (\"[^\"]*\") ([A-Z0-9-]+) ([A-Za-z0-9.-]*) ([^ ]*) (.*) (.*) (.*)");
+    // ALBAccessLogLineTokenizer implements it without the regex engine, this is kept as the reference definition
+    @VisibleForTesting
+    static final Pattern LOG_MATCH_PATTERN = Pattern.compile("([^ ]*) ([^ ]*) ([^ ]*) ([^ ]*):([0-9]*) ([^ ]*)[:-]([0-9]*) ([-.0-9]*) ([-.0-9]*) ([-.0-9]*) (|[-0-9]*) (-|[-0-9]*) ([-0-9]*) ([-0-9]*) \"([^ ]*) ([^ ]*) (- |[^ ]*)\" (\"[^\"]*\") ([A-Z0-9-]+) ([A-Za-z0-9.-]*) ([^ ]*) (.*) (.*) (.*)");
 
     private static final int NUM_LOG_ENTRY_PARTS = 25;
 
-    private static final String FULL_URL_KEY = "url";
+    // regex for the "request" field in the ALB access log  (format: "GET https://cerberus.oss.nike.com:443/dashboard HTTP/2.0")
+    // ALBAccessLogFieldParser.splitRequestUrl implements it without the regex engine, this is kept as the reference definition
+    @VisibleForTesting
+    static final Pattern REQUEST_FIELD_PATTERN = Pattern.compile("(?<url>(?<protocol>.*)://(?<host>.*):(?<port>\\d*)(?<uri>/.*))");
 
-    private static final String PROTOCOL_KEY = "protocol";
+    private static final int REQUEST_URL_FIELD = 15;
 
-    private static final String HOSTNAME_KEY = "host";
+    // Events parsed from a raw log line keep the line and the field offsets, fields only become Strings when asked for
+    private final CharSequence line;
 
-    private static final String REQUEST_PORT_KEY = "port";
+    private final int[] offsets;
 
-    private static final String REQUEST_URI_KEY = "uri";
+    // Events built from an Athena result row keep the row, the Strings already exist
+    private final List<String> data;
 
-    // regex for the "request" field in the ALB access log  (format: "GET https://cerberus.oss.nike.com:443/dashboard HTTP/2.0")
-    private static final String REQUEST_FIELD_PATTERN_STR = String.format(
-            "(?<%s>(?<%s>.*)://(?<%s>.*):(?<%s>\\d*)(?<%s>/.*))",
-            FULL_URL_KEY,
-            PROTOCOL_KEY,
-            HOSTNAME_KEY,
-            REQUEST_PORT_KEY,
-            REQUEST_URI_KEY);
+    // Numeric fields, parsed together the first time any of them is read
+    private boolean numericFieldsParsed;
 
-    private static final Pattern REQUEST_FIELD_PATTERN = Pattern.compile(REQUEST_FIELD_PATTERN_STR);
+    private long timeInEpochMicros;
 
-    private final List<String> data;
+    private int requestingClientPort;
+
+    private int targetPort;
+
+    private double requestProcessingTime;
+
+    private double targetProcessingTime;
+
+    private double responseProcessingTime;
+
+    private int loadBalancerStatusCode;
+
+    private int targetStatusCode;
+
+    private long bytesReceived;
+
+    private long bytesSent;
+
+    // The client IP in numeric form, parsed the first time it is read
+    private IpAddress requestingClientIpAddress;
+
+    private boolean requestingClientIpAddressParsed;
+
+    // Where the protocol, host, port and URI start within the request URL, split the first time any of them is read
+    private int[] requestUrlParts;
+
+    private String requestProtocol;
+
+    private String requestHostname;
+
+    private String requestPort;
+
+    private String requestUri;
 
     public ALBAccessLogEvent(String logEntry) {
-        data = new ArrayList<>();
-        if (logEntry == null || logEntry.equals("")) {
+        this((CharSequence) logEntry);
+    }
+
+    /**
+     * @param logEntry A single access log line, the event keeps a reference to it so it must not be mutated afterwards
+     */
+    public ALBAccessLogEvent(CharSequence logEntry) {
+        if (logEntry == null || logEntry.length() == 0) {
             throw new IllegalArgumentException("You must supply a valid non empty ALB access log entry, see " +
                     "http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html");
         }
 
-        Matcher matcher = LOG_MATCH_PATTERN.matcher(logEntry);
-        // -1 because log entry doesn't carry partition info
-        if (matcher.matches() && matcher.groupCount() == NUM_LOG_ENTRY_PARTS - 1){
-            for (int i = 1; i <= matcher.groupCount(); i++) {
-                data.add(matcher.group(i));
-            }
-        } else {
+        int[] fieldOffsets = new int[ALBAccessLogLineTokenizer.OFFSETS_LENGTH];
+        // the log entry doesn't carry partition info, so it has one field less than an Athena row
+        if (! ALBAccessLogLineTokenizer.tokenize(logEntry, fieldOffsets)) {
             throw new IllegalArgumentException("You must supply a valid non empty ALB access log entry, see " +
                     "http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html");
         }
+        line = logEntry;
+        offsets = fieldOffsets;
+        data = null;
     }
 
     public ALBAccessLogEvent(List<String> logRow) {
@@ -76,6 +112,8 @@ public class ALBAccessLogEvent {
             throw new IllegalArgumentException("You must supply a valid non empty ALB access log entry, see " +
                     "http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html");
         }
+        line = null;
+        offsets = null;
         data = logRow;
     }
 
@@ -86,7 +124,7 @@ public class ALBAccessLogEvent {
      * wss => WebSockets over SSL/TLS
      */
     public String getRequestType() {
-        return data.get(0);
+        return field(0);
     }
 
     /**
@@ -94,29 +132,61 @@ public class ALBAccessLogEvent {
      * ISO 8601 format (e.g. 2017-10-02T17:48:24.305799Z).
      */
     public DateTime getDateTime() {
-        String dateTimeStr = data.get(1);
-        return DateTime.parse(dateTimeStr);
+        long micros = getTimeInEpochMicros();
+        if (micros == ALBAccessLogFieldParser.INVALID_TIME) {
+            return DateTime.parse(field(1));
+        }
+        return new DateTime(Math.floorDiv(micros, 1000L), DateTimeZone.UTC);
+    }
+
+    /**
+     * @return The time when the Application Load Balancer finished responding to the request, in microseconds since
+     * the epoch, or ALBAccessLogFieldParser.INVALID_TIME if the time could not be parsed
+     */
+    public long getTimeInEpochMicros() {
+        parseNumericFields();
+        return timeInEpochMicros;
     }
 
     /**
      * @return The AWS resource ID of the load balancer that handled this request
      */
     public String getLoadBalancerResourceId() {
-        return data.get(2);
+        return field(2);
     }
 
     /**
      * @return The IP address of the client that made this request
      */
     public String getRequestingClientIp() {
-        return data.get(3);
+        return field(3);
+    }
+
+    /**
+     * @return The IP address of the client that made this request in numeric form, or null if it is not a valid
+     * IPv4 or IPv6 address. Parsed straight from the log line the first time it is read.
+     */
+    public IpAddress getRequestingClientIpAddress() {
+        if (! requestingClientIpAddressParsed) {
+            requestingClientIpAddress = IpAddress.parse(source(3), start(3), end(3));
+            requestingClientIpAddressParsed = true;
+        }
+        return requestingClientIpAddress;
     }
 
     /**
      * @return The port on which the client made this request
      */
     public String getRequestingClientPort() {
-        return data.get(4);
+        return field(4);
+    }
+
+    /**
+     * @return The port on which the client made this request, or -1 if it is missing
+     */
+    public int getRequestingClientPortAsInt() {
+        parseNumericFields();
+        return requestingClientPort;
     }
 
     /**
@@ -126,7 +196,7 @@ public class ALBAccessLogEvent {
      * the AWS WAF blocked the request.
      */
     public String getTargetIp() {
-        return data.get(5);
+        return field(5);
     }
 
     /**
@@ -136,7 +206,15 @@ public class ALBAccessLogEvent {
      * the AWS WAF blocked the request.
      */
     public String getTargetPort() {
-        return data.get(6);
+        return field(6);
+    }
+
+    /**
+     * @return The port on which the target processed this request, or -1 if it is "-"
+     */
+    public int getTargetPortAsInt() {
+        parseNumericFields();
+        return targetPort;
     }
 
     /**
@@ -147,7 +225,15 @@ public class ALBAccessLogEvent {
      * target closes the connection before the idle timeout, or if the client sends a malformed request.
      */
     public String getRequestProcessingTime() {
-        return data.get(7);
+        return field(7);
+    }
+
+    /**
+     * @return The value of getRequestProcessingTime() in seconds, or -1 if the load balancer couldn't send the request to a target
+     */
+    public double getRequestProcessingTimeInSeconds() {
+        parseNumericFields();
+        return requestProcessingTime;
     }
 
     /**
@@ -158,7 +244,15 @@ public class ALBAccessLogEvent {
      * target closes the connection before the idle timeout, or if the client sends a malformed request.
      */
     public String getTargetProcessingTime() {
-        return data.get(8);
+        return field(8);
+    }
+
+    /**
+     * @return The value of getTargetProcessingTime() in seconds, or -1 if the load balancer couldn't send the request to a target
+     */
+    public double getTargetProcessingTimeInSeconds() {
+        parseNumericFields();
+        return targetProcessingTime;
     }
 
     /**
@@ -170,14 +264,30 @@ public class ALBAccessLogEvent {
      * target closes the connection before the idle timeout, or if the client sends a malformed request.     *
      */
     public String getResponseProcessingTime() {
-        return data.get(9);
+        return field(9);
+    }
+
+    /**
+     * @return The value of getResponseProcessingTime() in seconds, or -1 if the load balancer couldn't send the request to a target
+     */
+    public double getResponseProcessingTimeInSeconds() {
+        parseNumericFields();
+        return responseProcessingTime;
     }
 
     /**
      * @return The status code of the response from the load balancer
      */
     public String getLoadBalancerStatusCode() {
-        return data.get(10);
+        return field(10);
+    }
+
+    /**
+     * @return The status code of the response from the load balancer, or -1 if it is missing
+     */
+    public int getLoadBalancerStatusCodeAsInt() {
+        parseNumericFields();
+        return loadBalancerStatusCode;
     }
 
     /**
@@ -186,63 +296,106 @@ public class ALBAccessLogEvent {
      * If this value is "-", then a connection to the target could not be established, or the target did not send a response
      */
     public String getTargetStatusCode() {
-        return data.get(11);
+        return field(11);
+    }
+
+    /**
+     * @return The status code of the response from the target, or -1 if it is "-"
+     */
+    public int getTargetStatusCodeAsInt() {
+        parseNumericFields();
+        return targetStatusCode;
     }
 
     /**
      * @return The total number of bytes in the request (in bytes) received from the client
      */
     public String getBytesReceived() {
-        return data.get(12);
+        return field(12);
+    }
+
+    /**
+     * @return The total number of bytes received from the client, or -1 if it is missing
+     */
+    public long getBytesReceivedAsLong() {
+        parseNumericFields();
+        return bytesReceived;
     }
 
     /**
      * @return The total number of bytes sent in response to the client's request
      */
     public String getBytesSent() {
-        return data.get(13);
+        return field(13);
+    }
+
+    /**
+     * @return The total number of bytes sent in response to the client's request, or -1 if it is missing
+     */
+    public long getBytesSentAsLong() {
+        parseNumericFields();
+        return bytesSent;
     }
 
     /**
      * @return The HTTP request method: DELETE, GET, HEAD, OPTIONS, PATCH, POST, or PUT.
      */
     public String getHttpMethod() {
-        return data.get(14);
+        return field(14);
     }
 
     /**
      * @return The full request URL
      */
     public String getRequestUrl() {
-        return data.get(15);
+        return field(REQUEST_URL_FIELD);
+    }
+
+    /**
+     * @return The protocol of the request URL (e.g. https)
+     */
+    public String getRequestProtocol() {
+        if (requestProtocol == null && splitRequestUrl()) {
+            requestProtocol = requestUrlPart(start(REQUEST_URL_FIELD), requestUrlParts[0] - 3);
+        }
+        return requestProtocol;
     }
 
     /**
      * @return The hostname to which the request was sent
      */
     public String getHostname() {
-        return getValueFromRequestField(HOSTNAME_KEY);
+        if (requestHostname == null && splitRequestUrl()) {
+            requestHostname = requestUrlPart(requestUrlParts[0], requestUrlParts[1] - 1);
+        }
+        return requestHostname;
     }
 
     /**
      * @return The port on which the request was made
      */
     public String getRequestPort() {
-        return getValueFromRequestField(REQUEST_PORT_KEY);
+        if (requestPort == null && splitRequestUrl()) {
+            requestPort = requestUrlPart(requestUrlParts[1], requestUrlParts[2]);
+        }
+        return requestPort;
     }
 
     /**
      * @return The URI of the request
      */
     public String getRequestUri() {
-        return getValueFromRequestField(REQUEST_URI_KEY);
+        if (requestUri == null && splitRequestUrl()) {
+            requestUri = requestUrlPart(requestUrlParts[2], end(REQUEST_URL_FIELD));
+        }
+        return requestUri;
     }
 
     /**
      * @return The HTTP version used in the request (e.g. HTTP/2.0)
      */
     public String getHttpVersion() {
-        return data.get(16);
+        return field(16);
     }
 
     /**
@@ -251,7 +404,7 @@ public class ALBAccessLogEvent {
      * Consists of one or more product identifiers, product[/version]. If the string is longer than 8 KB, it is truncated.
      */
     public String getUserAgent() {
-        return data.get(17);
+        return field(17);
     }
 
     /**
@@ -260,7 +413,7 @@ public class ALBAccessLogEvent {
      * If this value is "-", then client connection negotiation was unsuccessful or the call was made over HTTP
      */
     public String getSslCipher() {
-        return data.get(18);
+        return field(18);
     }
 
     /**
@@ -269,22 +422,95 @@ public class ALBAccessLogEvent {
      * If this value is "-", then client connection negotiation was unsuccessful or the call was made over HTTP
      */
     public String getSslProtocol() {
-        return data.get(19);
+        return field(19);
     }
 
     /**
      * @return The ARN of the target group that handled the request
      */
     public String getTargetGroupArn() {
-        return data.get(20);
+        return field(20);
     }
 
-    private String getValueFromRequestField(String valueName) {
-        Matcher request = REQUEST_FIELD_PATTERN.matcher(data.get(15));
-        if (! request.find()) {
-            return null;
+    /**
+     * Splits the request URL once, the parts are only turned into Strings by the getters that need them
+     *
+     * @return false if the URL does not have the protocol://host:port/uri format
+     */
+    private boolean splitRequestUrl() {
+        if (requestUrlParts == null) {
+            int[] parts = new int[3];
+            if (! ALBAccessLogFieldParser.splitRequestUrl(
+                    source(REQUEST_URL_FIELD), start(REQUEST_URL_FIELD), end(REQUEST_URL_FIELD), parts)) {
+                parts[0] = -1;
+            }
+            requestUrlParts = parts;
+        }
+        return requestUrlParts[0] >= 0;
+    }
+
+    private String requestUrlPart(int start, int end) {
+        return source(REQUEST_URL_FIELD).subSequence(start, end).toString();
+    }
+
+    /**
+     * Parses every numeric field in one go, straight from the line (or row) without creating Strings
+     */
+    private void parseNumericFields() {
+        if (numericFieldsParsed) {
+            return;
+        }
+        timeInEpochMicros = ALBAccessLogFieldParser.parseIso8601EpochMicros(source(1), start(1), end(1));
+        requestingClientPort = parseInt(4);
+        targetPort = parseInt(6);
+        requestProcessingTime = parseDecimal(7);
+        targetProcessingTime = parseDecimal(8);
+        responseProcessingTime = parseDecimal(9);
+        loadBalancerStatusCode = parseInt(10);
+        targetStatusCode = parseInt(11);
+        bytesReceived = parseLong(12);
+        bytesSent = parseLong(13);
+        numericFieldsParsed = true;
+    }
+
+    private int parseInt(int index) {
+        long value = parseLong(index);
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    private long parseLong(int index) {
+        long value = ALBAccessLogFieldParser.parseLong(source(index), start(index), end(index), -1);
+        return value < 0 ? -1 : value;
+    }
+
+    private double parseDecimal(int index) {
+        double value = ALBAccessLogFieldParser.parseDecimal(source(index), start(index), end(index), -1);
+        return value < 0 ? -1 : value;
+    }
+
+    private CharSequence source(int index) {
+        return data != null ? data.get(index) : line;
+    }
+
+    private int start(int index) {
+        return data != null ? 0 : offsets[2 * index];
+    }
+
+    private int end(int index) {
+        if (data != null) {
+            String value = data.get(index);
+            return value == null ? 0 : value.length();
         }
+        return offsets[2 * index + 1];
+    }
 
-        return request.group(valueName);
+    /**
+     * Materializes a single field as a String
+     */
+    private String field(int index) {
+        if (data != null) {
+            return data.get(index);
+        }
+        return line.subSequence(offsets[2 * index], offsets[2 * index + 1]).toString();
     }
 }
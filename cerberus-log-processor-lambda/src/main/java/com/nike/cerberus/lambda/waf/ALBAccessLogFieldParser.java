@@ -0,0 +1,276 @@
+package com.nike.cerberus.lambda.waf;
+
+/**
+ * Allocation free parsers for the numeric fields and the request URL of an Application Load Balancer access log entry.
+ *
+ * Every parser works on a region of a CharSequence so that fields can be read straight out of the log line
+ * without creating a String first. Invalid or placeholder ("-") values return the supplied sentinel.
+ */
+public final class ALBAccessLogFieldParser {
+
+    /**
+     * Returned by {@link #parseIso8601EpochMicros(CharSequence, int, int)} when the value is not a valid timestamp
+     */
+    public static final long INVALID_TIME = Long.MIN_VALUE;
+
+    private static final long MICROS_PER_SECOND = 1000000L;
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    // powers of ten that are exactly representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // the largest mantissa that can be converted to a double without rounding
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private ALBAccessLogFieldParser() {
+    }
+
+    /**
+     * Parses an ISO 8601 timestamp as written by the ALB (e.g. 2017-10-02T17:48:24.305799Z).
+     *
+     * Accepts an optional fraction of any length (digits past microseconds are truncated) and either a 'Z' or a
+     * +HH:MM / -HH:MM offset.
+     *
+     * @return microseconds since the epoch or {@link #INVALID_TIME}
+     */
+    public static long parseIso8601EpochMicros(CharSequence value, int start, int end) {
+        if (value == null || end - start < 20) {
+            return INVALID_TIME;
+        }
+        int year = parseDigits(value, start, 4);
+        int month = parseDigits(value, start + 5, 2);
+        int day = parseDigits(value, start + 8, 2);
+        int hour = parseDigits(value, start + 11, 2);
+        int minute = parseDigits(value, start + 14, 2);
+        int second = parseDigits(value, start + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+                || value.charAt(start + 4) != '-' || value.charAt(start + 7) != '-'
+                || value.charAt(start + 10) != 'T' || value.charAt(start + 13) != ':'
+                || value.charAt(start + 16) != ':') {
+            return INVALID_TIME;
+        }
+
+        int pos = start + 19;
+        long micros = 0;
+        if (value.charAt(pos) == '.') {
+            pos++;
+            int digits = 0;
+            while (pos < end && isDigit(value.charAt(pos))) {
+                if (digits < 6) {
+                    micros = micros * 10 + (value.charAt(pos) - '0');
+                }
+                digits++;
+                pos++;
+            }
+            if (digits == 0) {
+                return INVALID_TIME;
+            }
+            for (; digits < 6; digits++) {
+                micros *= 10;
+            }
+        }
+
+        long offsetSeconds;
+        if (pos == end - 1 && value.charAt(pos) == 'Z') {
+            offsetSeconds = 0;
+        } else if (pos == end - 6 && (value.charAt(pos) == '+' || value.charAt(pos) == '-')
+                && value.charAt(pos + 3) == ':') {
+            int offsetHours = parseDigits(value, pos + 1, 2);
+            int offsetMinutes = parseDigits(value, pos + 4, 2);
+            if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return INVALID_TIME;
+            }
+            offsetSeconds = (offsetHours * 60L + offsetMinutes) * 60L;
+            if (value.charAt(pos) == '-') {
+                offsetSeconds = -offsetSeconds;
+            }
+        } else {
+            return INVALID_TIME;
+        }
+
+        long epochSeconds = daysFromCivil(year, month, day) * SECONDS_PER_DAY
+                + hour * 3600L + minute * 60L + second - offsetSeconds;
+        return epochSeconds * MICROS_PER_SECOND + micros;
+    }
+
+    /**
+     * Parses a decimal such as a processing time (e.g. 0.015 or -1).
+     *
+     * @return the parsed value or the invalid value when the field is empty, "-" or not a number
+     */
+    public static double parseDecimal(CharSequence value, int start, int end, double invalid) {
+        if (value == null || start >= end) {
+            return invalid;
+        }
+        int pos = start;
+        boolean negative = value.charAt(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        long mantissa = 0;
+        int fractionDigits = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; pos < end; pos++) {
+            char c = value.charAt(pos);
+            if (isDigit(c)) {
+                seenDigit = true;
+                if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+                    // too precise for the fast path, let the JDK do the correctly rounded conversion
+                    return slowParseDecimal(value, start, end, invalid);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (seenPoint) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                return invalid;
+            }
+        }
+        if (!seenDigit || fractionDigits >= POWERS_OF_TEN.length) {
+            return seenDigit ? slowParseDecimal(value, start, end, invalid) : invalid;
+        }
+        // both operands are exact so the single division is correctly rounded, same as Double.parseDouble
+        double result = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parses a whole number such as a status code, a port or a byte count.
+     *
+     * @return the parsed value or the invalid value when the field is empty, "-", not a number or overflows
+     */
+    public static long parseLong(CharSequence value, int start, int end, long invalid) {
+        if (value == null || start >= end) {
+            return invalid;
+        }
+        int pos = start;
+        boolean negative = value.charAt(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        if (pos == end) {
+            return invalid;
+        }
+        long result = 0;
+        for (; pos < end; pos++) {
+            char c = value.charAt(pos);
+            if (!isDigit(c) || result > (Long.MAX_VALUE - (c - '0')) / 10) {
+                return invalid;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Splits the request URL (e.g. https://cerberus.oss.nike.com:443/dashboard) into protocol, host, port and URI.
+     *
+     * Follows the greedy semantics of the (?<protocol>.*)://(?<host>.*):(?<port>\d*)(?<uri>/.*) regex the event
+     * used to run: the protocol ends at the last "://" that still leaves a host:port/uri after it, and the host ends
+     * at the last ':' that is followed by digits and a '/'.
+     *
+     * @param parts Receives the start of the host, the start of the port and the start of the URI. The protocol ends
+     *              3 characters before the host, the host ends 1 character before the port and the port ends where
+     *              the URI starts.
+     * @return true if the URL could be split
+     */
+    public static boolean splitRequestUrl(CharSequence url, int start, int end, int[] parts) {
+        if (url == null) {
+            return false;
+        }
+        for (int separator = lastIndexOfSchemeSeparator(url, start, end - 3); separator >= 0;
+             separator = lastIndexOfSchemeSeparator(url, start, separator - 1)) {
+            int hostStart = separator + 3;
+            for (int colon = end - 1; colon >= hostStart; colon--) {
+                if (url.charAt(colon) != ':') {
+                    continue;
+                }
+                int uriStart = colon + 1;
+                while (uriStart < end && isDigit(url.charAt(uriStart))) {
+                    uriStart++;
+                }
+                if (uriStart < end && url.charAt(uriStart) == '/') {
+                    parts[0] = hostStart;
+                    parts[1] = colon + 1;
+                    parts[2] = uriStart;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the index of the last "://" that starts at or before the given index, or -1
+     */
+    private static int lastIndexOfSchemeSeparator(CharSequence url, int start, int from) {
+        for (int i = from; i >= start; i--) {
+            if (url.charAt(i) == ':' && url.charAt(i + 1) == '/' && url.charAt(i + 2) == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static double slowParseDecimal(CharSequence value, int start, int end, double invalid) {
+        try {
+            return Double.parseDouble(value.subSequence(start, end).toString());
+        } catch (NumberFormatException e) {
+            return invalid;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return the value of a fixed width run of digits or -1 if any of them is not a digit
+     */
+    private static int parseDigits(CharSequence value, int start, int count) {
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = value.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Days since 1970-01-01 for a proleptic Gregorian date, http://howardhinnant.github.io/date_algorithms.html
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,286 @@
+package com.nike.cerberus.lambda.waf;
+
+/**
+ * Single pass, allocation free scanner for Application Load Balancer access log lines.
+ *
+ * Produces exactly the same fields as the Athena regex (see ALBAccessLogEvent.LOG_MATCH_PATTERN) but walks the line
+ * once instead of backtracking through 24 capture groups. The scanner only records where each field starts and ends,
+ * it is up to the caller to decide which fields are worth turning into Strings.
+ *
+ * http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html
+ */
+public final class ALBAccessLogLineTokenizer {
+
+    /**
+     * The number of fields in a log line, Athena rows carry one extra partition column
+     */
+    public static final int NUM_FIELDS = 24;
+
+    /**
+     * The size of the offsets array that {@link #tokenize(CharSequence, int[])} fills in
+     */
+    public static final int OFFSETS_LENGTH = NUM_FIELDS * 2;
+
+    private static final int REQUEST_METHOD_FIELD = 14;
+
+    private ALBAccessLogLineTokenizer() {
+    }
+
+    /**
+     * Splits a log line into its fields.
+     *
+     * @param line The raw access log line
+     * @param offsets Receives the start (inclusive) and end (exclusive) offset of every field, field i is described
+     *                by offsets[2 * i] and offsets[2 * i + 1]. Must be at least {@link #OFFSETS_LENGTH} long.
+     * @return true if the line is a valid ALB access log entry, false if the Athena regex would not match it
+     */
+    public static boolean tokenize(CharSequence line, int[] offsets) {
+        if (line == null || offsets.length < OFFSETS_LENGTH) {
+            return false;
+        }
+        int length = line.length();
+        int pos = 0;
+
+        // type, time and elb
+        for (int field = 0; field < 3; field++) {
+            int space = indexOfSpace(line, pos, length);
+            if (space < 0) {
+                return false;
+            }
+            set(offsets, field, pos, space);
+            pos = space + 1;
+        }
+
+        // client:port
+        pos = splitHostAndPort(line, pos, length, offsets, 3, false);
+        if (pos < 0) {
+            return false;
+        }
+
+        // target:port, the whole field is "-" when there was no target
+        pos = splitHostAndPort(line, pos, length, offsets, 5, true);
+        if (pos < 0) {
+            return false;
+        }
+
+        // request, target and response processing times
+        for (int field = 7; field < 10; field++) {
+            int space = indexOfSpace(line, pos, length);
+            if (space < 0 || !allMatch(line, pos, space, CharClass.DECIMAL)) {
+                return false;
+            }
+            set(offsets, field, pos, space);
+            pos = space + 1;
+        }
+
+        // elb status, target status, received bytes and sent bytes
+        for (int field = 10; field < 14; field++) {
+            int space = indexOfSpace(line, pos, length);
+            if (space < 0 || !allMatch(line, pos, space, CharClass.INTEGER)) {
+                return false;
+            }
+            set(offsets, field, pos, space);
+            pos = space + 1;
+        }
+
+        // "method url version"
+        if (pos >= length || line.charAt(pos) != '"') {
+            return false;
+        }
+        pos++;
+        for (int field = REQUEST_METHOD_FIELD; field < REQUEST_METHOD_FIELD + 2; field++) {
+            int space = indexOfSpace(line, pos, length);
+            if (space < 0) {
+                return false;
+            }
+            set(offsets, field, pos, space);
+            pos = space + 1;
+        }
+        if (pos + 1 < length && line.charAt(pos) == '-' && line.charAt(pos + 1) == ' ') {
+            // malformed requests are logged as "- - - " and the version keeps its trailing space
+            if (pos + 3 >= length || line.charAt(pos + 2) != '"' || line.charAt(pos + 3) != ' ') {
+                return false;
+            }
+            set(offsets, 16, pos, pos + 2);
+            pos += 4;
+        } else {
+            int space = indexOfSpace(line, pos, length);
+            if (space < 0 || space == pos || line.charAt(space - 1) != '"') {
+                return false;
+            }
+            set(offsets, 16, pos, space - 1);
+            pos = space + 1;
+        }
+
+        // "user agent", quotes included
+        if (pos >= length || line.charAt(pos) != '"') {
+            return false;
+        }
+        int closingQuote = indexOf(line, '"', pos + 1, length);
+        if (closingQuote < 0 || closingQuote + 1 >= length || line.charAt(closingQuote + 1) != ' ') {
+            return false;
+        }
+        set(offsets, 17, pos, closingQuote + 1);
+        pos = closingQuote + 2;
+
+        // ssl cipher, must not be empty
+        int space = indexOfSpace(line, pos, length);
+        if (space < 0 || space == pos || !allMatch(line, pos, space, CharClass.CIPHER)) {
+            return false;
+        }
+        set(offsets, 18, pos, space);
+        pos = space + 1;
+
+        // ssl protocol
+        space = indexOfSpace(line, pos, length);
+        if (space < 0 || !allMatch(line, pos, space, CharClass.PROTOCOL)) {
+            return false;
+        }
+        set(offsets, 19, pos, space);
+        pos = space + 1;
+
+        // target group arn
+        space = indexOfSpace(line, pos, length);
+        if (space < 0) {
+            return false;
+        }
+        set(offsets, 20, pos, space);
+        pos = space + 1;
+
+        // the regex ends with three greedy (.*) groups, so the last two spaces split whatever is left
+        if (containsLineTerminator(line, pos, length)) {
+            return false;
+        }
+        int lastSpace = lastIndexOfSpace(line, pos, length);
+        if (lastSpace < 0) {
+            return false;
+        }
+        int secondToLastSpace = lastIndexOfSpace(line, pos, lastSpace);
+        if (secondToLastSpace < 0) {
+            return false;
+        }
+        set(offsets, 21, pos, secondToLastSpace);
+        set(offsets, 22, secondToLastSpace + 1, lastSpace);
+        set(offsets, 23, lastSpace + 1, length);
+        return true;
+    }
+
+    /**
+     * Splits a host:port token on its last separator, the port must be all digits.
+     *
+     * @return the position after the token's trailing space or -1 if the token is not valid
+     */
+    private static int splitHostAndPort(CharSequence line, int pos, int length, int[] offsets, int field,
+                                        boolean dashIsSeparator) {
+        int space = indexOfSpace(line, pos, length);
+        if (space < 0) {
+            return -1;
+        }
+        int separator = -1;
+        for (int i = space - 1; i >= pos; i--) {
+            char c = line.charAt(i);
+            if (c == ':' || (dashIsSeparator && c == '-')) {
+                separator = i;
+                break;
+            }
+        }
+        if (separator < 0 || !allMatch(line, separator + 1, space, CharClass.DIGIT)) {
+            return -1;
+        }
+        set(offsets, field, pos, separator);
+        set(offsets, field + 1, separator + 1, space);
+        return space + 1;
+    }
+
+    private static void set(int[] offsets, int field, int start, int end) {
+        offsets[2 * field] = start;
+        offsets[2 * field + 1] = end;
+    }
+
+    private static int indexOfSpace(CharSequence line, int from, int to) {
+        return indexOf(line, ' ', from, to);
+    }
+
+    private static int indexOf(CharSequence line, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOfSpace(CharSequence line, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (line.charAt(i) == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The regex '.' does not match line terminators
+     */
+    private static boolean containsLineTerminator(CharSequence line, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean allMatch(CharSequence line, int from, int to, CharClass charClass) {
+        for (int i = from; i < to; i++) {
+            if (!charClass.matches(line.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The character classes used by the Athena regex
+     */
+    private enum CharClass {
+        // [0-9]
+        DIGIT {
+            @Override
+            boolean matches(char c) {
+                return c >= '0' && c <= '9';
+            }
+        },
+        // [-0-9]
+        INTEGER {
+            @Override
+            boolean matches(char c) {
+                return c == '-' || DIGIT.matches(c);
+            }
+        },
+        // [-.0-9]
+        DECIMAL {
+            @Override
+            boolean matches(char c) {
+                return c == '.' || INTEGER.matches(c);
+            }
+        },
+        // [A-Z0-9-]
+        CIPHER {
+            @Override
+            boolean matches(char c) {
+                return (c >= 'A' && c <= 'Z') || INTEGER.matches(c);
+            }
+        },
+        // [A-Za-z0-9.-]
+        PROTOCOL {
+            @Override
+            boolean matches(char c) {
+                return (c >= 'a' && c <= 'z') || c == '.' || CIPHER.matches(c);
+            }
+        };
+
+        abstract boolean matches(char c);
+    }
+}
@@ -0,0 +1,34 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.joda.time.DateTime;
+
+import java.util.List;
+
+/**
+ * Reads the access log events by partitioning and querying the ALB log table in Athena
+ */
+public class AthenaLogEventSource implements LogEventSource {
+
+    private final AthenaService athenaService;
+
+    private final ParallelLogParser parser;
+
+    public AthenaLogEventSource(AthenaService athenaService) {
+        this(athenaService, new ParallelLogParser());
+    }
+
+    public AthenaLogEventSource(AthenaService athenaService, ParallelLogParser parser) {
+        this.athenaService = athenaService;
+        this.parser = parser;
+    }
+
+    @Override
+    public List<ALBAccessLogEvent> getLogEventsAfter(DateTime time) {
+        return parser.parse(athenaService.getLogEntrysAfter(time), row -> {
+            ALBAccessLogEvent event = new ALBAccessLogEvent(row);
+            // the numeric fields are parsed lazily, do it now so that it happens on the pool
+            event.getTimeInEpochMicros();
+            return event;
+        });
+    }
+}
@@ -5,7 +5,6 @@ import com.amazonaws.regions.Regions;
 import com.amazonaws.services.athena.AmazonAthena;
 import com.amazonaws.services.athena.AmazonAthenaClientBuilder;
 import com.amazonaws.services.athena.model.GetQueryExecutionRequest;
-import com.amazonaws.services.athena.model.GetQueryExecutionResult;
 import com.amazonaws.services.athena.model.GetQueryResultsRequest;
 import com.amazonaws.services.athena.model.GetQueryResultsResult;
 import com.amazonaws.services.athena.model.QueryExecutionContext;
@@ -15,6 +14,8 @@ import com.amazonaws.services.athena.model.ResultConfiguration;
 import com.amazonaws.services.athena.model.Row;
 import com.amazonaws.services.athena.model.StartQueryExecutionRequest;
 import com.amazonaws.services.athena.model.StartQueryExecutionResult;
+import com.nike.cerberus.lambda.waf.retry.RetryPolicy;
+import com.nike.cerberus.lambda.waf.retry.Retryer;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -32,17 +33,33 @@ public class AthenaService {
     private final String logBucketName;
     private final String resultBucketName;
     private final Regions region;
+    private final Retryer retryer;
+    private final Retryer queryPoller;
+
+    private static final long QUERY_POLL_BASE_DELAY_IN_MILLIS = 250;
+    private static final long QUERY_POLL_MAX_DELAY_IN_MILLIS = 2000;
 
     private final String PARTITION_QUERY_TEMPLATE = "ALTER TABLE %s ADD PARTITION (log_time='%s') LOCATION 's3://%s/AWSLogs/%s/elasticloadbalancing/%s%s';";
     private final String SELECT_QUERY_TEMPLATE = "SELECT * FROM %s WHERE log_time>='%s' AND time>='%s';";
 
     public AthenaService(String databaseName, String tableName, String accountId, String logBucketName, String resultBucketName, Regions region){
+        this(databaseName, tableName, accountId, logBucketName, resultBucketName, region, new Retryer(RetryPolicy.aws()));
+    }
+
+    public AthenaService(String databaseName, String tableName, String accountId, String logBucketName, String resultBucketName, Regions region, Retryer retryer){
         this.databaseName = databaseName;
         this.tableName = tableName;
         this.accountId = accountId;
         this.logBucketName = logBucketName;
         this.resultBucketName = resultBucketName;
         this.region = region;
+        this.retryer = retryer;
+        // a running query is polled until it finishes or the budget runs out, throttled polls back off further
+        queryPoller = retryer.withPolicy(RetryPolicy.builder()
+                .maxAttempts(Integer.MAX_VALUE)
+                .baseDelayInMillis(QUERY_POLL_BASE_DELAY_IN_MILLIS)
+                .maxDelayInMillis(QUERY_POLL_MAX_DELAY_IN_MILLIS)
+                .build());
         client = AmazonAthenaClientBuilder.standard()
                 .withRegion(region)
                 .withCredentials(DefaultAWSCredentialsProviderChain.getInstance())
@@ -50,12 +67,17 @@ public class AthenaService {
     }
 
     public AthenaService(LogProcessorLambdaConfig config){
+        this(config, new Retryer(RetryPolicy.aws()));
+    }
+
+    public AthenaService(LogProcessorLambdaConfig config, Retryer retryer){
         this(config.getAthenaDatabaseName(),
                 config.getAthenaTableName(),
                 config.getIamPrincipalArn().split(":")[4],
                 config.getAlbLogBucketName(),
                 config.getAthenaQueryResultBucketName(),
-                config.getRegion());
+                config.getRegion(),
+                retryer);
     }
 
     public List<List<String>> getLogEntrysAfter(DateTime time){
@@ -115,48 +137,44 @@ public class AthenaService {
                 .withQueryExecutionContext(queryExecutionContext)
                 .withResultConfiguration(resultConfiguration);
 
-        StartQueryExecutionResult startQueryExecutionResult = client.startQueryExecution(startQueryExecutionRequest);
+        StartQueryExecutionResult startQueryExecutionResult = retryer.call("athena.startQueryExecution",
+                () -> client.startQueryExecution(startQueryExecutionRequest));
         LOGGER.debug("Athena query execution request sent for:" + query);
         return startQueryExecutionResult.getQueryExecutionId();
     }
 
 
     /**
-     * Wait for an Athena query to complete, fail or to be cancelled. This is done by polling Athena over an
-     * interval of time. If a query fails or is cancelled, then it will throw an exception.
+     * Wait for an Athena query to complete, fail or to be cancelled. This is done by polling Athena with a jittered,
+     * growing interval until the time budget runs out. If a query fails or is cancelled, then it will throw an exception.
      */
-    public void waitForQueryToComplete(String queryExecutionId) throws InterruptedException
+    public void waitForQueryToComplete(String queryExecutionId)
     {
         GetQueryExecutionRequest getQueryExecutionRequest = new GetQueryExecutionRequest()
                 .withQueryExecutionId(queryExecutionId);
 
-        GetQueryExecutionResult getQueryExecutionResult = null;
-        boolean isQueryStillRunning = true;
-        while (isQueryStillRunning) {
-            getQueryExecutionResult = client.getQueryExecution(getQueryExecutionRequest);
-            QueryExecutionStatus queryExecutionStatus = getQueryExecutionResult.getQueryExecution().getStatus();
-            String queryState = queryExecutionStatus.getState();
-            if (queryState.equals(QueryExecutionState.FAILED.toString())) {
-                if (queryExecutionStatus.getStateChangeReason().contains("AlreadyExistsException")) {
-                    LOGGER.info("Partition already exists.");
-                    isQueryStillRunning = false;
-                } else {
-                    throw new RuntimeException("Query Failed to run with Error Message: " + getQueryExecutionResult.getQueryExecution().getStatus().getStateChangeReason());
-                }
-
+        QueryExecutionStatus queryExecutionStatus = queryPoller.callUntil("athena.getQueryExecution",
+                () -> client.getQueryExecution(getQueryExecutionRequest).getQueryExecution().getStatus(),
+                status -> ! isQueryStillRunning(status));
+        String queryState = queryExecutionStatus.getState();
+        LOGGER.debug("Current Status is: " + queryState);
+        if (queryState.equals(QueryExecutionState.FAILED.toString())) {
+            if (queryExecutionStatus.getStateChangeReason().contains("AlreadyExistsException")) {
+                LOGGER.info("Partition already exists.");
+            } else {
+                throw new RuntimeException("Query Failed to run with Error Message: " + queryExecutionStatus.getStateChangeReason());
             }
-            else if (queryState.equals(QueryExecutionState.CANCELLED.toString())) {
-                throw new RuntimeException("Query was cancelled.");
-            }
-            else if (queryState.equals(QueryExecutionState.SUCCEEDED.toString())) {
-                isQueryStillRunning = false;
-            }
-            else {
-                // Sleep an amount of time before retrying again.
-                Thread.sleep(1000);
-            }
-            LOGGER.debug("Current Status is: " + queryState);
         }
+        else if (queryState.equals(QueryExecutionState.CANCELLED.toString())) {
+            throw new RuntimeException("Query was cancelled.");
+        }
+    }
+
+    private static boolean isQueryStillRunning(QueryExecutionStatus status) {
+        String queryState = status.getState();
+        return ! queryState.equals(QueryExecutionState.FAILED.toString())
+                && ! queryState.equals(QueryExecutionState.CANCELLED.toString())
+                && ! queryState.equals(QueryExecutionState.SUCCEEDED.toString());
     }
 
     /**
@@ -173,7 +191,8 @@ public class AthenaService {
                 // .withMaxResults(1000)
                 .withQueryExecutionId(queryExecutionId);
 
-        GetQueryResultsResult getQueryResultsResult = client.getQueryResults(getQueryResultsRequest);
+        GetQueryResultsResult getQueryResultsResult = retryer.call("athena.getQueryResults",
+                () -> client.getQueryResults(getQueryResultsRequest));
 
         List<List<String>> rows = new ArrayList<>();
         while (true) {
@@ -186,8 +205,9 @@ public class AthenaService {
             if (getQueryResultsResult.getNextToken() == null) {
                 break;
             }
-            getQueryResultsResult = client.getQueryResults(
-                    getQueryResultsRequest.withNextToken(getQueryResultsResult.getNextToken()));
+            getQueryResultsRequest.setNextToken(getQueryResultsResult.getNextToken());
+            getQueryResultsResult = retryer.call("athena.getQueryResults",
+                    () -> client.getQueryResults(getQueryResultsRequest));
         }
         // remove column names
         rows.remove(0);
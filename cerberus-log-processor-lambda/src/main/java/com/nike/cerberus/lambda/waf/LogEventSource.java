@@ -0,0 +1,17 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.joda.time.DateTime;
+
+import java.util.List;
+
+/**
+ * Somewhere the ALB access log events for the last interval can be read from
+ */
+public interface LogEventSource {
+
+    /**
+     * @param time The start of the interval
+     * @return the access log events for requests that completed at or after the given time
+     */
+    List<ALBAccessLogEvent> getLogEventsAfter(DateTime time);
+}
@@ -4,9 +4,18 @@ import com.amazonaws.regions.Regions;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fieldju.commons.EnvUtils;
 
+import java.util.Arrays;
+import java.util.List;
+
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class LogProcessorLambdaConfig {
 
+    public static final String ATHENA_LOG_EVENT_SOURCE = "athena";
+
+    public static final String S3_LOG_EVENT_SOURCE = "s3";
+
+    private static final List<Integer> WAF_IPV6_PREFIX_LENGTHS = Arrays.asList(16, 24, 32, 48, 56, 64, 128);
+
     private String manualWhitelistIpSetId;
 
     private String manualBlacklistIpSetId;
@@ -19,6 +28,30 @@ public class LogProcessorLambdaConfig {
 
     private Integer intervalInMins;
 
+    private Integer rateLimitWindowInMins;
+
+    private Double heavyHitterErrorBound;
+
+    private Integer ipv6BlockPrefixLength;
+
+    private Double cidrAggregationDensity;
+
+    private String rateLimitRules;
+
+    private String badRequestAutoBlacklistIpSetId;
+
+    private Integer badRequestLimit;
+
+    private Double badRequestRatio;
+
+    private Double abuseScoreThreshold;
+
+    private Integer abuseScoreHalfLifeInMins;
+
+    private Integer abuseScoreMaxIps;
+
+    private Integer maxBlacklistDurationInMinutes;
+
     private String slackWebHookUrl;
 
     private String slackIcon;
@@ -37,6 +70,8 @@ public class LogProcessorLambdaConfig {
 
     private Regions region;
 
+    private String logEventSource = ATHENA_LOG_EVENT_SOURCE;
+
     public LogProcessorLambdaConfig(String env, String manualWhitelistIpSetId, String manualBlacklistIpSetId,
                                     String rateLimitAutoBlacklistIpSetId, Integer blacklistDurationInMinutes,
                                     Integer requestPerIntervalLimit, Integer intervalInMins, String slackWebHookUrl,
@@ -71,11 +106,33 @@ public class LogProcessorLambdaConfig {
                 EnvUtils.getEnvWithDefault("REQUEST_PER_INTERVAL_LIMIT", "300"));
         intervalInMins = Integer.parseInt(
                 EnvUtils.getEnvWithDefault("INTERVAL_IN_MINS", "20"));
+        rateLimitWindowInMins = Integer.parseInt(
+                EnvUtils.getEnvWithDefault("RATE_LIMIT_WINDOW_IN_MINS", "0"));
+        heavyHitterErrorBound = Double.parseDouble(
+                EnvUtils.getEnvWithDefault("HEAVY_HITTER_ERROR_BOUND", "0"));
+        setIpv6BlockPrefixLength(Integer.parseInt(
+                EnvUtils.getEnvWithDefault("IPV6_BLOCK_PREFIX_LENGTH", "128")));
+        setCidrAggregationDensity(Double.parseDouble(
+                EnvUtils.getEnvWithDefault("CIDR_AGGREGATION_DENSITY", "0")));
+        rateLimitRules = EnvUtils.getEnvWithDefault("RATE_LIMIT_RULES", null);
+        badRequestAutoBlacklistIpSetId = EnvUtils.getEnvWithDefault("BAD_REQUEST_AUTO_BLACKLIST_IP_SET_ID", null);
+        badRequestLimit = Integer.parseInt(EnvUtils.getEnvWithDefault("BAD_REQUEST_LIMIT", "100"));
+        setBadRequestRatio(Double.parseDouble(EnvUtils.getEnvWithDefault("BAD_REQUEST_RATIO", "0.5")));
+        abuseScoreThreshold = Double.parseDouble(EnvUtils.getEnvWithDefault("ABUSE_SCORE_THRESHOLD", "0"));
+        setAbuseScoreHalfLifeInMins(Integer.parseInt(EnvUtils.getEnvWithDefault("ABUSE_SCORE_HALF_LIFE_IN_MINS", "60")));
+        abuseScoreMaxIps = Integer.parseInt(EnvUtils.getEnvWithDefault("ABUSE_SCORE_MAX_IPS", "10000"));
+        maxBlacklistDurationInMinutes = Integer.parseInt(
+                EnvUtils.getEnvWithDefault("MAX_VIOLATION_BLACKLIST_DURATION_IN_MINS", "1440"));
         slackIcon = EnvUtils.getEnvWithDefault("SLACK_ICON", ":wolf:");
         slackWebHookUrl = EnvUtils.getEnvWithDefault("SLACK_WEB_HOOK_URL", null);
-        athenaDatabaseName = EnvUtils.getRequiredEnv("ATHENA_DATABASE_NAME");
+        logEventSource = EnvUtils.getEnvWithDefault("LOG_EVENT_SOURCE", ATHENA_LOG_EVENT_SOURCE);
+        // the Athena settings are only needed when the logs are read through Athena
+        athenaDatabaseName = isS3LogEventSource() ?
+                EnvUtils.getEnvWithDefault("ATHENA_DATABASE_NAME", null) : EnvUtils.getRequiredEnv("ATHENA_DATABASE_NAME");
         athenaTableName = EnvUtils.getEnvWithDefault("ATHENA_TABLE_NAME", "alb_logs");
-        athenaQueryResultBucketName = EnvUtils.getRequiredEnv("ATHENA_QUERY_RESULT_BUCKET_NAME");
+        athenaQueryResultBucketName = isS3LogEventSource() ?
+                EnvUtils.getEnvWithDefault("ATHENA_QUERY_RESULT_BUCKET_NAME", null) :
+                EnvUtils.getRequiredEnv("ATHENA_QUERY_RESULT_BUCKET_NAME");
         albLogBucketName = EnvUtils.getRequiredEnv("ALB_LOG_BUCKET");
         iamPrincipalArn = EnvUtils.getRequiredEnv("IAM_PRINCIPAL_ARN");
         region = Regions.fromName(EnvUtils.getEnvWithDefault("REGION", "us-west-2"));
@@ -129,6 +186,165 @@ public class LogProcessorLambdaConfig {
         this.intervalInMins = intervalInMins;
     }
 
+    /**
+     * @return the length of the window the request limit applies to, any window of this many minutes within the
+     * interval may hold at most requestPerIntervalLimit requests. Defaults to the whole interval when not set.
+     */
+    public int getRateLimitWindowInMins() {
+        if (rateLimitWindowInMins == null || rateLimitWindowInMins <= 0 || rateLimitWindowInMins > intervalInMins) {
+            return intervalInMins;
+        }
+        return rateLimitWindowInMins;
+    }
+
+    public void setRateLimitWindowInMins(Integer rateLimitWindowInMins) {
+        this.rateLimitWindowInMins = rateLimitWindowInMins;
+    }
+
+    /**
+     * @return the fraction of the interval's requests a heavy hitter count may be off by, 0 to count every ip exactly
+     */
+    public double getHeavyHitterErrorBound() {
+        return heavyHitterErrorBound == null ? 0 : heavyHitterErrorBound;
+    }
+
+    public void setHeavyHitterErrorBound(Double heavyHitterErrorBound) {
+        this.heavyHitterErrorBound = heavyHitterErrorBound;
+    }
+
+    /**
+     * @return the prefix length IPv6 violators are blocked by, 128 blocks just the address
+     */
+    public int getIpv6BlockPrefixLength() {
+        return ipv6BlockPrefixLength == null ? 128 : ipv6BlockPrefixLength;
+    }
+
+    /**
+     * @param ipv6BlockPrefixLength One of the IPv6 prefix lengths WAF accepts: 16, 24, 32, 48, 56, 64 or 128
+     */
+    public void setIpv6BlockPrefixLength(Integer ipv6BlockPrefixLength) {
+        if (ipv6BlockPrefixLength != null && ! WAF_IPV6_PREFIX_LENGTHS.contains(ipv6BlockPrefixLength)) {
+            throw new IllegalArgumentException("WAF only accepts IPv6 prefix lengths of " + WAF_IPV6_PREFIX_LENGTHS +
+                    " not " + ipv6BlockPrefixLength);
+        }
+        this.ipv6BlockPrefixLength = ipv6BlockPrefixLength;
+    }
+
+    /**
+     * @return the fraction of a CIDR's addresses that have to be violators to block the whole CIDR, 0 to block every
+     * violator on its own
+     */
+    public double getCidrAggregationDensity() {
+        return cidrAggregationDensity == null ? 0 : cidrAggregationDensity;
+    }
+
+    /**
+     * @param cidrAggregationDensity 0 to turn aggregation off or a fraction up to 1
+     */
+    public void setCidrAggregationDensity(Double cidrAggregationDensity) {
+        if (cidrAggregationDensity != null && (cidrAggregationDensity < 0 || cidrAggregationDensity > 1)) {
+            throw new IllegalArgumentException("The CIDR aggregation density must be between 0 and 1, not " +
+                    cidrAggregationDensity);
+        }
+        this.cidrAggregationDensity = cidrAggregationDensity;
+    }
+
+    /**
+     * @return the extra request limits for subsets of the requests, e.g. "path:/v2/auth/=100,method:POST=500", see
+     * RateLimitRule, null for none
+     */
+    public String getRateLimitRules() {
+        return rateLimitRules;
+    }
+
+    public void setRateLimitRules(String rateLimitRules) {
+        this.rateLimitRules = rateLimitRules;
+    }
+
+    /**
+     * @return the IP set the bad request processor blocks ips in, the processor only runs when it is set
+     */
+    public String getBadRequestAutoBlacklistIpSetId() {
+        return badRequestAutoBlacklistIpSetId;
+    }
+
+    public void setBadRequestAutoBlacklistIpSetId(String badRequestAutoBlacklistIpSetId) {
+        this.badRequestAutoBlacklistIpSetId = badRequestAutoBlacklistIpSetId;
+    }
+
+    /**
+     * @return the number of bad requests per interval an ip has to exceed to be blocked
+     */
+    public int getBadRequestLimit() {
+        return badRequestLimit == null ? 100 : badRequestLimit;
+    }
+
+    public void setBadRequestLimit(Integer badRequestLimit) {
+        this.badRequestLimit = badRequestLimit;
+    }
+
+    /**
+     * @return the fraction of an ip's requests that have to be bad for it to be blocked
+     */
+    public double getBadRequestRatio() {
+        return badRequestRatio == null ? 0.5 : badRequestRatio;
+    }
+
+    public void setBadRequestRatio(Double badRequestRatio) {
+        if (badRequestRatio != null && (badRequestRatio < 0 || badRequestRatio > 1)) {
+            throw new IllegalArgumentException("The bad request ratio must be between 0 and 1, not " + badRequestRatio);
+        }
+        this.badRequestRatio = badRequestRatio;
+    }
+
+    /**
+     * @return the abuse score an ip is blocked at, 0 to turn the abuse score and the escalating blocks off
+     */
+    public double getAbuseScoreThreshold() {
+        return abuseScoreThreshold == null ? 0 : abuseScoreThreshold;
+    }
+
+    public void setAbuseScoreThreshold(Double abuseScoreThreshold) {
+        this.abuseScoreThreshold = abuseScoreThreshold;
+    }
+
+    /**
+     * @return the minutes it takes an abuse score to halve when the ip stops sending requests
+     */
+    public int getAbuseScoreHalfLifeInMins() {
+        return abuseScoreHalfLifeInMins == null ? 60 : abuseScoreHalfLifeInMins;
+    }
+
+    public void setAbuseScoreHalfLifeInMins(Integer abuseScoreHalfLifeInMins) {
+        if (abuseScoreHalfLifeInMins != null && abuseScoreHalfLifeInMins <= 0) {
+            throw new IllegalArgumentException("The abuse score half-life must be positive, not " +
+                    abuseScoreHalfLifeInMins);
+        }
+        this.abuseScoreHalfLifeInMins = abuseScoreHalfLifeInMins;
+    }
+
+    /**
+     * @return the most ips the persisted abuse scores keep, the ips with the lowest scores are dropped beyond that
+     */
+    public int getAbuseScoreMaxIps() {
+        return abuseScoreMaxIps == null ? 10000 : abuseScoreMaxIps;
+    }
+
+    public void setAbuseScoreMaxIps(Integer abuseScoreMaxIps) {
+        this.abuseScoreMaxIps = abuseScoreMaxIps;
+    }
+
+    /**
+     * @return the longest a repeat offender is blocked for, the block duration doubles with every violation up to this
+     */
+    public int getMaxBlacklistDurationInMinutes() {
+        return maxBlacklistDurationInMinutes == null ? 1440 : maxBlacklistDurationInMinutes;
+    }
+
+    public void setMaxBlacklistDurationInMinutes(Integer maxBlacklistDurationInMinutes) {
+        this.maxBlacklistDurationInMinutes = maxBlacklistDurationInMinutes;
+    }
+
     public String getSlackWebHookUrl() {
         return slackWebHookUrl;
     }
@@ -200,4 +416,19 @@ public class LogProcessorLambdaConfig {
     public void setRegion(Regions region) {
         this.region = region;
     }
+
+    public String getLogEventSource() {
+        return logEventSource;
+    }
+
+    public void setLogEventSource(String logEventSource) {
+        this.logEventSource = logEventSource;
+    }
+
+    /**
+     * @return true if the log events should be read straight from the ALB log bucket instead of through Athena
+     */
+    public boolean isS3LogEventSource() {
+        return S3_LOG_EVENT_SOURCE.equalsIgnoreCase(logEventSource);
+    }
 }
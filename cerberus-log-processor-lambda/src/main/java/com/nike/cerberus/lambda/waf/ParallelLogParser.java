@@ -0,0 +1,135 @@
+package com.nike.cerberus.lambda.waf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/**
+ * Turns raw log input (lines or Athena rows) into events on a fork join pool.
+ *
+ * The input is split in halves until the pieces are at most chunkSize long, every piece writes its events into its
+ * own slots of a shared array, so the events come out in input order without a merge step.
+ *
+ * By default every parser shares one pool sized to the available processors, giving the Lambda more memory also gives
+ * it more vCPUs to parse with, and a warm Lambda keeps reusing its threads. A parser built with its own parallelism
+ * owns its pool and shuts it down when closed.
+ */
+public class ParallelLogParser implements AutoCloseable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private final ForkJoinPool pool;
+
+    private final boolean ownsPool;
+
+    private final int chunkSize;
+
+    public ParallelLogParser() {
+        this(SharedPool.POOL, false, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ParallelLogParser(int parallelism) {
+        this(parallelism, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ParallelLogParser(int parallelism, int chunkSize) {
+        this(newPool(parallelism, chunkSize), true, chunkSize);
+    }
+
+    private ParallelLogParser(ForkJoinPool pool, boolean ownsPool, int chunkSize) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.chunkSize = chunkSize;
+    }
+
+    private static ForkJoinPool newPool(int parallelism, int chunkSize) {
+        if (parallelism < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("parallelism and chunkSize must be at least 1");
+        }
+        return new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @param input The lines or rows to parse
+     * @param parser Parses a single line or row, may return null to drop it (e.g. invalid or outside the interval)
+     * @return the parsed events in input order
+     */
+    public <T> List<ALBAccessLogEvent> parse(List<T> input, Function<T, ALBAccessLogEvent> parser) {
+        ALBAccessLogEvent[] events = new ALBAccessLogEvent[input.size()];
+        ParseChunk<T> task = new ParseChunk<>(input, parser, events, 0, input.size());
+        if (input.size() <= chunkSize || pool.getParallelism() == 1) {
+            // not worth handing to the pool
+            task.parseChunk();
+        } else {
+            pool.invoke(task);
+        }
+
+        List<ALBAccessLogEvent> result = new ArrayList<>(events.length);
+        for (ALBAccessLogEvent event : events) {
+            if (event != null) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Shuts down the pool if this parser owns it, the shared pool keeps running
+     */
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    private class ParseChunk<T> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<T> input;
+        private final Function<T, ALBAccessLogEvent> parser;
+        private final ALBAccessLogEvent[] events;
+        private final int start;
+        private final int end;
+
+        ParseChunk(List<T> input, Function<T, ALBAccessLogEvent> parser, ALBAccessLogEvent[] events, int start, int end) {
+            this.input = input;
+            this.parser = parser;
+            this.events = events;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunkSize) {
+                parseChunk();
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new ParseChunk<>(input, parser, events, start, middle),
+                    new ParseChunk<>(input, parser, events, middle, end));
+        }
+
+        void parseChunk() {
+            // input is an ArrayList or Athena's row list, both are random access
+            for (int i = start; i < end; i++) {
+                events[i] = parser.apply(input.get(i));
+            }
+        }
+    }
+
+    /**
+     * Created on first use, its worker threads are daemons and exit after idling
+     */
+    private static class SharedPool {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,192 @@
+package com.nike.cerberus.lambda.waf;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.nike.cerberus.lambda.waf.retry.RetryPolicy;
+import com.nike.cerberus.lambda.waf.retry.Retryer;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the access log events straight out of the ALB log bucket, skipping Athena altogether.
+ *
+ * The ALB delivers a gzipped log file per load balancer node every 5 minutes to
+ * AWSLogs/[account]/elasticloadbalancing/[region]/yyyy/MM/dd/ and names it after the end of the interval it covers
+ * ([account]_elasticloadbalancing_[region]_[load-balancer-id]_[end-time]_[ip]_[random].log.gz). Only the files whose
+ * end time falls in the interval are downloaded one at a time, each is decompressed as it streams in and then
+ * tokenized in parallel before the next one is read.
+ *
+ * The lines of a file are buffered rather than streamed into the parser, so the peak memory on top of the events is
+ * one decompressed log file. In exchange a download that drops half way is retried from the start without any of its
+ * events already parsed, and the parser gets a list it can split across its threads.
+ *
+ * The S3 client is injected, so the source can be pointed at a local S3 stand-in by building the client with an
+ * endpoint configuration.
+ *
+ * http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html#access-log-file-format
+ */
+public class S3LogEventSource implements LogEventSource {
+
+    private final Logger log = Logger.getLogger(getClass());
+
+    private static final String PREFIX_TEMPLATE = "AWSLogs/%s/elasticloadbalancing/%s/%04d/%02d/%02d/";
+
+    private static final DateTimeFormatter FILE_NAME_TIME_FORMAT =
+            DateTimeFormat.forPattern("yyyyMMdd'T'HHmm'Z'").withZoneUTC();
+
+    // the end time is the 5th '_' separated part of the file name
+    private static final int FILE_NAME_TIME_PART = 4;
+
+    private final AmazonS3 amazonS3;
+    private final String logBucketName;
+    private final String accountId;
+    private final Regions region;
+    private final ParallelLogParser parser;
+    private final Retryer retryer;
+
+    public S3LogEventSource(AmazonS3 amazonS3, String logBucketName, String accountId, Regions region) {
+        this(amazonS3, logBucketName, accountId, region, new ParallelLogParser(), new Retryer(RetryPolicy.aws()));
+    }
+
+    public S3LogEventSource(AmazonS3 amazonS3, String logBucketName, String accountId, Regions region,
+                            ParallelLogParser parser, Retryer retryer) {
+        this.amazonS3 = amazonS3;
+        this.logBucketName = logBucketName;
+        this.accountId = accountId;
+        this.region = region;
+        this.parser = parser;
+        this.retryer = retryer;
+    }
+
+    public S3LogEventSource(AmazonS3 amazonS3, LogProcessorLambdaConfig config) {
+        this(amazonS3, config, new Retryer(RetryPolicy.aws()));
+    }
+
+    public S3LogEventSource(AmazonS3 amazonS3, LogProcessorLambdaConfig config, Retryer retryer) {
+        this(amazonS3,
+                config.getAlbLogBucketName(),
+                config.getIamPrincipalArn().split(":")[4],
+                config.getRegion(),
+                new ParallelLogParser(),
+                retryer);
+    }
+
+    @Override
+    public List<ALBAccessLogEvent> getLogEventsAfter(DateTime time) {
+        // convert to UTC which is what AWS ALB is using
+        time = time.withZone(DateTimeZone.UTC);
+        long startMicros = time.getMillis() * 1000;
+
+        // downloading is I/O bound and sequential, each file's lines are then tokenized in parallel, so only one
+        // file's lines are held in memory at a time
+        List<ALBAccessLogEvent> events = new ArrayList<>();
+        int lineCount = 0;
+        for (String key : getLogFileKeysAfter(time, DateTime.now(DateTimeZone.UTC))) {
+            List<String> lines = readLogFile(key);
+            lineCount += lines.size();
+            events.addAll(parser.parse(lines, line -> {
+                try {
+                    ALBAccessLogEvent event = new ALBAccessLogEvent(line);
+                    return event.getTimeInEpochMicros() >= startMicros ? event : null;
+                } catch (IllegalArgumentException e) {
+                    // the tokenizer rejects a line it can not parse, like a truncated last line, skip just that line
+                    return null;
+                }
+            }));
+        }
+        log.debug(String.format("Parsed %d events out of %d lines", events.size(), lineCount));
+        return events;
+    }
+
+    /**
+     * Lists the day prefixes between the two times and picks the log files that cover requests after the given time
+     */
+    protected List<String> getLogFileKeysAfter(DateTime time, DateTime now) {
+        List<String> keys = new LinkedList<>();
+        for (DateTime day = time.withTimeAtStartOfDay(); ! day.isAfter(now); day = day.plusDays(1)) {
+            String prefix = String.format(PREFIX_TEMPLATE, accountId, region.getName(),
+                    day.getYear(), day.getMonthOfYear(), day.getDayOfMonth());
+            ListObjectsV2Request request = new ListObjectsV2Request()
+                    .withBucketName(logBucketName)
+                    .withPrefix(prefix);
+            ListObjectsV2Result result;
+            do {
+                result = retryer.call("s3.listObjectsV2", () -> amazonS3.listObjectsV2(request));
+                for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                    DateTime fileEndTime = getFileEndTime(summary.getKey());
+                    // a file holds the requests of the 5 minutes leading up to its end time
+                    if (fileEndTime != null && ! fileEndTime.isBefore(time)) {
+                        keys.add(summary.getKey());
+                    }
+                }
+                request.setContinuationToken(result.getNextContinuationToken());
+            } while (result.isTruncated());
+        }
+        log.debug(String.format("Found %d log files after %s", keys.size(), time));
+        return keys;
+    }
+
+    /**
+     * @return the end of the interval a log file covers, parsed from its name, or null if the name is not recognized
+     */
+    public static DateTime getFileEndTime(String key) {
+        String fileName = key.substring(key.lastIndexOf('/') + 1);
+        String[] parts = fileName.split("_");
+        if (parts.length <= FILE_NAME_TIME_PART) {
+            return null;
+        }
+        try {
+            return FILE_NAME_TIME_FORMAT.parseDateTime(parts[FILE_NAME_TIME_PART]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return every line of the log file, decompressed when it is gzipped, buffered so a retry starts over cleanly
+     */
+    private List<String> readLogFile(String key) {
+        // a retry reads the whole file again
+        return retryer.call("s3.getObject", () -> {
+            List<String> fileLines = new ArrayList<>();
+            try (S3Object s3Object = amazonS3.getObject(new GetObjectRequest(logBucketName, key));
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(
+                         decompress(key, s3Object.getObjectContent()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    fileLines.add(line);
+                }
+            } catch (ZipException e) {
+                throw new RuntimeException("ALB access log file " + key + " is not valid gzip", e);
+            } catch (IOException e) {
+                // the connection dropped while streaming the file, worth another attempt
+                throw new SdkClientException("Failed to read ALB access log file " + key, e);
+            }
+            return fileLines;
+        });
+    }
+
+    private static InputStream decompress(String key, InputStream inputStream) throws IOException {
+        return key.endsWith(".gz") ? new GZIPInputStream(inputStream) : inputStream;
+    }
+}
@@ -1,10 +1,15 @@
 package com.nike.cerberus.lambda.waf;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.Date;
 
 public class ViolationMetaData {
     private Date date;
     private int maxRate;
+    // only set for escalated blocks, the data of earlier runs and of blocks of the default length does not have it
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer blockDurationInMinutes;
 
     public ViolationMetaData() {
     }
@@ -29,4 +34,15 @@ public class ViolationMetaData {
     public void setMaxRate(int maxRate) {
         this.maxRate = maxRate;
     }
+
+    /**
+     * @return how long the block lasts from the date, null for the configured blacklist duration
+     */
+    public Integer getBlockDurationInMinutes() {
+        return blockDurationInMinutes;
+    }
+
+    public void setBlockDurationInMinutes(Integer blockDurationInMinutes) {
+        this.blockDurationInMinutes = blockDurationInMinutes;
+    }
 }
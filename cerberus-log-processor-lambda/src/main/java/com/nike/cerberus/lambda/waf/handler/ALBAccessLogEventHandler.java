@@ -1,5 +1,7 @@
 package com.nike.cerberus.lambda.waf.handler;
 
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.waf.AWSWAFRegional;
@@ -9,19 +11,27 @@ import com.fasterxml.jackson.databind.PropertyNamingStrategies;
 import com.fieldju.slackclient.Message;
 import com.fieldju.slackclient.SlackClient;
 import com.google.common.annotations.VisibleForTesting;
+import com.nike.cerberus.lambda.waf.ALBAccessLogBatch;
 import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.AthenaLogEventSource;
 import com.nike.cerberus.lambda.waf.AthenaService;
+import com.nike.cerberus.lambda.waf.LogEventSource;
 import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
+import com.nike.cerberus.lambda.waf.S3LogEventSource;
+import com.nike.cerberus.lambda.waf.processor.BadRequestProcessor;
+import com.nike.cerberus.lambda.waf.processor.BatchProcessor;
 import com.nike.cerberus.lambda.waf.processor.Processor;
 import com.nike.cerberus.lambda.waf.processor.RateLimitingProcessor;
 import com.nike.cerberus.lambda.waf.processor.TlsVerificationProcessor;
+import com.nike.cerberus.lambda.waf.retry.RetryMetrics;
+import com.nike.cerberus.lambda.waf.retry.RetryPolicy;
+import com.nike.cerberus.lambda.waf.retry.Retryer;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * This is the Main Class for our WAF Lambda that will process logs and deal with ip addresses that are seen as abusive.
@@ -29,15 +39,21 @@ import java.util.stream.Collectors;
  */
 public class ALBAccessLogEventHandler {
 
+    // retries stop this long before the Lambda times out, so that a run that keeps failing still reports why
+    private static final long RETRY_BUDGET_RESERVE_IN_MILLIS = 5000;
+
     private final Logger log = Logger.getLogger(getClass());
 
     private final ObjectMapper objectMapper;
 
     private final LogProcessorLambdaConfig logProcessorLambdaConfig;
 
+    // shared by every AWS call of a run so that they all draw from the time the Lambda has left
+    private final Retryer retryer = new Retryer(RetryPolicy.aws());
+
     private List<Processor> logEventProcessors = new LinkedList<>();
 
-    private AthenaService athenaService;
+    private LogEventSource logEventSource;
 
     public ALBAccessLogEventHandler() {
         this(AmazonS3ClientBuilder.standard()
@@ -55,13 +71,21 @@ public class ALBAccessLogEventHandler {
         objectMapper = new ObjectMapper();
         objectMapper.setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE);
 
-        // New processors would need there own ip sets as there is a hard limit of 1000 ips and the
-        // RateLimitingProcessor truncates the set and removes any ips from the set that it doesn't know about
-        // see CloudFormationDefinedParams
-        logEventProcessors.add(new RateLimitingProcessor(objectMapper, awsWaf, amazonS3Client));
+        // Processors that block need their own ip sets as there is a hard limit of 1000 ips and the
+        // RateLimitingProcessor (and the BadRequestProcessor built on it) truncates the set and removes any ips
+        // from the set that it doesn't know about, see CloudFormationDefinedParams
+        logEventProcessors.add(new RateLimitingProcessor(objectMapper, awsWaf, amazonS3Client, retryer));
+        if (StringUtils.isNotBlank(logProcessorLambdaConfig.getBadRequestAutoBlacklistIpSetId())) {
+            logEventProcessors.add(new BadRequestProcessor(objectMapper, awsWaf, amazonS3Client, retryer));
+        }
         logEventProcessors.add(new TlsVerificationProcessor());
 
-        athenaService = new AthenaService(logProcessorLambdaConfig);
+        // read the logs straight from the ALB log bucket when configured to, otherwise query them through Athena
+        if (logProcessorLambdaConfig.isS3LogEventSource()) {
+            logEventSource = new S3LogEventSource(amazonS3Client, logProcessorLambdaConfig, retryer);
+        } else {
+            logEventSource = new AthenaLogEventSource(new AthenaService(logProcessorLambdaConfig, retryer));
+        }
     }
 
     @VisibleForTesting
@@ -69,18 +93,40 @@ public class ALBAccessLogEventHandler {
         this.logEventProcessors = logEventProcessors;
     }
 
+    /**
+     * The handler that's triggered by a scheduled event, retries of the AWS calls are limited to the time the
+     * Lambda has left.
+     */
+    public void handleScheduledEvent(ScheduledEvent event, Context context) {
+        retryer.setBudget(() -> context.getRemainingTimeInMillis() - RETRY_BUDGET_RESERVE_IN_MILLIS);
+        try {
+            handleScheduledEvent();
+        } finally {
+            retryer.setBudget(null);
+        }
+    }
+
     /**
      * The handler that's triggered by a scheduled event.
-     * Query Athena for requests made to Cerberus within the last interval.
+     * Query Athena (or the ALB log bucket) for requests made to Cerberus within the last interval.
      * http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html
      */
     public void handleScheduledEvent() {
         List<ALBAccessLogEvent> logEvents = getLogEvents();
         String bucketName = logProcessorLambdaConfig.getAlbLogBucketName();
+        // built at most once and shared by every processor that scans columns
+        ALBAccessLogBatch[] batch = new ALBAccessLogBatch[1];
 
         logEventProcessors.forEach(processor -> {
             try {
-                processor.processLogEvents(logEvents, logProcessorLambdaConfig, bucketName);
+                if (processor instanceof BatchProcessor) {
+                    if (batch[0] == null) {
+                        batch[0] = ALBAccessLogBatch.fromEvents(logEvents);
+                    }
+                    ((BatchProcessor) processor).processLogBatch(batch[0], logProcessorLambdaConfig, bucketName);
+                } else {
+                    processor.processLogEvents(logEvents, logProcessorLambdaConfig, bucketName);
+                }
             } catch (Throwable t) {
                 log.error(String.format("Failed to run log processor %s", processor.getClass()), t);
 
@@ -100,20 +146,31 @@ public class ALBAccessLogEventHandler {
                 }
             }
         });
+
+        RetryMetrics retryMetrics = retryer.getMetrics();
+        if (retryMetrics.hasRetriesOrFailures()) {
+            log.warn("AWS calls that needed retries or failed:\n" + retryMetrics);
+        } else {
+            log.debug("AWS calls:\n" + retryMetrics);
+        }
+        retryMetrics.reset();
     }
 
     /**
-     * Query Athena and convert the result to a list of events
+     * Read the events for the last interval from the log event source
      * @return a list of AppLoadBalancerLogEvents to be processed by the processors
      */
     protected List<ALBAccessLogEvent> getLogEvents() {
         Integer intervalInMins = logProcessorLambdaConfig.getIntervalInMins();
         DateTime intervalBeforeNow = DateTime.now().minusMinutes(intervalInMins);
-        return athenaService.getLogEntrysAfter(intervalBeforeNow).stream()
-                .map(ALBAccessLogEvent::new).collect(Collectors.toList());
+        return logEventSource.getLogEventsAfter(intervalBeforeNow);
     }
 
     public void setAthenaService(AthenaService athenaService) {
-        this.athenaService = athenaService;
+        this.logEventSource = new AthenaLogEventSource(athenaService);
+    }
+
+    public void setLogEventSource(LogEventSource logEventSource) {
+        this.logEventSource = logEventSource;
     }
 }
@@ -0,0 +1,326 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Keeps an abuse score and a violation count per client IP across runs, without boxing, see OpenAddressingCounter. The
+ * counts of the base class are the violations.
+ *
+ * The score is a leaky bucket: every request adds one and the bucket leaks exponentially with the half-life, so a
+ * client that keeps sending r requests a minute settles at about r * halfLife / ln 2 however long each run is. Scores
+ * are decayed lazily, an entry remembers the minute it was last decayed to, so an update is O(1) and entries that are
+ * not touched cost nothing until they are read or compacted.
+ *
+ * Entries can not be removed from the table, {@link #compact(int, double, int, Predicate, int)} copies the ones worth
+ * keeping into a new table instead, which keeps the persisted state bounded. The violations of an address are kept
+ * for as long as its last one is recent enough, however low its score got, so a repeat offender is recognized even
+ * after a long block.
+ */
+public final class AbuseScoreTable extends OpenAddressingCounter {
+
+    private static final int FORMAT_VERSION = 2;
+
+    // version 1 did not have the minute of the last violation
+    private static final int FORMAT_VERSION_WITHOUT_LAST_VIOLATION = 1;
+
+    /**
+     * The scored until minute of a table that has not scored any requests yet
+     */
+    public static final int NEVER_SCORED = Integer.MIN_VALUE;
+
+    private final double decayPerMinute;
+
+    private boolean[] ipv4s;
+
+    private long[] highs;
+
+    private long[] lows;
+
+    private double[] scores;
+
+    private int[] minutes;
+
+    private int[] lastViolations;
+
+    private int scoredUntilEpochMinute = NEVER_SCORED;
+
+    private int lastScoredMinutes;
+
+    /**
+     * @param halfLifeInMinutes The minutes it takes a score to halve without new requests
+     */
+    public AbuseScoreTable(int halfLifeInMinutes, int expectedKeys) {
+        this(decayPerMinuteFor(halfLifeInMinutes), expectedKeys);
+    }
+
+    private AbuseScoreTable(double decayPerMinute, int expectedKeys) {
+        super(expectedKeys);
+        this.decayPerMinute = decayPerMinute;
+        ipv4s = new boolean[counts.length];
+        highs = new long[counts.length];
+        lows = new long[counts.length];
+        scores = new double[counts.length];
+        minutes = new int[counts.length];
+        lastViolations = new int[counts.length];
+    }
+
+    /**
+     * Decays the score of the address to the given minute and adds the requests to it
+     *
+     * @param epochMinute Minutes since the epoch, see {@link IpAddressCounter#toEpochMinute(long)}
+     * @return the ordinal of the address
+     */
+    public int add(IpAddress ip, double requests, int epochMinute) {
+        int ordinal = ordinalOf(ip);
+        if (ordinal < 0) {
+            ordinal = insert(ip, epochMinute);
+        }
+        scores[ordinal] = getScore(ordinal, epochMinute) + requests;
+        minutes[ordinal] = Math.max(minutes[ordinal], epochMinute);
+        return ordinal;
+    }
+
+    /**
+     * Counts a new violation of the address and remembers the minute of it
+     *
+     * @return the number of violations of the address so far, including this one
+     */
+    public int recordViolation(IpAddress ip, int epochMinute) {
+        int ordinal = ordinalOf(ip);
+        if (ordinal < 0) {
+            ordinal = insert(ip, epochMinute);
+        }
+        lastViolations[ordinal] = Math.max(lastViolations[ordinal], epochMinute);
+        return ++counts[ordinal];
+    }
+
+    /**
+     * @return the ordinal of the address, -1 if it is not in the table
+     */
+    public int ordinalOf(IpAddress ip) {
+        boolean ipv4 = ip.isIpv4();
+        long high = ip.getHigh();
+        long low = ip.getLow();
+        int slot = slotFor(hash(ipv4, high, low));
+        for (int ordinal = ordinalAt(slot); ordinal >= 0; ordinal = ordinalAt(slot)) {
+            if (ipv4s[ordinal] == ipv4 && highs[ordinal] == high && lows[ordinal] == low) {
+                return ordinal;
+            }
+            slot = nextSlot(slot);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the score of the entry decayed to the given minute, minutes before the last update do not raise it
+     */
+    public double getScore(int ordinal, int epochMinute) {
+        checkOrdinal(ordinal);
+        int elapsed = epochMinute - minutes[ordinal];
+        return elapsed <= 0 ? scores[ordinal] : scores[ordinal] * Math.exp(-decayPerMinute * elapsed);
+    }
+
+    public int getViolations(int ordinal) {
+        return getCount(ordinal);
+    }
+
+    /**
+     * @return the minute of the last violation of the entry, only meaningful if it has violations
+     */
+    public int getLastViolationEpochMinute(int ordinal) {
+        checkOrdinal(ordinal);
+        return lastViolations[ordinal];
+    }
+
+    /**
+     * @return the address of the entry with the given ordinal, only create these for the entries that matter
+     */
+    public IpAddress getIpAddress(int ordinal) {
+        checkOrdinal(ordinal);
+        return ipv4s[ordinal] ? IpAddress.ofIpv4((int) lows[ordinal]) : IpAddress.ofIpv6(highs[ordinal], lows[ordinal]);
+    }
+
+    /**
+     * @return the minute the requests in the scores go up to, exclusive, {@link #NEVER_SCORED} for a new table
+     */
+    public int getScoredUntilEpochMinute() {
+        return scoredUntilEpochMinute;
+    }
+
+    /**
+     * Records that the requests up to the given minute, exclusive, are in the scores
+     */
+    public void advanceScoredUntil(int epochMinute) {
+        if (epochMinute <= scoredUntilEpochMinute) {
+            lastScoredMinutes = 0;
+            return;
+        }
+        lastScoredMinutes = scoredUntilEpochMinute == NEVER_SCORED ? 0 : epochMinute - scoredUntilEpochMinute;
+        scoredUntilEpochMinute = epochMinute;
+    }
+
+    /**
+     * @return how many minutes of requests the last {@link #advanceScoredUntil(int)} added, 0 if it was the first or
+     * added none
+     */
+    public int getLastScoredMinutes() {
+        return lastScoredMinutes;
+    }
+
+    /**
+     * @return the fraction of a score that is left after the given number of minutes
+     */
+    public double decayOver(int minutes) {
+        return Math.exp(-decayPerMinute * minutes);
+    }
+
+    /**
+     * Copies the entries worth keeping into a new table, with their scores decayed to the given minute.
+     *
+     * An entry is kept if the keep predicate holds for its address, e.g. because it is blocked right now, if it
+     * violated at or after the given minute, or if its score is at least the min score and it is among the maxKeys
+     * highest scores. The kept entries keep their violation counts, the others lose them.
+     *
+     * @param keepViolationsSinceEpochMinute The entries whose last violation is at or after this minute are kept
+     */
+    public AbuseScoreTable compact(int epochMinute, double minScore, int maxKeys, Predicate<IpAddress> keep,
+                                   int keepViolationsSinceEpochMinute) {
+        double[] decayed = new double[size];
+        int candidates = 0;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            decayed[ordinal] = getScore(ordinal, epochMinute);
+            if (decayed[ordinal] >= minScore) {
+                candidates++;
+            } else {
+                decayed[ordinal] = Double.NaN;
+            }
+        }
+        // the lowest score that still makes it into the top maxKeys, ties at it may push the table a little past
+        double cutoff = candidates <= maxKeys ? minScore : kthHighest(decayed, maxKeys);
+
+        AbuseScoreTable compacted = new AbuseScoreTable(decayPerMinute, Math.min(size, maxKeys));
+        compacted.scoredUntilEpochMinute = scoredUntilEpochMinute;
+        compacted.lastScoredMinutes = lastScoredMinutes;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            boolean recentViolator = counts[ordinal] > 0 && lastViolations[ordinal] >= keepViolationsSinceEpochMinute;
+            if (decayed[ordinal] >= cutoff || recentViolator || keep.test(getIpAddress(ordinal))) {
+                int copy = compacted.insert(getIpAddress(ordinal), epochMinute);
+                compacted.scores[copy] = Double.isNaN(decayed[ordinal]) ? getScore(ordinal, epochMinute) : decayed[ordinal];
+                compacted.counts[copy] = counts[ordinal];
+                compacted.lastViolations[copy] = lastViolations[ordinal];
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Writes the entries, decayed to the given minute, in a versioned binary form. The minute is read back as the
+     * scored until minute, so it should be {@link #getScoredUntilEpochMinute()} once the table has scored requests.
+     */
+    public void writeTo(DataOutput out, int epochMinute) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(epochMinute);
+        out.writeInt(size);
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            out.writeBoolean(ipv4s[ordinal]);
+            if (ipv4s[ordinal]) {
+                out.writeInt((int) lows[ordinal]);
+            } else {
+                out.writeLong(highs[ordinal]);
+                out.writeLong(lows[ordinal]);
+            }
+            out.writeFloat((float) getScore(ordinal, epochMinute));
+            out.writeInt(counts[ordinal]);
+            if (counts[ordinal] > 0) {
+                out.writeInt(lastViolations[ordinal]);
+            }
+        }
+    }
+
+    /**
+     * Reads entries written by {@link #writeTo(DataOutput, int)}, the minute they were written at is the scored until
+     * minute of the table
+     *
+     * @throws IOException if the data is not in a known version of the format
+     */
+    public static AbuseScoreTable readFrom(DataInput in, int halfLifeInMinutes) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION && version != FORMAT_VERSION_WITHOUT_LAST_VIOLATION) {
+            throw new IOException("Unknown abuse score format version " + version);
+        }
+        int epochMinute = in.readInt();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Negative abuse score entry count " + size);
+        }
+        // the size only sizes the table, a corrupt count must not allocate a huge one up front
+        AbuseScoreTable table = new AbuseScoreTable(halfLifeInMinutes, Math.min(size, DEFAULT_EXPECTED_KEYS));
+        table.scoredUntilEpochMinute = epochMinute;
+        for (int i = 0; i < size; i++) {
+            IpAddress ip = in.readBoolean() ? IpAddress.ofIpv4(in.readInt()) : IpAddress.ofIpv6(in.readLong(), in.readLong());
+            int ordinal = table.insert(ip, epochMinute);
+            table.scores[ordinal] = in.readFloat();
+            table.counts[ordinal] = in.readInt();
+            if (table.counts[ordinal] > 0) {
+                // the violations of version 1 data count from when it was written
+                table.lastViolations[ordinal] = version == FORMAT_VERSION ? in.readInt() : epochMinute;
+            }
+        }
+        return table;
+    }
+
+    @Override
+    int hashOfOrdinal(int ordinal) {
+        return hash(ipv4s[ordinal], highs[ordinal], lows[ordinal]);
+    }
+
+    @Override
+    void growKeys(int length) {
+        ipv4s = Arrays.copyOf(ipv4s, length);
+        highs = Arrays.copyOf(highs, length);
+        lows = Arrays.copyOf(lows, length);
+        scores = Arrays.copyOf(scores, length);
+        minutes = Arrays.copyOf(minutes, length);
+        lastViolations = Arrays.copyOf(lastViolations, length);
+    }
+
+    private static double decayPerMinuteFor(int halfLifeInMinutes) {
+        if (halfLifeInMinutes <= 0) {
+            throw new IllegalArgumentException("halfLifeInMinutes must be positive");
+        }
+        return Math.log(2) / halfLifeInMinutes;
+    }
+
+    // the k-th highest of the scores that are not NaN, there are more than k of them
+    private static double kthHighest(double[] scores, int k) {
+        double[] candidates = Arrays.stream(scores).filter(score -> ! Double.isNaN(score)).toArray();
+        Arrays.sort(candidates);
+        return k == 0 ? Double.POSITIVE_INFINITY : candidates[candidates.length - k];
+    }
+
+    private int insert(IpAddress ip, int epochMinute) {
+        boolean ipv4 = ip.isIpv4();
+        long high = ip.getHigh();
+        long low = ip.getLow();
+        int slot = slotFor(hash(ipv4, high, low));
+        while (ordinalAt(slot) >= 0) {
+            slot = nextSlot(slot);
+        }
+        int ordinal = insert(slot);
+        ipv4s[ordinal] = ipv4;
+        highs[ordinal] = high;
+        lows[ordinal] = low;
+        minutes[ordinal] = epochMinute;
+        rehashIfNeeded();
+        return ordinal;
+    }
+
+    private static int hash(boolean ipv4, long high, long low) {
+        long hash = mix(high) ^ mix(low + 0x9E3779B97F4A7C15L) ^ (ipv4 ? 0x5555555555555555L : 0);
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
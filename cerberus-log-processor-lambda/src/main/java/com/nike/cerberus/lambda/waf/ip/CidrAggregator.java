@@ -0,0 +1,219 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collapses dense clusters of blocks into the shortest covering CIDRs, so that a botnet spread over a few /24s takes a
+ * few IP set descriptors instead of one per address.
+ *
+ * The blocks are inserted into a binary prefix trie over the numeric addresses, one trie per family, held in flat
+ * arrays. Each node knows the fraction of its range the blocks below it cover. Walking the trie from the root, a node
+ * is blocked as a whole as soon as:
+ * - it covers at least two blocks and at least the density threshold of its range,
+ * - its prefix length is one WAF accepts (/16 to /32 for IPv4, /24, /32, /48, /56 or /64 for IPv6),
+ * - it does not intersect any range of the do not cover index.
+ * Blocks that are not part of a dense enough cluster are kept as they are.
+ */
+public class CidrAggregator {
+
+    // WAF also accepts /8 for IPv4, which is far too wide to block automatically
+    private static final int MIN_IPV4_PREFIX_LENGTH = 16;
+
+    private static final boolean[] IPV6_PREFIX_LENGTHS = new boolean[129];
+
+    private static final int IPV4_ROOT = 0;
+
+    private static final int IPV6_ROOT = 1;
+
+    private static final int INITIAL_NODES = 1024;
+
+    static {
+        for (int prefixLength : new int[] {24, 32, 48, 56, 64}) {
+            IPV6_PREFIX_LENGTHS[prefixLength] = true;
+        }
+    }
+
+    private final double density;
+
+    private final IpRangeIndex doNotCover;
+
+    // children[2 * node] and children[2 * node + 1] are the nodes for a 0 and a 1 bit, 0 when there is none
+    private int[] children = new int[2 * INITIAL_NODES];
+
+    // the fraction of the whole address space covered by the blocks below the node, 2^-prefixLength per block
+    private double[] covered = new double[INITIAL_NODES];
+
+    private int[] blocks = new int[INITIAL_NODES];
+
+    private int[] maxRates = new int[INITIAL_NODES];
+
+    private boolean[] terminal = new boolean[INITIAL_NODES];
+
+    private int nodes = 2;
+
+    /**
+     * @param density The fraction of a CIDR's addresses (or IPv6 blocks) that have to be blocked to block all of it,
+     *                in (0, 1]
+     * @param doNotCover The ranges an aggregated CIDR may never intersect
+     */
+    public CidrAggregator(double density, IpRangeIndex doNotCover) {
+        if (! (density > 0 && density <= 1)) {
+            throw new IllegalArgumentException("density must be in (0, 1], not " + density);
+        }
+        this.density = density;
+        this.doNotCover = doNotCover;
+    }
+
+    /**
+     * Adds a block, a block inside one that was added before only raises its rate
+     *
+     * @param rate The rate the aggregate is ranked by, the highest rate of the blocks it covers
+     */
+    public void add(IpPrefix block, int rate) {
+        IpAddress address = block.getAddress();
+        int node = block.isIpv4() ? IPV4_ROOT : IPV6_ROOT;
+        int[] path = new int[block.getPrefixLength() + 1];
+        path[0] = node;
+        for (int depth = 0; depth < block.getPrefixLength(); depth++) {
+            if (terminal[node]) {
+                raiseRates(path, depth, rate);
+                return;
+            }
+            int child = 2 * node + bitAt(address, depth);
+            if (children[child] == 0) {
+                children[child] = newNode();
+            }
+            node = children[child];
+            path[depth + 1] = node;
+        }
+        raiseRates(path, path.length - 1, rate);
+        if (terminal[node]) {
+            return;
+        }
+        // a block over blocks that were added before replaces them
+        double coveredDelta = Math.scalb(1.0, -block.getPrefixLength()) - covered[node];
+        int blocksDelta = 1 - blocks[node];
+        for (int pathNode : path) {
+            covered[pathNode] += coveredDelta;
+            blocks[pathNode] += blocksDelta;
+        }
+        terminal[node] = true;
+    }
+
+    /**
+     * @return the aggregated CIDRs and the blocks that are not part of one, IPv4 first and each family in address
+     * order
+     */
+    public List<Aggregate> aggregate() {
+        List<Aggregate> aggregates = new ArrayList<>();
+        collect(IPV4_ROOT, 0, true, 0, 0, aggregates);
+        collect(IPV6_ROOT, 0, false, 0, 0, aggregates);
+        return aggregates;
+    }
+
+    private void collect(int node, int depth, boolean ipv4, long high, long low, List<Aggregate> aggregates) {
+        if (blocks[node] == 0) {
+            return;
+        }
+        if (terminal[node] || isDenseEnough(node, depth, ipv4)) {
+            IpPrefix prefix = toPrefix(depth, ipv4, high, low);
+            if (terminal[node] || ! doNotCover.intersects(prefix)) {
+                aggregates.add(new Aggregate(prefix, maxRates[node], blocks[node]));
+                return;
+            }
+        }
+        for (int bit = 0; bit < 2; bit++) {
+            int child = children[2 * node + bit];
+            if (child != 0) {
+                collect(child, depth + 1, ipv4, withBit(high, depth, bit, ipv4, true),
+                        withBit(low, depth, bit, ipv4, false), aggregates);
+            }
+        }
+    }
+
+    private boolean isDenseEnough(int node, int depth, boolean ipv4) {
+        boolean wafPrefixLength = ipv4 ? depth >= MIN_IPV4_PREFIX_LENGTH : IPV6_PREFIX_LENGTHS[depth];
+        return wafPrefixLength && blocks[node] >= 2 && Math.scalb(covered[node], depth) >= density;
+    }
+
+    private static IpPrefix toPrefix(int depth, boolean ipv4, long high, long low) {
+        return IpPrefix.of(ipv4 ? IpAddress.ofIpv4((int) low) : IpAddress.ofIpv6(high, low), depth);
+    }
+
+    private static int bitAt(IpAddress address, int depth) {
+        if (address.isIpv4()) {
+            return (address.getIpv4() >>> (31 - depth)) & 1;
+        }
+        return (int) (depth < 64 ? address.getHigh() >>> (63 - depth) : address.getLow() >>> (127 - depth)) & 1;
+    }
+
+    // sets the bit at the depth in whichever half of the address holds it
+    private static long withBit(long half, int depth, int bit, boolean ipv4, boolean isHigh) {
+        if (bit == 0) {
+            return half;
+        }
+        if (ipv4) {
+            return isHigh ? half : half | 1L << (31 - depth);
+        }
+        if (depth < 64) {
+            return isHigh ? half | 1L << (63 - depth) : half;
+        }
+        return isHigh ? half : half | 1L << (127 - depth);
+    }
+
+    private void raiseRates(int[] path, int depth, int rate) {
+        for (int i = 0; i <= depth; i++) {
+            maxRates[path[i]] = Math.max(maxRates[path[i]], rate);
+        }
+    }
+
+    private int newNode() {
+        if (nodes == terminal.length) {
+            int capacity = terminal.length * 2;
+            children = Arrays.copyOf(children, 2 * capacity);
+            covered = Arrays.copyOf(covered, capacity);
+            blocks = Arrays.copyOf(blocks, capacity);
+            maxRates = Arrays.copyOf(maxRates, capacity);
+            terminal = Arrays.copyOf(terminal, capacity);
+        }
+        return nodes++;
+    }
+
+    /**
+     * An aggregated CIDR or a block that was kept as it is
+     */
+    public static final class Aggregate {
+
+        private final IpPrefix prefix;
+
+        private final int maxRate;
+
+        private final int blocks;
+
+        Aggregate(IpPrefix prefix, int maxRate, int blocks) {
+            this.prefix = prefix;
+            this.maxRate = maxRate;
+            this.blocks = blocks;
+        }
+
+        public IpPrefix getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * @return the highest rate of the blocks it covers
+         */
+        public int getMaxRate() {
+            return maxRate;
+        }
+
+        /**
+         * @return the number of added blocks it covers, 1 for a block that was kept as it is
+         */
+        public int getBlocks() {
+            return blocks;
+        }
+    }
+}
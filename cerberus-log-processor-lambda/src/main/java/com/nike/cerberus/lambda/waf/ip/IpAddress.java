@@ -0,0 +1,290 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+/**
+ * An IPv4 or IPv6 address in numeric form.
+ *
+ * The client IP of an access log event is parsed into one of these once, counting, filtering and building the WAF
+ * descriptors all work on the numbers, the address is only formatted back into a String for logs, Slack and
+ * persisted state. IPv4 addresses are held as an unsigned 32 bit value, IPv6 addresses as two 64 bit halves.
+ */
+public final class IpAddress implements Comparable<IpAddress> {
+
+    private static final int IPV6_GROUPS = 8;
+
+    private final boolean ipv4;
+
+    // the upper 64 bits of an IPv6 address, always 0 for IPv4
+    private final long high;
+
+    // the lower 64 bits of an IPv6 address or the unsigned IPv4 address
+    private final long low;
+
+    private IpAddress(boolean ipv4, long high, long low) {
+        this.ipv4 = ipv4;
+        this.high = high;
+        this.low = low;
+    }
+
+    public static IpAddress ofIpv4(int address) {
+        return new IpAddress(true, 0, address & 0xFFFFFFFFL);
+    }
+
+    public static IpAddress ofIpv6(long high, long low) {
+        return new IpAddress(false, high, low);
+    }
+
+    /**
+     * @return the parsed address or null if the value is neither a dotted quad IPv4 nor an IPv6 address
+     */
+    public static IpAddress parse(CharSequence value) {
+        return value == null ? null : parse(value, 0, value.length());
+    }
+
+    /**
+     * Parses a region of a CharSequence, so that the client IP can be read straight out of a log line
+     *
+     * @return the parsed address or null if the value is neither a dotted quad IPv4 nor an IPv6 address
+     */
+    public static IpAddress parse(CharSequence value, int start, int end) {
+        if (value == null || start >= end) {
+            return null;
+        }
+        long ipv4 = parseIpv4(value, start, end);
+        if (ipv4 >= 0) {
+            return new IpAddress(true, 0, ipv4);
+        }
+        long[] ipv6 = new long[2];
+        return parseIpv6(value, start, end, ipv6) ? new IpAddress(false, ipv6[0], ipv6[1]) : null;
+    }
+
+    /**
+     * Parses a dotted quad IPv4 address (e.g. 50.39.100.194).
+     *
+     * @return the address as an unsigned 32 bit value or -1 if the value is not an IPv4 address
+     */
+    public static long parseIpv4(CharSequence value, int start, int end) {
+        if (value == null || start >= end) {
+            return -1;
+        }
+        long result = 0;
+        int pos = start;
+        for (int octets = 0; octets < 4; octets++) {
+            if (octets > 0) {
+                if (pos >= end || value.charAt(pos) != '.') {
+                    return -1;
+                }
+                pos++;
+            }
+            int octet = 0;
+            int digits = 0;
+            while (pos < end && isDigit(value.charAt(pos)) && digits < 3) {
+                octet = octet * 10 + (value.charAt(pos) - '0');
+                digits++;
+                pos++;
+            }
+            if (digits == 0 || octet > 255) {
+                return -1;
+            }
+            result = (result << 8) | octet;
+        }
+        return pos == end ? result : -1;
+    }
+
+    /**
+     * Parses an IPv6 address in any of the RFC 4291 text forms, including "::" and a trailing dotted quad.
+     *
+     * @param address Receives the upper and lower 64 bits
+     * @return false if the value is not an IPv6 address
+     */
+    public static boolean parseIpv6(CharSequence value, int start, int end, long[] address) {
+        int[] groups = new int[IPV6_GROUPS];
+        int count = 0;
+        int compressedAt = -1;
+        int pos = start;
+
+        if (end - start >= 2 && value.charAt(start) == ':' && value.charAt(start + 1) == ':') {
+            compressedAt = 0;
+            pos += 2;
+        } else if (pos < end && value.charAt(pos) == ':') {
+            return false;
+        }
+
+        while (pos < end) {
+            if (count == IPV6_GROUPS) {
+                return false;
+            }
+            int groupStart = pos;
+            int group = 0;
+            while (pos < end && pos - groupStart < 4 && Character.digit(value.charAt(pos), 16) >= 0) {
+                group = (group << 4) | Character.digit(value.charAt(pos), 16);
+                pos++;
+            }
+            if (pos < end && value.charAt(pos) == '.') {
+                // the last 32 bits written as a dotted quad
+                long ipv4 = parseIpv4(value, groupStart, end);
+                if (ipv4 < 0 || count > IPV6_GROUPS - 2) {
+                    return false;
+                }
+                groups[count++] = (int) (ipv4 >>> 16);
+                groups[count++] = (int) (ipv4 & 0xFFFF);
+                pos = end;
+                break;
+            }
+            if (pos == groupStart) {
+                return false;
+            }
+            groups[count++] = group;
+            if (pos == end) {
+                break;
+            }
+            if (value.charAt(pos) != ':') {
+                return false;
+            }
+            pos++;
+            if (pos < end && value.charAt(pos) == ':') {
+                if (compressedAt >= 0) {
+                    return false;
+                }
+                compressedAt = count;
+                pos++;
+            } else if (pos == end) {
+                // a single trailing ':'
+                return false;
+            }
+        }
+
+        if (compressedAt < 0 ? count != IPV6_GROUPS : count == IPV6_GROUPS) {
+            return false;
+        }
+        if (compressedAt >= 0) {
+            int zeros = IPV6_GROUPS - count;
+            System.arraycopy(groups, compressedAt, groups, compressedAt + zeros, count - compressedAt);
+            for (int i = compressedAt; i < compressedAt + zeros; i++) {
+                groups[i] = 0;
+            }
+        }
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 4; i++) {
+            high = (high << 16) | groups[i];
+            low = (low << 16) | groups[i + 4];
+        }
+        address[0] = high;
+        address[1] = low;
+        return true;
+    }
+
+    public boolean isIpv4() {
+        return ipv4;
+    }
+
+    /**
+     * @return the IPv4 address as an int, the same bits SubnetUtils.SubnetInfo.asInteger() returns
+     */
+    public int getIpv4() {
+        if (! ipv4) {
+            throw new IllegalStateException(this + " is not an IPv4 address");
+        }
+        return (int) low;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * @return the CIDR that matches only this address, e.g. 50.39.100.194/32
+     */
+    public String toCidr() {
+        return toString() + (ipv4 ? "/32" : "/128");
+    }
+
+    @Override
+    public String toString() {
+        if (ipv4) {
+            return formatIpv4((int) low);
+        }
+        return formatIpv6(high, low);
+    }
+
+    public static String formatIpv4(int address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    /**
+     * Formats an IPv6 address the RFC 5952 way, lower case with the longest run of zero groups compressed
+     */
+    public static String formatIpv6(long high, long low) {
+        int[] groups = new int[IPV6_GROUPS];
+        for (int i = 0; i < 4; i++) {
+            groups[i] = (int) ((high >>> (48 - 16 * i)) & 0xFFFF);
+            groups[i + 4] = (int) ((low >>> (48 - 16 * i)) & 0xFFFF);
+        }
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int i = 0; i < IPV6_GROUPS; ) {
+            if (groups[i] != 0) {
+                i++;
+                continue;
+            }
+            int runStart = i;
+            while (i < IPV6_GROUPS && groups[i] == 0) {
+                i++;
+            }
+            if (i - runStart > bestLength) {
+                bestStart = runStart;
+                bestLength = i - runStart;
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(39);
+        for (int i = 0; i < IPV6_GROUPS; i++) {
+            if (i == bestStart) {
+                builder.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ':') {
+                builder.append(':');
+            }
+            builder.append(Integer.toHexString(groups[i]));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public int compareTo(IpAddress other) {
+        if (ipv4 != other.ipv4) {
+            return ipv4 ? -1 : 1;
+        }
+        int result = Long.compareUnsigned(high, other.high);
+        return result != 0 ? result : Long.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (! (o instanceof IpAddress)) {
+            return false;
+        }
+        IpAddress other = (IpAddress) o;
+        return ipv4 == other.ipv4 && high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = high * 0x9E3779B97F4A7C15L + low;
+        return (int) (hash ^ (hash >>> 32)) + (ipv4 ? 1 : 0);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
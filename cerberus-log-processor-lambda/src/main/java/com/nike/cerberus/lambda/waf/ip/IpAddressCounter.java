@@ -0,0 +1,144 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+/**
+ * Counts requests per client IP without boxing, IPv4 addresses go to an Ipv4Counter and IPv6 addresses to an
+ * Ipv6Counter.
+ *
+ * Both are exposed through a single range of ordinals for iteration: ordinals 0 to ipv4Size - 1 are the IPv4
+ * addresses, the IPv6 addresses follow. Adding an address can shift the IPv6 ordinals, so iterate once counting is done.
+ *
+ * When created with ringMinutes the counter also keeps a ring of per-minute counts for every address, which gives the
+ * peak rate over any window of up to ringMinutes minutes and not just the total.
+ */
+public class IpAddressCounter {
+
+    private final Ipv4Counter ipv4Counter;
+
+    private final Ipv6Counter ipv6Counter;
+
+    private final MinuteRings ipv4Rings;
+
+    private final MinuteRings ipv6Rings;
+
+    public IpAddressCounter() {
+        this(OpenAddressingCounter.DEFAULT_EXPECTED_KEYS);
+    }
+
+    /**
+     * @param expectedIpv4Keys Sizes the IPv4 table, the IPv6 table starts small since IPv6 clients are rare
+     */
+    public IpAddressCounter(int expectedIpv4Keys) {
+        this(expectedIpv4Keys, 0);
+    }
+
+    /**
+     * @param expectedIpv4Keys Sizes the IPv4 table, the IPv6 table starts small since IPv6 clients are rare
+     * @param ringMinutes The number of minutes of per-minute counts to keep for every address, 0 for totals only
+     */
+    public IpAddressCounter(int expectedIpv4Keys, int ringMinutes) {
+        if (ringMinutes < 0) {
+            throw new IllegalArgumentException("ringMinutes must not be negative");
+        }
+        ipv4Counter = new Ipv4Counter(expectedIpv4Keys);
+        ipv6Counter = new Ipv6Counter();
+        ipv4Rings = ringMinutes == 0 ? null : new MinuteRings(ringMinutes, expectedIpv4Keys);
+        ipv6Rings = ringMinutes == 0 ? null : new MinuteRings(ringMinutes, OpenAddressingCounter.DEFAULT_EXPECTED_KEYS);
+    }
+
+    public void increment(IpAddress ip) {
+        add(ip, 1);
+    }
+
+    public void add(IpAddress ip, int delta) {
+        if (ip.isIpv4()) {
+            ipv4Counter.add(ip.getIpv4(), delta);
+        } else {
+            ipv6Counter.add(ip.getHigh(), ip.getLow(), delta);
+        }
+    }
+
+    /**
+     * Counts a request made in the given minute, the minute only matters if the counter keeps minute rings
+     *
+     * @param epochMinute Minutes since the epoch, see {@link #toEpochMinute(long)}
+     */
+    public void increment(IpAddress ip, int epochMinute) {
+        if (ip.isIpv4()) {
+            int ordinal = ipv4Counter.add(ip.getIpv4(), 1);
+            if (ipv4Rings != null) {
+                ipv4Rings.add(ordinal, epochMinute, 1);
+            }
+        } else {
+            int ordinal = ipv6Counter.add(ip.getHigh(), ip.getLow(), 1);
+            if (ipv6Rings != null) {
+                ipv6Rings.add(ordinal, epochMinute, 1);
+            }
+        }
+    }
+
+    /**
+     * @return the most requests the address with the given ordinal made in any windowMinutes long run of minutes, or
+     * its total if the counter does not keep minute rings
+     */
+    public int getPeak(int ordinal, int windowMinutes) {
+        if (ipv4Rings == null) {
+            return getCount(ordinal);
+        }
+        int ipv4Size = ipv4Counter.size();
+        return ordinal < ipv4Size ? ipv4Rings.peak(ordinal, windowMinutes) :
+                ipv6Rings.peak(ordinal - ipv4Size, windowMinutes);
+    }
+
+    /**
+     * @return the minutes since the epoch that a time in microseconds falls in
+     */
+    public static int toEpochMinute(long epochMicros) {
+        return (int) Math.floorDiv(epochMicros, 60000000L);
+    }
+
+    /**
+     * @return true if the address was added, even with a count of 0
+     */
+    public boolean contains(IpAddress ip) {
+        return ip.isIpv4() ? ipv4Counter.indexOf(ip.getIpv4()) >= 0 :
+                ipv6Counter.indexOf(ip.getHigh(), ip.getLow()) >= 0;
+    }
+
+    /**
+     * @return the count of the address, 0 if it was never added
+     */
+    public int get(IpAddress ip) {
+        return ip.isIpv4() ? ipv4Counter.get(ip.getIpv4()) : ipv6Counter.get(ip.getHigh(), ip.getLow());
+    }
+
+    /**
+     * @return the number of distinct addresses
+     */
+    public int size() {
+        return ipv4Counter.size() + ipv6Counter.size();
+    }
+
+    public int getCount(int ordinal) {
+        int ipv4Size = ipv4Counter.size();
+        return ordinal < ipv4Size ? ipv4Counter.getCount(ordinal) : ipv6Counter.getCount(ordinal - ipv4Size);
+    }
+
+    /**
+     * @return the address with the given ordinal, only create these for the addresses that matter
+     */
+    public IpAddress getIpAddress(int ordinal) {
+        int ipv4Size = ipv4Counter.size();
+        if (ordinal < ipv4Size) {
+            return IpAddress.ofIpv4(ipv4Counter.getKey(ordinal));
+        }
+        return IpAddress.ofIpv6(ipv6Counter.getHigh(ordinal - ipv4Size), ipv6Counter.getLow(ordinal - ipv4Size));
+    }
+
+    public Ipv4Counter getIpv4Counter() {
+        return ipv4Counter;
+    }
+
+    public Ipv6Counter getIpv6Counter() {
+        return ipv6Counter;
+    }
+}
@@ -0,0 +1,130 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+/**
+ * A CIDR block such as 192.168.0.0/24 or 2600:1f14::/56, the address is kept with the bits past the prefix cleared so
+ * equal blocks are equal however they were written.
+ */
+public final class IpPrefix {
+
+    private final IpAddress address;
+
+    private final int prefixLength;
+
+    private IpPrefix(IpAddress address, int prefixLength) {
+        this.address = address;
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * @return the block of prefixLength bits the address falls in
+     * @throws IllegalArgumentException if the prefix length does not fit the address family
+     */
+    public static IpPrefix of(IpAddress address, int prefixLength) {
+        if (address.isIpv4()) {
+            if (prefixLength < 0 || prefixLength > 32) {
+                throw new IllegalArgumentException("Invalid IPv4 prefix length " + prefixLength);
+            }
+            int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+            return new IpPrefix(IpAddress.ofIpv4(address.getIpv4() & mask), prefixLength);
+        }
+        if (prefixLength < 0 || prefixLength > 128) {
+            throw new IllegalArgumentException("Invalid IPv6 prefix length " + prefixLength);
+        }
+        return new IpPrefix(IpAddress.ofIpv6(address.getHigh() & highMask(prefixLength),
+                address.getLow() & lowMask(prefixLength)), prefixLength);
+    }
+
+    /**
+     * @return the /32 or /128 block of a single address
+     */
+    public static IpPrefix of(IpAddress address) {
+        return new IpPrefix(address, address.isIpv4() ? 32 : 128);
+    }
+
+    /**
+     * Parses a CIDR, a bare address is read as a single address block
+     *
+     * @throws IllegalArgumentException if the CIDR is invalid
+     */
+    public static IpPrefix parse(String cidr) {
+        int slash = cidr.indexOf('/');
+        IpAddress address = IpAddress.parse(cidr, 0, slash < 0 ? cidr.length() : slash);
+        if (address == null) {
+            throw new IllegalArgumentException("Invalid CIDR " + cidr);
+        }
+        if (slash < 0) {
+            return of(address);
+        }
+        try {
+            return of(address, Integer.parseInt(cidr.substring(slash + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid CIDR " + cidr, e);
+        }
+    }
+
+    /**
+     * @return the first address of the block
+     */
+    public IpAddress getAddress() {
+        return address;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    public boolean isIpv4() {
+        return address.isIpv4();
+    }
+
+    /**
+     * @return true if the block holds just one address
+     */
+    public boolean isSingleAddress() {
+        return prefixLength == (address.isIpv4() ? 32 : 128);
+    }
+
+    /**
+     * @return the last address of the block
+     */
+    public IpAddress getLastAddress() {
+        if (address.isIpv4()) {
+            return IpAddress.ofIpv4(address.getIpv4() | ~(prefixLength == 0 ? 0 : -1 << (32 - prefixLength)));
+        }
+        return IpAddress.ofIpv6(address.getHigh() | ~highMask(prefixLength), address.getLow() | ~lowMask(prefixLength));
+    }
+
+    public String toCidr() {
+        return address + "/" + prefixLength;
+    }
+
+    static long highMask(int prefixLength) {
+        return prefixLength == 0 ? 0 : prefixLength >= 64 ? -1L : -1L << (64 - prefixLength);
+    }
+
+    static long lowMask(int prefixLength) {
+        return prefixLength <= 64 ? 0 : -1L << (128 - prefixLength);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (! (o instanceof IpPrefix)) {
+            return false;
+        }
+        IpPrefix other = (IpPrefix) o;
+        return prefixLength == other.prefixLength && address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * address.hashCode() + prefixLength;
+    }
+
+    @Override
+    public String toString() {
+        return toCidr();
+    }
+}
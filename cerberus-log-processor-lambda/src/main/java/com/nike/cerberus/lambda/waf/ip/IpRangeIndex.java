@@ -0,0 +1,96 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+/**
+ * The IPv4 and IPv6 ranges of a set of CIDRs (e.g. the manual white and black lists), see Ipv4RangeIndex and
+ * Ipv6RangeIndex.
+ */
+public final class IpRangeIndex {
+
+    private static final IpRangeIndex EMPTY = new IpRangeIndex(Ipv4RangeIndex.empty(), Ipv6RangeIndex.empty());
+
+    private final Ipv4RangeIndex ipv4Ranges;
+
+    private final Ipv6RangeIndex ipv6Ranges;
+
+    private IpRangeIndex(Ipv4RangeIndex ipv4Ranges, Ipv6RangeIndex ipv6Ranges) {
+        this.ipv4Ranges = ipv4Ranges;
+        this.ipv6Ranges = ipv6Ranges;
+    }
+
+    public static IpRangeIndex empty() {
+        return EMPTY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public boolean contains(IpAddress ip) {
+        return ip.isIpv4() ? ipv4Ranges.contains(ip.getIpv4()) : ipv6Ranges.contains(ip.getHigh(), ip.getLow());
+    }
+
+    /**
+     * @return true if any address of the block is in the index
+     */
+    public boolean intersects(IpPrefix prefix) {
+        IpAddress first = prefix.getAddress();
+        IpAddress last = prefix.getLastAddress();
+        if (prefix.isIpv4()) {
+            return ipv4Ranges.intersects(first.getIpv4(), last.getIpv4());
+        }
+        return ipv6Ranges.intersects(first.getHigh(), first.getLow(), last.getHigh(), last.getLow());
+    }
+
+    public Ipv4RangeIndex getIpv4Ranges() {
+        return ipv4Ranges;
+    }
+
+    public Ipv6RangeIndex getIpv6Ranges() {
+        return ipv6Ranges;
+    }
+
+    public static final class Builder {
+
+        private final Ipv4RangeIndex.Builder ipv4Ranges = Ipv4RangeIndex.builder();
+
+        private final Ipv6RangeIndex.Builder ipv6Ranges = Ipv6RangeIndex.builder();
+
+        private Builder() {
+        }
+
+        /**
+         * Adds the addresses of a CIDR such as 192.168.0.0/24 or 2600:1f14::/56, a bare address is added as a single
+         * address
+         *
+         * @throws IllegalArgumentException if the CIDR is invalid
+         */
+        public Builder addCidr(String cidr) {
+            return addPrefix(IpPrefix.parse(cidr));
+        }
+
+        public Builder addPrefix(IpPrefix prefix) {
+            return addPrefix(prefix.getAddress(), prefix.getPrefixLength());
+        }
+
+        /**
+         * Adds the addresses that share the first prefixLength bits with the address
+         */
+        public Builder addPrefix(IpAddress address, int prefixLength) {
+            if (address.isIpv4()) {
+                ipv4Ranges.addPrefix(address.getIpv4(), prefixLength);
+            } else {
+                ipv6Ranges.addPrefix(address.getHigh(), address.getLow(), prefixLength);
+            }
+            return this;
+        }
+
+        public Builder addIpv4Range(int low, int high) {
+            ipv4Ranges.addRange(low, high);
+            return this;
+        }
+
+        public IpRangeIndex build() {
+            return new IpRangeIndex(ipv4Ranges.build(), ipv6Ranges.build());
+        }
+    }
+}
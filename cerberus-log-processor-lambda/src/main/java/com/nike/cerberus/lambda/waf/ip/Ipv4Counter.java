@@ -0,0 +1,82 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.Arrays;
+
+/**
+ * Counts requests per IPv4 address with int keys, see OpenAddressingCounter
+ */
+public final class Ipv4Counter extends OpenAddressingCounter {
+
+    private int[] keys;
+
+    public Ipv4Counter() {
+        this(DEFAULT_EXPECTED_KEYS);
+    }
+
+    public Ipv4Counter(int expectedKeys) {
+        super(expectedKeys);
+        keys = new int[counts.length];
+    }
+
+    /**
+     * Adds to the count of an address
+     *
+     * @param address The address as returned by IpAddress.getIpv4()
+     * @return the ordinal of the address
+     */
+    public int add(int address, int delta) {
+        int slot = slotFor(mix(address));
+        for (int ordinal = ordinalAt(slot); ordinal >= 0; ordinal = ordinalAt(slot)) {
+            if (keys[ordinal] == address) {
+                counts[ordinal] += delta;
+                return ordinal;
+            }
+            slot = nextSlot(slot);
+        }
+        int ordinal = insert(slot);
+        keys[ordinal] = address;
+        counts[ordinal] = delta;
+        rehashIfNeeded();
+        return ordinal;
+    }
+
+    /**
+     * @return the ordinal of the address or -1 if it was never added
+     */
+    public int indexOf(int address) {
+        int slot = slotFor(mix(address));
+        for (int ordinal = ordinalAt(slot); ordinal >= 0; ordinal = ordinalAt(slot)) {
+            if (keys[ordinal] == address) {
+                return ordinal;
+            }
+            slot = nextSlot(slot);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the count of the address, 0 if it was never added
+     */
+    public int get(int address) {
+        int ordinal = indexOf(address);
+        return ordinal < 0 ? 0 : counts[ordinal];
+    }
+
+    /**
+     * @return the address with the given ordinal
+     */
+    public int getKey(int ordinal) {
+        checkOrdinal(ordinal);
+        return keys[ordinal];
+    }
+
+    @Override
+    int hashOfOrdinal(int ordinal) {
+        return mix(keys[ordinal]);
+    }
+
+    @Override
+    void growKeys(int length) {
+        keys = Arrays.copyOf(keys, length);
+    }
+}
@@ -0,0 +1,152 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of IPv4 ranges, merged and sorted into two int arrays so a lookup is an allocation free binary search.
+ *
+ * The ranges are unsigned, the sign bit of every stored bound is flipped so that plain int comparisons order them the
+ * way addresses are ordered and ranges that cross 128.0.0.0 work.
+ */
+public final class Ipv4RangeIndex {
+
+    private static final Ipv4RangeIndex EMPTY = new Ipv4RangeIndex(new int[0], new int[0]);
+
+    private final int[] lows;
+
+    private final int[] highs;
+
+    private Ipv4RangeIndex(int[] lows, int[] highs) {
+        this.lows = lows;
+        this.highs = highs;
+    }
+
+    public static Ipv4RangeIndex empty() {
+        return EMPTY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param address The address as returned by IpAddress.getIpv4()
+     */
+    public boolean contains(int address) {
+        int key = address ^ Integer.MIN_VALUE;
+        int index = lastStartingAtOrBefore(key);
+        return index >= 0 && key <= highs[index];
+    }
+
+    /**
+     * @return true if any address from low to high (inclusive and unsigned) is in the index
+     */
+    public boolean intersects(int low, int high) {
+        int index = lastStartingAtOrBefore(high ^ Integer.MIN_VALUE);
+        return index >= 0 && (low ^ Integer.MIN_VALUE) <= highs[index];
+    }
+
+    /**
+     * @return the index of the last range that starts at or before the key or -1
+     */
+    private int lastStartingAtOrBefore(int key) {
+        int low = 0;
+        int high = lows.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (lows[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @return the number of ranges left after merging overlapping and adjacent ones
+     */
+    public int size() {
+        return lows.length;
+    }
+
+    /**
+     * @return the first address of a merged range
+     */
+    public int getLow(int index) {
+        return lows[index] ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return the last address of a merged range
+     */
+    public int getHigh(int index) {
+        return highs[index] ^ Integer.MIN_VALUE;
+    }
+
+    public static final class Builder {
+
+        // low in the high 32 bits and high in the low 32 bits, both unsigned, with the sign bit flipped so sorting the
+        // longs sorts the ranges
+        private long[] ranges = new long[16];
+
+        private int size;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds the addresses low to high, inclusive and unsigned
+         */
+        public Builder addRange(int low, int high) {
+            if (Integer.compareUnsigned(low, high) > 0) {
+                throw new IllegalArgumentException("The range " + IpAddress.formatIpv4(low) + " - " +
+                        IpAddress.formatIpv4(high) + " is empty");
+            }
+            if (size == ranges.length) {
+                ranges = Arrays.copyOf(ranges, size * 2);
+            }
+            ranges[size++] = ((Integer.toUnsignedLong(low) << 32) | Integer.toUnsignedLong(high)) ^ Long.MIN_VALUE;
+            return this;
+        }
+
+        /**
+         * Adds the addresses of a prefix
+         */
+        public Builder addPrefix(int address, int prefixLength) {
+            if (prefixLength < 0 || prefixLength > 32) {
+                throw new IllegalArgumentException("Invalid IPv4 prefix length " + prefixLength);
+            }
+            int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+            return addRange(address & mask, (address & mask) | ~mask);
+        }
+
+        public Ipv4RangeIndex build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            long[] sorted = Arrays.copyOf(ranges, size);
+            Arrays.sort(sorted);
+            int[] lows = new int[size];
+            int[] highs = new int[size];
+            int merged = 0;
+            long currentLow = (sorted[0] ^ Long.MIN_VALUE) >>> 32;
+            long currentHigh = sorted[0] & 0xFFFFFFFFL;
+            for (int i = 1; i < size; i++) {
+                long low = (sorted[i] ^ Long.MIN_VALUE) >>> 32;
+                long high = sorted[i] & 0xFFFFFFFFL;
+                if (low <= currentHigh + 1) {
+                    currentHigh = Math.max(currentHigh, high);
+                } else {
+                    lows[merged] = (int) currentLow ^ Integer.MIN_VALUE;
+                    highs[merged++] = (int) currentHigh ^ Integer.MIN_VALUE;
+                    currentLow = low;
+                    currentHigh = high;
+                }
+            }
+            lows[merged] = (int) currentLow ^ Integer.MIN_VALUE;
+            highs[merged++] = (int) currentHigh ^ Integer.MIN_VALUE;
+            return new Ipv4RangeIndex(Arrays.copyOf(lows, merged), Arrays.copyOf(highs, merged));
+        }
+    }
+}
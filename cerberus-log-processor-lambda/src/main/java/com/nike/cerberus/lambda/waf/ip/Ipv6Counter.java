@@ -0,0 +1,93 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.Arrays;
+
+/**
+ * Counts requests per IPv6 address with the 128 bit address held in two longs, see OpenAddressingCounter
+ */
+public final class Ipv6Counter extends OpenAddressingCounter {
+
+    private long[] highs;
+
+    private long[] lows;
+
+    public Ipv6Counter() {
+        this(DEFAULT_EXPECTED_KEYS);
+    }
+
+    public Ipv6Counter(int expectedKeys) {
+        super(expectedKeys);
+        highs = new long[counts.length];
+        lows = new long[counts.length];
+    }
+
+    /**
+     * Adds to the count of an address
+     *
+     * @return the ordinal of the address
+     */
+    public int add(long high, long low, int delta) {
+        int slot = slotFor(hash(high, low));
+        for (int ordinal = ordinalAt(slot); ordinal >= 0; ordinal = ordinalAt(slot)) {
+            if (highs[ordinal] == high && lows[ordinal] == low) {
+                counts[ordinal] += delta;
+                return ordinal;
+            }
+            slot = nextSlot(slot);
+        }
+        int ordinal = insert(slot);
+        highs[ordinal] = high;
+        lows[ordinal] = low;
+        counts[ordinal] = delta;
+        rehashIfNeeded();
+        return ordinal;
+    }
+
+    /**
+     * @return the ordinal of the address or -1 if it was never added
+     */
+    public int indexOf(long high, long low) {
+        int slot = slotFor(hash(high, low));
+        for (int ordinal = ordinalAt(slot); ordinal >= 0; ordinal = ordinalAt(slot)) {
+            if (highs[ordinal] == high && lows[ordinal] == low) {
+                return ordinal;
+            }
+            slot = nextSlot(slot);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the count of the address, 0 if it was never added
+     */
+    public int get(long high, long low) {
+        int ordinal = indexOf(high, low);
+        return ordinal < 0 ? 0 : counts[ordinal];
+    }
+
+    public long getHigh(int ordinal) {
+        checkOrdinal(ordinal);
+        return highs[ordinal];
+    }
+
+    public long getLow(int ordinal) {
+        checkOrdinal(ordinal);
+        return lows[ordinal];
+    }
+
+    @Override
+    int hashOfOrdinal(int ordinal) {
+        return hash(highs[ordinal], lows[ordinal]);
+    }
+
+    @Override
+    void growKeys(int length) {
+        highs = Arrays.copyOf(highs, length);
+        lows = Arrays.copyOf(lows, length);
+    }
+
+    private static int hash(long high, long low) {
+        long hash = mix(high) ^ mix(low + 0x9E3779B97F4A7C15L);
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -0,0 +1,212 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of IPv6 ranges, merged and sorted into primitive arrays (the 128 bit bounds are held as high and low
+ * longs) so a lookup is an allocation free binary search. The sign bit of the stored longs is flipped so that plain
+ * long comparisons order them the way addresses are ordered.
+ */
+public final class Ipv6RangeIndex {
+
+    private static final Ipv6RangeIndex EMPTY = new Ipv6RangeIndex(new long[0], new long[0], new long[0], new long[0]);
+
+    private final long[] lowHighs;
+
+    private final long[] lowLows;
+
+    private final long[] highHighs;
+
+    private final long[] highLows;
+
+    private Ipv6RangeIndex(long[] lowHighs, long[] lowLows, long[] highHighs, long[] highLows) {
+        this.lowHighs = lowHighs;
+        this.lowLows = lowLows;
+        this.highHighs = highHighs;
+        this.highLows = highLows;
+    }
+
+    public static Ipv6RangeIndex empty() {
+        return EMPTY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param high The first 64 bits of the address, as returned by IpAddress.getHigh()
+     * @param low The last 64 bits of the address, as returned by IpAddress.getLow()
+     */
+    public boolean contains(long high, long low) {
+        long keyHigh = high ^ Long.MIN_VALUE;
+        long keyLow = low ^ Long.MIN_VALUE;
+        int index = lastStartingAtOrBefore(keyHigh, keyLow);
+        return index >= 0 && compare(keyHigh, keyLow, highHighs[index], highLows[index]) <= 0;
+    }
+
+    /**
+     * @return true if any address from the low to the high address (inclusive) is in the index
+     */
+    public boolean intersects(long lowHigh, long lowLow, long highHigh, long highLow) {
+        int index = lastStartingAtOrBefore(highHigh ^ Long.MIN_VALUE, highLow ^ Long.MIN_VALUE);
+        return index >= 0 && compare(lowHigh ^ Long.MIN_VALUE, lowLow ^ Long.MIN_VALUE,
+                highHighs[index], highLows[index]) <= 0;
+    }
+
+    /**
+     * @return the index of the last range that starts at or before the (sign flipped) key or -1
+     */
+    private int lastStartingAtOrBefore(long keyHigh, long keyLow) {
+        int first = 0;
+        int last = lowHighs.length - 1;
+        while (first <= last) {
+            int mid = (first + last) >>> 1;
+            if (compare(lowHighs[mid], lowLows[mid], keyHigh, keyLow) <= 0) {
+                first = mid + 1;
+            } else {
+                last = mid - 1;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return the number of ranges left after merging overlapping and adjacent ones
+     */
+    public int size() {
+        return lowHighs.length;
+    }
+
+    public IpAddress getLow(int index) {
+        return IpAddress.ofIpv6(lowHighs[index] ^ Long.MIN_VALUE, lowLows[index] ^ Long.MIN_VALUE);
+    }
+
+    public IpAddress getHigh(int index) {
+        return IpAddress.ofIpv6(highHighs[index] ^ Long.MIN_VALUE, highLows[index] ^ Long.MIN_VALUE);
+    }
+
+    private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+        return aHigh != bHigh ? Long.compare(aHigh, bHigh) : Long.compare(aLow, bLow);
+    }
+
+    public static final class Builder {
+
+        // 4 longs per range: low high, low low, high high, high low, all with the sign bit flipped
+        private long[] ranges = new long[64];
+
+        private int size;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds the addresses from the low to the high address, inclusive
+         */
+        public Builder addRange(long lowHigh, long lowLow, long highHigh, long highLow) {
+            if (compare(lowHigh ^ Long.MIN_VALUE, lowLow ^ Long.MIN_VALUE,
+                    highHigh ^ Long.MIN_VALUE, highLow ^ Long.MIN_VALUE) > 0) {
+                throw new IllegalArgumentException("The range " + IpAddress.formatIpv6(lowHigh, lowLow) + " - " +
+                        IpAddress.formatIpv6(highHigh, highLow) + " is empty");
+            }
+            if (size * 4 == ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            int offset = size++ * 4;
+            ranges[offset] = lowHigh ^ Long.MIN_VALUE;
+            ranges[offset + 1] = lowLow ^ Long.MIN_VALUE;
+            ranges[offset + 2] = highHigh ^ Long.MIN_VALUE;
+            ranges[offset + 3] = highLow ^ Long.MIN_VALUE;
+            return this;
+        }
+
+        /**
+         * Adds the addresses of a prefix
+         */
+        public Builder addPrefix(long high, long low, int prefixLength) {
+            if (prefixLength < 0 || prefixLength > 128) {
+                throw new IllegalArgumentException("Invalid IPv6 prefix length " + prefixLength);
+            }
+            long highMask = IpPrefix.highMask(prefixLength);
+            long lowMask = IpPrefix.lowMask(prefixLength);
+            return addRange(high & highMask, low & lowMask, (high & highMask) | ~highMask, (low & lowMask) | ~lowMask);
+        }
+
+        public Ipv6RangeIndex build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            int[] order = sortByLow();
+            long[] lowHighs = new long[size];
+            long[] lowLows = new long[size];
+            long[] highHighs = new long[size];
+            long[] highLows = new long[size];
+            int merged = -1;
+            for (int i = 0; i < size; i++) {
+                int offset = order[i] * 4;
+                long lowHigh = ranges[offset];
+                long lowLow = ranges[offset + 1];
+                if (merged >= 0 && startsAtOrBeforeEnd(lowHigh, lowLow, highHighs[merged], highLows[merged])) {
+                    if (compare(ranges[offset + 2], ranges[offset + 3], highHighs[merged], highLows[merged]) > 0) {
+                        highHighs[merged] = ranges[offset + 2];
+                        highLows[merged] = ranges[offset + 3];
+                    }
+                } else {
+                    merged++;
+                    lowHighs[merged] = lowHigh;
+                    lowLows[merged] = lowLow;
+                    highHighs[merged] = ranges[offset + 2];
+                    highLows[merged] = ranges[offset + 3];
+                }
+            }
+            int count = merged + 1;
+            return new Ipv6RangeIndex(Arrays.copyOf(lowHighs, count), Arrays.copyOf(lowLows, count),
+                    Arrays.copyOf(highHighs, count), Arrays.copyOf(highLows, count));
+        }
+
+        /**
+         * @return true if a range starting at low can be merged into one ending at high, they overlap or touch
+         */
+        private static boolean startsAtOrBeforeEnd(long lowHigh, long lowLow, long highHigh, long highLow) {
+            if (compare(lowHigh, lowLow, highHigh, highLow) <= 0) {
+                return true;
+            }
+            // adjacent if low == high + 1, the end can not be the last address or low would not be greater
+            long nextLow = highLow + 1;
+            long nextHigh = nextLow == Long.MIN_VALUE ? highHigh + 1 : highHigh;
+            return lowHigh == nextHigh && lowLow == nextLow;
+        }
+
+        /**
+         * @return the range numbers ordered by their low address, a merge sort so the build stays O(n log n)
+         */
+        private int[] sortByLow() {
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            int[] buffer = new int[size];
+            for (int width = 1; width < size; width *= 2) {
+                for (int start = 0; start < size - width; start += 2 * width) {
+                    int middle = start + width;
+                    int end = Math.min(start + 2 * width, size);
+                    int left = start;
+                    int right = middle;
+                    for (int i = start; i < end; i++) {
+                        if (right >= end || (left < middle && compareLows(order[left], order[right]) <= 0)) {
+                            buffer[i] = order[left++];
+                        } else {
+                            buffer[i] = order[right++];
+                        }
+                    }
+                    System.arraycopy(buffer, start, order, start, end - start);
+                }
+            }
+            return order;
+        }
+
+        private int compareLows(int a, int b) {
+            return compare(ranges[a * 4], ranges[a * 4 + 1], ranges[b * 4], ranges[b * 4 + 1]);
+        }
+    }
+}
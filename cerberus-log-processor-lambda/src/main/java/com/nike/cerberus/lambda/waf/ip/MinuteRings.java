@@ -0,0 +1,83 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.Arrays;
+
+/**
+ * A ring of per-minute request counts for every ordinal of an Ipv4Counter or Ipv6Counter, stored in one flat array
+ * (ordinal * ringMinutes + epochMinute % ringMinutes).
+ *
+ * Each ring remembers the latest minute it has seen. Moving forward clears the buckets that fall out of the ring and
+ * counts older than the ring are dropped, so a ring always holds the last ringMinutes minutes of its address.
+ */
+final class MinuteRings {
+
+    private static final int NO_MINUTE = Integer.MIN_VALUE;
+
+    private final int ringMinutes;
+
+    private int[] buckets;
+
+    private int[] latestMinutes;
+
+    MinuteRings(int ringMinutes, int expectedKeys) {
+        this.ringMinutes = ringMinutes;
+        int keys = Math.max(expectedKeys, 8);
+        buckets = new int[keys * ringMinutes];
+        latestMinutes = new int[keys];
+        Arrays.fill(latestMinutes, NO_MINUTE);
+    }
+
+    /**
+     * @return false if the minute is too old for the ring of the ordinal and was dropped
+     */
+    boolean add(int ordinal, int epochMinute, int delta) {
+        if (ordinal >= latestMinutes.length) {
+            grow(ordinal + 1);
+        }
+        int base = ordinal * ringMinutes;
+        int latest = latestMinutes[ordinal];
+        if (latest == NO_MINUTE || epochMinute - latest >= ringMinutes) {
+            Arrays.fill(buckets, base, base + ringMinutes, 0);
+            latestMinutes[ordinal] = epochMinute;
+        } else if (epochMinute > latest) {
+            for (int minute = latest + 1; minute <= epochMinute; minute++) {
+                buckets[base + Math.floorMod(minute, ringMinutes)] = 0;
+            }
+            latestMinutes[ordinal] = epochMinute;
+        } else if (latest - epochMinute >= ringMinutes) {
+            return false;
+        }
+        buckets[base + Math.floorMod(epochMinute, ringMinutes)] += delta;
+        return true;
+    }
+
+    /**
+     * @return the most requests the ordinal made in any windowMinutes long run of minutes held by its ring
+     */
+    int peak(int ordinal, int windowMinutes) {
+        if (ordinal >= latestMinutes.length || latestMinutes[ordinal] == NO_MINUTE) {
+            return 0;
+        }
+        int window = Math.min(Math.max(windowMinutes, 1), ringMinutes);
+        int base = ordinal * ringMinutes;
+        int oldest = latestMinutes[ordinal] - ringMinutes + 1;
+        long sum = 0;
+        long peak = 0;
+        for (int i = 0; i < ringMinutes; i++) {
+            sum += buckets[base + Math.floorMod(oldest + i, ringMinutes)];
+            if (i >= window) {
+                sum -= buckets[base + Math.floorMod(oldest + i - window, ringMinutes)];
+            }
+            peak = Math.max(peak, sum);
+        }
+        return (int) Math.min(peak, Integer.MAX_VALUE);
+    }
+
+    private void grow(int minimumKeys) {
+        int keys = Math.max(minimumKeys, latestMinutes.length * 2);
+        int previous = latestMinutes.length;
+        buckets = Arrays.copyOf(buckets, Math.multiplyExact(keys, ringMinutes));
+        latestMinutes = Arrays.copyOf(latestMinutes, keys);
+        Arrays.fill(latestMinutes, previous, keys, NO_MINUTE);
+    }
+}
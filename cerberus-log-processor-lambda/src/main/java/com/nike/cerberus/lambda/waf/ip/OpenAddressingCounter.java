@@ -0,0 +1,148 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.Arrays;
+
+/**
+ * Base for the primitive IP counters, an open addressing hash table (linear probing) that maps every distinct key to a
+ * dense ordinal, the ordinals index the key and count arrays of the subclasses.
+ *
+ * The table holds ordinal + 1 (0 marks an empty slot), so growing it only has to move ints around and never touches
+ * the keys or the counts. The table is doubled whenever it gets half full and the dense arrays are doubled when they
+ * run out of room, so adding a key is amortized O(1) and nothing is boxed.
+ */
+abstract class OpenAddressingCounter {
+
+    static final int DEFAULT_EXPECTED_KEYS = 1024;
+
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+
+    private int[] table;
+
+    private int mask;
+
+    int[] counts;
+
+    int size;
+
+    OpenAddressingCounter(int expectedKeys) {
+        if (expectedKeys < 0) {
+            throw new IllegalArgumentException("expectedKeys must not be negative");
+        }
+        int tableSize = tableSizeFor(Math.max(expectedKeys, 8) * 2L);
+        table = new int[tableSize];
+        mask = tableSize - 1;
+        counts = new int[Math.max(expectedKeys, 8)];
+    }
+
+    /**
+     * @return the number of distinct keys, ordinals run from 0 to size() - 1 in the order the keys were first added
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the count of the key with the given ordinal
+     */
+    public int getCount(int ordinal) {
+        checkOrdinal(ordinal);
+        return counts[ordinal];
+    }
+
+    /**
+     * @return the hash of the key stored at the ordinal
+     */
+    abstract int hashOfOrdinal(int ordinal);
+
+    /**
+     * Grows the key arrays of the subclass to the given length
+     */
+    abstract void growKeys(int length);
+
+    /**
+     * @return the slot to start probing at for a hash
+     */
+    final int slotFor(int hash) {
+        return hash & mask;
+    }
+
+    final int nextSlot(int slot) {
+        return (slot + 1) & mask;
+    }
+
+    /**
+     * @return the ordinal stored in a slot or -1 if the slot is empty
+     */
+    final int ordinalAt(int slot) {
+        return table[slot] - 1;
+    }
+
+    /**
+     * Claims a new ordinal for a key that was not found, the subclass stores the key at the returned ordinal
+     */
+    final int insert(int slot) {
+        if (size == counts.length) {
+            int length = (int) Math.min((long) counts.length * 2, MAX_TABLE_SIZE / 2);
+            if (length == counts.length) {
+                throw new IllegalStateException("The counter is full at " + size + " keys");
+            }
+            counts = Arrays.copyOf(counts, length);
+            growKeys(length);
+        }
+        int ordinal = size++;
+        table[slot] = ordinal + 1;
+        return ordinal;
+    }
+
+    /**
+     * Doubles the table once it is half full, must be called after the subclass stored the key of a new ordinal
+     */
+    final void rehashIfNeeded() {
+        if (size * 2L <= table.length || table.length == MAX_TABLE_SIZE) {
+            return;
+        }
+        int[] newTable = new int[table.length * 2];
+        int newMask = newTable.length - 1;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int slot = hashOfOrdinal(ordinal) & newMask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & newMask;
+            }
+            newTable[slot] = ordinal + 1;
+        }
+        table = newTable;
+        mask = newMask;
+    }
+
+    final void checkOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException("ordinal " + ordinal + ", size " + size);
+        }
+    }
+
+    private static int tableSizeFor(long minimum) {
+        long tableSize = Long.highestOneBit(Math.max(minimum - 1, 1)) << 1;
+        return (int) Math.min(tableSize, MAX_TABLE_SIZE);
+    }
+
+    /**
+     * The murmur3 finalizer, spreads the bits of IPs that share a prefix over the whole table
+     */
+    static int mix(int key) {
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        key *= 0xc2b2ae35;
+        key ^= key >>> 16;
+        return key;
+    }
+
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,121 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.Arrays;
+
+/**
+ * Counts requests per rate limit rule and client IP, the keys of every rule share this one table, see
+ * OpenAddressingCounter.
+ *
+ * A key is the rule number and the address, held as an int tag (rule * 2, + 1 for IPv4) and two longs, so IPv4 and
+ * IPv6 addresses never collide. Like IpAddressCounter it can keep a ring of per-minute counts for every key.
+ */
+public final class RuleIpCounter extends OpenAddressingCounter {
+
+    private final MinuteRings rings;
+
+    private int[] tags;
+
+    private long[] highs;
+
+    private long[] lows;
+
+    public RuleIpCounter() {
+        this(DEFAULT_EXPECTED_KEYS, 0);
+    }
+
+    /**
+     * @param ringMinutes The number of minutes of per-minute counts to keep for every key, 0 for totals only
+     */
+    public RuleIpCounter(int expectedKeys, int ringMinutes) {
+        super(expectedKeys);
+        if (ringMinutes < 0) {
+            throw new IllegalArgumentException("ringMinutes must not be negative");
+        }
+        tags = new int[counts.length];
+        highs = new long[counts.length];
+        lows = new long[counts.length];
+        rings = ringMinutes == 0 ? null : new MinuteRings(ringMinutes, expectedKeys);
+    }
+
+    /**
+     * Adds to the count of a rule and address
+     *
+     * @param rule The number of the rule, from 0
+     * @return the ordinal of the key
+     */
+    public int add(int rule, IpAddress ip, int delta) {
+        if (rule < 0) {
+            throw new IllegalArgumentException("rule must not be negative");
+        }
+        int tag = rule << 1 | (ip.isIpv4() ? 1 : 0);
+        long high = ip.getHigh();
+        long low = ip.getLow();
+        int slot = slotFor(hash(tag, high, low));
+        for (int ordinal = ordinalAt(slot); ordinal >= 0; ordinal = ordinalAt(slot)) {
+            if (tags[ordinal] == tag && highs[ordinal] == high && lows[ordinal] == low) {
+                counts[ordinal] += delta;
+                return ordinal;
+            }
+            slot = nextSlot(slot);
+        }
+        int ordinal = insert(slot);
+        tags[ordinal] = tag;
+        highs[ordinal] = high;
+        lows[ordinal] = low;
+        counts[ordinal] = delta;
+        rehashIfNeeded();
+        return ordinal;
+    }
+
+    /**
+     * Counts a request made in the given minute, the minute only matters if the counter keeps minute rings
+     *
+     * @param epochMinute Minutes since the epoch, see {@link IpAddressCounter#toEpochMinute(long)}
+     */
+    public void increment(int rule, IpAddress ip, int epochMinute) {
+        int ordinal = add(rule, ip, 1);
+        if (rings != null) {
+            rings.add(ordinal, epochMinute, 1);
+        }
+    }
+
+    /**
+     * @return the most requests the key with the given ordinal counted in any windowMinutes long run of minutes, or
+     * its total if the counter does not keep minute rings
+     */
+    public int getPeak(int ordinal, int windowMinutes) {
+        checkOrdinal(ordinal);
+        return rings == null ? counts[ordinal] : rings.peak(ordinal, windowMinutes);
+    }
+
+    public int getRule(int ordinal) {
+        checkOrdinal(ordinal);
+        return tags[ordinal] >>> 1;
+    }
+
+    /**
+     * @return the address of the key with the given ordinal, only create these for the keys that matter
+     */
+    public IpAddress getIpAddress(int ordinal) {
+        checkOrdinal(ordinal);
+        return (tags[ordinal] & 1) == 1 ? IpAddress.ofIpv4((int) lows[ordinal]) :
+                IpAddress.ofIpv6(highs[ordinal], lows[ordinal]);
+    }
+
+    @Override
+    int hashOfOrdinal(int ordinal) {
+        return hash(tags[ordinal], highs[ordinal], lows[ordinal]);
+    }
+
+    @Override
+    void growKeys(int length) {
+        tags = Arrays.copyOf(tags, length);
+        highs = Arrays.copyOf(highs, length);
+        lows = Arrays.copyOf(lows, length);
+    }
+
+    private static int hash(int tag, long high, long low) {
+        long hash = mix(high) ^ mix(low + 0x9E3779B97F4A7C15L) ^ mix(tag);
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
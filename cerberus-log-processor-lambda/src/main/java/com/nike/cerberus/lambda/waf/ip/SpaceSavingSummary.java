@@ -0,0 +1,181 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Space-Saving heavy hitter summary (Metwally, Agrawal, El Abbadi 2005), counts the busiest client IPs of a stream
+ * in a fixed number of counters.
+ *
+ * When every counter is taken a new address replaces the one with the smallest count and inherits that count as its
+ * error. After offering n requests to a summary of k counters:
+ * - every address that made more than n / k requests is in the summary,
+ * - the estimate of an address is never below its true count and at most {@link #getMaxError()} above it.
+ *
+ * The counters sit in a binary min-heap over flat int arrays, so an offer is O(log k) and the memory does not depend on
+ * the number of distinct addresses.
+ */
+public class SpaceSavingSummary {
+
+    private final int capacity;
+
+    private final IpAddress[] keys;
+
+    private final int[] counts;
+
+    private final int[] errors;
+
+    // heap[position] = slot and positions[slot] = position, ordered by counts[slot]
+    private final int[] heap;
+
+    private final int[] positions;
+
+    private final Map<IpAddress, Integer> slots;
+
+    private int size;
+
+    private long offered;
+
+    private boolean replaced;
+
+    public SpaceSavingSummary(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        keys = new IpAddress[capacity];
+        counts = new int[capacity];
+        errors = new int[capacity];
+        heap = new int[capacity];
+        positions = new int[capacity];
+        slots = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * @return the number of counters needed so that no estimate is off by more than errorBound times the number of
+     * requests offered
+     */
+    public static int capacityFor(double errorBound) {
+        if (errorBound <= 0 || errorBound > 1) {
+            throw new IllegalArgumentException("errorBound must be in (0, 1]");
+        }
+        return (int) Math.min(Math.ceil(1 / errorBound), Integer.MAX_VALUE - 8);
+    }
+
+    public void offer(IpAddress ip) {
+        offered++;
+        Integer slot = slots.get(ip);
+        if (slot != null) {
+            counts[slot]++;
+            siftDown(positions[slot]);
+            return;
+        }
+        if (size < capacity) {
+            int newSlot = size++;
+            keys[newSlot] = ip;
+            counts[newSlot] = 1;
+            heap[newSlot] = newSlot;
+            positions[newSlot] = newSlot;
+            slots.put(ip, newSlot);
+            siftUp(newSlot);
+            return;
+        }
+        // replace the address with the smallest count, the newcomer may have made that many requests already
+        int minSlot = heap[0];
+        replaced = true;
+        slots.remove(keys[minSlot]);
+        keys[minSlot] = ip;
+        errors[minSlot] = counts[minSlot];
+        counts[minSlot]++;
+        slots.put(ip, minSlot);
+        siftDown(0);
+    }
+
+    /**
+     * @return the number of counters in use, slots run from 0 to size() - 1
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of requests offered
+     */
+    public long getOffered() {
+        return offered;
+    }
+
+    public IpAddress getIpAddress(int slot) {
+        checkSlot(slot);
+        return keys[slot];
+    }
+
+    /**
+     * @return the estimated count of the address in the slot, never below its true count
+     */
+    public int getEstimate(int slot) {
+        checkSlot(slot);
+        return counts[slot];
+    }
+
+    /**
+     * @return how far the estimate of the address in the slot can be above its true count
+     */
+    public int getError(int slot) {
+        checkSlot(slot);
+        return errors[slot];
+    }
+
+    /**
+     * @return the most any estimate can be off by, addresses with a true count above it are guaranteed to be in the
+     * summary. This is 0 until an address had to be replaced and never more than offered / capacity.
+     */
+    public int getMaxError() {
+        return replaced ? counts[heap[0]] : 0;
+    }
+
+    private void siftUp(int position) {
+        int slot = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[slot]) {
+                break;
+            }
+            move(heap[parent], position);
+            position = parent;
+        }
+        move(slot, position);
+    }
+
+    private void siftDown(int position) {
+        int slot = heap[position];
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[slot] <= counts[heap[child]]) {
+                break;
+            }
+            move(heap[child], position);
+            position = child;
+        }
+        move(slot, position);
+    }
+
+    private void move(int slot, int position) {
+        heap[position] = slot;
+        positions[slot] = position;
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException("slot " + slot + ", size " + size);
+        }
+    }
+}
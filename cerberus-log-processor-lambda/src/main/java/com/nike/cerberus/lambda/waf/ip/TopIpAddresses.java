@@ -0,0 +1,141 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the n addresses with the highest rates out of a stream, for truncating the violators to what fits in an IP
+ * set without sorting all of them.
+ *
+ * The kept addresses sit in a binary min-heap over flat arrays with the lowest rate at the root, so an offer is
+ * O(log n) and the memory does not depend on the number of addresses offered. Rates are compared with
+ * {@link Integer#compare(int, int)}, never by subtraction, and equal rates go to the lower address, so the result does
+ * not depend on the order the addresses were offered in.
+ *
+ * @param <V> The value kept with each address
+ */
+public class TopIpAddresses<V> {
+
+    private final int capacity;
+
+    private final IpAddress[] addresses;
+
+    private final int[] rates;
+
+    private final Object[] values;
+
+    private int size;
+
+    public TopIpAddresses(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity can not be negative");
+        }
+        this.capacity = capacity;
+        addresses = new IpAddress[capacity];
+        rates = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Lets the caller skip costly checks for an address that would not make it into the top n anyway
+     *
+     * @return true if {@link #offer(IpAddress, int, Object)} would keep the address
+     */
+    public boolean wouldKeep(IpAddress address, int rate) {
+        return size < capacity || (capacity > 0 && ranksAbove(rate, address, 0));
+    }
+
+    /**
+     * @return true if the address was kept, possibly pushing out the address with the lowest rate
+     */
+    public boolean offer(IpAddress address, int rate, V value) {
+        if (size < capacity) {
+            set(size, address, rate, value);
+            siftUp(size++);
+            return true;
+        }
+        if (capacity == 0 || !ranksAbove(rate, address, 0)) {
+            return false;
+        }
+        set(0, address, rate, value);
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * @return the kept addresses and their values, from the highest rate to the lowest
+     */
+    @SuppressWarnings("unchecked")
+    public Map<IpAddress, V> toMap() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compare(rates[b], addresses[b], a));
+        Map<IpAddress, V> result = new LinkedHashMap<>(size * 2);
+        for (int i : order) {
+            result.put(addresses[i], (V) values[i]);
+        }
+        return result;
+    }
+
+    private boolean ranksAbove(int rate, IpAddress address, int position) {
+        return compare(rate, address, position) > 0;
+    }
+
+    // > 0 if the rate and address rank above the ones at the position,
+    // that is a higher rate or the same rate and a lower address
+    private int compare(int rate, IpAddress address, int position) {
+        int result = Integer.compare(rate, rates[position]);
+        return result != 0 ? result : addresses[position].compareTo(address);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!ranksAbove(rates[parent], addresses[parent], position)) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int lowest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && ranksAbove(rates[lowest], addresses[lowest], left)) {
+                lowest = left;
+            }
+            if (right < size && ranksAbove(rates[lowest], addresses[lowest], right)) {
+                lowest = right;
+            }
+            if (lowest == position) {
+                return;
+            }
+            swap(position, lowest);
+            position = lowest;
+        }
+    }
+
+    private void set(int position, IpAddress address, int rate, Object value) {
+        addresses[position] = address;
+        rates[position] = rate;
+        values[position] = value;
+    }
+
+    private void swap(int a, int b) {
+        IpAddress address = addresses[a];
+        int rate = rates[a];
+        Object value = values[a];
+        set(a, addresses[b], rates[b], values[b]);
+        set(b, address, rate, value);
+    }
+}
@@ -0,0 +1,122 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.waf.AWSWAFRegional;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Maps;
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
+import com.nike.cerberus.lambda.waf.ViolationMetaData;
+import com.nike.cerberus.lambda.waf.ip.AbuseScoreTable;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+import com.nike.cerberus.lambda.waf.ip.IpAddressCounter;
+import com.nike.cerberus.lambda.waf.retry.Retryer;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This processor will auto black list ips that spam bad requests, e.g. scanners probing for paths that do not exist or
+ * clients stuck retrying a request that keeps failing.
+ *
+ * A request is bad when the load balancer or the target answered it with a 4xx or 5xx, or when the load balancer never
+ * got a response from a target for it (a target status of -1). An ip is a violator when it made more bad requests in
+ * the interval than the bad request limit and at least the bad request ratio of its requests were bad, so a busy but
+ * well behaved client is not blocked for its share of errors.
+ *
+ * Everything after finding the violators works like the rate limiting processor, but on its own IP set and its own
+ * violators data, since each processor removes every block from its IP set that it does not know about.
+ */
+public class BadRequestProcessor extends RateLimitingProcessor {
+
+    protected static final String BAD_REQUEST_DATA_FILE_NAME = "bad_request_processor_blacklist_data.bin";
+    protected static final String LEGACY_BAD_REQUEST_DATA_FILE_NAME = "bad_request_processor_blacklist_data.json";
+    private static final int REQUEST_COUNTER_EXPECTED_IPS = 1024;
+
+    public BadRequestProcessor(ObjectMapper objectMapper, AWSWAFRegional awsWaf, AmazonS3 amazonS3, Retryer retryer) {
+        super(objectMapper, awsWaf, amazonS3, retryer);
+    }
+
+    /**
+     * Counts the requests and the bad requests per ip in one pass over the events, and returns the ips over both the
+     * bad request limit and the bad request ratio, with their number of bad requests as the rate
+     */
+    @Override
+    protected Map<IpAddress, ViolationMetaData> findViolators(List<ALBAccessLogEvent> events,
+                                                              LogProcessorLambdaConfig config,
+                                                              AbuseScoreTable abuseScores) {
+        IpAddressCounter requestCounter = new IpAddressCounter(REQUEST_COUNTER_EXPECTED_IPS);
+        IpAddressCounter badRequestCounter = new IpAddressCounter(REQUEST_COUNTER_EXPECTED_IPS);
+        for (ALBAccessLogEvent event : events) {
+            IpAddress ip = event.getRequestingClientIpAddress();
+            if (ip == null) {
+                continue;
+            }
+            requestCounter.increment(ip);
+            if (isBadRequest(event)) {
+                badRequestCounter.increment(ip);
+            }
+        }
+        return getBadRequestViolators(requestCounter, badRequestCounter, config);
+    }
+
+    protected Map<IpAddress, ViolationMetaData> getBadRequestViolators(IpAddressCounter requestCounter,
+                                                                       IpAddressCounter badRequestCounter,
+                                                                       LogProcessorLambdaConfig config) {
+        Date now = Date.from(getClock().instant());
+        Map<IpAddress, ViolationMetaData> violators = Maps.newHashMap();
+
+        // only the ips over the absolute limit need their total looked up for the ratio
+        int limit = config.getBadRequestLimit();
+        double ratio = config.getBadRequestRatio();
+        for (int ordinal = 0; ordinal < badRequestCounter.size(); ordinal++) {
+            int badRequests = badRequestCounter.getCount(ordinal);
+            if (badRequests <= limit) {
+                continue;
+            }
+            IpAddress ip = badRequestCounter.getIpAddress(ordinal);
+            if (badRequests >= ratio * requestCounter.get(ip)) {
+                violators.put(ip, new ViolationMetaData(now, badRequests));
+            }
+        }
+
+        return violators;
+    }
+
+    /**
+     * @return true if the request got a 4xx or 5xx, or the load balancer got no response from a target for it
+     */
+    static boolean isBadRequest(ALBAccessLogEvent event) {
+        int targetStatusCode = event.getTargetStatusCodeAsInt();
+        return event.getLoadBalancerStatusCodeAsInt() >= 400 || targetStatusCode >= 400 || targetStatusCode == -1;
+    }
+
+    /**
+     * The abuse score threshold is in requests, it does not apply to bad requests
+     */
+    @Override
+    protected boolean isAbuseScoreOn(LogProcessorLambdaConfig config) {
+        return false;
+    }
+
+    @Override
+    protected String getAutoBlockIpSetId(LogProcessorLambdaConfig config) {
+        return config.getBadRequestAutoBlacklistIpSetId();
+    }
+
+    @Override
+    protected String getSerializedDataFileName() {
+        return BAD_REQUEST_DATA_FILE_NAME;
+    }
+
+    @Override
+    protected String getLegacySerializedDataFileName() {
+        return LEGACY_BAD_REQUEST_DATA_FILE_NAME;
+    }
+
+    @Override
+    protected String getName() {
+        return "Bad Request Processor";
+    }
+}
@@ -0,0 +1,24 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ALBAccessLogBatch;
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
+
+import java.util.List;
+
+/**
+ * A processor that scans the column oriented ALBAccessLogBatch instead of a list of events.
+ * The handler builds the batch once and hands the same one to every batch processor.
+ */
+public interface BatchProcessor extends Processor {
+
+    void processLogBatch(ALBAccessLogBatch batch, LogProcessorLambdaConfig config, String bucketName);
+
+    /**
+     * Adapter for callers that only have the events
+     */
+    @Override
+    default void processLogEvents(List<ALBAccessLogEvent> events, LogProcessorLambdaConfig config, String bucketName) {
+        processLogBatch(ALBAccessLogBatch.fromEvents(events), config, bucketName);
+    }
+}
@@ -0,0 +1,154 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+
+import java.net.InetAddress;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reverse DNS for the ips in the run summary, looked up concurrently on a bounded pool with a per lookup and an
+ * overall timeout, so the summary takes about as long with a hundred new blocks as with one.
+ *
+ * Resolved hostnames are cached for a TTL across warm invocations, so repeat offenders are not looked up again.
+ * Failures and timeouts are not cached.
+ */
+public class HostnameResolver {
+
+    public static final String HOSTNAME_UNKNOWN = "hostname unknown";
+
+    public static final String HOSTNAME_UNKNOWN_TIMEOUT = "hostname unknown (timeout)";
+
+    private static final int DEFAULT_THREADS = 16;
+
+    private static final long DEFAULT_LOOKUP_TIMEOUT_IN_MILLIS = 2000;
+
+    private static final long DEFAULT_TTL_IN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // the cache is emptied of expired entries when it grows past this
+    private static final int MAX_CACHED_HOSTNAMES = 10000;
+
+    private final Logger log = Logger.getLogger(getClass());
+
+    private final ExecutorService executor;
+
+    private final Lookup lookup;
+
+    private final long lookupTimeoutInMillis;
+
+    private final long ttlInMillis;
+
+    private final Clock clock;
+
+    private final Map<String, CachedHostname> cache = new ConcurrentHashMap<>();
+
+    public HostnameResolver() {
+        this(ip -> InetAddress.getByName(ip).getHostName(), DEFAULT_THREADS, DEFAULT_LOOKUP_TIMEOUT_IN_MILLIS,
+                DEFAULT_TTL_IN_MILLIS, Clock.systemUTC());
+    }
+
+    HostnameResolver(Lookup lookup, int threads, long lookupTimeoutInMillis, long ttlInMillis, Clock clock) {
+        this.lookup = lookup;
+        this.lookupTimeoutInMillis = lookupTimeoutInMillis;
+        this.ttlInMillis = ttlInMillis;
+        this.clock = clock;
+        executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("hostname-resolver-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @param ips The ips to look up, CIDR ranges are not looked up
+     * @param timeoutInMillis How long all of the lookups may take together
+     * @return the hostname, {@link #HOSTNAME_UNKNOWN} or {@link #HOSTNAME_UNKNOWN_TIMEOUT} of every ip, in order
+     */
+    public Map<String, String> resolve(Collection<String> ips, long timeoutInMillis) {
+        long start = System.nanoTime();
+        // the lookups run at once, so each one's timeout counts from now as well
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(Math.min(timeoutInMillis, lookupTimeoutInMillis));
+        long now = clock.millis();
+
+        Map<String, Future<String>> lookups = new LinkedHashMap<>();
+        for (String ip : ips) {
+            if (ip.indexOf('/') >= 0 || lookups.containsKey(ip)) {
+                continue;
+            }
+            CachedHostname cached = cache.get(ip);
+            if (cached == null || cached.expiresAt <= now) {
+                lookups.put(ip, executor.submit(() -> lookup.hostnameFor(ip)));
+            }
+        }
+
+        Map<String, String> hostnames = new LinkedHashMap<>();
+        for (String ip : ips) {
+            if (ip.indexOf('/') >= 0) {
+                hostnames.put(ip, "ip range");
+                continue;
+            }
+            Future<String> future = lookups.get(ip);
+            if (future == null) {
+                CachedHostname cached = cache.get(ip);
+                // a duplicate ip whose lookup failed has no cache entry
+                hostnames.put(ip, cached == null ? HOSTNAME_UNKNOWN : cached.hostname);
+                continue;
+            }
+            hostnames.put(ip, await(ip, future, deadline));
+        }
+        evictExpired(now);
+        return hostnames;
+    }
+
+    private String await(String ip, Future<String> future, long deadline) {
+        try {
+            String hostname = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            cache.put(ip, new CachedHostname(hostname, clock.millis() + ttlInMillis));
+            return hostname;
+        } catch (TimeoutException e) {
+            // the JDK lookup can not be interrupted, cancelling only keeps a queued lookup from starting
+            future.cancel(true);
+            log.warn(String.format("Timed out getting hostname for ip: %s", ip));
+            return HOSTNAME_UNKNOWN_TIMEOUT;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return HOSTNAME_UNKNOWN;
+        } catch (ExecutionException e) {
+            log.error(String.format("Failed to get hostname for ip: %s", ip), e.getCause());
+            return HOSTNAME_UNKNOWN;
+        }
+    }
+
+    private void evictExpired(long now) {
+        if (cache.size() > MAX_CACHED_HOSTNAMES) {
+            cache.values().removeIf(cached -> cached.expiresAt <= now);
+            if (cache.size() > MAX_CACHED_HOSTNAMES) {
+                cache.clear();
+            }
+        }
+    }
+
+    interface Lookup {
+        String hostnameFor(String ip) throws Exception;
+    }
+
+    private static class CachedHostname {
+
+        private final String hostname;
+
+        private final long expiresAt;
+
+        CachedHostname(String hostname, long expiresAt) {
+            this.hostname = hostname;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ip.IpPrefix;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Reads the IP sets of a single run concurrently and remembers them for the rest of the run.
+ *
+ * Every read shares one deadline, a read that is still running when it passes fails the run and the other pending
+ * reads are cancelled. Not thread safe, a run uses it from one thread.
+ */
+class IpSetReader {
+
+    private final ExecutorService executor;
+
+    private final Function<String, List<IpPrefix>> read;
+
+    private final long deadlineNanos;
+
+    private final Map<String, Future<List<IpPrefix>>> reads = new HashMap<>();
+
+    /**
+     * @param read Reads an IP set, called on the executor
+     * @param timeout How long the reads of the run may take in total
+     */
+    IpSetReader(ExecutorService executor, Function<String, List<IpPrefix>> read, long timeout, TimeUnit timeUnit) {
+        this.executor = executor;
+        this.read = read;
+        deadlineNanos = System.nanoTime() + timeUnit.toNanos(timeout);
+    }
+
+    /**
+     * Starts reading the IP set in the background, unless it was already started
+     */
+    IpSetReader prefetch(String ipSetId) {
+        reads.computeIfAbsent(ipSetId, id -> executor.submit(() -> read.apply(id)));
+        return this;
+    }
+
+    /**
+     * @return true if reading the IP set was started, it is only waited for until the deadline of this reader
+     */
+    boolean isStarted(String ipSetId) {
+        return reads.containsKey(ipSetId);
+    }
+
+    /**
+     * @return the IP set, waiting for it until the deadline
+     */
+    List<IpPrefix> get(String ipSetId) {
+        Future<List<IpPrefix>> future = prefetch(ipSetId).reads.get(ipSetId);
+        try {
+            return future.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            cancel();
+            throw new RuntimeException(String.format("Timed out reading IP set with ID: '%s'", ipSetId), e);
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(String.format("Interrupted reading IP set with ID: '%s'", ipSetId), e);
+        } catch (ExecutionException e) {
+            cancel();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(String.format("Failed to read IP set with ID: '%s'", ipSetId), e.getCause());
+        }
+    }
+
+    private void cancel() {
+        reads.values().forEach(future -> future.cancel(true));
+    }
+}
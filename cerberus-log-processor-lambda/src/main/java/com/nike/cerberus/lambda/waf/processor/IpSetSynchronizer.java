@@ -0,0 +1,263 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.amazonaws.services.waf.AWSWAFRegional;
+import com.amazonaws.services.waf.model.ChangeAction;
+import com.amazonaws.services.waf.model.GetChangeTokenRequest;
+import com.amazonaws.services.waf.model.IPSetDescriptor;
+import com.amazonaws.services.waf.model.IPSetDescriptorType;
+import com.amazonaws.services.waf.model.IPSetUpdate;
+import com.amazonaws.services.waf.model.UpdateIPSetRequest;
+import com.amazonaws.services.waf.model.WAFInvalidOperationException;
+import com.amazonaws.services.waf.model.WAFNonexistentItemException;
+import com.amazonaws.services.waf.model.WAFStaleDataException;
+import com.nike.cerberus.lambda.waf.ip.IpPrefix;
+import com.nike.cerberus.lambda.waf.retry.RetryPolicy;
+import com.nike.cerberus.lambda.waf.retry.Retryer;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Syncs a WAF IP set to a desired set of blocks with as few updates as possible.
+ *
+ * The contents of each IP set this instance last synced are cached, so a warm Lambda diffs against the cache instead
+ * of reading the whole set again. This is only safe for IP sets that nothing else updates, like the auto block list.
+ * When WAF rejects an update because the cache was wrong, the set is read again and the diff recomputed. A block
+ * added to the set by hand is never rejected though, so the cached copy is also dropped after a number of syncs and
+ * the set read again, which bounds how long such drift lasts in a Lambda that stays warm.
+ *
+ * Updates are sent deletes first, in chunks of at most the per request limit, each chunk with its own change token.
+ * A chunk that loses the race for its change token (WAFStaleDataException) is retried with a fresh one right away,
+ * a chunk that is throttled or hits a server error is retried with backoff by the retryer.
+ */
+public class IpSetSynchronizer {
+
+    /**
+     * The most updates WAF accepts in one UpdateIPSet request
+     */
+    public static final int MAX_UPDATES_PER_REQUEST = 1000;
+
+    /**
+     * How many syncs diff against the cached copy of an IP set before it is read again, about an hour of runs
+     */
+    public static final int MAX_SYNCS_PER_READ = 12;
+
+    private static final int MAX_STALE_DATA_RETRIES = 5;
+
+    private final Logger log = Logger.getLogger(getClass());
+
+    private final AWSWAFRegional awsWaf;
+
+    private final int maxUpdatesPerRequest;
+
+    private final int maxSyncsPerRead;
+
+    private final Retryer retryer;
+
+    private final Map<String, CachedIpSet> cachedIpSets = new HashMap<>();
+
+    public IpSetSynchronizer(AWSWAFRegional awsWaf) {
+        this(awsWaf, new Retryer(RetryPolicy.aws()));
+    }
+
+    public IpSetSynchronizer(AWSWAFRegional awsWaf, Retryer retryer) {
+        this(awsWaf, MAX_UPDATES_PER_REQUEST, retryer);
+    }
+
+    public IpSetSynchronizer(AWSWAFRegional awsWaf, int maxUpdatesPerRequest) {
+        this(awsWaf, maxUpdatesPerRequest, new Retryer(RetryPolicy.aws()));
+    }
+
+    public IpSetSynchronizer(AWSWAFRegional awsWaf, int maxUpdatesPerRequest, Retryer retryer) {
+        this(awsWaf, maxUpdatesPerRequest, MAX_SYNCS_PER_READ, retryer);
+    }
+
+    /**
+     * @param maxSyncsPerRead How many syncs of an IP set diff against its cached copy before it is read again,
+     *                        1 reads it on every sync
+     */
+    public IpSetSynchronizer(AWSWAFRegional awsWaf, int maxUpdatesPerRequest, int maxSyncsPerRead, Retryer retryer) {
+        if (maxUpdatesPerRequest < 1) {
+            throw new IllegalArgumentException("maxUpdatesPerRequest must be positive, not " + maxUpdatesPerRequest);
+        }
+        if (maxSyncsPerRead < 1) {
+            throw new IllegalArgumentException("maxSyncsPerRead must be positive, not " + maxSyncsPerRead);
+        }
+        this.awsWaf = awsWaf;
+        this.maxUpdatesPerRequest = maxUpdatesPerRequest;
+        this.maxSyncsPerRead = maxSyncsPerRead;
+        this.retryer = retryer;
+    }
+
+    /**
+     * Updates the IP set so that it holds exactly the desired blocks.
+     *
+     * @param ipSetId The IP set to update
+     * @param desired The blocks the IP set should hold
+     * @param ipSetReader Reads the current blocks of the IP set, only called when there is no usable cached copy
+     * @return what was removed, added and already there, and how long each chunk took
+     */
+    public Result sync(String ipSetId, Collection<IpPrefix> desired, Supplier<List<IpPrefix>> ipSetReader) {
+        CachedIpSet cached = hasCachedCopy(ipSetId) ? cachedIpSets.get(ipSetId) : null;
+        cachedIpSets.remove(ipSetId);
+        try {
+            Result result = cached == null
+                    ? apply(ipSetId, new LinkedHashSet<>(ipSetReader.get()), desired)
+                    : apply(ipSetId, cached.blocks, desired);
+            cachedIpSets.put(ipSetId, new CachedIpSet(desired, cached == null ? 1 : cached.syncs + 1));
+            return result;
+        } catch (WAFInvalidOperationException | WAFNonexistentItemException e) {
+            if (cached == null) {
+                throw e;
+            }
+            // something else changed the IP set since we cached it, part of the diff may already be applied
+            log.warn(String.format("The cached copy of IP set with ID: '%s' is out of date, reading it again", ipSetId));
+            Result result = apply(ipSetId, new LinkedHashSet<>(ipSetReader.get()), desired);
+            cachedIpSets.put(ipSetId, new CachedIpSet(desired, 1));
+            return result;
+        }
+    }
+
+    /**
+     * @return true if the next sync of the IP set diffs against a cached copy instead of reading it, false when there
+     * is none or it has been used for the max syncs per read
+     */
+    public boolean hasCachedCopy(String ipSetId) {
+        CachedIpSet cached = cachedIpSets.get(ipSetId);
+        return cached != null && cached.syncs < maxSyncsPerRead;
+    }
+
+    /**
+     * Forgets the cached copy of every IP set, the next sync reads them again
+     */
+    public void invalidate() {
+        cachedIpSets.clear();
+    }
+
+    private Result apply(String ipSetId, Set<IpPrefix> current, Collection<IpPrefix> desired) {
+        Result result = new Result();
+        Set<IpPrefix> toInsert = new LinkedHashSet<>(desired);
+        for (IpPrefix prefix : current) {
+            if (toInsert.remove(prefix)) {
+                result.duplicate.add(prefix);
+            } else {
+                result.removed.add(prefix);
+            }
+        }
+        result.added.addAll(toInsert);
+
+        // deletes go first so the set never has to hold the old and the new blocks at once
+        List<IPSetUpdate> updates = new ArrayList<>(result.removed.size() + result.added.size());
+        result.removed.forEach(prefix -> updates.add(createIpSetUpdate(prefix, ChangeAction.DELETE)));
+        result.added.forEach(prefix -> updates.add(createIpSetUpdate(prefix, ChangeAction.INSERT)));
+
+        int chunks = (updates.size() + maxUpdatesPerRequest - 1) / maxUpdatesPerRequest;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            List<IPSetUpdate> chunkUpdates = updates.subList(chunk * maxUpdatesPerRequest,
+                    Math.min(updates.size(), (chunk + 1) * maxUpdatesPerRequest));
+            long start = System.nanoTime();
+            int attempts = updateIpSet(ipSetId, chunkUpdates);
+            long latencyInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            result.chunkLatenciesInMillis.add(latencyInMillis);
+            log.info(String.format("Sent chunk %d of %d with %d updates to IP set with ID: '%s' in %d ms and %d attempt(s)",
+                    chunk + 1, chunks, chunkUpdates.size(), ipSetId, latencyInMillis, attempts));
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of change tokens it took in the attempt that succeeded
+     */
+    private int updateIpSet(String ipSetId, List<IPSetUpdate> updates) {
+        // a stale change token is replaced inside the call, the retryer only sees the errors worth backing off for
+        return retryer.call("waf.updateIPSet", () -> {
+            for (int attempt = 1; ; attempt++) {
+                String changeToken = awsWaf.getChangeToken(new GetChangeTokenRequest()).getChangeToken();
+                try {
+                    awsWaf.updateIPSet(new UpdateIPSetRequest()
+                            .withIPSetId(ipSetId)
+                            .withUpdates(updates)
+                            .withChangeToken(changeToken));
+                    return attempt;
+                } catch (WAFStaleDataException e) {
+                    if (attempt > MAX_STALE_DATA_RETRIES) {
+                        log.error(String.format(
+                                "Could not update IP set with ID: '%s', the change token kept going stale", ipSetId));
+                        throw e;
+                    }
+                    log.warn(String.format("Change token for IP set with ID: '%s' went stale, retrying with a new one",
+                            ipSetId));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return an update for the IPV4 or IPV6 descriptor of the block
+     */
+    private static IPSetUpdate createIpSetUpdate(IpPrefix prefix, ChangeAction action) {
+        IPSetDescriptor descriptor = new IPSetDescriptor()
+                .withType(prefix.isIpv4() ? IPSetDescriptorType.IPV4 : IPSetDescriptorType.IPV6)
+                .withValue(prefix.toCidr());
+        return new IPSetUpdate().withIPSetDescriptor(descriptor).withAction(action);
+    }
+
+    /**
+     * The blocks an IP set holds after our last sync, and how many syncs ago it was last read
+     */
+    private static class CachedIpSet {
+
+        private final Set<IpPrefix> blocks;
+
+        private final int syncs;
+
+        CachedIpSet(Collection<IpPrefix> blocks, int syncs) {
+            this.blocks = new LinkedHashSet<>(blocks);
+            this.syncs = syncs;
+        }
+    }
+
+    /**
+     * The outcome of a sync
+     */
+    public static class Result {
+
+        private final List<IpPrefix> removed = new ArrayList<>();
+
+        private final List<IpPrefix> added = new ArrayList<>();
+
+        private final List<IpPrefix> duplicate = new ArrayList<>();
+
+        private final List<Long> chunkLatenciesInMillis = new ArrayList<>();
+
+        public List<IpPrefix> getRemoved() {
+            return removed;
+        }
+
+        public List<IpPrefix> getAdded() {
+            return added;
+        }
+
+        /**
+         * @return the blocks that were already in the IP set
+         */
+        public List<IpPrefix> getDuplicate() {
+            return duplicate;
+        }
+
+        /**
+         * @return how long each UpdateIPSet chunk took, including fetching its change token and any retries
+         */
+        public List<Long> getChunkLatenciesInMillis() {
+            return chunkLatenciesInMillis;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A request limit for a subset of the requests, counted per client ip like the interval limit, e.g. a lower limit for
+ * the login endpoints than for secret reads.
+ *
+ * Rules are configured as a comma separated list of dimension:value=limit, e.g.
+ * "path:/v2/auth/=100,method:POST=500,user_agent:python-requests=200" where
+ * - path matches the request URIs that start with the value,
+ * - method matches the HTTP method exactly,
+ * - user_agent matches the user agents that start with the value.
+ */
+public final class RateLimitRule {
+
+    public enum Dimension {
+        PATH("path"),
+        METHOD("method"),
+        USER_AGENT("user_agent");
+
+        private final String name;
+
+        Dimension(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        static Dimension fromName(String name) {
+            for (Dimension dimension : values()) {
+                if (dimension.name.equals(name)) {
+                    return dimension;
+                }
+            }
+            throw new IllegalArgumentException("Unknown rate limit rule dimension '" + name + "', expected one of " +
+                    "path, method or user_agent");
+        }
+    }
+
+    private final Dimension dimension;
+
+    private final String value;
+
+    private final int limit;
+
+    public RateLimitRule(Dimension dimension, String value, int limit) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("A rate limit rule needs a value to match");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit of a rate limit rule can not be negative");
+        }
+        this.dimension = dimension;
+        this.value = value;
+        this.limit = limit;
+    }
+
+    /**
+     * @param rule A rule in the dimension:value=limit form, e.g. path:/v2/auth/=100
+     * @throws IllegalArgumentException if the rule can not be parsed
+     */
+    public static RateLimitRule parse(String rule) {
+        int colon = rule.indexOf(':');
+        int equals = rule.lastIndexOf('=');
+        if (colon < 0 || equals < colon) {
+            throw new IllegalArgumentException("Rate limit rule '" + rule + "' is not in the dimension:value=limit form");
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(rule.substring(equals + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Rate limit rule '" + rule + "' does not end in a numeric limit", e);
+        }
+        return new RateLimitRule(Dimension.fromName(rule.substring(0, colon).trim()),
+                rule.substring(colon + 1, equals).trim(), limit);
+    }
+
+    /**
+     * @param rules Comma separated rules, null or blank for none
+     */
+    public static List<RateLimitRule> parseAll(String rules) {
+        if (rules == null || rules.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<RateLimitRule> parsed = new ArrayList<>();
+        for (String rule : rules.split(",")) {
+            if (! rule.trim().isEmpty()) {
+                parsed.add(parse(rule.trim()));
+            }
+        }
+        return parsed;
+    }
+
+    public Dimension getDimension() {
+        return dimension;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the rule in the form it is configured in
+     */
+    @Override
+    public String toString() {
+        return dimension.getName() + ":" + value + "=" + limit;
+    }
+}
@@ -0,0 +1,207 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.ALBAccessLogFieldParser;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+import com.nike.cerberus.lambda.waf.ip.IpAddressCounter;
+import com.nike.cerberus.lambda.waf.ip.RuleIpCounter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the rate limit rules an event matches and counts it once for each, the rule number is the position of the rule
+ * in the list.
+ *
+ * The cost per event does not grow with the number of rules: the method rules are one map lookup, the path and user
+ * agent rules one walk of a prefix trie over the value, which also finds every nested prefix. Dimensions without
+ * rules are never read from the event, so no rules costs nothing.
+ */
+final class RateLimitRules {
+
+    private static final RateLimitRules NONE = new RateLimitRules(Collections.emptyList());
+
+    private final List<RateLimitRule> rules;
+
+    private final Map<String, int[]> methodRules = new HashMap<>();
+
+    private final PrefixTrie pathRules = new PrefixTrie();
+
+    private final PrefixTrie userAgentRules = new PrefixTrie();
+
+    // the rules the current event matched, the counting of a run is single threaded
+    private final int[] matches;
+
+    RateLimitRules(List<RateLimitRule> rules) {
+        this.rules = rules;
+        matches = new int[rules.size()];
+        for (int rule = 0; rule < rules.size(); rule++) {
+            RateLimitRule rateLimitRule = rules.get(rule);
+            switch (rateLimitRule.getDimension()) {
+                case METHOD:
+                    methodRules.merge(rateLimitRule.getValue(), new int[] {rule}, RateLimitRules::concat);
+                    break;
+                case PATH:
+                    pathRules.add(rateLimitRule.getValue(), rule);
+                    break;
+                case USER_AGENT:
+                    userAgentRules.add(rateLimitRule.getValue(), rule);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported dimension " + rateLimitRule.getDimension());
+            }
+        }
+    }
+
+    static RateLimitRules none() {
+        return NONE;
+    }
+
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    int size() {
+        return rules.size();
+    }
+
+    RateLimitRule get(int rule) {
+        return rules.get(rule);
+    }
+
+    /**
+     * Counts the event for every rule it matches
+     */
+    void count(ALBAccessLogEvent event, RuleIpCounter counter) {
+        if (rules.isEmpty()) {
+            return;
+        }
+        IpAddress ip = event.getRequestingClientIpAddress();
+        if (ip == null) {
+            return;
+        }
+        int matched = match(event);
+        if (matched == 0) {
+            return;
+        }
+        long timeInEpochMicros = event.getTimeInEpochMicros();
+        for (int i = 0; i < matched; i++) {
+            if (timeInEpochMicros == ALBAccessLogFieldParser.INVALID_TIME) {
+                counter.add(matches[i], ip, 1);
+            } else {
+                counter.increment(matches[i], ip, IpAddressCounter.toEpochMinute(timeInEpochMicros));
+            }
+        }
+    }
+
+    /**
+     * @return the number of rules the event matched, their numbers are at the start of matches
+     */
+    int match(ALBAccessLogEvent event) {
+        int matched = 0;
+        if (! methodRules.isEmpty()) {
+            int[] methodMatches = methodRules.get(event.getHttpMethod());
+            if (methodMatches != null) {
+                System.arraycopy(methodMatches, 0, matches, 0, methodMatches.length);
+                matched = methodMatches.length;
+            }
+        }
+        if (! pathRules.isEmpty()) {
+            matched = pathRules.match(event.getRequestUri(), 0, matches, matched);
+        }
+        if (! userAgentRules.isEmpty()) {
+            String userAgent = event.getUserAgent();
+            // the user agent of a raw log line still has its quotes, the one of an Athena row does not
+            int start = userAgent != null && userAgent.startsWith("\"") ? 1 : 0;
+            matched = userAgentRules.match(userAgent, start, matches, matched);
+        }
+        return matched;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * A character trie over the rule prefixes, a node keeps its children in small parallel arrays since a handful of
+     * prefixes rarely branch much
+     */
+    private static final class PrefixTrie {
+
+        private final Node root = new Node();
+
+        private boolean empty = true;
+
+        void add(String prefix, int rule) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.childOrCreate(prefix.charAt(i));
+            }
+            node.rules = concat(node.rules, new int[] {rule});
+            empty = false;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * Appends the rules of every prefix of the value from start to matches
+         *
+         * @return the number of matches after appending
+         */
+        int match(CharSequence value, int start, int[] matches, int matched) {
+            if (value == null) {
+                return matched;
+            }
+            Node node = root;
+            for (int i = start; ; i++) {
+                for (int rule : node.rules) {
+                    matches[matched++] = rule;
+                }
+                if (i == value.length()) {
+                    return matched;
+                }
+                node = node.child(value.charAt(i));
+                if (node == null) {
+                    return matched;
+                }
+            }
+        }
+    }
+
+    private static final class Node {
+
+        private char[] chars = new char[0];
+
+        private Node[] children = new Node[0];
+
+        private int[] rules = new int[0];
+
+        Node child(char c) {
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node childOrCreate(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                chars = Arrays.copyOf(chars, chars.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                chars[chars.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
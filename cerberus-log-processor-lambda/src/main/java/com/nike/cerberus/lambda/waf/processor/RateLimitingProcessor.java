@@ -7,41 +7,48 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.waf.AWSWAFRegional;
-import com.amazonaws.services.waf.model.AWSWAFException;
-import com.amazonaws.services.waf.model.ChangeAction;
-import com.amazonaws.services.waf.model.GetChangeTokenRequest;
-import com.amazonaws.services.waf.model.GetChangeTokenResult;
 import com.amazonaws.services.waf.model.GetIPSetRequest;
 import com.amazonaws.services.waf.model.GetIPSetResult;
-import com.amazonaws.services.waf.model.IPSetDescriptor;
 import com.amazonaws.services.waf.model.IPSetDescriptorType;
-import com.amazonaws.services.waf.model.IPSetUpdate;
-import com.amazonaws.services.waf.model.UpdateIPSetRequest;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.ALBAccessLogFieldParser;
 import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
 import com.nike.cerberus.lambda.waf.ViolationMetaData;
-import org.apache.commons.net.util.SubnetUtils;
+import com.nike.cerberus.lambda.waf.ip.AbuseScoreTable;
+import com.nike.cerberus.lambda.waf.ip.CidrAggregator;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+import com.nike.cerberus.lambda.waf.ip.IpAddressCounter;
+import com.nike.cerberus.lambda.waf.ip.IpPrefix;
+import com.nike.cerberus.lambda.waf.ip.IpRangeIndex;
+import com.nike.cerberus.lambda.waf.ip.RuleIpCounter;
+import com.nike.cerberus.lambda.waf.ip.SpaceSavingSummary;
+import com.nike.cerberus.lambda.waf.ip.TopIpAddresses;
+import com.nike.cerberus.lambda.waf.retry.RetryPolicy;
+import com.nike.cerberus.lambda.waf.retry.Retryer;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetAddress;
+import java.time.Clock;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * This processor will process CF Log events and auto black list ips that violate the defined rate limit
@@ -50,19 +57,44 @@ public class RateLimitingProcessor implements Processor {
 
     private final Logger log = Logger.getLogger(getClass());
 
-    protected static final String SERIALIZED_DATA_FILE_NAME = "rate_limit_processor_blacklist_data.json";
+    protected static final String SERIALIZED_DATA_FILE_NAME = "rate_limit_processor_blacklist_data.bin";
+    protected static final String LEGACY_SERIALIZED_DATA_FILE_NAME = "rate_limit_processor_blacklist_data.json";
+    protected static final String ABUSE_SCORE_FILE_NAME = "rate_limit_processor_abuse_scores.bin";
     private static final int LIMIT_IP_ADDRESS_RANGES_PER_IP_MATCH_CONDITION = 1000;
-    private static final String NETMASK_FOR_SINGLE_IP = "255.255.255.255";
+    private static final int REQUEST_COUNTER_EXPECTED_IPS = 1024;
+    private static final int ABUSE_SCORE_EXPECTED_IPS = 1024;
+    // every load balancer node delivers a log file every 5 minutes, a few minutes after the end of its interval, so the
+    // abuse score only scores the minutes that are at least this old, when every node's file for them is in
+    private static final int ABUSE_SCORE_DELIVERY_DELAY_IN_MINS = 10;
+    // the IP set reads of a run share this deadline, it leaves most of the 60 second budget for the rest of the run
+    private static final int IP_SET_READ_TIMEOUT_IN_SECONDS = 20;
+    private static final int IP_SET_READ_THREADS = 3;
+    // the reverse DNS lookups for the run summary share this deadline, however many ips were blocked
+    private static final int HOSTNAME_RESOLVE_TIMEOUT_IN_MILLIS = 5000;
 
     private final ObjectMapper objectMapper;
     private final AWSWAFRegional awsWaf;
     private final AmazonS3 amazonS3;
+    private final IpSetSynchronizer ipSetSynchronizer;
+    private final Retryer retryer;
+    private final ExecutorService ipSetReadExecutor;
+    private final HostnameResolver hostnameResolver = new HostnameResolver();
     private int cidrLimitForIpSet = LIMIT_IP_ADDRESS_RANGES_PER_IP_MATCH_CONDITION;
+    private long ipSetReadTimeoutInMillis = TimeUnit.SECONDS.toMillis(IP_SET_READ_TIMEOUT_IN_SECONDS);
+    private Clock clock = Clock.systemUTC();
 
     public RateLimitingProcessor(ObjectMapper objectMapper, AWSWAFRegional awsWaf, AmazonS3 amazonS3) {
+        this(objectMapper, awsWaf, amazonS3, new Retryer(RetryPolicy.aws()));
+    }
+
+    public RateLimitingProcessor(ObjectMapper objectMapper, AWSWAFRegional awsWaf, AmazonS3 amazonS3, Retryer retryer) {
         this.objectMapper = objectMapper;
+        this.retryer = retryer;
         this.awsWaf = awsWaf;
         this.amazonS3 = amazonS3;
+        ipSetSynchronizer = new IpSetSynchronizer(awsWaf, retryer);
+        ipSetReadExecutor = Executors.newFixedThreadPool(IP_SET_READ_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("ip-set-reader-%d").setDaemon(true).build());
     }
 
     public void setCidrLimitForIpSetOverride(int limitOverride) {
@@ -70,13 +102,32 @@ public class RateLimitingProcessor implements Processor {
     }
 
     /**
-     * 1. Build a map of requests identified by ip-date-time(minutes accuracy) this will give us rate / min by ip.
+     * Lets tests run out the deadline of the IP set reads
+     */
+    void setIpSetReadTimeoutOverride(long timeout, TimeUnit timeUnit) {
+        ipSetReadTimeoutInMillis = timeUnit.toMillis(timeout);
+    }
+
+    /**
+     * Lets the offline replay run the processor on the time of the logs it is replaying
+     */
+    public void setClockOverride(Clock clockOverride) {
+        clock = clockOverride;
+    }
+
+    /**
+     * 0. Start reading the manual block and white list and the auto block list at once, in the background.
+     * 1. Count the requests by ip, with per-minute buckets when the limit applies to a window shorter than the interval.
+     *      The requests that match a rate limit rule are counted per rule and ip in the same pass.
      * 2. Create a range set for ips we do not want to auto block that we can query.
      * 3. Collect the do not auto block range set, the ranges of ips for the manual block list.
-     * 4. Get the current violators from the request map that have requests grouped by ip and minutes
+     * 4. Get the current violators, the ips whose busiest window has more requests than the limit or than the limit of
+     *      a rate limit rule, and with the abuse score on the ips whose score across runs reached the threshold.
+     *      New violations of repeat offenders get longer blocks.
      * 5. Filter and Truncate to remove expired IP address and IPs that are on the White or Black manual lists
-     *      and ensure that we are under the ip limit for an IP Set
-     * 6. Save the violators data.
+     *      and ensure that we are under the ip limit for an IP Set, after collapsing dense clusters into CIDRs
+     *      when CIDR aggregation is on
+     * 6. Save the violators data, and the abuse scores that are high enough to keep.
      * 7. Update the auto block ip set to reflect the current violators data.
      *
      * @param events The Application Load Balancer access log events
@@ -86,27 +137,291 @@ public class RateLimitingProcessor implements Processor {
     @Override
     public void processLogEvents(List<ALBAccessLogEvent> events, LogProcessorLambdaConfig config, String bucketName) {
 
-        Map<String, Integer> reqIdCountMap = new HashMap<>();
-
-        // Build a map of requests identified by ip-date-time(minutes accuracy) this will give us rate / min by ip
-        events.forEach(albLogEvent -> processRequest(albLogEvent, reqIdCountMap));
+        // Start reading the manual block and white list, and the auto block list unless it is cached, while counting
+        IpSetReader ipSetReader = newIpSetReader()
+                .prefetch(config.getManualBlacklistIpSetId())
+                .prefetch(config.getManualWhitelistIpSetId());
+        if (! ipSetSynchronizer.hasCachedCopy(getAutoBlockIpSetId(config))) {
+            ipSetReader.prefetch(getAutoBlockIpSetId(config));
+        }
+        // Get the abuse scores of previous runs, when they are on
+        AbuseScoreTable abuseScores = isAbuseScoreOn(config) ? getAbuseScores(config, bucketName) : null;
+        // Count the requests and get the current violators, only the logs within the last interval are provided
+        Map<IpAddress, ViolationMetaData> violators = findViolators(events, config, abuseScores);
         // Collect the do not auto block range set, the ranges of ips for the manual block and white list.
-        RangeSet<Integer> doNotAutoBlockIpRangeSet = getDoNotBlockRangeSet(config);
-        // Get the current violators
-        Map<String, ViolationMetaData> violators = getCurrentViolators(reqIdCountMap, config);
-        // Get and merge in all the currently blocked violators
-        violators.putAll(getCurrentlyBlockedIpsAndDateViolatedMap(bucketName));
+        IpRangeIndex doNotAutoBlockIpRangeIndex = getDoNotBlockRangeIndex(config, ipSetReader);
+        // Get and merge in all the currently blocked violators, new violations of repeat offenders get longer blocks
+        Map<IpAddress, ViolationMetaData> currentlyBlocked = getCurrentlyBlockedIpsAndDateViolatedMap(bucketName);
+        if (abuseScores != null) {
+            escalateNewViolations(config, abuseScores, violators, currentlyBlocked);
+        }
+        violators.putAll(currentlyBlocked);
         // Filter and truncate to remove expired blocks and ensure that we are under the ip limit for an IP Set
-        violators = filterAndTruncateViolators(config, doNotAutoBlockIpRangeSet, violators);
-        // Save the violators data.
+        violators = filterAndTruncateViolators(config, doNotAutoBlockIpRangeIndex, violators);
+        // Save the violators data, and the abuse scores without the ips whose scores are too low to matter.
         saveCurrentViolators(violators, bucketName);
+        if (abuseScores != null) {
+            saveAbuseScores(compactAbuseScores(config, abuseScores, violators), bucketName);
+        }
         // Update the auto block ip set to reflect the current violators data.
-        Map<String, List<String>> summary = processViolators(config, violators);
+        Map<String, List<String>> summary = processViolators(config,
+                getBlocks(config, doNotAutoBlockIpRangeIndex, violators), ipSetReader);
         // log summary
         logSummary(summary, config);
 
     }
 
+    /**
+     * Counts the requests per ip (and minute) and per rule and ip, and returns the ips over the limit or over the limit
+     * of a rate limit rule, and the ips whose abuse score reached the threshold
+     *
+     * @param abuseScores The abuse scores of previous runs, the requests of the minutes they do not cover yet are added
+     *                    to them, null when the abuse score is off
+     */
+    protected Map<IpAddress, ViolationMetaData> findViolators(List<ALBAccessLogEvent> events,
+                                                              LogProcessorLambdaConfig config,
+                                                              AbuseScoreTable abuseScores) {
+        RateLimitRules rules = new RateLimitRules(RateLimitRule.parseAll(config.getRateLimitRules()));
+        RuleIpCounter ruleCounter = createRuleCounter(config);
+        IpAddressCounter reqIdCounter = countRequests(events, config, rules, ruleCounter);
+        Map<IpAddress, ViolationMetaData> violators = getCurrentViolators(reqIdCounter, config);
+        getCurrentRuleViolators(ruleCounter, rules, config).forEach((ip, metaData) ->
+                violators.merge(ip, metaData, RateLimitingProcessor::higherRate));
+        if (abuseScores != null) {
+            int scoreUntilEpochMinute = getScoreUntilEpochMinute(config);
+            IpAddressCounter newRequestCounter = countRequestsToScore(events,
+                    abuseScores.getScoredUntilEpochMinute(), scoreUntilEpochMinute, reqIdCounter);
+            getAbuseScoreViolators(newRequestCounter, abuseScores, scoreUntilEpochMinute, config)
+                    .forEach((ip, metaData) -> violators.merge(ip, metaData, RateLimitingProcessor::higherRate));
+        }
+        return violators;
+    }
+
+    /**
+     * @return true if the processor keeps abuse scores across runs and escalates the blocks of repeat offenders
+     */
+    protected boolean isAbuseScoreOn(LogProcessorLambdaConfig config) {
+        return config.getAbuseScoreThreshold() > 0;
+    }
+
+    /**
+     * @return the minute the abuse scores are scored up to by this run, exclusive, the log files of the minutes before
+     * it are all delivered by now, see ABUSE_SCORE_DELIVERY_DELAY_IN_MINS. Never more than half the interval ago, so
+     * the minutes to score are still in the events.
+     */
+    protected int getScoreUntilEpochMinute(LogProcessorLambdaConfig config) {
+        int delay = Math.min(ABUSE_SCORE_DELIVERY_DELAY_IN_MINS, config.getIntervalInMins() / 2);
+        return toEpochMinute(Date.from(clock.instant())) - delay;
+    }
+
+    /**
+     * The runs are closer together than the interval they read, so most events were already read by an earlier run,
+     * and log files are delivered late, so an event can first show up a few runs after its minute. Counts the requests
+     * of the events in the minutes from the one the abuse scores were scored until to the given one, so every request
+     * is scored once, however late its log file came, as long as it came within the delivery delay. Events without a
+     * valid time are not scored.
+     *
+     * @param scoredUntilEpochMinute The minute the abuse scores are scored until, see
+     *                               {@link AbuseScoreTable#getScoredUntilEpochMinute()}
+     * @param scoreUntilEpochMinute The minute to score until, exclusive, see {@link #getScoreUntilEpochMinute}
+     * @param reqIdCounter The request counts of the interval, only its ips are counted, which keeps heavy hitter mode
+     *                     bounded
+     */
+    protected IpAddressCounter countRequestsToScore(List<ALBAccessLogEvent> events, int scoredUntilEpochMinute,
+                                                    int scoreUntilEpochMinute, IpAddressCounter reqIdCounter) {
+        IpAddressCounter newRequestCounter = new IpAddressCounter(REQUEST_COUNTER_EXPECTED_IPS);
+        for (ALBAccessLogEvent event : events) {
+            IpAddress ip = event.getRequestingClientIpAddress();
+            if (ip == null || ! reqIdCounter.contains(ip)) {
+                continue;
+            }
+            long timeInEpochMicros = event.getTimeInEpochMicros();
+            if (timeInEpochMicros == ALBAccessLogFieldParser.INVALID_TIME) {
+                continue;
+            }
+            int epochMinute = IpAddressCounter.toEpochMinute(timeInEpochMicros);
+            if (epochMinute >= scoredUntilEpochMinute && epochMinute < scoreUntilEpochMinute) {
+                newRequestCounter.increment(ip);
+            }
+        }
+        return newRequestCounter;
+    }
+
+    /**
+     * Adds the requests of the newly scored minutes to the abuse scores, which leak exponentially between runs, and
+     * returns the ips whose score reached the threshold. This catches clients that stay just under the limit run after
+     * run. The scores are decayed to the minute they are scored until, not the time of the run.
+     *
+     * The scores take one O(1) update per counted ip. An ip that is not scored yet is only added when its count could
+     * get it to the threshold if it kept it up, see {@link #getAbuseScoreFloor(LogProcessorLambdaConfig, AbuseScoreTable)}.
+     *
+     * @param newRequestCounter The requests per ip of the newly scored minutes, see {@link #countRequestsToScore}
+     * @param scoreUntilEpochMinute The minute the requests were counted until, the scores are advanced to it
+     * @return the ips at or over the threshold, with their rounded score as the max rate
+     */
+    protected Map<IpAddress, ViolationMetaData> getAbuseScoreViolators(IpAddressCounter newRequestCounter,
+                                                                       AbuseScoreTable abuseScores,
+                                                                       int scoreUntilEpochMinute,
+                                                                       LogProcessorLambdaConfig config) {
+        Date now = Date.from(clock.instant());
+        abuseScores.advanceScoredUntil(scoreUntilEpochMinute);
+        int epochMinute = abuseScores.getScoredUntilEpochMinute();
+        Map<IpAddress, ViolationMetaData> violators = Maps.newHashMap();
+
+        double threshold = config.getAbuseScoreThreshold();
+        double floor = getAbuseScoreFloor(config, abuseScores);
+        for (int ordinal = 0; ordinal < newRequestCounter.size(); ordinal++) {
+            int count = newRequestCounter.getCount(ordinal);
+            IpAddress ip = newRequestCounter.getIpAddress(ordinal);
+            if (count < floor && abuseScores.ordinalOf(ip) < 0) {
+                continue;
+            }
+            double score = abuseScores.getScore(abuseScores.add(ip, count, epochMinute), epochMinute);
+            if (score >= threshold) {
+                violators.put(ip, new ViolationMetaData(now, (int) Math.min(score, Integer.MAX_VALUE)));
+            }
+        }
+
+        return violators;
+    }
+
+    /**
+     * A client that sends c requests every m minutes settles at a score of c / (1 - d), where d is what is left of a
+     * score after m minutes. So c has to be at least threshold * (1 - d) to ever reach the threshold, lower scores are
+     * not worth keeping. m is the number of minutes this run scored, or the interval for new scores.
+     */
+    private static double getAbuseScoreFloor(LogProcessorLambdaConfig config, AbuseScoreTable abuseScores) {
+        int minutes = abuseScores.getLastScoredMinutes() > 0 ?
+                abuseScores.getLastScoredMinutes() : config.getIntervalInMins();
+        return config.getAbuseScoreThreshold() * (1 - abuseScores.decayOver(minutes));
+    }
+
+    /**
+     * Counts a violation for every violator that is not blocked right now and gives it a block that doubles in length
+     * with every violation so far, up to the max blacklist duration. A violator whose block has expired replaces it.
+     */
+    protected void escalateNewViolations(LogProcessorLambdaConfig config, AbuseScoreTable abuseScores,
+                                         Map<IpAddress, ViolationMetaData> violators,
+                                         Map<IpAddress, ViolationMetaData> currentlyBlocked) {
+        Date now = Date.from(clock.instant());
+        int epochMinute = toEpochMinute(now);
+        int duration = config.getBlacklistDurationInMinutes();
+        int maxDuration = Math.max(config.getMaxBlacklistDurationInMinutes(), duration);
+        violators.forEach((ip, metaData) -> {
+            ViolationMetaData block = currentlyBlocked.get(ip);
+            if (block != null && ! isExpired(block, now, config)) {
+                return;
+            }
+            currentlyBlocked.remove(ip);
+            int violations = abuseScores.recordViolation(ip, epochMinute);
+            long escalated = (long) duration << Math.min(violations - 1, 30);
+            if (escalated > duration) {
+                metaData.setBlockDurationInMinutes((int) Math.min(escalated, maxDuration));
+            }
+        });
+    }
+
+    /**
+     * Drops the ips with scores too low to matter, and beyond the max ips the lowest scores. Blocked ips are always kept,
+     * and so are the ips that violated within twice the max blacklist duration, so a repeat offender still gets a longer
+     * block when it comes back after its longest block has run out.
+     */
+    protected AbuseScoreTable compactAbuseScores(LogProcessorLambdaConfig config, AbuseScoreTable abuseScores,
+                                                 Map<IpAddress, ViolationMetaData> violators) {
+        int maxDuration = Math.max(config.getMaxBlacklistDurationInMinutes(), config.getBlacklistDurationInMinutes());
+        int keepViolationsSince = toEpochMinute(Date.from(clock.instant())) - 2 * maxDuration;
+        return abuseScores.compact(getScoresEpochMinute(abuseScores), getAbuseScoreFloor(config, abuseScores),
+                config.getAbuseScoreMaxIps(), violators::containsKey, keepViolationsSince);
+    }
+
+    /**
+     * Retrieves the abuse scores of previous runs, a missing or unreadable table starts the scores over
+     */
+    protected AbuseScoreTable getAbuseScores(LogProcessorLambdaConfig config, String bucketName) {
+        S3Object s3Object = null;
+        try {
+            s3Object = retryer.call("s3.getObject",
+                    () -> amazonS3.getObject(new GetObjectRequest(bucketName, ABUSE_SCORE_FILE_NAME)));
+        } catch (AmazonS3Exception e) {
+            if (! e.getErrorCode().equals("NoSuchKey")) {
+                log.warn("Failed to get the abuse scores of previous runs, starting them over", e);
+            }
+        }
+
+        if (s3Object == null) {
+            return new AbuseScoreTable(config.getAbuseScoreHalfLifeInMins(), ABUSE_SCORE_EXPECTED_IPS);
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(s3Object.getObjectContent()))) {
+            return AbuseScoreTable.readFrom(in, config.getAbuseScoreHalfLifeInMins());
+        } catch (IOException e) {
+            log.warn("Failed to read the abuse scores of previous runs, starting them over", e);
+            return new AbuseScoreTable(config.getAbuseScoreHalfLifeInMins(), ABUSE_SCORE_EXPECTED_IPS);
+        }
+    }
+
+    /**
+     * Saves the abuse scores to s3 for the next run
+     */
+    protected void saveAbuseScores(AbuseScoreTable abuseScores, String bucketName) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            abuseScores.writeTo(out, getScoresEpochMinute(abuseScores));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize the abuse scores", e);
+        }
+        putObject(bucketName, ABUSE_SCORE_FILE_NAME, bytes.toByteArray());
+    }
+
+    /**
+     * @return the minute the abuse scores are decayed to, the minute they are scored until
+     */
+    private int getScoresEpochMinute(AbuseScoreTable abuseScores) {
+        int scoredUntilEpochMinute = abuseScores.getScoredUntilEpochMinute();
+        return scoredUntilEpochMinute == AbuseScoreTable.NEVER_SCORED ?
+                toEpochMinute(Date.from(clock.instant())) : scoredUntilEpochMinute;
+    }
+
+    private static int toEpochMinute(Date date) {
+        return (int) TimeUnit.MILLISECONDS.toMinutes(date.getTime());
+    }
+
+    /**
+     * @return the IP set this processor owns, it removes every block from it that it does not know about
+     */
+    protected String getAutoBlockIpSetId(LogProcessorLambdaConfig config) {
+        return config.getRateLimitAutoBlacklistIpSetId();
+    }
+
+    /**
+     * @return the key of the violators data in the bucket, every processor with its own IP set needs its own
+     */
+    protected String getSerializedDataFileName() {
+        return SERIALIZED_DATA_FILE_NAME;
+    }
+
+    /**
+     * @return the key of the JSON violators data written before the binary format, only read when there is no binary
+     * data yet
+     */
+    protected String getLegacySerializedDataFileName() {
+        return LEGACY_SERIALIZED_DATA_FILE_NAME;
+    }
+
+    /**
+     * @return the clock the violation dates come from
+     */
+    protected Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the name the run summary and Slack use for the processor
+     */
+    protected String getName() {
+        return "Rate Limiting Processor";
+    }
+
     protected void logSummary(Map<String, List<String>> summary, LogProcessorLambdaConfig config) {
         List<String> ipsRemoved = summary.get("removed");
         List<String> ipsAdded = summary.get("added");
@@ -116,14 +431,15 @@ public class RateLimitingProcessor implements Processor {
             return;
         }
 
-        StringBuilder builder = new StringBuilder("ALB Log Event Handler - Rate Limiting Processor run summary\n");
+        StringBuilder builder = new StringBuilder("ALB Log Event Handler - " + getName() + " run summary\n");
         builder.append("Running Environment: ").append(config.getEnv()).append("\n");
         builder.append("IP addresses removed from auto block list: ");
         ipsRemoved.stream().sorted().forEach(ip -> builder.append(ip).append(", "));
         builder.append("\n");
         builder.append("IP addresses added to auto block list: ");
+        Map<String, String> hostnames = hostnameResolver.resolve(ipsAdded, HOSTNAME_RESOLVE_TIMEOUT_IN_MILLIS);
         ipsAdded.stream().sorted().forEach(ip -> {
-            builder.append(ip).append(" (").append(getHostnameForIp(ip)).append(")").append(", ");
+            builder.append(ip).append(" (").append(hostnames.get(ip)).append(")").append(", ");
         });
         builder.append("\n");
         builder.append("IP addresses already on auto block list: ");
@@ -131,269 +447,484 @@ public class RateLimitingProcessor implements Processor {
 
         String text = builder.toString();
 
-        SlackUtils.logMsgIfEnabled(text, config, "Rate-Limiting-Processor");
+        SlackUtils.logMsgIfEnabled(text, config, getName().replace(' ', '-'));
 
         log.info(text);
     }
 
     /**
-     * Gets the hostname for a given ip
-     */
-    private String getHostnameForIp(String ip) {
-        try {
-            InetAddress inetHost = InetAddress.getByName(ip);
-            return inetHost.getHostName();
-        } catch (Exception e) {
-            log.error(String.format("Failed to get hostname for ip: %s", ip), e);
-        }
-        return "hostname unknown";
-    }
-
-    /**
-     * Goes through the Manual white and black list to create a searchable range set of IP Address ranges from the
+     * Goes through the Manual white and black list to create a searchable index of IP Address ranges from the
      * CIDRs of IPs to not add to the auto black list
      *
      * @param config The params from the Cloud Formation that created this Lambda.
-     * @return The searchable range set of ips not to auto block.
-     */
-    protected RangeSet<Integer> getDoNotBlockRangeSet(LogProcessorLambdaConfig config) {
-        // Create a range set for ips we do not want to auto block that we can query
-        RangeSet<Integer> doNotAutoBlockIpRangeSet = TreeRangeSet.create();
-        // Collect and add to the do not auto block range set, the ranges of ips for the manual block list.
-        getIpSet(config.getManualBlacklistIpSetId(), 0).forEach(subnetInfo -> {
-            Integer lowIpAsInt = subnetInfo.asInteger(subnetInfo.getLowAddress());
-            Integer highIpAsInt = subnetInfo.asInteger(subnetInfo.getHighAddress());
-            doNotAutoBlockIpRangeSet.add(Range.closed(lowIpAsInt, highIpAsInt));
-        });
-        // Collect and add to the do not auto block range set, the ranges of ips for the manual whitelist list.
-        getIpSet(config.getManualWhitelistIpSetId(), 0).forEach(subnetInfo -> {
-            Integer lowIpAsInt = subnetInfo.asInteger(subnetInfo.getLowAddress());
-            Integer highIpAsInt = subnetInfo.asInteger(subnetInfo.getHighAddress());
-            doNotAutoBlockIpRangeSet.add(Range.closed(lowIpAsInt, highIpAsInt));
-        });
-        return doNotAutoBlockIpRangeSet;
+     * @return The searchable index of ips not to auto block, overlapping and adjacent CIDRs are merged.
+     */
+    protected IpRangeIndex getDoNotBlockRangeIndex(LogProcessorLambdaConfig config) {
+        return getDoNotBlockRangeIndex(config, newIpSetReader()
+                .prefetch(config.getManualBlacklistIpSetId())
+                .prefetch(config.getManualWhitelistIpSetId()));
+    }
+
+    private IpRangeIndex getDoNotBlockRangeIndex(LogProcessorLambdaConfig config, IpSetReader ipSetReader) {
+        // Create an index for ips we do not want to auto block that we can query
+        IpRangeIndex.Builder doNotAutoBlockIpRanges = IpRangeIndex.builder();
+        // Collect and add to the do not auto block ranges, the ranges of ips for the manual block list.
+        ipSetReader.get(config.getManualBlacklistIpSetId()).forEach(doNotAutoBlockIpRanges::addPrefix);
+        // Collect and add to the do not auto block ranges, the ranges of ips for the manual whitelist list.
+        ipSetReader.get(config.getManualWhitelistIpSetId()).forEach(doNotAutoBlockIpRanges::addPrefix);
+        return doNotAutoBlockIpRanges.build();
     }
 
     /**
      * Truncate the list if greater than the WAF Limit, we will remove the violators with the lowest rate,
      * Filtering ips that are on the manually blocked list or white listed,
      * Also filtering out IPs that should no longer be blocked.
+     * With CIDR aggregation on the limit applies to the aggregated CIDRs, ranked by their busiest violator, and the
+     * violators of every CIDR that fits are kept.
+     */
+    protected Map<IpAddress, ViolationMetaData> filterAndTruncateViolators(LogProcessorLambdaConfig params,
+                                                                           IpRangeIndex doNotAutoBlockIpRangeIndex,
+                                                                           Map<IpAddress, ViolationMetaData> violators) {
+
+        Date now = Date.from(clock.instant());
+        int limit = Math.max(cidrLimitForIpSet, 0);
+
+        if (params.getCidrAggregationDensity() <= 0) {
+            // a bounded heap instead of sorting every violator, the index lookup is skipped for those that would not fit
+            TopIpAddresses<ViolationMetaData> top = new TopIpAddresses<>(limit);
+            violators.forEach((ip, metaData) -> {
+                if (! isExpired(metaData, now, params)
+                        && top.wouldKeep(ip, metaData.getMaxRate())
+                        && canAddToAutoBlackList(doNotAutoBlockIpRangeIndex, getBlockPrefix(ip, params))) {
+                    top.offer(ip, metaData.getMaxRate(), metaData);
+                }
+            });
+            return top.toMap();
+        }
+
+        Map<IpAddress, ViolationMetaData> candidates = new HashMap<>();
+        violators.forEach((ip, metaData) -> {
+            if (! isExpired(metaData, now, params)
+                    && canAddToAutoBlackList(doNotAutoBlockIpRangeIndex, getBlockPrefix(ip, params))) {
+                candidates.put(ip, metaData);
+            }
+        });
+        TopIpAddresses<IpPrefix> top = new TopIpAddresses<>(limit);
+        // the aggregates are disjoint, so their first addresses tell them apart
+        aggregate(params, doNotAutoBlockIpRangeIndex, candidates).forEach(aggregate ->
+                top.offer(aggregate.getPrefix().getAddress(), aggregate.getMaxRate(), aggregate.getPrefix()));
+        IpRangeIndex.Builder kept = IpRangeIndex.builder();
+        top.toMap().values().forEach(kept::addPrefix);
+        IpRangeIndex keptIndex = kept.build();
+
+        Map<IpAddress, ViolationMetaData> truncated = new HashMap<>();
+        candidates.forEach((ip, metaData) -> {
+            if (keptIndex.contains(ip)) {
+                truncated.put(ip, metaData);
+            }
+        });
+        return truncated;
+    }
+
+    /**
+     * @return true if the block of the violator has run its course, the configured blacklist duration unless it was
+     * escalated
+     */
+    private static boolean isExpired(ViolationMetaData metaData, Date now, LogProcessorLambdaConfig params) {
+        Integer duration = metaData.getBlockDurationInMinutes();
+        return TimeUnit.MILLISECONDS.toMinutes(now.getTime() - metaData.getDate().getTime()) >=
+                (duration != null ? duration : params.getBlacklistDurationInMinutes());
+    }
+
+    /**
+     * @return the blocks for the violators that go into the auto block ip set, their own block prefixes or, with CIDR
+     * aggregation on, the aggregated CIDRs. Aggregating the violators filterAndTruncateViolators kept gives back the
+     * same CIDRs it kept.
      */
-    protected Map<String, ViolationMetaData> filterAndTruncateViolators(LogProcessorLambdaConfig params,
-                                                                        RangeSet<Integer> doNotAutoBlockIpRangeSet,
-                                                                        Map<String, ViolationMetaData> violators) {
+    protected Set<IpPrefix> getBlocks(LogProcessorLambdaConfig config, IpRangeIndex doNotAutoBlockIpRangeIndex,
+                                      Map<IpAddress, ViolationMetaData> violators) {
+        Set<IpPrefix> blocks = new LinkedHashSet<>();
+        if (config.getCidrAggregationDensity() <= 0) {
+            violators.keySet().forEach(ip -> blocks.add(getBlockPrefix(ip, config)));
+        } else {
+            aggregate(config, doNotAutoBlockIpRangeIndex, violators).forEach(aggregate ->
+                    blocks.add(aggregate.getPrefix()));
+        }
+        return blocks;
+    }
 
-        Date now = new Date();
+    private List<CidrAggregator.Aggregate> aggregate(LogProcessorLambdaConfig config,
+                                                     IpRangeIndex doNotAutoBlockIpRangeIndex,
+                                                     Map<IpAddress, ViolationMetaData> violators) {
+        CidrAggregator aggregator = new CidrAggregator(config.getCidrAggregationDensity(), doNotAutoBlockIpRangeIndex);
+        violators.forEach((ip, metaData) -> aggregator.add(getBlockPrefix(ip, config), metaData.getMaxRate()));
+        return aggregator.aggregate();
+    }
 
-        return violators.entrySet().stream()
-                    .filter(entry -> TimeUnit.MILLISECONDS.toMinutes(now.getTime() - entry.getValue().getDate().getTime()) < params.getBlacklistDurationInMinutes())
-                    .filter(entry -> canAddToAutoBlackList(doNotAutoBlockIpRangeSet, entry.getKey()))
-                    .sorted((o1, o2) -> o2.getValue().getMaxRate() - o1.getValue().getMaxRate())
-                    .limit(cidrLimitForIpSet)
-                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    /**
+     * @return the block that gets added to the auto block ip set for a violator, the /32 of an IPv4 address and the
+     * configured prefix (/128 by default) of an IPv6 address
+     */
+    protected IpPrefix getBlockPrefix(IpAddress ip, LogProcessorLambdaConfig config) {
+        if (ip.isIpv4()) {
+            return IpPrefix.of(ip);
+        }
+        int prefixLength = config.getIpv6BlockPrefixLength();
+        return prefixLength <= 0 ? IpPrefix.of(ip) : IpPrefix.of(ip, prefixLength);
     }
 
     /**
      * Given a map of violators this function goes through them and syncs the Auto Block IP Set to match it.
      * Removing IPs from the IP Set that are not in the map and adding the new IPs.
+     * IPv6 violators are blocked by their configured prefix, several violators can share one block.
+     * The IP Set is only read when there is no copy cached by the last run, see {@link IpSetSynchronizer}.
+     * Each violator is blocked by its own block prefix here, the run aggregates them first, see {@link #getBlocks}.
      *
      * @param config The params for this Lambda
      * @param violators The map of violators that need to be blocked
      */
-    protected Map<String, List<String>> processViolators(LogProcessorLambdaConfig config, Map<String, ViolationMetaData> violators) {
+    protected Map<String, List<String>> processViolators(LogProcessorLambdaConfig config, Map<IpAddress, ViolationMetaData> violators) {
+        Set<IpPrefix> ipToBlock = new LinkedHashSet<>();
+        violators.keySet().forEach(ip -> ipToBlock.add(getBlockPrefix(ip, config)));
+        return processViolators(config, ipToBlock, newIpSetReader());
+    }
+
+    private Map<String, List<String>> processViolators(LogProcessorLambdaConfig config,
+                                                       Set<IpPrefix> ipToBlock,
+                                                       IpSetReader ipSetReader) {
         Map<String, List<String>> summary = Maps.newHashMap();
         summary.put("removed", new LinkedList<>());
         summary.put("added", new LinkedList<>());
         summary.put("duplicate", new LinkedList<>());
 
-        Set<String> ipToBlock = violators.keySet();
-        List<IPSetUpdate> updates = new LinkedList<>();
-
-        // Remove ips from the auto blocked ip set that are not on our list, aka remove expired blocks
-        getIpSet(config.getRateLimitAutoBlacklistIpSetId(), 0).forEach(subnetInfo -> {
-            String ip = subnetInfo.getAddress();
-            if (! ipToBlock.contains(ip)) {
-                String cidr = new SubnetUtils(ip, NETMASK_FOR_SINGLE_IP).getInfo().getCidrSignature();
-                IPSetDescriptor descriptor = new IPSetDescriptor().withType(IPSetDescriptorType.IPV4).withValue(cidr);
-                IPSetUpdate update = new IPSetUpdate().withIPSetDescriptor(descriptor).withAction(ChangeAction.DELETE);
-                updates.add(update);
-                summary.get("removed").add(ip);
-            } else {
-                // dont need to block whats already blocked
-                ipToBlock.remove(ip);
-                summary.get("duplicate").add(ip);
-            }
-        });
-
-        // Block the remaining ips
-        ipToBlock.forEach(ip -> {
-                String cidr = new SubnetUtils(ip, NETMASK_FOR_SINGLE_IP).getInfo().getCidrSignature();
-                IPSetDescriptor descriptor = new IPSetDescriptor().withType(IPSetDescriptorType.IPV4).withValue(cidr);
-                IPSetUpdate update = new IPSetUpdate().withIPSetDescriptor(descriptor).withAction(ChangeAction.INSERT);
-                updates.add(update);
-                summary.get("added").add(ip);
-            }
-        );
-
-        if (! updates.isEmpty()) {
-            GetChangeTokenResult token = awsWaf.getChangeToken(new GetChangeTokenRequest());
-
-            // commit the changes
-            awsWaf.updateIPSet(new UpdateIPSetRequest()
-                    .withIPSetId(config.getRateLimitAutoBlacklistIpSetId())
-                    .withUpdates(updates)
-                    .withChangeToken(token.getChangeToken()));
-        }
+        // Remove ips from the auto blocked ip set that are not on our list, aka remove expired blocks, skip whats
+        // already blocked and block the remaining ips
+        String ipSetId = getAutoBlockIpSetId(config);
+        // the deadline of the run's reader may have passed by now, a read the sync starts on a stale cache gets its own
+        IpSetSynchronizer.Result result = ipSetSynchronizer.sync(ipSetId, ipToBlock, () ->
+                (ipSetReader.isStarted(ipSetId) ? ipSetReader : newIpSetReader()).get(ipSetId));
+        result.getRemoved().forEach(prefix -> summary.get("removed").add(toSummaryString(prefix)));
+        result.getAdded().forEach(prefix -> summary.get("added").add(toSummaryString(prefix)));
+        result.getDuplicate().forEach(prefix -> summary.get("duplicate").add(toSummaryString(prefix)));
 
         return summary;
     }
 
+    /**
+     * @return the ip for single address blocks, so the summary reads as before, and the CIDR otherwise
+     */
+    private static String toSummaryString(IpPrefix prefix) {
+        return prefix.isSingleAddress() ? prefix.getAddress().toString() : prefix.toCidr();
+    }
+
     /**
      * Retrieves the current serialized data of ips that we have blocked and when they violated the rate limit;
-     * @return a map of ip addrs as Strings and the Date when we added them to the no no Map.
+     * the binary data, or the legacy JSON data until the first save migrates it.
+     * @return a map of ip addrs and the Date when we added them to the no no Map.
      */
-    protected Map<String, ViolationMetaData> getCurrentlyBlockedIpsAndDateViolatedMap(String bucketName) {
-        S3Object s3Object = null;
+    protected Map<IpAddress, ViolationMetaData> getCurrentlyBlockedIpsAndDateViolatedMap(String bucketName) {
+        S3Object s3Object;
         try {
-             s3Object = amazonS3.getObject(new GetObjectRequest(bucketName, SERIALIZED_DATA_FILE_NAME));
-        } catch (AmazonS3Exception e) {
-            if (e.getErrorCode().equals("NoSuchKey")) {
-                return new HashMap<>();
+            s3Object = getObjectIfExists(bucketName, getSerializedDataFileName());
+            if (s3Object == null) {
+                s3Object = getObjectIfExists(bucketName, getLegacySerializedDataFileName());
             }
+        } catch (AmazonS3Exception e) {
+            log.warn("Failed to get the violators data of previous runs", e);
+            return new HashMap<>();
         }
 
         if (s3Object == null) {
             return new HashMap<>();
         }
 
-        try {
-            TypeReference<HashMap<String,ViolationMetaData>> typeRef = new TypeReference<HashMap<String,ViolationMetaData>>() {};
-            return objectMapper.readValue(s3Object.getObjectContent(), typeRef);
+        try (InputStream content = new BufferedInputStream(s3Object.getObjectContent())) {
+            if (ViolatorDataFormat.isBinary(content)) {
+                return ViolatorDataFormat.read(content).toMap();
+            }
+            return readLegacyViolators(content);
         } catch (IOException e) {
-            throw new RuntimeException("Failed to deserialize json data from previous runs", e);
+            throw new RuntimeException("Failed to deserialize the violators data from previous runs", e);
         }
     }
 
+    /**
+     * @return the object, or null if there is no object with the key
+     */
+    private S3Object getObjectIfExists(String bucketName, String key) {
+        try {
+            return retryer.call("s3.getObject", () -> amazonS3.getObject(new GetObjectRequest(bucketName, key)));
+        } catch (AmazonS3Exception e) {
+            if (e.getErrorCode().equals("NoSuchKey")) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private Map<IpAddress, ViolationMetaData> readLegacyViolators(InputStream content) throws IOException {
+        TypeReference<HashMap<String,ViolationMetaData>> typeRef = new TypeReference<HashMap<String,ViolationMetaData>>() {};
+        Map<String, ViolationMetaData> serializedViolators = objectMapper.readValue(content, typeRef);
+
+        // the data is keyed by the ip as a String, parse them once here
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        serializedViolators.forEach((ip, metaData) -> {
+            IpAddress ipAddress = IpAddress.parse(ip);
+            if (ipAddress == null) {
+                log.warn(String.format("Dropping unparsable ip '%s' from the data of previous runs", ip));
+            } else {
+                violators.put(ipAddress, metaData);
+            }
+        });
+        return violators;
+    }
+
     /**
      * Saves the violators data to s3 for future reference
      *
      * @param violators The map of violators.
      * @param bucketName The bucket to save the serialized data.
      */
-    protected void saveCurrentViolators(Map<String, ViolationMetaData> violators, String bucketName) {
+    protected void saveCurrentViolators(Map<IpAddress, ViolationMetaData> violators, String bucketName) {
+        // a few bytes per violator, see ViolatorDataFormat
         byte[] bytes;
         try {
-            bytes = objectMapper.writeValueAsBytes(violators);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize violators data");
+            bytes = ViolatorDataFormat.write(violators);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize violators data", e);
         }
-        InputStream jsonStream = new ByteArrayInputStream(bytes);
+        putObject(bucketName, getSerializedDataFileName(), bytes);
+    }
+
+    /**
+     * Puts the bytes, a fresh stream for every attempt
+     */
+    private void putObject(String bucketName, String key, byte[] bytes) {
         ObjectMetadata metadata = new ObjectMetadata();
         metadata.setContentLength(bytes.length);
-        amazonS3.putObject(new PutObjectRequest(bucketName, SERIALIZED_DATA_FILE_NAME, jsonStream, metadata));
+        retryer.call("s3.putObject", () -> amazonS3.putObject(new PutObjectRequest(bucketName, key,
+                new ByteArrayInputStream(bytes), metadata)));
     }
 
     /**
-     * Retrieves ip set info for a given ip set id and returns a list of subnet info objects
+     * @return a reader for the IP sets of one run, its reads run concurrently and share one deadline
+     */
+    private IpSetReader newIpSetReader() {
+        return new IpSetReader(ipSetReadExecutor, this::getIpSet, ipSetReadTimeoutInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieves ip set info for a given ip set id and returns the IPv4 and IPv6 blocks in it
      *
      * @param ipSetId The IP Set Id to look up in AWS
-     * @return A List of Subnet Info objects that contain the IP Cidr info on what is in the IP Set
+     * @return A List of the CIDR blocks in the IP Set
      */
-    protected List<SubnetUtils.SubnetInfo> getIpSet(String ipSetId, int retryCount) {
-        List<SubnetUtils.SubnetInfo> ips = new LinkedList<>();
+    protected List<IpPrefix> getIpSet(String ipSetId) {
+        List<IpPrefix> ips = new LinkedList<>();
 
-        GetIPSetResult result = null;
+        GetIPSetResult result;
         try {
-            result = awsWaf.getIPSet(new GetIPSetRequest().withIPSetId(ipSetId));
-        } catch (AWSWAFException e) {
-            if (retryCount < 10) {
-                sleep(1, TimeUnit.SECONDS);
-                return getIpSet(ipSetId, retryCount + 1);
-            }
+            result = retryer.call("waf.getIPSet", () -> awsWaf.getIPSet(new GetIPSetRequest().withIPSetId(ipSetId)));
+        } catch (RuntimeException e) {
             log.error(String.format("Could not get IP set with ID: '%s'", ipSetId));
             throw e;
         }
         result.getIPSet().getIPSetDescriptors().forEach(ipSetDescriptor -> {
-            if (IPSetDescriptorType.IPV4.toString().equals(ipSetDescriptor.getType())) {
-                SubnetUtils subnetUtils = new SubnetUtils(ipSetDescriptor.getValue());
-                subnetUtils.setInclusiveHostCount(true);
-                ips.add(subnetUtils.getInfo());
+            try {
+                IpPrefix prefix = IpPrefix.parse(ipSetDescriptor.getValue());
+                // the descriptor type has to agree with the value, WAF will not match the other family
+                if (prefix.isIpv4() == IPSetDescriptorType.IPV4.toString().equals(ipSetDescriptor.getType())) {
+                    ips.add(prefix);
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                // fall through to the warning
             }
+            log.warn(String.format("Ignoring the %s descriptor '%s' of IP set with ID: '%s'",
+                    ipSetDescriptor.getType(), ipSetDescriptor.getValue(), ipSetId));
         });
 
         return ips;
     }
 
     /**
-     * Convenience method for sleep
-     * @param time
-     * @param timeUnit
+     * Counts the requests of the interval per ip.
+     *
+     * In heavy hitter mode (a heavy hitter error bound above 0) a fixed size Space-Saving summary finds the candidate
+     * violators first, then a second pass over the events counts only the candidates exactly. The memory then depends
+     * on the error bound instead of on the number of distinct ips, which matters during a distributed flood.
+     *
+     * @param events The Application Load Balancer access log events
+     * @param config The Cloud Formation outputs from when this Lambda was created
+     * @return the exact request counts of every ip, or of every candidate in heavy hitter mode
+     */
+    protected IpAddressCounter countRequests(List<ALBAccessLogEvent> events, LogProcessorLambdaConfig config) {
+        return countRequests(events, config, RateLimitRules.none(), null);
+    }
+
+    /**
+     * Counts the requests of the interval per ip, and the requests that match a rate limit rule per rule and ip in the
+     * same pass over the events. The rule counts are always exact, they only hold the matching requests.
      */
-    private void sleep(int time, TimeUnit timeUnit) {
-        try {
-            Thread.sleep(timeUnit.toMillis(time));
-        } catch (InterruptedException e) {
-            throw new RuntimeException("failed to sleep");
+    IpAddressCounter countRequests(List<ALBAccessLogEvent> events, LogProcessorLambdaConfig config,
+                                   RateLimitRules rules, RuleIpCounter ruleCounter) {
+        IpAddressCounter reqIdCounter = createRequestCounter(config);
+        double errorBound = config.getHeavyHitterErrorBound();
+        if (errorBound <= 0) {
+            for (ALBAccessLogEvent event : events) {
+                processRequest(event, reqIdCounter);
+                rules.count(event, ruleCounter);
+            }
+            return reqIdCounter;
         }
+
+        SpaceSavingSummary summary = new SpaceSavingSummary(SpaceSavingSummary.capacityFor(errorBound));
+        for (ALBAccessLogEvent event : events) {
+            IpAddress ip = event.getRequestingClientIpAddress();
+            if (ip != null) {
+                summary.offer(ip);
+            }
+            rules.count(event, ruleCounter);
+        }
+        // ips with more requests than the max error are always in the summary and estimates never undercount
+        int limit = config.getRequestPerIntervalLimit();
+        if (summary.getMaxError() >= limit) {
+            log.warn(String.format("The heavy hitter summary can be off by %s requests which is not below the limit " +
+                    "of %s, violators with at most %s requests may be missed, lower the error bound",
+                    summary.getMaxError(), limit, summary.getMaxError()));
+        }
+        for (int slot = 0; slot < summary.size(); slot++) {
+            if (summary.getEstimate(slot) > limit) {
+                reqIdCounter.add(summary.getIpAddress(slot), 0);
+            }
+        }
+        log.info(String.format("Heavy hitter summary of %s counters found %s candidates in %s requests",
+                summary.getCapacity(), reqIdCounter.size(), summary.getOffered()));
+
+        for (ALBAccessLogEvent event : events) {
+            IpAddress ip = event.getRequestingClientIpAddress();
+            if (ip != null && reqIdCounter.contains(ip)) {
+                processRequest(event, reqIdCounter);
+            }
+        }
+        return reqIdCounter;
+    }
+
+    /**
+     * @return a counter that keeps per-minute rings, long enough to hold the whole interval, if the limit applies to a
+     * window shorter than the interval and a counter of totals otherwise
+     */
+    protected IpAddressCounter createRequestCounter(LogProcessorLambdaConfig config) {
+        int windowInMins = config.getRateLimitWindowInMins();
+        if (windowInMins <= 0 || windowInMins >= config.getIntervalInMins()) {
+            return new IpAddressCounter();
+        }
+        // the events of an interval can touch a partial minute at either end
+        return new IpAddressCounter(REQUEST_COUNTER_EXPECTED_IPS, config.getIntervalInMins() + 2);
+    }
+
+    /**
+     * @return a counter for the rate limit rules with per-minute rings under the same conditions as the request counter
+     */
+    protected RuleIpCounter createRuleCounter(LogProcessorLambdaConfig config) {
+        int windowInMins = config.getRateLimitWindowInMins();
+        if (windowInMins <= 0 || windowInMins >= config.getIntervalInMins()) {
+            return new RuleIpCounter();
+        }
+        return new RuleIpCounter(REQUEST_COUNTER_EXPECTED_IPS, config.getIntervalInMins() + 2);
     }
 
     /**
      * Takes a log entry that is space separated http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-access-logs.html
      * Will process the request entry and check to see if IP should be blacklisted
      * @param event The log event
-     * @param reqIdCountMap the running count map, keeps track of requests per minute
+     * @param reqIdCounter the running counter, keeps track of requests per ip and minute
      */
-    protected void processRequest(ALBAccessLogEvent event, Map<String, Integer> reqIdCountMap) {
-        // create a key out of the requester ip, and count the requests
-        String requestKey = event.getRequestingClientIp();
-        if (reqIdCountMap.containsKey(requestKey)) {
-            reqIdCountMap.put(requestKey, reqIdCountMap.get(requestKey) + 1);
+    protected void processRequest(ALBAccessLogEvent event, IpAddressCounter reqIdCounter) {
+        // create a key out of the requester ip (parsed once by the event), and count the requests
+        IpAddress requestKey = event.getRequestingClientIpAddress();
+        if (requestKey == null) {
+            return;
+        }
+        long timeInEpochMicros = event.getTimeInEpochMicros();
+        if (timeInEpochMicros == ALBAccessLogFieldParser.INVALID_TIME) {
+            reqIdCounter.increment(requestKey);
         } else {
-            reqIdCountMap.put(requestKey, 1);
+            reqIdCounter.increment(requestKey, IpAddressCounter.toEpochMinute(timeInEpochMicros));
         }
     }
 
     /**
-     * Process the map we created and ensure that keys in the map that have values greater than the rate limit per interval
-     * get processed and dealt with.
+     * Process the counter we created and ensure that ips with more requests than the rate limit in their busiest
+     * window get processed and dealt with. The max rate of a violator is the number of requests in that window.
      *
-     * @param reqIdCountMap The map of request ids to request count, this assumes the requests are grouped by IPs combined with time to a minutes accuracy
+     * @param reqIdCounter The request count per ip, this assumes only the logs within the last interval were counted
      * @param params The params from the CloudFormation outputs
      * @return a map of ip addresses to violation meta data, containing ips that violated the rate limit
      */
-    protected Map<String, ViolationMetaData> getCurrentViolators(Map<String, Integer> reqIdCountMap, LogProcessorLambdaConfig params) {
-        Date now = new Date();
-        Map<String, ViolationMetaData> violators = Maps.newHashMap();
-
-        // instead of using minute of hour as part of the key, assume that only the logs within the last interval is provided
-        reqIdCountMap.entrySet().stream()
-                .filter(entry -> entry.getValue() > params.getRequestPerIntervalLimit())
-                .forEach(entry -> {
-                    String ip = entry.getKey();
-                    if (violators.containsKey(ip)) {
-                        ViolationMetaData metaData = violators.get(ip);
-                        if (metaData.getMaxRate() < entry.getValue()) {
-                            metaData.setMaxRate(entry.getValue());
-                        }
-                    } else {
-                        violators.put(ip, new ViolationMetaData(now, entry.getValue()));
-                    }
-                });
+    protected Map<IpAddress, ViolationMetaData> getCurrentViolators(IpAddressCounter reqIdCounter, LogProcessorLambdaConfig params) {
+        Date now = Date.from(clock.instant());
+        Map<IpAddress, ViolationMetaData> violators = Maps.newHashMap();
+
+        // walk the primitive counts, no window can hold more than the total so only those ips need their peak
+        int limit = params.getRequestPerIntervalLimit();
+        int windowInMins = params.getRateLimitWindowInMins();
+        for (int ordinal = 0; ordinal < reqIdCounter.size(); ordinal++) {
+            if (reqIdCounter.getCount(ordinal) <= limit) {
+                continue;
+            }
+            int peak = reqIdCounter.getPeak(ordinal, windowInMins);
+            if (peak > limit) {
+                violators.put(reqIdCounter.getIpAddress(ordinal), new ViolationMetaData(now, peak));
+            }
+        }
+
+        return violators;
+    }
+
+    /**
+     * Like {@link #getCurrentViolators} for the rate limit rules, an ip violates a rule when its busiest window has
+     * more matching requests than the limit of the rule. An ip that violates several rules gets its highest rate.
+     *
+     * @param ruleCounter The request count per rule and ip
+     * @param rules The rules the counter was counted with
+     * @return a map of ip addresses to violation meta data, containing ips that violated a rate limit rule
+     */
+    Map<IpAddress, ViolationMetaData> getCurrentRuleViolators(RuleIpCounter ruleCounter, RateLimitRules rules,
+                                                             LogProcessorLambdaConfig params) {
+        Date now = Date.from(clock.instant());
+        Map<IpAddress, ViolationMetaData> violators = Maps.newHashMap();
+
+        int windowInMins = params.getRateLimitWindowInMins();
+        for (int ordinal = 0; ordinal < ruleCounter.size(); ordinal++) {
+            RateLimitRule rule = rules.get(ruleCounter.getRule(ordinal));
+            if (ruleCounter.getCount(ordinal) <= rule.getLimit()) {
+                continue;
+            }
+            int peak = ruleCounter.getPeak(ordinal, windowInMins);
+            if (peak > rule.getLimit()) {
+                IpAddress ip = ruleCounter.getIpAddress(ordinal);
+                log.info(String.format("%s violated rate limit rule %s with %s requests", ip, rule, peak));
+                violators.merge(ip, new ViolationMetaData(now, peak), RateLimitingProcessor::higherRate);
+            }
+        }
 
         return violators;
     }
 
+    private static ViolationMetaData higherRate(ViolationMetaData a, ViolationMetaData b) {
+        return a.getMaxRate() >= b.getMaxRate() ? a : b;
+    }
+
     /**
      * Goes through the white and black lists to check if an ip address from the access logs is a
      * valid candidate to add to the auto blacklist.
      *
-     * @param doNotAutoBlockIpRangeSet The Ip Range Set of ips we do not want to black list
-     * @param ipFromAccessLog The IP Address we are considering to automatically black list
-     * @return A boolean of whether or not this processor should black list the ip.
-     */
-    protected boolean canAddToAutoBlackList(RangeSet<Integer> doNotAutoBlockIpRangeSet, String ipFromAccessLog) {
-        SubnetUtils subnetUtils = new SubnetUtils(ipFromAccessLog, NETMASK_FOR_SINGLE_IP);
-        Integer ipAsInteger = subnetUtils.getInfo().asInteger(ipFromAccessLog);
-        return ! doNotAutoBlockIpRangeSet.contains(ipAsInteger);
+     * @param doNotAutoBlockIpRangeIndex The Ip Range Index of ips we do not want to black list
+     * @param blockFromAccessLog The block of the IP Address we are considering to automatically black list
+     * @return A boolean of whether or not this processor should black list the block, it must not overlap the lists.
+     */
+    protected boolean canAddToAutoBlackList(IpRangeIndex doNotAutoBlockIpRangeIndex, IpPrefix blockFromAccessLog) {
+        return ! doNotAutoBlockIpRangeIndex.intersects(blockFromAccessLog);
     }
 }
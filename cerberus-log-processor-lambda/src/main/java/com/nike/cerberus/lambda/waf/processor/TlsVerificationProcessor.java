@@ -1,8 +1,10 @@
 package com.nike.cerberus.lambda.waf.processor;
 
 import com.google.common.collect.Sets;
+import com.nike.cerberus.lambda.waf.ALBAccessLogBatch;
 import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
 import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
+import com.nike.cerberus.lambda.waf.StringDictionary;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
@@ -16,7 +18,7 @@ import static org.apache.commons.lang3.StringUtils.trimToEmpty;
 /**
  * For tracking down clients that are not using TLS1.2
  */
-public class TlsVerificationProcessor implements Processor {
+public class TlsVerificationProcessor implements BatchProcessor {
 
     private static final String TLS_1_2 = "TLSv1.2";
     private static final String NON_TLS = "-";
@@ -34,20 +36,35 @@ public class TlsVerificationProcessor implements Processor {
     private final Logger log = Logger.getLogger(getClass());
 
     @Override
-    public void processLogEvents(List<ALBAccessLogEvent> events, LogProcessorLambdaConfig config, String bucketName) {
+    public void processLogBatch(ALBAccessLogBatch batch, LogProcessorLambdaConfig config, String bucketName) {
+        // decide once per distinct protocol, then only scan the code column
+        boolean[] acceptableProtocols = matches(batch.getSslProtocols(), ACCEPTABLE_TLS_VERSIONS);
+
         List<ALBAccessLogEvent> nonAcceptableEvents = new LinkedList<>();
-        events.forEach(event -> {
-            if (!ACCEPTABLE_TLS_VERSIONS.contains(event.getSslProtocol())
-                    && !SUPPRESSED_PATHS.contains(event.getRequestUri())) {
+        for (int row = 0; row < batch.size(); row++) {
+            if (acceptableProtocols[batch.getSslProtocolCode(row)]) {
+                continue;
+            }
+            // only the few rows with an old protocol get their path split out
+            ALBAccessLogEvent event = batch.getEvent(row);
+            if (!SUPPRESSED_PATHS.contains(event.getRequestUri())) {
                 nonAcceptableEvents.add(event);
             }
-        });
+        }
 
         if (nonAcceptableEvents.isEmpty()) {
             log.info("No requests found with TLS versions not in acceptable version list");
             return;
         }
 
+        reportNonAcceptableEvents(nonAcceptableEvents, config);
+    }
+
+    /**
+     * Logs the requests that did not use an acceptable TLS version and sends them to slack when enabled
+     */
+    protected void reportNonAcceptableEvents(List<ALBAccessLogEvent> nonAcceptableEvents, LogProcessorLambdaConfig config) {
+
         StringBuilder sb = new StringBuilder("Cloud Front Log Event Handler - TLS Verification Processor run summary");
         sb.append('\n').append("Running Environment: ").append(config.getEnv()).append('\n');
         sb.append('\n').append("Ignoring Paths: " + SUPPRESSED_PATHS).append('\n');
@@ -66,4 +83,12 @@ public class TlsVerificationProcessor implements Processor {
 
         log.info(msg);
     }
+
+    private static boolean[] matches(StringDictionary dictionary, Set<String> values) {
+        boolean[] matches = new boolean[dictionary.size()];
+        for (int code = 0; code < matches.length; code++) {
+            matches[code] = values.contains(dictionary.decode(code));
+        }
+        return matches;
+    }
 }
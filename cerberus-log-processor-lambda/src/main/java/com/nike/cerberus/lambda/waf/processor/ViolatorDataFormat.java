@@ -0,0 +1,272 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ViolationMetaData;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The binary form of the violators data the processors keep between runs, a few bytes per violator instead of a JSON
+ * object with the ip as a String.
+ *
+ * The data starts with the magic "CVD", a version byte and a flags byte (1 when the rest is gzipped), then holds the
+ * IPv4 violators followed by the IPv6 violators, each family as a varint count and its violators sorted by address:
+ * - the address, an int for IPv4 and two longs for IPv6,
+ * - the minute of the violation since the epoch as an int,
+ * - the max rate as a varint,
+ * - the escalated block duration in minutes as a varint, 0 for the configured one.
+ * Dates are kept to the minute, which is what the block durations are counted in.
+ *
+ * Reading streams the entries into primitive arrays, the legacy JSON data is told apart by its missing magic.
+ */
+final class ViolatorDataFormat {
+
+    static final int VERSION = 1;
+
+    private static final byte[] MAGIC = {'C', 'V', 'D'};
+
+    private static final int FLAG_GZIP = 1;
+
+    // smaller data does not gain enough from gzip to pay for its header
+    private static final int GZIP_THRESHOLD_IN_BYTES = 1024;
+
+    // a corrupt count must not allocate a huge array up front
+    private static final int MAX_INITIAL_CAPACITY = 1 << 16;
+
+    private ViolatorDataFormat() {
+    }
+
+    /**
+     * @return the violators in the binary form, gzipped once they are large enough for it to pay off
+     */
+    static byte[] write(Map<IpAddress, ViolationMetaData> violators) throws IOException {
+        List<IpAddress> ipv4s = new ArrayList<>();
+        List<IpAddress> ipv6s = new ArrayList<>();
+        violators.keySet().forEach(ip -> (ip.isIpv4() ? ipv4s : ipv6s).add(ip));
+        Collections.sort(ipv4s);
+        Collections.sort(ipv6s);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        writeVarint(out, ipv4s.size());
+        for (IpAddress ip : ipv4s) {
+            out.writeInt(ip.getIpv4());
+            writeMetaData(out, violators.get(ip));
+        }
+        writeVarint(out, ipv6s.size());
+        for (IpAddress ip : ipv6s) {
+            out.writeLong(ip.getHigh());
+            out.writeLong(ip.getLow());
+            writeMetaData(out, violators.get(ip));
+        }
+        out.flush();
+
+        boolean gzip = body.size() > GZIP_THRESHOLD_IN_BYTES;
+        ByteArrayOutputStream data = new ByteArrayOutputStream(body.size() + MAGIC.length + 2);
+        data.write(MAGIC);
+        data.write(VERSION);
+        data.write(gzip ? FLAG_GZIP : 0);
+        if (gzip) {
+            try (OutputStream compressed = new GZIPOutputStream(data)) {
+                body.writeTo(compressed);
+            }
+        } else {
+            body.writeTo(data);
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Checks for the magic without consuming it, the stream has to support mark and reset
+     *
+     * @return true if the data is in the binary form, false for the legacy JSON
+     */
+    static boolean isBinary(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (in.read() != b) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Reads the binary form, the stream is left at the end of the data
+     *
+     * @throws IOException if the data is not in a known version of the format or is cut short
+     */
+    static ViolatorData read(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        header.readFully(magic);
+        if (! Arrays.equals(magic, MAGIC)) {
+            throw new IOException("The data is not in the binary violators format");
+        }
+        int version = header.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown violators data format version " + version);
+        }
+        int flags = header.readUnsignedByte();
+        DataInputStream body = (flags & FLAG_GZIP) != 0 ?
+                new DataInputStream(new BufferedInputStream(new GZIPInputStream(in))) : header;
+
+        ViolatorData data = new ViolatorData();
+        int ipv4Count = readCount(body);
+        data.ipv4s = new int[Math.min(ipv4Count, MAX_INITIAL_CAPACITY)];
+        data.ipv4Entries = new Entries(data.ipv4s.length);
+        for (int i = 0; i < ipv4Count; i++) {
+            if (i == data.ipv4s.length) {
+                data.ipv4s = Arrays.copyOf(data.ipv4s, data.ipv4s.length * 2);
+            }
+            data.ipv4s[i] = body.readInt();
+            data.ipv4Entries.read(body, i);
+        }
+        int ipv6Count = readCount(body);
+        data.ipv6Highs = new long[Math.min(ipv6Count, MAX_INITIAL_CAPACITY)];
+        data.ipv6Lows = new long[data.ipv6Highs.length];
+        data.ipv6Entries = new Entries(data.ipv6Highs.length);
+        for (int i = 0; i < ipv6Count; i++) {
+            if (i == data.ipv6Highs.length) {
+                data.ipv6Highs = Arrays.copyOf(data.ipv6Highs, data.ipv6Highs.length * 2);
+                data.ipv6Lows = Arrays.copyOf(data.ipv6Lows, data.ipv6Highs.length);
+            }
+            data.ipv6Highs[i] = body.readLong();
+            data.ipv6Lows[i] = body.readLong();
+            data.ipv6Entries.read(body, i);
+        }
+        data.ipv4Size = ipv4Count;
+        data.ipv6Size = ipv6Count;
+        return data;
+    }
+
+    private static void writeMetaData(DataOutputStream out, ViolationMetaData metaData) throws IOException {
+        out.writeInt((int) TimeUnit.MILLISECONDS.toMinutes(metaData.getDate().getTime()));
+        writeVarint(out, metaData.getMaxRate());
+        Integer duration = metaData.getBlockDurationInMinutes();
+        writeVarint(out, duration == null ? 0 : duration);
+    }
+
+    // 7 bits at a time, low bits first, an int never takes more than 5 bytes
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in the violators data");
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = readVarint(in);
+        if (count < 0) {
+            throw new IOException("Negative violator count " + count + " in the violators data");
+        }
+        return count;
+    }
+
+    /**
+     * The minutes, rates and durations of one family, indexed like its addresses
+     */
+    private static final class Entries {
+
+        private int[] minutes;
+
+        private int[] rates;
+
+        private int[] durations;
+
+        Entries(int capacity) {
+            minutes = new int[capacity];
+            rates = new int[capacity];
+            durations = new int[capacity];
+        }
+
+        void read(DataInputStream in, int index) throws IOException {
+            if (index == minutes.length) {
+                int capacity = Math.max(minutes.length * 2, 8);
+                minutes = Arrays.copyOf(minutes, capacity);
+                rates = Arrays.copyOf(rates, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+            }
+            minutes[index] = in.readInt();
+            rates[index] = readVarint(in);
+            durations[index] = readVarint(in);
+        }
+
+        ViolationMetaData toMetaData(int index) {
+            ViolationMetaData metaData = new ViolationMetaData(
+                    new Date(TimeUnit.MINUTES.toMillis(minutes[index])), rates[index]);
+            if (durations[index] != 0) {
+                metaData.setBlockDurationInMinutes(durations[index]);
+            }
+            return metaData;
+        }
+    }
+
+    /**
+     * The decoded violators, held in primitive arrays until they are needed as a map
+     */
+    static final class ViolatorData {
+
+        private int[] ipv4s;
+
+        private long[] ipv6Highs;
+
+        private long[] ipv6Lows;
+
+        private Entries ipv4Entries;
+
+        private Entries ipv6Entries;
+
+        private int ipv4Size;
+
+        private int ipv6Size;
+
+        int size() {
+            return ipv4Size + ipv6Size;
+        }
+
+        Map<IpAddress, ViolationMetaData> toMap() {
+            Map<IpAddress, ViolationMetaData> violators = new HashMap<>(size() * 2);
+            for (int i = 0; i < ipv4Size; i++) {
+                violators.put(IpAddress.ofIpv4(ipv4s[i]), ipv4Entries.toMetaData(i));
+            }
+            for (int i = 0; i < ipv6Size; i++) {
+                violators.put(IpAddress.ofIpv6(ipv6Highs[i], ipv6Lows[i]), ipv6Entries.toMetaData(i));
+            }
+            return violators;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.nike.cerberus.lambda.waf.retry;
+
+/**
+ * How a {@link Retryer} treats an error
+ */
+public enum ErrorClassification {
+
+    /**
+     * The service asked us to slow down, retried after the longer throttled backoff
+     */
+    THROTTLING,
+
+    /**
+     * A failure that may go away on its own (e.g. a 5xx or a dropped connection), retried after the normal backoff
+     */
+    TRANSIENT,
+
+    /**
+     * Retrying will not help (e.g. a missing resource or a bad request), fails the call right away
+     */
+    FATAL
+}
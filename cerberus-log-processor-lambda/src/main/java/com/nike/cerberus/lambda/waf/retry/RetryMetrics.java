@@ -0,0 +1,90 @@
+package com.nike.cerberus.lambda.waf.retry;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per operation counts of the attempts a {@link Retryer} made and the time it spent waiting between them, safe to
+ * update from several threads
+ */
+public class RetryMetrics {
+
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+
+    Operation get(String operation) {
+        return operations.computeIfAbsent(operation, name -> new Operation());
+    }
+
+    public long getCalls(String operation) {
+        return get(operation).calls.sum();
+    }
+
+    public long getAttempts(String operation) {
+        return get(operation).attempts.sum();
+    }
+
+    /**
+     * @return how often a polled call was not done yet, these are not counted as attempts
+     */
+    public long getPolls(String operation) {
+        return get(operation).polls.sum();
+    }
+
+    public long getThrottled(String operation) {
+        return get(operation).throttled.sum();
+    }
+
+    public long getFailures(String operation) {
+        return get(operation).failures.sum();
+    }
+
+    public long getWaitedInMillis(String operation) {
+        return get(operation).waitedInMillis.sum();
+    }
+
+    /**
+     * @return true if any operation needed more than one attempt or failed
+     */
+    public boolean hasRetriesOrFailures() {
+        return operations.values().stream().anyMatch(operation ->
+                operation.attempts.sum() > operation.calls.sum() || operation.failures.sum() > 0);
+    }
+
+    public void reset() {
+        operations.clear();
+    }
+
+    /**
+     * @return one line per operation, e.g.
+     * "waf.getIPSet: 3 calls, 5 attempts, 0 polls, 1 throttled, 0 failed, 740 ms waiting"
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        new TreeMap<>(operations).forEach((name, operation) -> builder.append(name).append(": ")
+                .append(operation.calls.sum()).append(" calls, ")
+                .append(operation.attempts.sum()).append(" attempts, ")
+                .append(operation.polls.sum()).append(" polls, ")
+                .append(operation.throttled.sum()).append(" throttled, ")
+                .append(operation.failures.sum()).append(" failed, ")
+                .append(operation.waitedInMillis.sum()).append(" ms waiting\n"));
+        return builder.toString();
+    }
+
+    static class Operation {
+
+        final LongAdder calls = new LongAdder();
+
+        final LongAdder attempts = new LongAdder();
+
+        final LongAdder polls = new LongAdder();
+
+        final LongAdder throttled = new LongAdder();
+
+        final LongAdder failures = new LongAdder();
+
+        final LongAdder waitedInMillis = new LongAdder();
+    }
+}
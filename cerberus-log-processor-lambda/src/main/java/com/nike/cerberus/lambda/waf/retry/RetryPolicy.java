@@ -0,0 +1,144 @@
+package com.nike.cerberus.lambda.waf.retry;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+
+import java.util.function.Function;
+
+/**
+ * How many times and how far apart a {@link Retryer} retries, and which errors it retries.
+ *
+ * The delay before retry n (counting from 0) is drawn uniformly from 0 to min(maxDelay, baseDelay * 2^n), the "full
+ * jitter" backoff, so that callers that failed together do not retry together.
+ */
+public final class RetryPolicy {
+
+    private final int maxAttempts;
+
+    private final long baseDelayInMillis;
+
+    private final long throttledBaseDelayInMillis;
+
+    private final long maxDelayInMillis;
+
+    private final Function<Throwable, ErrorClassification> classifier;
+
+    private RetryPolicy(Builder builder) {
+        maxAttempts = builder.maxAttempts;
+        baseDelayInMillis = builder.baseDelayInMillis;
+        throttledBaseDelayInMillis = builder.throttledBaseDelayInMillis;
+        maxDelayInMillis = builder.maxDelayInMillis;
+        classifier = builder.classifier;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the policy for AWS SDK calls, up to 10 attempts starting at 100 ms (500 ms when throttled) and capped
+     * at 5 seconds
+     */
+    public static RetryPolicy aws() {
+        return builder().build();
+    }
+
+    /**
+     * Throttling and the errors the AWS SDK itself considers retryable (5xx, clock skew, I/O failures) are retried,
+     * every other AWS error and anything that is not an AWS error is fatal.
+     */
+    public static ErrorClassification classifyAwsError(Throwable error) {
+        if (error instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) error;
+            if (RetryUtils.isThrottlingException(serviceException)) {
+                return ErrorClassification.THROTTLING;
+            }
+            if (RetryUtils.isRetryableServiceException(serviceException)
+                    || RetryUtils.isClockSkewError(serviceException)) {
+                return ErrorClassification.TRANSIENT;
+            }
+            return ErrorClassification.FATAL;
+        }
+        if (error instanceof AmazonClientException && ((AmazonClientException) error).isRetryable()) {
+            return ErrorClassification.TRANSIENT;
+        }
+        return ErrorClassification.FATAL;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public ErrorClassification classify(Throwable error) {
+        return classifier.apply(error);
+    }
+
+    /**
+     * @param retry The number of retries so far
+     * @param random A uniform random number in [0, 1)
+     * @return the delay before the next attempt
+     */
+    long getDelayInMillis(ErrorClassification classification, int retry, double random) {
+        long base = classification == ErrorClassification.THROTTLING ? throttledBaseDelayInMillis : baseDelayInMillis;
+        // base * 2^retry without overflowing
+        long ceiling = retry >= 62 || base > maxDelayInMillis >> Math.min(retry, 62)
+                ? maxDelayInMillis
+                : Math.min(maxDelayInMillis, base << retry);
+        return (long) (random * ceiling);
+    }
+
+    public static class Builder {
+
+        private int maxAttempts = 10;
+
+        private long baseDelayInMillis = 100;
+
+        private long throttledBaseDelayInMillis = 500;
+
+        private long maxDelayInMillis = 5000;
+
+        private Function<Throwable, ErrorClassification> classifier = RetryPolicy::classifyAwsError;
+
+        private Builder() {
+        }
+
+        /**
+         * @param maxAttempts The most attempts including the first one, 1 turns retrying off
+         */
+        public Builder maxAttempts(int maxAttempts) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be at least 1, not " + maxAttempts);
+            }
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder baseDelayInMillis(long baseDelayInMillis) {
+            this.baseDelayInMillis = baseDelayInMillis;
+            return this;
+        }
+
+        public Builder throttledBaseDelayInMillis(long throttledBaseDelayInMillis) {
+            this.throttledBaseDelayInMillis = throttledBaseDelayInMillis;
+            return this;
+        }
+
+        public Builder maxDelayInMillis(long maxDelayInMillis) {
+            this.maxDelayInMillis = maxDelayInMillis;
+            return this;
+        }
+
+        public Builder classifier(Function<Throwable, ErrorClassification> classifier) {
+            this.classifier = classifier;
+            return this;
+        }
+
+        public RetryPolicy build() {
+            if (baseDelayInMillis < 0 || throttledBaseDelayInMillis < 0 || maxDelayInMillis < 0) {
+                throw new IllegalArgumentException("Delays can not be negative");
+            }
+            return new RetryPolicy(this);
+        }
+    }
+}
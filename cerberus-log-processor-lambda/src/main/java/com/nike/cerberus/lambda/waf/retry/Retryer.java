@@ -0,0 +1,155 @@
+package com.nike.cerberus.lambda.waf.retry;
+
+import org.apache.log4j.Logger;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Calls an operation until it succeeds, backing off exponentially with full jitter between attempts.
+ *
+ * Fatal errors fail the call right away. Retries stop once the policy's attempts run out, or once waiting for the
+ * next attempt would not fit in the remaining time budget, e.g. the time the Lambda has left, so that a throttled
+ * call fails with its real error instead of running into the Lambda timeout.
+ */
+public class Retryer {
+
+    /**
+     * The budget when none is set
+     */
+    public static final LongSupplier UNLIMITED_BUDGET = () -> Long.MAX_VALUE;
+
+    private final Logger log = Logger.getLogger(getClass());
+
+    private final RetryPolicy policy;
+
+    private final RetryMetrics metrics;
+
+    private final AtomicReference<LongSupplier> remainingTimeInMillis;
+
+    private final Random random;
+
+    private final Sleeper sleeper;
+
+    public Retryer(RetryPolicy policy) {
+        this(policy, new Random(), Thread::sleep);
+    }
+
+    Retryer(RetryPolicy policy, Random random, Sleeper sleeper) {
+        this(policy, new RetryMetrics(), new AtomicReference<>(UNLIMITED_BUDGET), random, sleeper);
+    }
+
+    private Retryer(RetryPolicy policy, RetryMetrics metrics, AtomicReference<LongSupplier> remainingTimeInMillis,
+                    Random random, Sleeper sleeper) {
+        this.policy = policy;
+        this.metrics = metrics;
+        this.remainingTimeInMillis = remainingTimeInMillis;
+        this.random = random;
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * @return a retryer with another policy that shares the budget and the metrics of this one
+     */
+    public Retryer withPolicy(RetryPolicy policy) {
+        return new Retryer(policy, metrics, remainingTimeInMillis, random, sleeper);
+    }
+
+    /**
+     * @param remainingTimeInMillis The time left for the calls, e.g. Lambda Context::getRemainingTimeInMillis less
+     *                              what the rest of the invocation needs
+     */
+    public void setBudget(LongSupplier remainingTimeInMillis) {
+        this.remainingTimeInMillis.set(remainingTimeInMillis == null ? UNLIMITED_BUDGET : remainingTimeInMillis);
+    }
+
+    public RetryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param operation The name the metrics and logs use for the call
+     * @return the result of the first successful attempt
+     * @throws RuntimeException the last error, checked errors are wrapped
+     */
+    public <T> T call(String operation, Callable<T> callable) {
+        return callUntil(operation, callable, result -> true);
+    }
+
+    public void run(String operation, Runnable runnable) {
+        call(operation, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Polls until the result is done, a result that is not done yet is retried like a transient error. It is
+     * counted as a poll rather than an attempt, so a slow query does not show up as retries in the metrics.
+     *
+     * @throws IllegalStateException if the result is still not done when the attempts or the budget run out
+     */
+    public <T> T callUntil(String operation, Callable<T> callable, Predicate<T> done) {
+        RetryMetrics.Operation operationMetrics = metrics.get(operation);
+        operationMetrics.calls.increment();
+        for (int retry = 0; ; retry++) {
+            ErrorClassification classification;
+            RuntimeException error;
+            try {
+                T result = callable.call();
+                if (done.test(result)) {
+                    operationMetrics.attempts.increment();
+                    return result;
+                }
+                operationMetrics.polls.increment();
+                classification = ErrorClassification.TRANSIENT;
+                error = new IllegalStateException(String.format("%s was not done after %d attempts",
+                        operation, retry + 1));
+            } catch (Exception e) {
+                operationMetrics.attempts.increment();
+                classification = policy.classify(e);
+                error = e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+            }
+
+            if (classification == ErrorClassification.FATAL) {
+                operationMetrics.failures.increment();
+                throw error;
+            }
+            if (classification == ErrorClassification.THROTTLING) {
+                operationMetrics.throttled.increment();
+            }
+            if (retry + 1 >= policy.getMaxAttempts()) {
+                operationMetrics.failures.increment();
+                log.error(String.format("%s failed after %d attempts", operation, retry + 1));
+                throw error;
+            }
+            long delay = policy.getDelayInMillis(classification, retry, random.nextDouble());
+            if (delay >= remainingTimeInMillis.get().getAsLong()) {
+                operationMetrics.failures.increment();
+                log.error(String.format("%s failed after %d attempts, the time budget does not allow another one",
+                        operation, retry + 1));
+                throw error;
+            }
+            log.debug(String.format("%s attempt %d was %s, retrying in %d ms", operation, retry + 1,
+                    classification, delay));
+            sleep(delay);
+            operationMetrics.waitedInMillis.add(delay);
+        }
+    }
+
+    private void sleep(long delayInMillis) {
+        try {
+            sleeper.sleep(delayInMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to retry", e);
+        }
+    }
+
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+}
@@ -0,0 +1,120 @@
+package com.nike.cerberus.lambda.waf.replay;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Just enough of S3, kept in memory, for the processors to persist their state between runs and for the S3 log event
+ * source to list and download log files
+ */
+public class InMemoryS3 extends AbstractAmazonS3 {
+
+    /**
+     * The most keys S3 returns in one listing
+     */
+    public static final int MAX_KEYS_PER_LISTING = 1000;
+
+    // keyed by bucket/key, sorted so listings page through the keys in order like S3 does
+    private final TreeMap<String, byte[]> objects = new TreeMap<>();
+
+    private final int maxKeysPerListing;
+
+    public InMemoryS3() {
+        this(MAX_KEYS_PER_LISTING);
+    }
+
+    /**
+     * @param maxKeysPerListing How many keys a listing returns before it is truncated
+     */
+    public InMemoryS3(int maxKeysPerListing) {
+        this.maxKeysPerListing = maxKeysPerListing;
+    }
+
+    /**
+     * Stores the content gzipped, the way the ALB delivers its log files
+     */
+    public void putGzipped(String bucketName, String key, String content) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to gzip the object content", e);
+        }
+        objects.put(path(bucketName, key), bytes.toByteArray());
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        String bucketPath = path(request.getBucketName(), "");
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        String after = request.getContinuationToken() == null ? "" : request.getContinuationToken();
+        for (Map.Entry<String, byte[]> entry : objects.tailMap(bucketPath + after, false).entrySet()) {
+            if (! entry.getKey().startsWith(bucketPath)) {
+                break;
+            }
+            String key = entry.getKey().substring(bucketPath.length());
+            if (! key.startsWith(prefix)) {
+                continue;
+            }
+            if (result.getObjectSummaries().size() == maxKeysPerListing) {
+                result.setTruncated(true);
+                result.setNextContinuationToken(result.getObjectSummaries().get(maxKeysPerListing - 1).getKey());
+                break;
+            }
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(key);
+            summary.setSize(entry.getValue().length);
+            result.getObjectSummaries().add(summary);
+        }
+        result.setKeyCount(result.getObjectSummaries().size());
+        return result;
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request) {
+        byte[] bytes = objects.get(path(request.getBucketName(), request.getKey()));
+        if (bytes == null) {
+            AmazonS3Exception e = new AmazonS3Exception("The specified key does not exist.");
+            e.setErrorCode("NoSuchKey");
+            e.setStatusCode(404);
+            throw e;
+        }
+        S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        object.setObjectContent(new ByteArrayInputStream(bytes));
+        return object;
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+        try {
+            objects.put(path(request.getBucketName(), request.getKey()), IOUtils.toByteArray(request.getInputStream()));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the object content", e);
+        }
+        return new PutObjectResult();
+    }
+
+    private static String path(String bucketName, String key) {
+        return bucketName + "/" + key;
+    }
+}
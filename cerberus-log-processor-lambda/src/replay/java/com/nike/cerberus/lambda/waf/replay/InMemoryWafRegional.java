@@ -0,0 +1,71 @@
+package com.nike.cerberus.lambda.waf.replay;
+
+import com.amazonaws.services.waf.AbstractAWSWAFRegional;
+import com.amazonaws.services.waf.model.ChangeAction;
+import com.amazonaws.services.waf.model.GetChangeTokenRequest;
+import com.amazonaws.services.waf.model.GetChangeTokenResult;
+import com.amazonaws.services.waf.model.GetIPSetRequest;
+import com.amazonaws.services.waf.model.GetIPSetResult;
+import com.amazonaws.services.waf.model.IPSet;
+import com.amazonaws.services.waf.model.IPSetDescriptor;
+import com.amazonaws.services.waf.model.IPSetUpdate;
+import com.amazonaws.services.waf.model.UpdateIPSetRequest;
+import com.amazonaws.services.waf.model.UpdateIPSetResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Just enough of WAF Regional for the processors to read and update IP sets, kept in memory
+ */
+public class InMemoryWafRegional extends AbstractAWSWAFRegional {
+
+    private final Map<String, Set<IPSetDescriptor>> ipSets = new HashMap<>();
+
+    private int updateCount;
+
+    /**
+     * Adds a descriptor to an IP set, e.g. to seed the manual white and black lists
+     */
+    public void addDescriptor(String ipSetId, IPSetDescriptor descriptor) {
+        ipSets.computeIfAbsent(ipSetId, id -> new LinkedHashSet<>()).add(descriptor);
+    }
+
+    public Set<IPSetDescriptor> getDescriptors(String ipSetId) {
+        return ipSets.computeIfAbsent(ipSetId, id -> new LinkedHashSet<>());
+    }
+
+    public int getUpdateCount() {
+        return updateCount;
+    }
+
+    @Override
+    public GetChangeTokenResult getChangeToken(GetChangeTokenRequest request) {
+        return new GetChangeTokenResult().withChangeToken(UUID.randomUUID().toString());
+    }
+
+    @Override
+    public GetIPSetResult getIPSet(GetIPSetRequest request) {
+        return new GetIPSetResult().withIPSet(new IPSet()
+                .withIPSetId(request.getIPSetId())
+                .withIPSetDescriptors(new ArrayList<>(getDescriptors(request.getIPSetId()))));
+    }
+
+    @Override
+    public UpdateIPSetResult updateIPSet(UpdateIPSetRequest request) {
+        Set<IPSetDescriptor> descriptors = getDescriptors(request.getIPSetId());
+        for (IPSetUpdate update : request.getUpdates()) {
+            if (ChangeAction.INSERT.toString().equals(update.getAction())) {
+                descriptors.add(update.getIPSetDescriptor());
+            } else {
+                descriptors.remove(update.getIPSetDescriptor());
+            }
+        }
+        updateCount++;
+        return new UpdateIPSetResult().withChangeToken(request.getChangeToken());
+    }
+}
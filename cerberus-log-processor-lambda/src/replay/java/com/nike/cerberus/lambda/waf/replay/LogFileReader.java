@@ -0,0 +1,103 @@
+package com.nike.cerberus.lambda.waf.replay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the lines of a local ALB access log file.
+ *
+ * Decompressed files are memory mapped in windows of up to 1 GB and every line is handed out as a view over the
+ * mapping, so the log bytes never have to be copied onto the heap. Gzipped files (as the ALB delivers them) can't be
+ * mapped, they are streamed through a GZIPInputStream instead.
+ */
+public class LogFileReader {
+
+    private static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+    private final int windowSize;
+
+    public LogFileReader() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    public LogFileReader(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return the number of lines read
+     */
+    public long forEachLine(Path file, Consumer<CharSequence> consumer) throws IOException {
+        if (file.getFileName().toString().endsWith(".gz")) {
+            return forEachGzippedLine(file, consumer);
+        }
+        return forEachMappedLine(file, consumer);
+    }
+
+    private long forEachGzippedLine(Path file, Consumer<CharSequence> consumer) throws IOException {
+        long lines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                consumer.accept(line);
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private long forEachMappedLine(Path file, Consumer<CharSequence> consumer) throws IOException {
+        long lines = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(windowSize, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean lastWindow = position + length == size;
+
+                // only hand out complete lines, the rest is mapped again at the start of the next window
+                int end = length;
+                if (! lastWindow) {
+                    while (end > 0 && window.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException(String.format("Line longer than %d bytes in %s", windowSize, file));
+                    }
+                }
+
+                int lineStart = 0;
+                for (int i = 0; i < end; i++) {
+                    if (window.get(i) == '\n') {
+                        lines += emit(window, lineStart, i, consumer);
+                        lineStart = i + 1;
+                    }
+                }
+                if (lineStart < end) {
+                    lines += emit(window, lineStart, end, consumer);
+                }
+                position += end;
+            }
+        }
+        return lines;
+    }
+
+    private static int emit(MappedByteBuffer window, int start, int end, Consumer<CharSequence> consumer) {
+        if (end > start && window.get(end - 1) == '\r') {
+            end--;
+        }
+        consumer.accept(new ByteBufferCharSequence(window, start, end - start));
+        return 1;
+    }
+}
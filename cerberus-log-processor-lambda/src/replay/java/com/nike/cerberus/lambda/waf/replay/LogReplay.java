@@ -0,0 +1,388 @@
+package com.nike.cerberus.lambda.waf.replay;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.waf.model.IPSetDescriptor;
+import com.amazonaws.services.waf.model.IPSetDescriptorType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategies;
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.ALBAccessLogFieldParser;
+import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
+import com.nike.cerberus.lambda.waf.ParallelLogParser;
+import com.nike.cerberus.lambda.waf.S3LogEventSource;
+import com.nike.cerberus.lambda.waf.ip.IpPrefix;
+import com.nike.cerberus.lambda.waf.processor.RateLimitingProcessor;
+import com.nike.cerberus.lambda.waf.processor.TlsVerificationProcessor;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Replays archived ALB access logs through the RateLimitingProcessor and the TlsVerificationProcessor on a laptop,
+ * to backtest changes to the request per interval limit and the interval before rolling them out.
+ *
+ * The logs are cut into simulated scheduled runs (every 5 minutes by default), each run hands the processors the
+ * events of the interval leading up to it, exactly like the Lambda reads them from Athena. The processors run against
+ * in memory WAF and S3 fakes on a clock that follows the logs, so blocks expire like they would have in production.
+ *
+ * Log files are read in the order of the end time in their ALB file name, so a run is started as soon as all of the
+ * files that cover its interval have been read, and only the last interval worth of events is held in memory.
+ *
+ * Usage: ./gradlew cerberus-log-processor-lambda:replay -Pargs="--limit 300 --interval-mins 20 path/to/logs"
+ */
+public class LogReplay {
+
+    private static final String USAGE = "Usage: LogReplay [--limit requests] [--interval-mins minutes] [--window-mins minutes] " +
+            "[--blacklist-duration-mins minutes] [--tick-mins minutes] [--whitelist cidr,...] [--blacklist cidr,...] " +
+            "file-or-directory...";
+
+    private static final String MANUAL_WHITELIST_IP_SET_ID = "manual-whitelist";
+    private static final String MANUAL_BLACKLIST_IP_SET_ID = "manual-blacklist";
+    private static final String AUTO_BLACKLIST_IP_SET_ID = "rate-limit-auto-blacklist";
+    private static final String BUCKET_NAME = "replay";
+
+    private static final long MICROS_PER_MINUTE = TimeUnit.MINUTES.toMicros(1);
+
+    private final LogProcessorLambdaConfig config;
+    private final long tickInMicros;
+    private final long intervalInMicros;
+    private final PrintStream out;
+
+    private final ReplayClock clock = new ReplayClock();
+    private final InMemoryWafRegional waf = new InMemoryWafRegional();
+    private final ReplayRateLimitingProcessor rateLimitingProcessor;
+    private final ReplayTlsVerificationProcessor tlsVerificationProcessor = new ReplayTlsVerificationProcessor();
+    private final LogFileReader reader = new LogFileReader();
+    private final ParallelLogParser parser = new ParallelLogParser();
+
+    // the events that can still be part of an upcoming run's interval
+    private List<ALBAccessLogEvent> buffer = new ArrayList<>();
+    private long nextTickMicros = Long.MIN_VALUE;
+    private long lastEventMicros = Long.MIN_VALUE;
+
+    private final List<BlockChange> blockChanges = new LinkedList<>();
+    private final Map<String, Long> nonAcceptableTlsRequestsByProtocol = new TreeMap<>();
+    private long lines;
+    private long events;
+    private long ticks;
+    private long readNanos;
+    private long processNanos;
+
+    public LogReplay(LogProcessorLambdaConfig config, int tickInMinutes, PrintStream out) {
+        this.config = config;
+        this.tickInMicros = tickInMinutes * MICROS_PER_MINUTE;
+        this.intervalInMicros = config.getIntervalInMins() * MICROS_PER_MINUTE;
+        this.out = out;
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE);
+        rateLimitingProcessor = new ReplayRateLimitingProcessor(objectMapper, waf, new InMemoryS3());
+        rateLimitingProcessor.setClockOverride(clock);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int limit = 300;
+        int intervalInMins = 20;
+        int windowInMins = 0;
+        int blacklistDurationInMins = 60;
+        int tickInMins = 5;
+        List<String> whitelist = new LinkedList<>();
+        List<String> blacklist = new LinkedList<>();
+        List<Path> files = new LinkedList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--") && i + 1 == args.length) {
+                exitWithUsage("Missing value for " + arg);
+            }
+            switch (arg) {
+                case "--limit":
+                    limit = Integer.parseInt(args[++i]);
+                    break;
+                case "--interval-mins":
+                    intervalInMins = Integer.parseInt(args[++i]);
+                    break;
+                case "--window-mins":
+                    windowInMins = Integer.parseInt(args[++i]);
+                    break;
+                case "--blacklist-duration-mins":
+                    blacklistDurationInMins = Integer.parseInt(args[++i]);
+                    break;
+                case "--tick-mins":
+                    tickInMins = Integer.parseInt(args[++i]);
+                    break;
+                case "--whitelist":
+                    whitelist.addAll(Arrays.asList(args[++i].split(",")));
+                    break;
+                case "--blacklist":
+                    blacklist.addAll(Arrays.asList(args[++i].split(",")));
+                    break;
+                default:
+                    if (arg.startsWith("--")) {
+                        exitWithUsage("Unknown option " + arg);
+                    }
+                    files.addAll(listLogFiles(Paths.get(arg)));
+            }
+        }
+        if (files.isEmpty()) {
+            exitWithUsage("No log files given");
+        }
+
+        LogProcessorLambdaConfig config = new LogProcessorLambdaConfig("replay", MANUAL_WHITELIST_IP_SET_ID,
+                MANUAL_BLACKLIST_IP_SET_ID, AUTO_BLACKLIST_IP_SET_ID, blacklistDurationInMins, limit, intervalInMins,
+                null, null, null, null, null, BUCKET_NAME, "arn:aws:iam::000000000000:role/replay", Regions.US_WEST_2);
+        config.setRateLimitWindowInMins(windowInMins);
+
+        LogReplay replay = new LogReplay(config, tickInMins, System.out);
+        whitelist.forEach(cidr -> replay.addToManualIpSet(MANUAL_WHITELIST_IP_SET_ID, cidr));
+        blacklist.forEach(cidr -> replay.addToManualIpSet(MANUAL_BLACKLIST_IP_SET_ID, cidr));
+        replay.replay(files);
+        replay.printReport();
+    }
+
+    private static void exitWithUsage(String message) {
+        System.err.println(message);
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+    /**
+     * @return the .log and .log.gz files in a directory tree, or the path itself if it is a file
+     */
+    private static List<Path> listLogFiles(Path path) throws IOException {
+        if (! Files.isDirectory(path)) {
+            return Collections.singletonList(path);
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(file -> file.toString().endsWith(".log") || file.toString().endsWith(".log.gz"))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Seeds the manual white or black list IP set, the replay never blocks IPs in them
+     */
+    public void addToManualIpSet(String ipSetId, String cidr) {
+        IpPrefix prefix = IpPrefix.parse(cidr);
+        waf.addDescriptor(ipSetId, new IPSetDescriptor()
+                .withType(prefix.isIpv4() ? IPSetDescriptorType.IPV4 : IPSetDescriptorType.IPV6)
+                .withValue(prefix.toCidr()));
+    }
+
+    /**
+     * Reads the log files in the order of their ALB file name end time and runs the processors every tick
+     */
+    public void replay(List<Path> files) throws IOException {
+        List<Path> orderedFiles = new ArrayList<>(files);
+        // files without an ALB file name are read up front, before any run
+        orderedFiles.sort(Comparator.comparing((Path file) -> getFileEndTimeInMicros(file))
+                .thenComparing(Path::toString));
+
+        for (Path file : orderedFiles) {
+            long fileEndMicros = getFileEndTimeInMicros(file);
+            if (fileEndMicros != Long.MIN_VALUE) {
+                // every file holding requests from before this file's 5 minutes has been read
+                runTicksUntil(fileEndMicros - TimeUnit.MINUTES.toMicros(5));
+            }
+            read(file);
+        }
+        if (lastEventMicros != Long.MIN_VALUE) {
+            runTicksUntil(lastEventMicros + tickInMicros);
+        }
+    }
+
+    private static long getFileEndTimeInMicros(Path file) {
+        DateTime endTime = S3LogEventSource.getFileEndTime(file.getFileName().toString());
+        return endTime == null ? Long.MIN_VALUE : endTime.getMillis() * 1000;
+    }
+
+    private void read(Path file) throws IOException {
+        long start = System.nanoTime();
+        List<CharSequence> fileLines = new ArrayList<>();
+        lines += reader.forEachLine(file, fileLines::add);
+        List<ALBAccessLogEvent> fileEvents = parser.parse(fileLines, line -> {
+            try {
+                ALBAccessLogEvent event = new ALBAccessLogEvent(line);
+                event.getTimeInEpochMicros();
+                return event;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        });
+        for (ALBAccessLogEvent event : fileEvents) {
+            long time = event.getTimeInEpochMicros();
+            if (time != ALBAccessLogFieldParser.INVALID_TIME) {
+                buffer.add(event);
+                lastEventMicros = Math.max(lastEventMicros, time);
+            }
+        }
+        events += fileEvents.size();
+        readNanos += System.nanoTime() - start;
+    }
+
+    private void runTicksUntil(long limitMicros) {
+        if (nextTickMicros == Long.MIN_VALUE) {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            // the first run is the first tick after the earliest event
+            long earliest = buffer.stream().mapToLong(ALBAccessLogEvent::getTimeInEpochMicros).min().getAsLong();
+            nextTickMicros = Math.floorDiv(earliest, tickInMicros) * tickInMicros + tickInMicros;
+        }
+        while (nextTickMicros <= limitMicros) {
+            runTick(nextTickMicros);
+            nextTickMicros += tickInMicros;
+        }
+    }
+
+    /**
+     * Runs the processors like the scheduled Lambda would have at the given time
+     */
+    private void runTick(long tickMicros) {
+        long start = System.nanoTime();
+        long intervalStart = tickMicros - intervalInMicros;
+        List<ALBAccessLogEvent> interval = new ArrayList<>();
+        List<ALBAccessLogEvent> remaining = new ArrayList<>();
+        for (ALBAccessLogEvent event : buffer) {
+            long time = event.getTimeInEpochMicros();
+            if (time >= intervalStart && time < tickMicros) {
+                interval.add(event);
+            }
+            // the next run's interval starts one tick later
+            if (time >= intervalStart + tickInMicros) {
+                remaining.add(event);
+            }
+        }
+        buffer = remaining;
+
+        Instant now = Instant.ofEpochMilli(Math.floorDiv(tickMicros, 1000));
+        clock.setInstant(now);
+        rateLimitingProcessor.setTickTime(now);
+        rateLimitingProcessor.processLogEvents(interval, config, BUCKET_NAME);
+        tlsVerificationProcessor.processLogEvents(interval, config, BUCKET_NAME);
+        ticks++;
+        processNanos += System.nanoTime() - start;
+    }
+
+    public void printReport() {
+        out.println("Rate limit: " + config.getRequestPerIntervalLimit() + " requests per " +
+                config.getRateLimitWindowInMins() + " minutes within " + config.getIntervalInMins() +
+                " minute intervals, blocks last " + config.getBlacklistDurationInMinutes() + " minutes");
+        out.println();
+        if (blockChanges.isEmpty()) {
+            out.println("No IPs would have been blocked");
+        }
+        blockChanges.forEach(change -> out.println(change));
+        out.println();
+        out.println("Requests without an acceptable TLS version by protocol: " + nonAcceptableTlsRequestsByProtocol);
+        out.println();
+        double readSeconds = readNanos / 1e9;
+        double totalSeconds = (readNanos + processNanos) / 1e9;
+        out.println(String.format("Read %d lines (%d events) in %.2fs, %.0f lines/sec", lines, events, readSeconds,
+                lines / Math.max(readSeconds, 1e-9)));
+        out.println(String.format("Replayed %d scheduled runs in %.2fs total, %.0f lines/sec end to end", ticks,
+                totalSeconds, lines / Math.max(totalSeconds, 1e-9)));
+    }
+
+    public List<BlockChange> getBlockChanges() {
+        return blockChanges;
+    }
+
+    public Map<String, Long> getNonAcceptableTlsRequestsByProtocol() {
+        return nonAcceptableTlsRequestsByProtocol;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * An IP that a scheduled run added to or removed from the auto block list
+     */
+    public static class BlockChange {
+
+        private final Instant time;
+        private final String ip;
+        private final boolean blocked;
+
+        BlockChange(Instant time, String ip, boolean blocked) {
+            this.time = time;
+            this.ip = ip;
+            this.blocked = blocked;
+        }
+
+        public Instant getTime() {
+            return time;
+        }
+
+        public String getIp() {
+            return ip;
+        }
+
+        public boolean isBlocked() {
+            return blocked;
+        }
+
+        @Override
+        public String toString() {
+            return time + (blocked ? " BLOCKED   " : " UNBLOCKED ") + ip;
+        }
+    }
+
+    /**
+     * Records the changes to the auto block list instead of logging them, which would also look up the hostname of
+     * every blocked ip
+     */
+    private class ReplayRateLimitingProcessor extends RateLimitingProcessor {
+
+        private Instant tickTime;
+
+        ReplayRateLimitingProcessor(ObjectMapper objectMapper, InMemoryWafRegional waf, InMemoryS3 s3) {
+            super(objectMapper, waf, s3);
+        }
+
+        void setTickTime(Instant tickTime) {
+            this.tickTime = tickTime;
+        }
+
+        @Override
+        protected void logSummary(Map<String, List<String>> summary, LogProcessorLambdaConfig config) {
+            summary.get("added").stream().sorted().forEach(ip -> blockChanges.add(new BlockChange(tickTime, ip, true)));
+            summary.get("removed").stream().sorted().forEach(ip -> blockChanges.add(new BlockChange(tickTime, ip, false)));
+        }
+    }
+
+    /**
+     * Counts the requests without an acceptable TLS version instead of logging every one of them
+     */
+    private class ReplayTlsVerificationProcessor extends TlsVerificationProcessor {
+
+        @Override
+        protected void reportNonAcceptableEvents(List<ALBAccessLogEvent> nonAcceptableEvents,
+                                                 LogProcessorLambdaConfig config) {
+            nonAcceptableEvents.forEach(event ->
+                    nonAcceptableTlsRequestsByProtocol.merge(event.getSslProtocol(), 1L, Long::sum));
+        }
+    }
+}
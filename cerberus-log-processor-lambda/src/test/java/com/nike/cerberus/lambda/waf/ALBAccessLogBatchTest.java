@@ -0,0 +1,59 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ALBAccessLogBatchTest {
+
+    @Test
+    public void test_that_events_are_laid_out_in_columns() {
+        List<ALBAccessLogEvent> events = Arrays.asList(
+                new ALBAccessLogEvent(line("50.39.100.194", "301", "TLSv1.2", "/dashboard")),
+                new ALBAccessLogEvent(line("1.1.1.1", "200", "TLSv1", "/v2/auth/user")),
+                new ALBAccessLogEvent(line("1.1.1.1", "-", "TLSv1.2", "/dashboard")));
+
+        ALBAccessLogBatch batch = ALBAccessLogBatch.fromEvents(events);
+
+        assertEquals(3, batch.size());
+        assertEquals(events.get(0).getTimeInEpochMicros(), batch.getTimeInEpochMicros(0));
+        assertEquals((50 << 24) | (39 << 16) | (100 << 8) | 194, batch.getClientIpv4(0));
+        assertEquals("1.1.1.1", batch.getClientIp(1));
+        assertEquals(301, batch.getLoadBalancerStatusCode(0));
+        assertEquals(-1, batch.getLoadBalancerStatusCode(2));
+
+        assertEquals(2, batch.getSslProtocols().size());
+        assertEquals(batch.getSslProtocolCode(0), batch.getSslProtocolCode(2));
+        assertEquals("TLSv1", batch.getSslProtocols().decode(batch.getSslProtocolCode(1)));
+        assertEquals(events.get(1), batch.getEvent(1));
+    }
+
+    @Test
+    public void test_that_clients_that_are_not_ipv4_fall_back_to_the_dictionary() {
+        ALBAccessLogBatch batch = ALBAccessLogBatch.fromEvents(Arrays.asList(
+                new ALBAccessLogEvent(line("1.1.1.1", "200", "TLSv1.2", "/")),
+                new ALBAccessLogEvent(line("2600:1f14:abc::12", "200", "TLSv1.2", "/")),
+                new ALBAccessLogEvent(line("2.2.2.2", "200", "TLSv1.2", "/"))));
+
+        assertTrue(batch.isClientIpv4(0));
+        assertFalse(batch.isClientIpv4(1));
+        assertTrue(batch.isClientIpv4(2));
+        assertEquals(ALBAccessLogBatch.NO_IPV4, batch.getClientIpv4(1));
+        assertEquals("2600:1f14:abc::12", batch.getClientIp(1));
+        assertEquals("2.2.2.2", batch.getClientIp(2));
+    }
+
+    @Test
+    public void test_that_a_null_event_list_is_an_empty_batch() {
+        assertEquals(0, ALBAccessLogBatch.fromEvents(null).size());
+    }
+
+    private static String line(String ip, String status, String protocol, String uri) {
+        return AccessLogLine.line().from(ip).status(status, "301").request("GET", uri).sslProtocol(protocol).toString();
+    }
+}
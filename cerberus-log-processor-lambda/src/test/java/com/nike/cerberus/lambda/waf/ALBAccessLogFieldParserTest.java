@@ -0,0 +1,99 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ALBAccessLogFieldParserTest {
+
+    @Test
+    public void test_that_timestamps_match_joda() {
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            long millis = (long) (random.nextDouble() * 4102444800000L);
+            int extraMicros = random.nextInt(1000);
+            String timestamp = new DateTime(millis, DateTimeZone.UTC).toString("yyyy-MM-dd'T'HH:mm:ss.SSS")
+                    + String.format("%03d", extraMicros) + "Z";
+
+            assertEquals(timestamp, millis * 1000 + extraMicros,
+                    ALBAccessLogFieldParser.parseIso8601EpochMicros(timestamp, 0, timestamp.length()));
+            assertEquals(timestamp, DateTime.parse(timestamp).getMillis(),
+                    ALBAccessLogFieldParser.parseIso8601EpochMicros(timestamp, 0, timestamp.length()) / 1000);
+        }
+    }
+
+    @Test
+    public void test_that_timestamps_with_offsets_and_without_fractions_are_parsed() {
+        String withOffset = "2017-10-02T19:48:24.305+02:00";
+        String withoutFraction = "2017-10-02T17:48:24Z";
+
+        assertEquals(DateTime.parse(withOffset).getMillis() * 1000,
+                ALBAccessLogFieldParser.parseIso8601EpochMicros(withOffset, 0, withOffset.length()));
+        assertEquals(DateTime.parse(withoutFraction).getMillis() * 1000,
+                ALBAccessLogFieldParser.parseIso8601EpochMicros(withoutFraction, 0, withoutFraction.length()));
+    }
+
+    @Test
+    public void test_that_invalid_timestamps_are_rejected() {
+        for (String invalid : new String[] {"", "-", "2017-10-02", "2017-13-02T17:48:24.305799Z",
+                "2017-02-30T17:48:24.305799Z", "2017-10-02T17:48:24.Z", "2017-10-02 17:48:24.305799Z"}) {
+            assertEquals(invalid, ALBAccessLogFieldParser.INVALID_TIME,
+                    ALBAccessLogFieldParser.parseIso8601EpochMicros(invalid, 0, invalid.length()));
+        }
+    }
+
+    @Test
+    public void test_that_decimals_match_double_parse_double() {
+        Random random = new Random(11);
+        for (int i = 0; i < 100000; i++) {
+            String value = String.format("%d.%0" + (1 + random.nextInt(6)) + "d",
+                    random.nextInt(100), random.nextInt(1000000) % 1000);
+            assertEquals(value, Double.parseDouble(value),
+                    ALBAccessLogFieldParser.parseDecimal(value, 0, value.length(), -1), 0);
+        }
+        assertEquals(-1, ALBAccessLogFieldParser.parseDecimal("-1", 0, 2, -2), 0);
+        assertEquals(-2, ALBAccessLogFieldParser.parseDecimal("-", 0, 1, -2), 0);
+        assertEquals(-2, ALBAccessLogFieldParser.parseDecimal("1.2.3", 0, 5, -2), 0);
+    }
+
+    @Test
+    public void test_that_whole_numbers_are_parsed() {
+        assertEquals(504, ALBAccessLogFieldParser.parseLong("504", 0, 3, -1));
+        assertEquals(-1, ALBAccessLogFieldParser.parseLong("-", 0, 1, -1));
+        assertEquals(-1, ALBAccessLogFieldParser.parseLong("", 0, 0, -1));
+        assertEquals(-1, ALBAccessLogFieldParser.parseLong("99999999999999999999", 0, 20, -1));
+        assertEquals(8443, ALBAccessLogFieldParser.parseLong("1.2.0.6:8443", 8, 12, -1));
+    }
+
+    @Test
+    public void test_that_request_url_split_matches_the_regex() {
+        String[] fragments = {"https", "://", "cerberus.oss.nike.com", ":", "443", "/", "dashboard", "?x=", "-", "8"};
+        Random random = new Random(3);
+        int[] parts = new int[3];
+        for (int i = 0; i < 100000; i++) {
+            StringBuilder builder = new StringBuilder();
+            int count = random.nextInt(12);
+            for (int j = 0; j < count; j++) {
+                builder.append(fragments[random.nextInt(fragments.length)]);
+            }
+            String url = builder.toString();
+
+            Matcher matcher = ALBAccessLogEvent.REQUEST_FIELD_PATTERN.matcher(url);
+            if (matcher.find()) {
+                assertEquals(url, true, ALBAccessLogFieldParser.splitRequestUrl(url, 0, url.length(), parts));
+                assertEquals(url, matcher.group("protocol"), url.substring(0, parts[0] - 3));
+                assertEquals(url, matcher.group("host"), url.substring(parts[0], parts[1] - 1));
+                assertEquals(url, matcher.group("port"), url.substring(parts[1], parts[2]));
+                assertEquals(url, matcher.group("uri"), url.substring(parts[2]));
+            } else {
+                assertFalse(url, ALBAccessLogFieldParser.splitRequestUrl(url, 0, url.length(), parts));
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ALBAccessLogLineTokenizerTest {
+
+    private static final int CORPUS_SIZE = 200000;
+
+    private static final String[] TYPES = {"h2", "https", "http", "ws", "wss", "-"};
+    private static final String[] CLIENTS = {"1.1.1.1:17454", "50.39.100.194:1", "2600:1f14:abc::12:443", "10.0.0.1:", "-:0"};
+    private static final String[] TARGETS = {"1.2.0.6:8443", "-", "10.1.2.3:80", "fe80::1:8443", "host-80"};
+    private static final String[] TIMES = {"0.015", "-1", "0.000", "12.5", ""};
+    private static final String[] STATUSES = {"200", "301", "-", "504", "", "-1"};
+    private static final String[] METHODS = {"GET", "POST", "-", "PUT", ""};
+    private static final String[] URLS = {
+            "https://cerberus.oss.nike.com:443/dashboard?x=y",
+            "https://cerberus.oss.nike.com:443/v2/auth/user",
+            "http://cerberus.oss.nike.com:80/redirect?to=https://evil.com:443/x",
+            "-",
+            "https://[2600:1f14::1]:443/"
+    };
+    private static final String[] VERSIONS = {"HTTP/2.0", "HTTP/1.1", "-", ""};
+    private static final String[] USER_AGENTS = {"\"User Agent stuff\"", "\"-\"", "\"\"", "\"curl/7.54.0\"",
+            "\"Mozilla/5.0 (Windows NT 10.0; Win64; x64)\""};
+    private static final String[] CIPHERS = {"ECDHE-RSA-AES128-GCM-SHA256", "-", "AES256-SHA"};
+    private static final String[] PROTOCOLS = {"TLSv1.2", "TLSv1", "-", ""};
+    private static final String[] TAILS = {
+            "\"Root=1-59d27be8-3ef5870d62321261398f1a8c\" \"cerberus.oss.nike.com\" \"arn:aws:iam::0000:server-certificate/group/cerb/env/cms_1111\"",
+            "\"Root=1-5b\" \"-\" \"-\" 0 2018-07-02T22:22:48.364000Z \"forward\" \"-\"",
+            "a b c",
+            "\"-\" \"-\" \"-\""
+    };
+    private static final String MUTATION_CHARS = " \"-:.aZ09\n\t";
+
+    @Test
+    public void test_that_tokenizer_splits_a_standard_line() {
+        String line = "h2 2017-10-02T17:48:24.305799Z app/name-balancer-aaa/bbb 1.1.1.1:17454 1.2.0.6:8443 0.015 " +
+                "0.002 0.000 301 301 242 116 \"GET https://cerberus.oss.nike.com:443/dashboard?x=y HTTP/2.0\" " +
+                "\"User Agent stuff\" ECDHE-RSA-AES128-GCM-SHA256 TLSv1.2 arn:aws:elasticloadbalancing:us-west-2:1:targetgroup/t/0 " +
+                "\"Root=1-59d27be8\" \"cerberus.oss.nike.com\" \"arn:aws:iam::0000:server-certificate/cms_1111\"";
+
+        int[] offsets = new int[ALBAccessLogLineTokenizer.OFFSETS_LENGTH];
+        assertTrue(ALBAccessLogLineTokenizer.tokenize(line, offsets));
+        assertEquals("1.1.1.1", field(line, offsets, 3));
+        assertEquals("17454", field(line, offsets, 4));
+        assertEquals("https://cerberus.oss.nike.com:443/dashboard?x=y", field(line, offsets, 15));
+        assertEquals("\"User Agent stuff\"", field(line, offsets, 17));
+        assertEquals("TLSv1.2", field(line, offsets, 19));
+    }
+
+    @Test
+    public void test_that_tokenizer_rejects_empty_and_truncated_lines() {
+        int[] offsets = new int[ALBAccessLogLineTokenizer.OFFSETS_LENGTH];
+        assertFalse(ALBAccessLogLineTokenizer.tokenize("", offsets));
+        assertFalse(ALBAccessLogLineTokenizer.tokenize(null, offsets));
+        assertFalse(ALBAccessLogLineTokenizer.tokenize("h2 2017-10-02T17:48:24.305799Z app/name", offsets));
+    }
+
+    @Test
+    public void test_that_tokenizer_matches_the_athena_regex_over_a_large_corpus() {
+        Random random = new Random(42);
+        int[] offsets = new int[ALBAccessLogLineTokenizer.OFFSETS_LENGTH];
+        int matched = 0;
+
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            String line = randomLine(random);
+            if (random.nextInt(3) == 0) {
+                line = mutate(random, line);
+            }
+
+            Matcher matcher = ALBAccessLogEvent.LOG_MATCH_PATTERN.matcher(line);
+            boolean regexMatches = matcher.matches();
+            assertEquals("Tokenizer disagrees with the regex on: " + line, regexMatches,
+                    ALBAccessLogLineTokenizer.tokenize(line, offsets));
+
+            if (regexMatches) {
+                matched++;
+                for (int field = 0; field < ALBAccessLogLineTokenizer.NUM_FIELDS; field++) {
+                    assertEquals("Field " + field + " differs for: " + line,
+                            matcher.group(field + 1), field(line, offsets, field));
+                }
+            }
+        }
+
+        assertTrue("The corpus should exercise both matching and non matching lines",
+                matched > CORPUS_SIZE / 4 && matched < CORPUS_SIZE);
+    }
+
+    private static String field(String line, int[] offsets, int field) {
+        return line.substring(offsets[2 * field], offsets[2 * field + 1]);
+    }
+
+    private static String randomLine(Random random) {
+        String request = random.nextInt(10) == 0
+                ? "\"- - - \""
+                : "\"" + pick(random, METHODS) + " " + pick(random, URLS) + " " + pick(random, VERSIONS) + "\"";
+        return pick(random, TYPES) + " 2017-10-02T17:48:24.305799Z app/name-balancer-aaa/bbb " +
+                pick(random, CLIENTS) + " " + pick(random, TARGETS) + " " +
+                pick(random, TIMES) + " " + pick(random, TIMES) + " " + pick(random, TIMES) + " " +
+                pick(random, STATUSES) + " " + pick(random, STATUSES) + " " +
+                random.nextInt(100000) + " " + random.nextInt(100000) + " " +
+                request + " " + pick(random, USER_AGENTS) + " " + pick(random, CIPHERS) + " " +
+                pick(random, PROTOCOLS) + " arn:aws:elasticloadbalancing:us-west-2:111111:targetgroup/name/00000 " +
+                pick(random, TAILS);
+    }
+
+    private static String mutate(Random random, String line) {
+        StringBuilder builder = new StringBuilder(line);
+        int mutations = 1 + random.nextInt(3);
+        for (int i = 0; i < mutations && builder.length() > 0; i++) {
+            int position = random.nextInt(builder.length());
+            switch (random.nextInt(3)) {
+                case 0:
+                    builder.deleteCharAt(position);
+                    break;
+                case 1:
+                    builder.insert(position, pick(random, MUTATION_CHARS));
+                    break;
+                default:
+                    builder.setCharAt(position, pick(random, MUTATION_CHARS));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static char pick(Random random, String chars) {
+        return chars.charAt(random.nextInt(chars.length()));
+    }
+}
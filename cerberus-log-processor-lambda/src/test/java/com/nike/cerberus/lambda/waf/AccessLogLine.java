@@ -0,0 +1,93 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Builds an ALB access log line for the tests, every field the tests do not set keeps a plain default
+ */
+public final class AccessLogLine {
+
+    private String type = "h2";
+    private String time = "2017-10-02T17:48:24.305799Z";
+    private String ip = "1.1.1.1";
+    private int port = 17454;
+    private String elbStatus = "200";
+    private String targetStatus = "200";
+    private String method = "GET";
+    private String path = "/dashboard";
+    private String httpVersion = "HTTP/2.0";
+    private String userAgent = "User Agent stuff";
+    private String sslProtocol = "TLSv1.2";
+
+    private AccessLogLine() {
+    }
+
+    public static AccessLogLine line() {
+        return new AccessLogLine();
+    }
+
+    /**
+     * An https request over HTTP/1.1, the way curl sends it
+     */
+    public static AccessLogLine http1Line() {
+        AccessLogLine line = new AccessLogLine();
+        line.type = "https";
+        line.httpVersion = "HTTP/1.1";
+        line.userAgent = "curl/7.54.0";
+        return line;
+    }
+
+    public AccessLogLine at(DateTime time) {
+        this.time = time.withZone(DateTimeZone.UTC).toString();
+        return this;
+    }
+
+    public AccessLogLine from(String ip) {
+        this.ip = ip;
+        return this;
+    }
+
+    public AccessLogLine from(String ip, int port) {
+        this.ip = ip;
+        this.port = port;
+        return this;
+    }
+
+    public AccessLogLine status(String elbStatus, String targetStatus) {
+        this.elbStatus = elbStatus;
+        this.targetStatus = targetStatus;
+        return this;
+    }
+
+    public AccessLogLine request(String method, String path) {
+        this.method = method;
+        this.path = path;
+        return this;
+    }
+
+    public AccessLogLine userAgent(String userAgent) {
+        this.userAgent = userAgent;
+        return this;
+    }
+
+    public AccessLogLine sslProtocol(String sslProtocol) {
+        this.sslProtocol = sslProtocol;
+        return this;
+    }
+
+    public ALBAccessLogEvent toEvent() {
+        return new ALBAccessLogEvent(toString());
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + time + " app/cerberus/bbb " + ip + ":" + port + " 1.2.0.6:8443 0.015 0.002 0.000 " +
+                elbStatus + " " + targetStatus + " 242 116 " +
+                "\"" + method + " https://cerberus.oss.nike.com:443" + path + " " + httpVersion + "\" " +
+                "\"" + userAgent + "\" ECDHE-RSA-AES128-GCM-SHA256 " + sslProtocol + " " +
+                "arn:aws:elasticloadbalancing:us-west-2:111111:targetgroup/env-https-target-name/00000 " +
+                "\"Root=1-59d27be8-3ef5870d62321261398f1a8c\" \"cerberus.oss.nike.com\" " +
+                "\"arn:aws:iam::0000:server-certificate/cms_1111\"";
+    }
+}
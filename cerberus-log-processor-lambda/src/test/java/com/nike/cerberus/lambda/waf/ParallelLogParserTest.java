@@ -0,0 +1,77 @@
+package com.nike.cerberus.lambda.waf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelLogParserTest {
+
+    @Test
+    public void test_that_events_keep_the_input_order_across_chunks() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            lines.add(line(i));
+        }
+
+        try (ParallelLogParser parser = new ParallelLogParser(4, 7)) {
+            List<ALBAccessLogEvent> events = parser.parse(lines, ALBAccessLogEvent::new);
+
+            assertEquals(1000, events.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(String.valueOf(i), events.get(i).getRequestingClientPort());
+            }
+        }
+    }
+
+    @Test
+    public void test_that_null_results_are_dropped() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            lines.add(line(i));
+        }
+
+        try (ParallelLogParser parser = new ParallelLogParser(2, 3)) {
+            List<ALBAccessLogEvent> events = parser.parse(lines, line -> {
+                ALBAccessLogEvent event = new ALBAccessLogEvent(line);
+                return event.getRequestingClientPortAsInt() % 2 == 0 ? event : null;
+            });
+
+            assertEquals(50, events.size());
+            assertEquals(98, events.get(49).getRequestingClientPortAsInt());
+        }
+    }
+
+    @Test
+    public void test_that_closing_only_shuts_down_a_pool_the_parser_owns() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 2 * ParallelLogParser.DEFAULT_CHUNK_SIZE; i++) {
+            lines.add(line(i % 65536));
+        }
+
+        new ParallelLogParser().close();
+        assertEquals(lines.size(), new ParallelLogParser().parse(lines, ALBAccessLogEvent::new).size());
+
+        ParallelLogParser parser = new ParallelLogParser(2, 3);
+        parser.close();
+        try {
+            parser.parse(lines, ALBAccessLogEvent::new);
+            fail("the pool should have been shut down");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_that_parallelism_must_be_positive() {
+        new ParallelLogParser(0);
+    }
+
+    private static String line(int port) {
+        return AccessLogLine.line().from("1.1.1.1", port).toString();
+    }
+}
@@ -0,0 +1,88 @@
+package com.nike.cerberus.lambda.waf;
+
+import com.amazonaws.regions.Regions;
+import com.nike.cerberus.lambda.waf.replay.InMemoryS3;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class S3LogEventSourceTest {
+
+    private static final String BUCKET = "alb-logs";
+    private static final String ACCOUNT = "111111111111";
+    private static final String DAY_PREFIX = "AWSLogs/111111111111/elasticloadbalancing/us-west-2/2017/10/02/";
+    private static final String NEXT_DAY_PREFIX = "AWSLogs/111111111111/elasticloadbalancing/us-west-2/2017/10/03/";
+
+    private InMemoryS3 s3;
+
+    private S3LogEventSource source;
+
+    @Before
+    public void before() {
+        // pages the listings 2 keys at a time
+        s3 = new InMemoryS3(2);
+        source = new S3LogEventSource(s3, BUCKET, ACCOUNT, Regions.US_WEST_2);
+    }
+
+    @Test
+    public void test_that_file_end_time_is_parsed_from_the_key() {
+        DateTime endTime = S3LogEventSource.getFileEndTime(
+                DAY_PREFIX + "111111111111_elasticloadbalancing_us-west-2_app.cerberus.50dc6c495c0c9188_20171002T2355Z_10.0.0.1_3z2xw1vu.log.gz");
+
+        assertEquals(new DateTime(2017, 10, 2, 23, 55, DateTimeZone.UTC), endTime);
+        assertNull(S3LogEventSource.getFileEndTime(DAY_PREFIX + "ELBAccessLogTestFile"));
+    }
+
+    @Test
+    public void test_that_only_files_that_end_after_the_interval_start_are_listed() {
+        s3.putGzipped(BUCKET, fileKey(DAY_PREFIX, "20171002T2340Z", "a"), "");
+        s3.putGzipped(BUCKET, fileKey(DAY_PREFIX, "20171002T2350Z", "b"), "");
+        s3.putGzipped(BUCKET, fileKey(DAY_PREFIX, "20171002T2355Z", "c"), "");
+        s3.putGzipped(BUCKET, DAY_PREFIX + "ELBAccessLogTestFile", "");
+        s3.putGzipped(BUCKET, fileKey(NEXT_DAY_PREFIX, "20171003T0000Z", "d"), "");
+        s3.putGzipped(BUCKET, fileKey(NEXT_DAY_PREFIX, "20171003T0005Z", "e"), "");
+
+        List<String> keys = source.getLogFileKeysAfter(
+                new DateTime(2017, 10, 2, 23, 50, DateTimeZone.UTC),
+                new DateTime(2017, 10, 3, 0, 6, DateTimeZone.UTC));
+
+        assertEquals(4, keys.size());
+        assertEquals(fileKey(DAY_PREFIX, "20171002T2350Z", "b"), keys.get(0));
+        assertEquals(fileKey(NEXT_DAY_PREFIX, "20171003T0005Z", "e"), keys.get(3));
+    }
+
+    @Test
+    public void test_that_gzipped_log_files_are_streamed_into_events_after_the_start_time() {
+        DateTime now = DateTime.now(DateTimeZone.UTC);
+        DateTime start = now.minusMinutes(20);
+        String prefix = String.format("AWSLogs/%s/elasticloadbalancing/us-west-2/%04d/%02d/%02d/",
+                ACCOUNT, now.getYear(), now.getMonthOfYear(), now.getDayOfMonth());
+
+        String content = line(now.minusMinutes(30), "1.1.1.1") + "\n"
+                + line(now.minusMinutes(10), "2.2.2.2") + "\n"
+                + "not an access log entry\n"
+                + line(now.minusMinutes(5), "3.3.3.3") + "\n";
+        s3.putGzipped(BUCKET, fileKey(prefix, now.toString("yyyyMMdd'T'HHmm'Z'"), "f"), content);
+
+        List<ALBAccessLogEvent> events = source.getLogEventsAfter(start);
+
+        assertEquals(2, events.size());
+        assertEquals("2.2.2.2", events.get(0).getRequestingClientIp());
+        assertEquals("3.3.3.3", events.get(1).getRequestingClientIp());
+    }
+
+    private static String fileKey(String prefix, String endTime, String random) {
+        return prefix + ACCOUNT + "_elasticloadbalancing_us-west-2_app.cerberus.50dc6c495c0c9188_" + endTime
+                + "_10.0.0.1_" + random + ".log.gz";
+    }
+
+    private static String line(DateTime time, String ip) {
+        return AccessLogLine.line().at(time).from(ip).status("301", "301").toString();
+    }
+}
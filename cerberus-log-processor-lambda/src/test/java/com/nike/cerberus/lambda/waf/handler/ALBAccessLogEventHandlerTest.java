@@ -8,6 +8,7 @@ import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
 import com.nike.cerberus.lambda.waf.AthenaService;
 import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
 import com.nike.cerberus.lambda.waf.processor.Processor;
+import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -75,6 +76,26 @@ public class ALBAccessLogEventHandlerTest {
     }
 
 
+    @Test
+    public void test_that_numeric_fields_are_parsed() {
+        String request = "\"GET https://cerberus.oss.nike.com:443/dashboard?x=y HTTP/2.0\"";
+        String userAgent = "\"User Agent stuff\"";
+        String str = "h2 2017-10-02T17:48:24.305799Z app/name-balancer-aaa/bbb 1.1.1.1:17454 - -1 0.002 0.000 301 - 242 116 " + request + " " + userAgent + " ECDHE-RSA-AES128-GCM-SHA256 TLSv1.2 arn:aws:elasticloadbalancing:us-west-2:111111:targetgroup/env-https-target-name/00000 \"Root=1-59d27be8-3ef5870d62321261398f1a8c\" \"cerberus.oss.nike.com\" \"arn:aws:iam::0000:server-certificate/group/cerb/env/cms_1111\"";
+
+        ALBAccessLogEvent event = new ALBAccessLogEvent(str);
+        assertEquals(DateTime.parse("2017-10-02T17:48:24.305799Z"), event.getDateTime());
+        assertEquals(DateTime.parse("2017-10-02T17:48:24.305799Z").getMillis() * 1000 + 799, event.getTimeInEpochMicros());
+        assertEquals(17454, event.getRequestingClientPortAsInt());
+        assertEquals(-1, event.getTargetPortAsInt());
+        assertEquals(-1, event.getRequestProcessingTimeInSeconds(), 0);
+        assertEquals(0.002, event.getTargetProcessingTimeInSeconds(), 0);
+        assertEquals(301, event.getLoadBalancerStatusCodeAsInt());
+        assertEquals(-1, event.getTargetStatusCodeAsInt());
+        assertEquals(242, event.getBytesReceivedAsLong());
+        assertEquals(116, event.getBytesSentAsLong());
+    }
+
+
     @Test
     public void testThatIngestLogStreamReturnsAValidListOfEvents() throws IOException {
 
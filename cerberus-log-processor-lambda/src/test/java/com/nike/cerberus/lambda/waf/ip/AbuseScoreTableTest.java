@@ -0,0 +1,118 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AbuseScoreTableTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void test_that_scores_halve_every_half_life() {
+        AbuseScoreTable table = new AbuseScoreTable(60, 4);
+        IpAddress ip = IpAddress.parse("50.39.100.194");
+
+        int ordinal = table.add(ip, 100, 1000);
+        assertEquals(100, table.getScore(ordinal, 1000), DELTA);
+        assertEquals(50, table.getScore(ordinal, 1060), DELTA);
+        assertEquals(25, table.getScore(ordinal, 1120), DELTA);
+
+        // the score is decayed to the minute of the update before the requests are added
+        assertEquals(ordinal, table.add(ip, 10, 1060));
+        assertEquals(60, table.getScore(ordinal, 1060), DELTA);
+        assertEquals(30, table.getScore(ordinal, 1120), DELTA);
+    }
+
+    @Test
+    public void test_that_families_do_not_collide_and_violations_are_counted() {
+        AbuseScoreTable table = new AbuseScoreTable(60, 4);
+        IpAddress ipv4 = IpAddress.parse("0.0.0.1");
+        IpAddress ipv6 = IpAddress.parse("::1");
+        for (int i = 0; i < 1000; i++) {
+            table.add(IpAddress.ofIpv4(i + 2), 1, 0);
+        }
+
+        assertEquals(1, table.recordViolation(ipv4, 0));
+        assertEquals(2, table.recordViolation(ipv4, 0));
+        assertEquals(1, table.recordViolation(ipv6, 0));
+
+        assertEquals(1002, table.size());
+        assertEquals(ipv4, table.getIpAddress(table.ordinalOf(ipv4)));
+        assertEquals(ipv6, table.getIpAddress(table.ordinalOf(ipv6)));
+        assertEquals(2, table.getViolations(table.ordinalOf(ipv4)));
+        assertEquals(-1, table.ordinalOf(IpAddress.parse("::2")));
+    }
+
+    @Test
+    public void test_that_compact_keeps_the_highest_scores_above_the_min_and_the_kept_ips() {
+        AbuseScoreTable table = new AbuseScoreTable(60, 4);
+        for (int i = 1; i <= 100; i++) {
+            table.add(IpAddress.ofIpv4(i), i, 0);
+        }
+        IpAddress blocked = IpAddress.ofIpv4(1);
+        table.recordViolation(blocked, 0);
+
+        AbuseScoreTable compacted = table.compact(60, 10, 20, blocked::equals, Integer.MAX_VALUE);
+
+        assertEquals(21, compacted.size());
+        assertEquals(1, compacted.getViolations(compacted.ordinalOf(blocked)));
+        for (int i = 61; i <= 100; i++) {
+            assertEquals(i > 80, compacted.ordinalOf(IpAddress.ofIpv4(i)) >= 0);
+        }
+        int ordinal = compacted.ordinalOf(IpAddress.ofIpv4(100));
+        assertEquals(50, compacted.getScore(ordinal, 60), DELTA);
+        assertEquals(25, compacted.getScore(ordinal, 120), DELTA);
+
+        // nothing is over the min score any more
+        assertEquals(1, table.compact(600, 10, 20, blocked::equals, Integer.MAX_VALUE).size());
+    }
+
+    @Test
+    public void test_that_recent_violations_are_kept_whatever_the_score() {
+        AbuseScoreTable table = new AbuseScoreTable(60, 4);
+        IpAddress recent = IpAddress.parse("50.39.100.194");
+        IpAddress old = IpAddress.parse("50.39.100.195");
+        table.recordViolation(old, 100);
+        table.recordViolation(recent, 100);
+        table.recordViolation(recent, 500);
+
+        AbuseScoreTable compacted = table.compact(600, 10, 20, ip -> false, 400);
+
+        assertEquals(1, compacted.size());
+        int ordinal = compacted.ordinalOf(recent);
+        assertEquals(2, compacted.getViolations(ordinal));
+        assertEquals(500, compacted.getLastViolationEpochMinute(ordinal));
+        assertEquals(0, table.compact(600, 10, 20, ip -> false, 501).size());
+    }
+
+    @Test
+    public void test_that_the_table_survives_a_round_trip() throws IOException {
+        AbuseScoreTable table = new AbuseScoreTable(30, 4);
+        IpAddress ipv4 = IpAddress.parse("50.39.100.194");
+        IpAddress ipv6 = IpAddress.parse("2600:1f14:a:b::1");
+        table.add(ipv4, 80, 100);
+        table.add(ipv6, 40, 130);
+        table.recordViolation(ipv6, 130);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.writeTo(new DataOutputStream(bytes), 130);
+        AbuseScoreTable read = AbuseScoreTable.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 30);
+
+        assertEquals(2, read.size());
+        assertEquals(40, read.getScore(read.ordinalOf(ipv4), 130), 1e-4);
+        assertEquals(20, read.getScore(read.ordinalOf(ipv4), 160), 1e-4);
+        assertEquals(40, read.getScore(read.ordinalOf(ipv6), 130), 1e-4);
+        assertEquals(1, read.getViolations(read.ordinalOf(ipv6)));
+        assertEquals(130, read.getLastViolationEpochMinute(read.ordinalOf(ipv6)));
+        assertTrue(bytes.size() < 64);
+    }
+}
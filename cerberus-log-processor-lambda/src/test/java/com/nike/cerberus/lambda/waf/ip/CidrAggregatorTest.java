@@ -0,0 +1,85 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class CidrAggregatorTest {
+
+    @Test
+    public void test_that_a_dense_slash_24_is_collapsed_and_sparse_addresses_are_kept() {
+        CidrAggregator aggregator = new CidrAggregator(0.5, IpRangeIndex.empty());
+        for (int host = 0; host < 200; host++) {
+            aggregator.add(IpPrefix.parse("203.0.113." + host + "/32"), host);
+        }
+        aggregator.add(IpPrefix.parse("198.51.100.7/32"), 1000);
+        aggregator.add(IpPrefix.parse("198.51.100.99/32"), 5);
+
+        List<CidrAggregator.Aggregate> aggregates = aggregator.aggregate();
+
+        assertEquals("[198.51.100.7/32, 198.51.100.99/32, 203.0.113.0/24]", cidrs(aggregates));
+        assertEquals(199, aggregates.get(2).getMaxRate());
+        assertEquals(200, aggregates.get(2).getBlocks());
+    }
+
+    @Test
+    public void test_that_the_shortest_dense_enough_prefix_wins() {
+        CidrAggregator aggregator = new CidrAggregator(0.75, IpRangeIndex.empty());
+        // all of 10.0.0.0/25 and a quarter of 10.0.0.128/25, 160 of 256 is below the density of the /24
+        for (int host = 0; host < 160; host++) {
+            aggregator.add(IpPrefix.parse("10.0.0." + host + "/32"), 1);
+        }
+
+        assertEquals("[10.0.0.0/25, 10.0.0.128/27]", cidrs(aggregator.aggregate()));
+    }
+
+    @Test
+    public void test_that_aggregates_never_cover_a_do_not_block_range() {
+        IpRangeIndex doNotBlock = IpRangeIndex.builder().addCidr("203.0.113.200/32").build();
+        CidrAggregator aggregator = new CidrAggregator(0.5, doNotBlock);
+        for (int host = 0; host < 200; host++) {
+            aggregator.add(IpPrefix.parse("203.0.113." + host + "/32"), 1);
+        }
+
+        List<CidrAggregator.Aggregate> aggregates = aggregator.aggregate();
+
+        assertEquals("[203.0.113.0/25, 203.0.113.128/26, 203.0.113.192/29]", cidrs(aggregates));
+        aggregates.forEach(aggregate -> assertEquals(false, doNotBlock.intersects(aggregate.getPrefix())));
+    }
+
+    @Test
+    public void test_that_ipv6_blocks_collapse_only_to_prefix_lengths_waf_accepts() {
+        CidrAggregator aggregator = new CidrAggregator(1, IpRangeIndex.empty());
+        // all 256 /64s of a /56
+        for (int i = 0; i < 256; i++) {
+            aggregator.add(IpPrefix.of(IpAddress.ofIpv6(0x20010db800000000L | i, 0), 64), 1);
+        }
+        // two neighbouring /128s are never merged into a /127
+        aggregator.add(IpPrefix.parse("2001:db8:ffff::/128"), 1);
+        aggregator.add(IpPrefix.parse("2001:db8:ffff::1/128"), 1);
+
+        assertEquals("[2001:db8::/56, 2001:db8:ffff::/128, 2001:db8:ffff::1/128]", cidrs(aggregator.aggregate()));
+    }
+
+    @Test
+    public void test_that_blocks_inside_other_blocks_are_not_counted_twice() {
+        CidrAggregator aggregator = new CidrAggregator(1, IpRangeIndex.empty());
+        aggregator.add(IpPrefix.parse("10.0.0.1/32"), 3);
+        aggregator.add(IpPrefix.parse("10.0.0.0/31"), 1);
+        aggregator.add(IpPrefix.parse("10.0.0.0/32"), 7);
+
+        List<CidrAggregator.Aggregate> aggregates = aggregator.aggregate();
+
+        assertEquals("[10.0.0.0/31]", cidrs(aggregates));
+        assertEquals(7, aggregates.get(0).getMaxRate());
+        assertEquals(1, aggregates.get(0).getBlocks());
+    }
+
+    private static String cidrs(List<CidrAggregator.Aggregate> aggregates) {
+        return aggregates.stream().map(aggregate -> aggregate.getPrefix().toCidr()).collect(Collectors.toList())
+                .toString();
+    }
+}
@@ -0,0 +1,117 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class IpAddressCounterTest {
+
+    @Test
+    public void test_that_counts_match_a_hash_map_through_growth() {
+        // start tiny so the table and the dense arrays grow many times
+        IpAddressCounter counter = new IpAddressCounter(0);
+        Map<IpAddress, Integer> expected = new HashMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 200000; i++) {
+            IpAddress ip;
+            if (random.nextInt(10) == 0) {
+                // few distinct high halves, so the IPv6 keys only differ in some of their bits
+                ip = IpAddress.ofIpv6(0x20010db800000000L | random.nextInt(4), random.nextInt(5000));
+            } else {
+                // sequential addresses in one /16, the worst case for a weak hash
+                ip = IpAddress.ofIpv4(0x0A000000 | random.nextInt(50000));
+            }
+            int delta = 1 + random.nextInt(3);
+            counter.add(ip, delta);
+            expected.merge(ip, delta, Integer::sum);
+        }
+
+        assertEquals(expected.size(), counter.size());
+        for (int ordinal = 0; ordinal < counter.size(); ordinal++) {
+            IpAddress ip = counter.getIpAddress(ordinal);
+            assertEquals(ip.toString(), (int) expected.get(ip), counter.getCount(ordinal));
+            assertEquals(ip.toString(), (int) expected.get(ip), counter.get(ip));
+        }
+        assertEquals(0, counter.get(IpAddress.parse("192.168.0.1")));
+        assertEquals(0, counter.get(IpAddress.parse("::1")));
+    }
+
+    @Test
+    public void test_that_ordinals_follow_insertion_order() {
+        Ipv4Counter counter = new Ipv4Counter(2);
+        assertEquals(0, counter.add(7, 1));
+        assertEquals(1, counter.add(-1, 1));
+        assertEquals(0, counter.add(7, 1));
+        assertEquals(2, counter.add(0, 5));
+
+        assertEquals(3, counter.size());
+        assertEquals(7, counter.getKey(0));
+        assertEquals(2, counter.getCount(0));
+        assertEquals(-1, counter.getKey(1));
+        assertEquals(5, counter.get(0));
+        assertEquals(-1, counter.indexOf(8));
+
+        Ipv6Counter ipv6Counter = new Ipv6Counter(1);
+        assertEquals(0, ipv6Counter.add(1, 2, 1));
+        assertEquals(1, ipv6Counter.add(2, 1, 1));
+        assertEquals(0, ipv6Counter.indexOf(1, 2));
+        assertEquals(2L, ipv6Counter.getLow(0));
+        assertEquals(2L, ipv6Counter.getHigh(1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void test_that_unknown_ordinals_are_rejected() {
+        Ipv4Counter counter = new Ipv4Counter();
+        counter.add(1, 1);
+        counter.getCount(1);
+    }
+
+    @Test
+    public void test_that_minute_rings_give_the_peak_of_a_sliding_window() {
+        IpAddressCounter counter = new IpAddressCounter(1, 5);
+        IpAddress ipv4 = IpAddress.parse("10.0.0.1");
+        IpAddress ipv6 = IpAddress.parse("2001:db8::1");
+        int[] perMinute = {3, 0, 7, 1, 2};
+        for (int minute = 0; minute < perMinute.length; minute++) {
+            for (int i = 0; i < perMinute[minute]; i++) {
+                // out of order within the ring still lands in the right bucket
+                counter.increment(ipv4, 1000 + perMinute.length - 1 - minute);
+                counter.increment(ipv6, 1000 + minute);
+            }
+        }
+        // the IPv4 client saw the counts in reverse: 2, 1, 7, 0, 3
+        assertEquals(13, counter.getPeak(0, 5));
+        assertEquals(7, counter.getPeak(0, 1));
+        assertEquals(8, counter.getPeak(0, 2));
+        assertEquals(13, counter.getPeak(1, 10));
+        assertEquals(10, counter.getPeak(1, 3));
+
+        // moving 2 minutes on drops minutes 1000 and 1001, minutes older than the ring are dropped
+        counter.increment(ipv6, 1006);
+        counter.increment(ipv6, 999);
+        assertEquals(11, counter.getPeak(1, 5));
+        assertEquals(15, counter.getCount(1));
+
+        // a jump past the whole ring starts it over
+        counter.increment(ipv6, 2000);
+        assertEquals(1, counter.getPeak(1, 5));
+    }
+
+    @Test
+    public void test_that_minute_rings_grow_with_the_counter() {
+        IpAddressCounter counter = new IpAddressCounter(0, 3);
+        for (int i = 0; i < 10000; i++) {
+            counter.increment(IpAddress.ofIpv4(i), 100 + i % 3);
+            counter.increment(IpAddress.ofIpv4(i), 100 + i % 3);
+        }
+        for (int ordinal = 0; ordinal < counter.size(); ordinal++) {
+            assertEquals(2, counter.getPeak(ordinal, 1));
+        }
+        assertEquals(IpAddressCounter.toEpochMinute(-1), -1);
+        assertEquals(IpAddressCounter.toEpochMinute(60000000L), 1);
+    }
+}
@@ -0,0 +1,89 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.apache.commons.net.util.SubnetUtils;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IpAddressTest {
+
+    @Test
+    public void test_that_ipv4_addresses_round_trip() {
+        Random random = new Random(11);
+        for (int i = 0; i < 10000; i++) {
+            int ip = random.nextInt();
+            String formatted = IpAddress.formatIpv4(ip);
+            IpAddress parsed = IpAddress.parse(formatted);
+            assertTrue(parsed.isIpv4());
+            assertEquals(formatted, ip, parsed.getIpv4());
+            assertEquals(formatted, parsed.toString());
+        }
+        assertEquals(0xFFFFFFFFL, IpAddress.parseIpv4("255.255.255.255", 0, 15));
+    }
+
+    @Test
+    public void test_that_ipv4_matches_subnet_utils() {
+        String ip = "50.39.100.194";
+        int expected = new SubnetUtils(ip, "255.255.255.255").getInfo().asInteger(ip);
+        assertEquals(expected, IpAddress.parse(ip).getIpv4());
+        assertEquals("50.39.100.194/32", IpAddress.parse(ip).toCidr());
+    }
+
+    @Test
+    public void test_that_invalid_addresses_are_rejected() {
+        for (String value : new String[]{"", "-", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "1.2.3.4 ", "0001.2.3.4",
+                ":", ":::", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3", "12345::", "1:", ":1::", "g::1",
+                "1:2:3:4:5:6:7::8", "::1.2.3", "::ffff:1.2.3.4:5", "1:2:3:4:5:6:7:1.2.3.4"}) {
+            assertNull(value, IpAddress.parse(value));
+        }
+    }
+
+    @Test
+    public void test_that_ipv6_parsing_and_formatting_matches_inet_address() throws Exception {
+        String[] values = {"::", "::1", "1::", "2600:1f14:abc::12", "fe80::1:0:0:8443", "2001:DB8:0:0:1:0:0:1",
+                "2001:db8::1:0:0:1", "0:0:0:0:0:0:0:1", "::ffff:1.2.3.4", "1:2:3:4:5:6:7:8", "1:0:0:2::3"};
+        for (String value : values) {
+            IpAddress parsed = IpAddress.parse(value);
+            assertFalse(value, parsed.isIpv4());
+            byte[] bytes = InetAddress.getByName(value).getAddress();
+            if (bytes.length == 4) {
+                // Java turns IPv4 mapped addresses into IPv4
+                bytes = ByteBuffer.allocate(16).putLong(0).putInt(0xFFFF).put(bytes).array();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            assertEquals(value, buffer.getLong(), parsed.getHigh());
+            assertEquals(value, buffer.getLong(), parsed.getLow());
+            assertEquals(value, parsed, IpAddress.parse(parsed.toString()));
+        }
+        assertEquals("2001:db8::1:0:0:1", IpAddress.parse("2001:DB8:0:0:1:0:0:1").toString());
+        assertEquals("1:0:0:2::3", IpAddress.parse("1:0:0:2:0:0:0:3").toString());
+        assertEquals("1:2:3:4:5:6:0:8", IpAddress.parse("1:2:3:4:5:6:0:8").toString());
+        assertEquals("2600:1f14:abc::12/128", IpAddress.parse("2600:1f14:abc:0::12").toCidr());
+    }
+
+    @Test
+    public void test_that_random_ipv6_addresses_round_trip() {
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            // plenty of zero groups to exercise the compression
+            long high = random.nextLong() & random.nextLong() & random.nextLong();
+            long low = random.nextLong() & random.nextLong() & random.nextLong();
+            IpAddress ip = IpAddress.ofIpv6(high, low);
+            assertEquals(ip.toString(), ip, IpAddress.parse(ip.toString()));
+        }
+    }
+
+    @Test
+    public void test_that_ipv4_sorts_before_ipv6_and_unsigned() {
+        assertTrue(IpAddress.parse("1.1.1.1").compareTo(IpAddress.parse("255.1.1.1")) < 0);
+        assertTrue(IpAddress.parse("255.1.1.1").compareTo(IpAddress.parse("::1")) < 0);
+        assertTrue(IpAddress.parse("::1").compareTo(IpAddress.parse("ffff::")) < 0);
+    }
+}
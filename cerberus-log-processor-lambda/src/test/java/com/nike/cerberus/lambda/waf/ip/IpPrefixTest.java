@@ -0,0 +1,47 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IpPrefixTest {
+
+    @Test
+    public void test_that_parse_clears_the_host_bits() {
+        IpPrefix ipv4 = IpPrefix.parse("192.168.7.9/16");
+        assertEquals("192.168.0.0/16", ipv4.toCidr());
+        assertEquals(IpAddress.parse("192.168.255.255"), ipv4.getLastAddress());
+        assertTrue(ipv4.isIpv4());
+
+        IpPrefix ipv6 = IpPrefix.parse("2600:1f14:a:b:cdef:1:2:3/72");
+        assertEquals(IpPrefix.parse("2600:1f14:a:b:cd00::/72"), ipv6);
+        assertEquals(IpAddress.parse("2600:1f14:a:b:cdff:ffff:ffff:ffff"), ipv6.getLastAddress());
+        assertFalse(ipv6.isIpv4());
+    }
+
+    @Test
+    public void test_that_bare_addresses_are_single_address_blocks() {
+        assertEquals(IpPrefix.parse("10.0.0.1/32"), IpPrefix.parse("10.0.0.1"));
+        assertEquals(IpPrefix.parse("2600:1f14::1/128"), IpPrefix.of(IpAddress.parse("2600:1f14::1")));
+        assertTrue(IpPrefix.parse("2600:1f14::1").isSingleAddress());
+        assertFalse(IpPrefix.parse("2600:1f14::/64").isSingleAddress());
+    }
+
+    @Test
+    public void test_that_the_whole_address_space_is_a_prefix() {
+        assertEquals(IpAddress.parse("255.255.255.255"), IpPrefix.parse("1.2.3.4/0").getLastAddress());
+        assertEquals(IpAddress.parse("::"), IpPrefix.parse("2600::/0").getAddress());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_that_an_ipv4_prefix_over_32_is_rejected() {
+        IpPrefix.parse("10.0.0.0/33");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_that_an_invalid_address_is_rejected() {
+        IpPrefix.parse("not an ip/24");
+    }
+}
@@ -0,0 +1,130 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IpRangeIndexTest {
+
+    @Test
+    public void test_that_ranges_are_unsigned_and_merged() {
+        IpRangeIndex index = IpRangeIndex.builder()
+                .addCidr("127.0.0.0/8")
+                .addCidr("128.0.0.0/8")
+                .addCidr("128.10.0.0/16")
+                .addCidr("10.0.0.1")
+                .addCidr("10.0.0.3/32")
+                .addCidr("255.255.255.255/32")
+                .build();
+        Ipv4RangeIndex ipv4Ranges = index.getIpv4Ranges();
+
+        // 127/8 and 128/8 touch across the sign bit and 128.10/16 is inside them
+        assertEquals(4, ipv4Ranges.size());
+        assertEquals("127.0.0.0", IpAddress.formatIpv4(ipv4Ranges.getLow(2)));
+        assertEquals("128.255.255.255", IpAddress.formatIpv4(ipv4Ranges.getHigh(2)));
+        assertTrue(index.contains(IpAddress.parse("127.255.255.255")));
+        assertTrue(index.contains(IpAddress.parse("128.0.0.0")));
+        assertTrue(index.contains(IpAddress.parse("10.0.0.3")));
+        assertTrue(index.contains(IpAddress.parse("255.255.255.255")));
+        assertFalse(index.contains(IpAddress.parse("10.0.0.2")));
+        assertFalse(index.contains(IpAddress.parse("126.255.255.255")));
+        assertFalse(index.contains(IpAddress.parse("129.0.0.0")));
+        assertFalse(index.contains(IpAddress.parse("0.0.0.0")));
+        assertFalse(index.contains(IpAddress.parse("::1")));
+
+        assertTrue(IpRangeIndex.builder().addCidr("0.0.0.0/0").build().contains(IpAddress.parse("200.1.2.3")));
+        assertFalse(IpRangeIndex.empty().contains(IpAddress.parse("200.1.2.3")));
+    }
+
+    @Test
+    public void test_that_ipv4_lookups_match_a_linear_scan() {
+        Random random = new Random(29);
+        int[][] ranges = new int[2000][];
+        Ipv4RangeIndex.Builder builder = Ipv4RangeIndex.builder();
+        for (int i = 0; i < ranges.length; i++) {
+            int prefixLength = 8 + random.nextInt(25);
+            int mask = -1 << (32 - prefixLength);
+            int low = random.nextInt() & mask;
+            ranges[i] = new int[] {low, low | ~mask};
+            builder.addPrefix(low, prefixLength);
+        }
+        Ipv4RangeIndex index = builder.build();
+
+        for (int i = 0; i < 20000; i++) {
+            // probe the bounds and their neighbours as well as random addresses
+            int[] range = ranges[random.nextInt(ranges.length)];
+            int address = i % 4 == 0 ? random.nextInt() : range[random.nextInt(2)] + random.nextInt(3) - 1;
+            boolean expected = false;
+            for (int[] candidate : ranges) {
+                expected |= Integer.compareUnsigned(candidate[0], address) <= 0
+                        && Integer.compareUnsigned(address, candidate[1]) <= 0;
+            }
+            assertEquals(IpAddress.formatIpv4(address), expected, index.contains(address));
+        }
+    }
+
+    @Test
+    public void test_that_ipv6_ranges_are_unsigned_and_merged() {
+        IpRangeIndex index = IpRangeIndex.builder()
+                .addCidr("2600:1f14::/32")
+                .addCidr("2600:1f15::/32")
+                .addCidr("2600:1f14:1::/48")
+                .addCidr("7fff:ffff:ffff:ffff:ffff:ffff:ffff:ffff")
+                .addCidr("8000::/127")
+                .addCidr("fe80::1/128")
+                .addCidr("10.0.0.0/8")
+                .build();
+        Ipv6RangeIndex ipv6Ranges = index.getIpv6Ranges();
+
+        assertEquals(3, ipv6Ranges.size());
+        assertEquals("2600:1f14::", ipv6Ranges.getLow(0).toString());
+        assertEquals("2600:1f15:ffff:ffff:ffff:ffff:ffff:ffff", ipv6Ranges.getHigh(0).toString());
+        assertEquals("7fff:ffff:ffff:ffff:ffff:ffff:ffff:ffff", ipv6Ranges.getLow(1).toString());
+        assertEquals("8000::1", ipv6Ranges.getHigh(1).toString());
+        assertTrue(index.contains(IpAddress.parse("2600:1f15:abcd::1")));
+        assertTrue(index.contains(IpAddress.parse("8000::1")));
+        assertTrue(index.contains(IpAddress.parse("fe80::1")));
+        assertTrue(index.contains(IpAddress.parse("10.1.2.3")));
+        assertFalse(index.contains(IpAddress.parse("8000::2")));
+        assertFalse(index.contains(IpAddress.parse("2600:1f16::")));
+        assertFalse(index.contains(IpAddress.parse("fe80::2")));
+        assertFalse(index.contains(IpAddress.parse("::a00:1")));
+    }
+
+    @Test
+    public void test_that_ipv6_lookups_match_a_linear_scan() {
+        Random random = new Random(31);
+        IpAddress[][] ranges = new IpAddress[500][];
+        IpRangeIndex.Builder builder = IpRangeIndex.builder();
+        for (int i = 0; i < ranges.length; i++) {
+            // few distinct high halves so the ranges overlap and touch
+            int prefixLength = 56 + random.nextInt(73);
+            long high = (long) random.nextInt(4) << 62 | random.nextInt(3);
+            IpAddress address = IpAddress.ofIpv6(high, random.nextLong());
+            builder.addPrefix(address, prefixLength);
+            IpRangeIndex single = IpRangeIndex.builder().addPrefix(address, prefixLength).build();
+            ranges[i] = new IpAddress[] {single.getIpv6Ranges().getLow(0), single.getIpv6Ranges().getHigh(0)};
+        }
+        IpRangeIndex index = builder.build();
+
+        for (int i = 0; i < 5000; i++) {
+            IpAddress[] range = ranges[random.nextInt(ranges.length)];
+            IpAddress probe = i % 3 == 0 ? IpAddress.ofIpv6((long) random.nextInt(4) << 62 | random.nextInt(3),
+                    random.nextLong()) : range[random.nextInt(2)];
+            boolean expected = false;
+            for (IpAddress[] candidate : ranges) {
+                expected |= candidate[0].compareTo(probe) <= 0 && probe.compareTo(candidate[1]) <= 0;
+            }
+            assertEquals(probe.toString(), expected, index.contains(probe));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_that_invalid_cidrs_are_rejected() {
+        IpRangeIndex.builder().addCidr("10.0.0.0/33");
+    }
+}
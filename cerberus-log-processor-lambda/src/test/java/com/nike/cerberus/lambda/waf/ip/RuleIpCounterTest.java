@@ -0,0 +1,51 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RuleIpCounterTest {
+
+    @Test
+    public void test_that_rules_and_families_do_not_collide() {
+        RuleIpCounter counter = new RuleIpCounter(4, 0);
+        IpAddress ipv4 = IpAddress.parse("0.0.0.1");
+        // the same low bits as the IPv4 address
+        IpAddress ipv6 = IpAddress.parse("::1");
+
+        for (int i = 0; i < 1000; i++) {
+            counter.add(i % 3, ipv4, 1);
+            counter.add(i % 3, ipv6, 2);
+            counter.add(3, IpAddress.ofIpv4(i), 1);
+        }
+
+        assertEquals(6 + 1000, counter.size());
+        for (int ordinal = 0; ordinal < counter.size(); ordinal++) {
+            IpAddress ip = counter.getIpAddress(ordinal);
+            int rule = counter.getRule(ordinal);
+            if (rule == 3) {
+                assertEquals(1, counter.getCount(ordinal));
+            } else if (ip.equals(ipv4)) {
+                assertEquals(rule == 0 ? 334 : 333, counter.getCount(ordinal));
+            } else {
+                assertEquals(ipv6, ip);
+                assertEquals(rule == 0 ? 668 : 666, counter.getCount(ordinal));
+            }
+        }
+    }
+
+    @Test
+    public void test_that_the_peak_comes_from_the_minute_rings() {
+        RuleIpCounter counter = new RuleIpCounter(4, 10);
+        IpAddress ip = IpAddress.parse("50.39.100.194");
+        for (int minute = 0; minute < 10; minute++) {
+            for (int i = 0; i <= minute; i++) {
+                counter.increment(7, ip, 1000 + minute);
+            }
+        }
+
+        assertEquals(55, counter.getCount(0));
+        assertEquals(19, counter.getPeak(0, 2));
+        assertEquals(7, counter.getRule(0));
+    }
+}
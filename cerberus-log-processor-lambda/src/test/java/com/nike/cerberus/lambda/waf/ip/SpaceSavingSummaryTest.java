@@ -0,0 +1,77 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpaceSavingSummaryTest {
+
+    @Test
+    public void test_that_the_error_bounds_hold_against_exact_counts() {
+        int capacity = 500;
+        SpaceSavingSummary summary = new SpaceSavingSummary(capacity);
+        Map<IpAddress, Integer> exact = new HashMap<>();
+        Random random = new Random(17);
+        int requests = 300000;
+        for (int i = 0; i < requests; i++) {
+            IpAddress ip;
+            if (random.nextInt(4) == 0) {
+                // 50 heavy hitters make a quarter of the requests
+                ip = IpAddress.ofIpv4(0x0A000000 | random.nextInt(50));
+            } else {
+                // the flood, each of the other addresses makes about 2 requests
+                ip = IpAddress.ofIpv4(0x0B000000 | random.nextInt(110000));
+            }
+            summary.offer(ip);
+            exact.merge(ip, 1, Integer::sum);
+        }
+
+        assertEquals(requests, summary.getOffered());
+        assertEquals(capacity, summary.size());
+        assertTrue(summary.getMaxError() <= requests / capacity);
+
+        Map<IpAddress, Integer> slots = new HashMap<>();
+        for (int slot = 0; slot < summary.size(); slot++) {
+            IpAddress ip = summary.getIpAddress(slot);
+            int trueCount = exact.getOrDefault(ip, 0);
+            assertTrue(summary.getEstimate(slot) >= trueCount);
+            assertTrue(summary.getEstimate(slot) - summary.getError(slot) <= trueCount);
+            assertTrue(summary.getError(slot) <= summary.getMaxError());
+            slots.put(ip, slot);
+        }
+        exact.forEach((ip, count) -> {
+            if (count > summary.getMaxError()) {
+                assertNotNull(ip + " made " + count + " requests", slots.get(ip));
+            }
+        });
+    }
+
+    @Test
+    public void test_that_counts_are_exact_until_the_summary_is_full() {
+        SpaceSavingSummary summary = new SpaceSavingSummary(SpaceSavingSummary.capacityFor(0.25));
+        assertEquals(4, summary.getCapacity());
+        IpAddress ipv6 = IpAddress.parse("2001:db8::1");
+        for (int i = 0; i < 5; i++) {
+            summary.offer(IpAddress.ofIpv4(i % 3));
+            summary.offer(ipv6);
+        }
+
+        assertEquals(4, summary.size());
+        assertEquals(0, summary.getMaxError());
+        assertEquals(ipv6, summary.getIpAddress(1));
+        assertEquals(5, summary.getEstimate(1));
+        assertEquals(2, summary.getEstimate(0));
+        assertEquals(0, summary.getError(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_that_the_error_bound_must_be_positive() {
+        SpaceSavingSummary.capacityFor(0);
+    }
+}
@@ -0,0 +1,74 @@
+package com.nike.cerberus.lambda.waf.ip;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopIpAddressesTest {
+
+    @Test
+    public void test_that_the_highest_rates_are_kept_in_descending_order() {
+        List<Integer> rates = new ArrayList<>();
+        for (int rate = 0; rate < 1000; rate++) {
+            rates.add(rate);
+        }
+        Collections.shuffle(rates, new Random(3));
+        TopIpAddresses<Integer> top = new TopIpAddresses<>(5);
+
+        rates.forEach(rate -> top.offer(IpAddress.ofIpv4(rate), rate, rate));
+
+        assertEquals(Arrays.asList(999, 998, 997, 996, 995), new ArrayList<>(top.toMap().values()));
+    }
+
+    @Test
+    public void test_that_rates_at_the_ends_of_the_int_range_do_not_overflow() {
+        TopIpAddresses<Integer> top = new TopIpAddresses<>(2);
+
+        top.offer(IpAddress.ofIpv4(1), Integer.MIN_VALUE, Integer.MIN_VALUE);
+        top.offer(IpAddress.ofIpv4(2), Integer.MAX_VALUE, Integer.MAX_VALUE);
+        top.offer(IpAddress.ofIpv4(3), 0, 0);
+
+        assertEquals(Arrays.asList(Integer.MAX_VALUE, 0), new ArrayList<>(top.toMap().values()));
+    }
+
+    @Test
+    public void test_that_ties_go_to_the_lower_address_whatever_the_order() {
+        List<IpAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            addresses.add(IpAddress.ofIpv4(i));
+        }
+        addresses.add(IpAddress.parse("2001:db8::1"));
+
+        for (long seed = 0; seed < 10; seed++) {
+            Collections.shuffle(addresses, new Random(seed));
+            TopIpAddresses<String> top = new TopIpAddresses<>(3);
+            addresses.forEach(address -> top.offer(address, 7, address.toString()));
+
+            assertEquals(Arrays.asList("0.0.0.0", "0.0.0.1", "0.0.0.2"), new ArrayList<>(top.toMap().values()));
+        }
+    }
+
+    @Test
+    public void test_that_would_keep_matches_offer() {
+        TopIpAddresses<Integer> top = new TopIpAddresses<>(1);
+        assertTrue(top.wouldKeep(IpAddress.ofIpv4(5), 1));
+        top.offer(IpAddress.ofIpv4(5), 1, 1);
+
+        assertFalse(top.wouldKeep(IpAddress.ofIpv4(6), 1));
+        assertFalse(top.offer(IpAddress.ofIpv4(6), 1, 1));
+        assertTrue(top.wouldKeep(IpAddress.ofIpv4(4), 1));
+
+        TopIpAddresses<Integer> none = new TopIpAddresses<>(0);
+        assertFalse(none.wouldKeep(IpAddress.ofIpv4(4), 100));
+        assertFalse(none.offer(IpAddress.ofIpv4(4), 100, 100));
+        assertTrue(none.toMap().isEmpty());
+    }
+}
@@ -0,0 +1,105 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.waf.AWSWAFRegional;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.AccessLogLine;
+import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
+import com.nike.cerberus.lambda.waf.ViolationMetaData;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+import com.nike.cerberus.lambda.waf.retry.RetryPolicy;
+import com.nike.cerberus.lambda.waf.retry.Retryer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class BadRequestProcessorTest {
+
+    BadRequestProcessor processor;
+
+    @Mock
+    AWSWAFRegional awswaf;
+
+    @Mock
+    AmazonS3 amazonS3;
+
+    @Mock
+    LogProcessorLambdaConfig config;
+
+    @Before
+    public void before() {
+        initMocks(this);
+        processor = new BadRequestProcessor(new ObjectMapper(), awswaf, amazonS3, new Retryer(RetryPolicy.aws()));
+        when(config.getBadRequestLimit()).thenReturn(10);
+        when(config.getBadRequestRatio()).thenReturn(0.5);
+        when(config.getBadRequestAutoBlacklistIpSetId()).thenReturn("bad-request-auto");
+        when(config.getRateLimitAutoBlacklistIpSetId()).thenReturn("rate-limit-auto");
+    }
+
+    @Test
+    public void testThatErrorsAndRejectedRequestsAreBad() {
+        assertFalse(BadRequestProcessor.isBadRequest(event("109.1.1.1", "200", "200")));
+        assertFalse(BadRequestProcessor.isBadRequest(event("109.1.1.1", "302", "302")));
+        assertTrue(BadRequestProcessor.isBadRequest(event("109.1.1.1", "404", "404")));
+        assertTrue(BadRequestProcessor.isBadRequest(event("109.1.1.1", "502", "200")));
+        assertTrue(BadRequestProcessor.isBadRequest(event("109.1.1.1", "200", "500")));
+        assertTrue(BadRequestProcessor.isBadRequest(event("109.1.1.1", "460", "-")));
+    }
+
+    @Test
+    public void testThatFindViolatorsAppliesBothTheLimitAndTheRatio() {
+        List<ALBAccessLogEvent> events = new LinkedList<>();
+        // over the limit and all bad
+        addEvents(events, "109.1.1.1", "403", 20);
+        // over the limit but mostly good
+        addEvents(events, "109.1.1.2", "404", 20);
+        addEvents(events, "109.1.1.2", "200", 100);
+        // all bad but under the limit
+        addEvents(events, "109.1.1.3", "404", 10);
+        // exactly at the ratio
+        addEvents(events, "109.1.1.4", "500", 15);
+        addEvents(events, "109.1.1.4", "200", 15);
+
+        Map<IpAddress, ViolationMetaData> violators = processor.findViolators(events, config, null);
+
+        assertEquals(2, violators.size());
+        assertEquals(20, violators.get(IpAddress.parse("109.1.1.1")).getMaxRate());
+        assertEquals(15, violators.get(IpAddress.parse("109.1.1.4")).getMaxRate());
+    }
+
+    @Test
+    public void testThatTheProcessorUsesItsOwnIpSetAndViolatorsData() {
+        assertEquals("bad-request-auto", processor.getAutoBlockIpSetId(config));
+
+        processor.saveCurrentViolators(new HashMap<>(), "bucket");
+
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(amazonS3).putObject(request.capture());
+        assertEquals(BadRequestProcessor.BAD_REQUEST_DATA_FILE_NAME, request.getValue().getKey());
+    }
+
+    private static void addEvents(List<ALBAccessLogEvent> events, String ip, String status, int count) {
+        for (int i = 0; i < count; i++) {
+            events.add(event(ip, status, status));
+        }
+    }
+
+    private static ALBAccessLogEvent event(String ip, String elbStatus, String targetStatus) {
+        return AccessLogLine.http1Line().from(ip).status(elbStatus, targetStatus).toEvent();
+    }
+}
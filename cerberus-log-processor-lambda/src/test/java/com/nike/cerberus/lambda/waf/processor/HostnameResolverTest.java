@@ -0,0 +1,120 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HostnameResolverTest {
+
+    @Test
+    public void test_that_lookups_run_concurrently() {
+        CountDownLatch allStarted = new CountDownLatch(4);
+        HostnameResolver resolver = new HostnameResolver(ip -> {
+            allStarted.countDown();
+            // only returns once every lookup is running at the same time
+            allStarted.await(1, TimeUnit.SECONDS);
+            return "host-" + ip;
+        }, 4, 2000, 60000, Clock.systemUTC());
+
+        Map<String, String> hostnames = resolver.resolve(Arrays.asList("1.1.1.1", "2.2.2.2", "3.3.3.3", "4.4.4.4"),
+                5000);
+
+        assertEquals("host-1.1.1.1", hostnames.get("1.1.1.1"));
+        assertEquals("host-4.4.4.4", hostnames.get("4.4.4.4"));
+    }
+
+    @Test
+    public void test_that_slow_lookups_time_out_and_failures_are_unknown() {
+        HostnameResolver resolver = new HostnameResolver(ip -> {
+            if (ip.equals("1.1.1.1")) {
+                Thread.sleep(5000);
+            }
+            if (ip.equals("2.2.2.2")) {
+                throw new UnknownHostException(ip);
+            }
+            return "host-" + ip;
+        }, 4, 100, 60000, Clock.systemUTC());
+
+        long start = System.currentTimeMillis();
+        Map<String, String> hostnames = resolver.resolve(
+                Arrays.asList("1.1.1.1", "2.2.2.2", "3.3.3.3", "10.0.0.0/24"), 5000);
+
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(HostnameResolver.HOSTNAME_UNKNOWN_TIMEOUT, hostnames.get("1.1.1.1"));
+        assertEquals(HostnameResolver.HOSTNAME_UNKNOWN, hostnames.get("2.2.2.2"));
+        assertEquals("host-3.3.3.3", hostnames.get("3.3.3.3"));
+        assertEquals("ip range", hostnames.get("10.0.0.0/24"));
+    }
+
+    @Test
+    public void test_that_hostnames_are_cached_until_they_expire() {
+        AtomicInteger lookups = new AtomicInteger();
+        MutableClock clock = new MutableClock();
+        HostnameResolver resolver = new HostnameResolver(ip -> {
+            lookups.incrementAndGet();
+            return "host-" + ip;
+        }, 1, 2000, 60000, clock);
+
+        resolver.resolve(Collections.singletonList("1.1.1.1"), 5000);
+        clock.millis += 59999;
+        assertEquals("host-1.1.1.1", resolver.resolve(Collections.singletonList("1.1.1.1"), 5000).get("1.1.1.1"));
+        assertEquals(1, lookups.get());
+
+        clock.millis += 1;
+        resolver.resolve(Collections.singletonList("1.1.1.1"), 5000);
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void test_that_failed_lookups_are_not_cached() {
+        AtomicInteger lookups = new AtomicInteger();
+        HostnameResolver resolver = new HostnameResolver(ip -> {
+            if (lookups.incrementAndGet() == 1) {
+                throw new UnknownHostException(ip);
+            }
+            return "host-" + ip;
+        }, 1, 2000, 60000, Clock.systemUTC());
+
+        assertEquals(HostnameResolver.HOSTNAME_UNKNOWN,
+                resolver.resolve(Collections.singletonList("1.1.1.1"), 5000).get("1.1.1.1"));
+        assertEquals("host-1.1.1.1", resolver.resolve(Collections.singletonList("1.1.1.1"), 5000).get("1.1.1.1"));
+    }
+
+    private static class MutableClock extends Clock {
+
+        private long millis;
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+}
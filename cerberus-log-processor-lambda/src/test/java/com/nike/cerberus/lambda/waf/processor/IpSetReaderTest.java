@@ -0,0 +1,100 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ip.IpPrefix;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IpSetReaderTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void test_that_the_ip_sets_are_read_at_once() {
+        // each read waits for the other two, so this only finishes if all three run at the same time
+        CountDownLatch allStarted = new CountDownLatch(3);
+        IpSetReader reader = new IpSetReader(executor, ipSetId -> {
+            allStarted.countDown();
+            await(allStarted);
+            return Collections.singletonList(IpPrefix.parse(ipSetId));
+        }, 10, TimeUnit.SECONDS).prefetch("10.0.0.1").prefetch("10.0.0.2").prefetch("10.0.0.3");
+
+        assertEquals(Collections.singletonList(IpPrefix.parse("10.0.0.1")), reader.get("10.0.0.1"));
+        assertEquals(Collections.singletonList(IpPrefix.parse("10.0.0.2")), reader.get("10.0.0.2"));
+        assertEquals(Collections.singletonList(IpPrefix.parse("10.0.0.3")), reader.get("10.0.0.3"));
+    }
+
+    @Test
+    public void test_that_an_ip_set_is_read_once_per_run() {
+        AtomicInteger reads = new AtomicInteger();
+        IpSetReader reader = new IpSetReader(executor, ipSetId -> {
+            reads.incrementAndGet();
+            return Collections.<IpPrefix>emptyList();
+        }, 10, TimeUnit.SECONDS).prefetch("auto");
+
+        reader.get("auto");
+        reader.get("auto");
+        reader.prefetch("auto");
+
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void test_that_the_reads_share_one_deadline() {
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        IpSetReader reader = new IpSetReader(executor, ipSetId -> {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            } finally {
+                done.countDown();
+            }
+            return Collections.<IpPrefix>emptyList();
+        }, 100, TimeUnit.MILLISECONDS).prefetch("black").prefetch("white");
+
+        try {
+            reader.get("black");
+            fail("the read should have timed out");
+        } catch (RuntimeException e) {
+            assertEquals("Timed out reading IP set with ID: 'black'", e.getMessage());
+        }
+        // the pending reads are cancelled rather than left running
+        await(done);
+        assertTrue(interrupted.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_that_a_failed_read_is_rethrown() {
+        IpSetReader reader = new IpSetReader(executor, ipSetId -> {
+            throw new IllegalStateException("boom");
+        }, 10, TimeUnit.SECONDS);
+
+        reader.get("black");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
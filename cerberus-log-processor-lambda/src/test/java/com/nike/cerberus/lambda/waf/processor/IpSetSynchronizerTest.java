@@ -0,0 +1,211 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.waf.AWSWAFRegional;
+import com.amazonaws.services.waf.model.ChangeAction;
+import com.amazonaws.services.waf.model.GetChangeTokenRequest;
+import com.amazonaws.services.waf.model.GetChangeTokenResult;
+import com.amazonaws.services.waf.model.IPSetUpdate;
+import com.amazonaws.services.waf.model.UpdateIPSetRequest;
+import com.amazonaws.services.waf.model.UpdateIPSetResult;
+import com.amazonaws.services.waf.model.WAFInvalidOperationException;
+import com.amazonaws.services.waf.model.WAFStaleDataException;
+import com.nike.cerberus.lambda.waf.ip.IpPrefix;
+import com.nike.cerberus.lambda.waf.retry.RetryPolicy;
+import com.nike.cerberus.lambda.waf.retry.Retryer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class IpSetSynchronizerTest {
+
+    private static final String IP_SET_ID = "auto";
+
+    @Mock
+    AWSWAFRegional awswaf;
+
+    private final AtomicInteger tokens = new AtomicInteger();
+
+    @Before
+    public void before() {
+        initMocks(this);
+        when(awswaf.getChangeToken(isA(GetChangeTokenRequest.class))).thenAnswer(invocation ->
+                new GetChangeTokenResult().withChangeToken("token-" + tokens.incrementAndGet()));
+    }
+
+    @Test
+    public void test_that_updates_are_sent_in_chunks_with_their_own_change_token() {
+        IpSetSynchronizer synchronizer = new IpSetSynchronizer(awswaf, 2);
+        List<IpPrefix> current = prefixes("10.0.0.1/32", "10.0.0.2/32");
+        List<IpPrefix> desired = prefixes("10.0.0.2/32", "10.0.0.3/32", "10.0.0.4/32", "2600:1f14::/64");
+
+        IpSetSynchronizer.Result result = synchronizer.sync(IP_SET_ID, desired, () -> current);
+
+        assertEquals(prefixes("10.0.0.1/32"), result.getRemoved());
+        assertEquals(prefixes("10.0.0.3/32", "10.0.0.4/32", "2600:1f14::/64"), result.getAdded());
+        assertEquals(prefixes("10.0.0.2/32"), result.getDuplicate());
+        assertEquals(2, result.getChunkLatenciesInMillis().size());
+
+        ArgumentCaptor<UpdateIPSetRequest> requests = ArgumentCaptor.forClass(UpdateIPSetRequest.class);
+        verify(awswaf, times(2)).updateIPSet(requests.capture());
+        UpdateIPSetRequest first = requests.getAllValues().get(0);
+        UpdateIPSetRequest second = requests.getAllValues().get(1);
+        assertEquals("token-1", first.getChangeToken());
+        assertEquals("token-2", second.getChangeToken());
+        // the delete goes first
+        assertEquals(ChangeAction.DELETE.toString(), first.getUpdates().get(0).getAction());
+        assertEquals("10.0.0.1/32", first.getUpdates().get(0).getIPSetDescriptor().getValue());
+        assertEquals(2, first.getUpdates().size());
+        assertEquals(2, second.getUpdates().size());
+        assertEquals("IPV6", second.getUpdates().get(1).getIPSetDescriptor().getType());
+    }
+
+    @Test
+    public void test_that_a_stale_change_token_is_replaced() {
+        when(awswaf.updateIPSet(isA(UpdateIPSetRequest.class)))
+                .thenThrow(new WAFStaleDataException("stale"))
+                .thenReturn(new UpdateIPSetResult());
+        IpSetSynchronizer synchronizer = new IpSetSynchronizer(awswaf);
+
+        synchronizer.sync(IP_SET_ID, prefixes("10.0.0.1/32"), Collections::emptyList);
+
+        ArgumentCaptor<UpdateIPSetRequest> requests = ArgumentCaptor.forClass(UpdateIPSetRequest.class);
+        verify(awswaf, times(2)).updateIPSet(requests.capture());
+        assertEquals("token-1", requests.getAllValues().get(0).getChangeToken());
+        assertEquals("token-2", requests.getAllValues().get(1).getChangeToken());
+    }
+
+    @Test
+    public void test_that_a_throttled_update_is_retried() {
+        AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+        throttled.setErrorCode("ThrottlingException");
+        throttled.setStatusCode(400);
+        when(awswaf.updateIPSet(isA(UpdateIPSetRequest.class)))
+                .thenThrow(throttled)
+                .thenReturn(new UpdateIPSetResult());
+        Retryer retryer = new Retryer(RetryPolicy.builder()
+                .baseDelayInMillis(0)
+                .throttledBaseDelayInMillis(0)
+                .build());
+        IpSetSynchronizer synchronizer = new IpSetSynchronizer(awswaf, retryer);
+
+        synchronizer.sync(IP_SET_ID, prefixes("10.0.0.1/32"), Collections::emptyList);
+
+        verify(awswaf, times(2)).updateIPSet(isA(UpdateIPSetRequest.class));
+        assertEquals(1, retryer.getMetrics().getCalls("waf.updateIPSet"));
+        assertEquals(2, retryer.getMetrics().getAttempts("waf.updateIPSet"));
+        assertEquals(1, retryer.getMetrics().getThrottled("waf.updateIPSet"));
+    }
+
+    @Test
+    public void test_that_the_next_sync_diffs_against_the_cached_copy() {
+        IpSetSynchronizer synchronizer = new IpSetSynchronizer(awswaf);
+        CountingReader reader = new CountingReader(prefixes("10.0.0.1/32"));
+        synchronizer.sync(IP_SET_ID, prefixes("10.0.0.1/32", "10.0.0.2/32"), reader);
+
+        IpSetSynchronizer.Result result = synchronizer.sync(IP_SET_ID, prefixes("10.0.0.2/32", "10.0.0.3/32"), reader);
+
+        assertEquals(1, reader.reads);
+        assertEquals(prefixes("10.0.0.1/32"), result.getRemoved());
+        assertEquals(prefixes("10.0.0.3/32"), result.getAdded());
+        assertEquals(prefixes("10.0.0.2/32"), result.getDuplicate());
+    }
+
+    @Test
+    public void test_that_an_out_of_date_cached_copy_is_read_again() {
+        IpSetSynchronizer synchronizer = new IpSetSynchronizer(awswaf);
+        synchronizer.sync(IP_SET_ID, prefixes("10.0.0.1/32"), Collections::emptyList);
+        // someone removed 10.0.0.1 behind our back so deleting it fails
+        when(awswaf.updateIPSet(isA(UpdateIPSetRequest.class)))
+                .thenThrow(new WAFInvalidOperationException("no such descriptor"))
+                .thenReturn(new UpdateIPSetResult());
+        CountingReader reader = new CountingReader(Collections.emptyList());
+
+        IpSetSynchronizer.Result result = synchronizer.sync(IP_SET_ID, prefixes("10.0.0.2/32"), reader);
+
+        assertEquals(1, reader.reads);
+        assertEquals(Collections.emptyList(), result.getRemoved());
+        assertEquals(prefixes("10.0.0.2/32"), result.getAdded());
+        ArgumentCaptor<UpdateIPSetRequest> requests = ArgumentCaptor.forClass(UpdateIPSetRequest.class);
+        verify(awswaf, times(3)).updateIPSet(requests.capture());
+        List<IPSetUpdate> retried = requests.getAllValues().get(2).getUpdates();
+        assertEquals(1, retried.size());
+        assertEquals(ChangeAction.INSERT.toString(), retried.get(0).getAction());
+    }
+
+    @Test
+    public void test_that_a_block_added_by_hand_is_removed_once_the_cached_copy_expires() {
+        IpSetSynchronizer synchronizer = new IpSetSynchronizer(awswaf, IpSetSynchronizer.MAX_UPDATES_PER_REQUEST, 2,
+                new Retryer(RetryPolicy.aws()));
+        List<IpPrefix> ipSet = new ArrayList<>();
+        CountingReader reader = new CountingReader(ipSet);
+        synchronizer.sync(IP_SET_ID, prefixes("10.0.0.1/32"), reader);
+        ipSet.addAll(prefixes("10.0.0.1/32"));
+        // someone adds a block behind our back, inserting nothing and deleting nothing WAF does not complain
+        ipSet.addAll(prefixes("10.0.0.9/32"));
+
+        IpSetSynchronizer.Result cachedResult = synchronizer.sync(IP_SET_ID, prefixes("10.0.0.1/32"), reader);
+
+        assertEquals(1, reader.reads);
+        assertEquals(Collections.emptyList(), cachedResult.getRemoved());
+        assertFalse(synchronizer.hasCachedCopy(IP_SET_ID));
+
+        IpSetSynchronizer.Result result = synchronizer.sync(IP_SET_ID, prefixes("10.0.0.1/32"), reader);
+
+        assertEquals(2, reader.reads);
+        assertEquals(prefixes("10.0.0.9/32"), result.getRemoved());
+        assertEquals(Collections.emptyList(), result.getAdded());
+        assertTrue(synchronizer.hasCachedCopy(IP_SET_ID));
+    }
+
+    @Test
+    public void test_that_nothing_is_sent_when_the_ip_set_is_in_sync() {
+        IpSetSynchronizer synchronizer = new IpSetSynchronizer(awswaf);
+
+        IpSetSynchronizer.Result result = synchronizer.sync(IP_SET_ID, prefixes("10.0.0.1/32"),
+                () -> prefixes("10.0.0.1/32"));
+
+        assertEquals(0, result.getChunkLatenciesInMillis().size());
+        verify(awswaf, times(0)).updateIPSet(isA(UpdateIPSetRequest.class));
+    }
+
+    private static List<IpPrefix> prefixes(String... cidrs) {
+        List<IpPrefix> prefixes = new ArrayList<>();
+        Arrays.stream(cidrs).forEach(cidr -> prefixes.add(IpPrefix.parse(cidr)));
+        return prefixes;
+    }
+
+    private static class CountingReader implements Supplier<List<IpPrefix>> {
+
+        private final List<IpPrefix> ipSet;
+
+        private int reads;
+
+        CountingReader(List<IpPrefix> ipSet) {
+            this.ipSet = ipSet;
+        }
+
+        @Override
+        public List<IpPrefix> get() {
+            reads++;
+            return ipSet;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.AccessLogLine;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+import com.nike.cerberus.lambda.waf.ip.RuleIpCounter;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RateLimitRulesTest {
+
+    @Test
+    public void test_that_rules_are_parsed() {
+        List<RateLimitRule> rules = RateLimitRule.parseAll(" path:/v2/auth/=100, method:POST=500,user_agent:curl/=7 ");
+
+        assertEquals(3, rules.size());
+        assertEquals(RateLimitRule.Dimension.PATH, rules.get(0).getDimension());
+        assertEquals("/v2/auth/", rules.get(0).getValue());
+        assertEquals(100, rules.get(0).getLimit());
+        assertEquals("method:POST=500", rules.get(1).toString());
+        assertEquals("user_agent:curl/=7", rules.get(2).toString());
+        assertEquals(0, RateLimitRule.parseAll("").size());
+        assertEquals(0, RateLimitRule.parseAll(null).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_that_an_unknown_dimension_is_rejected() {
+        RateLimitRule.parse("principal:arn:aws:iam::1111:role/x=10");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_that_a_rule_without_a_limit_is_rejected() {
+        RateLimitRule.parse("path:/v2/auth/");
+    }
+
+    @Test
+    public void test_that_an_event_is_counted_once_for_every_rule_it_matches() {
+        RateLimitRules rules = new RateLimitRules(RateLimitRule.parseAll(
+                "path:/v2/=1000,path:/v2/auth/=100,path:/v1/=100,method:POST=50,method:GET=50,user_agent:curl/=7"));
+        RuleIpCounter counter = new RuleIpCounter();
+
+        rules.count(event("POST", "/v2/auth/user", "curl/7.54.0"), counter);
+        rules.count(event("POST", "/v2/auth/user", "curl/7.54.0"), counter);
+        rules.count(event("GET", "/v2/secret/app/x", "Mozilla/5.0"), counter);
+
+        IpAddress ip = IpAddress.parse("50.39.100.194");
+        assertEquals(5, counter.size());
+        assertEquals(3, count(counter, 0, ip));
+        assertEquals(2, count(counter, 1, ip));
+        assertEquals(0, count(counter, 2, ip));
+        assertEquals(2, count(counter, 3, ip));
+        assertEquals(1, count(counter, 4, ip));
+        assertEquals(2, count(counter, 5, ip));
+    }
+
+    private static int count(RuleIpCounter counter, int rule, IpAddress ip) {
+        for (int ordinal = 0; ordinal < counter.size(); ordinal++) {
+            if (counter.getRule(ordinal) == rule && counter.getIpAddress(ordinal).equals(ip)) {
+                return counter.getCount(ordinal);
+            }
+        }
+        return 0;
+    }
+
+    private static ALBAccessLogEvent event(String method, String path, String userAgent) {
+        return AccessLogLine.http1Line().from("50.39.100.194").request(method, path).userAgent(userAgent).toEvent();
+    }
+}
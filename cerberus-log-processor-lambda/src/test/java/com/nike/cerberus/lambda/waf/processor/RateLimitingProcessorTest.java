@@ -1,6 +1,7 @@
 package com.nike.cerberus.lambda.waf.processor;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
@@ -15,25 +16,51 @@ import com.amazonaws.services.waf.model.IPSetDescriptor;
 import com.amazonaws.services.waf.model.IPSetDescriptorType;
 import com.amazonaws.services.waf.model.IPSetUpdate;
 import com.amazonaws.services.waf.model.UpdateIPSetRequest;
+import com.amazonaws.services.waf.model.WAFNonexistentItemException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.*;
+import com.nike.cerberus.lambda.waf.ALBAccessLogEvent;
+import com.nike.cerberus.lambda.waf.AccessLogLine;
 import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
 import com.nike.cerberus.lambda.waf.ViolationMetaData;
+import com.nike.cerberus.lambda.waf.ip.AbuseScoreTable;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+import com.nike.cerberus.lambda.waf.ip.IpAddressCounter;
+import com.nike.cerberus.lambda.waf.ip.IpPrefix;
+import com.nike.cerberus.lambda.waf.ip.IpRangeIndex;
+import com.nike.cerberus.lambda.waf.ip.Ipv4RangeIndex;
+import com.nike.cerberus.lambda.waf.ip.RuleIpCounter;
 import org.apache.commons.net.util.SubnetUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -74,11 +101,11 @@ public class RateLimitingProcessorTest {
     @Test
     public void testThatFilterAndTruncateViolatorsRemoveExpiredBlocks() {
         when(config.getBlacklistDurationInMinutes()).thenReturn(1);
-        RangeSet<Integer> rangeSet = TreeRangeSet.create();
+        IpRangeIndex rangeSet = IpRangeIndex.empty();
 
-        Map<String, ViolationMetaData> violators = new HashMap<>();
-        violators.put("50.39.100.194", new ViolationMetaData(new Date(new Date().getTime() - 120000), 2));
-        Map<String, ViolationMetaData> actual = processor.filterAndTruncateViolators(config, rangeSet, violators);
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("50.39.100.194"), new ViolationMetaData(new Date(new Date().getTime() - 120000), 2));
+        Map<IpAddress, ViolationMetaData> actual = processor.filterAndTruncateViolators(config, rangeSet, violators);
 
         assertTrue("The violators map should be empty after filtering", actual.isEmpty());
     }
@@ -86,11 +113,11 @@ public class RateLimitingProcessorTest {
     @Test
     public void testThatFilterAndTruncateViolatorsDoesNotRemoveNonExpiredBlocks() {
         when(config.getBlacklistDurationInMinutes()).thenReturn(1);
-        RangeSet<Integer> rangeSet = TreeRangeSet.create();
+        IpRangeIndex rangeSet = IpRangeIndex.empty();
 
-        Map<String, ViolationMetaData> violators = new HashMap<>();
-        violators.put("50.39.100.193", new ViolationMetaData(new Date(), 2));
-        Map<String, ViolationMetaData> actual = processor.filterAndTruncateViolators(config, rangeSet, violators);
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("50.39.100.193"), new ViolationMetaData(new Date(), 2));
+        Map<IpAddress, ViolationMetaData> actual = processor.filterAndTruncateViolators(config, rangeSet, violators);
 
         assertTrue("The violators map should still have one entry after filtering", actual.size() == 1);
     }
@@ -98,18 +125,16 @@ public class RateLimitingProcessorTest {
     @Test
     public void testThatFilterAndTruncateViolatorsFiltersIPsInDoNotBlockRangeSet() {
         when(config.getBlacklistDurationInMinutes()).thenReturn(1);
-        RangeSet<Integer> doNotAutoBlockIpRangeSet = TreeRangeSet.create();
-
         SubnetUtils subnetUtils = new SubnetUtils("50.39.100.193/32");
         subnetUtils.setInclusiveHostCount(true);
         SubnetUtils.SubnetInfo subnetInfo = subnetUtils.getInfo();
         Integer lowIpAsInt = subnetInfo.asInteger(subnetInfo.getLowAddress());
         Integer highIpAsInt = subnetInfo.asInteger(subnetInfo.getHighAddress());
-        doNotAutoBlockIpRangeSet.add(Range.closed(lowIpAsInt, highIpAsInt));
+        IpRangeIndex doNotAutoBlockIpRangeIndex = IpRangeIndex.builder().addIpv4Range(lowIpAsInt, highIpAsInt).build();
 
-        Map<String, ViolationMetaData> violators = new HashMap<>();
-        violators.put("50.39.100.193", new ViolationMetaData(new Date(), 2));
-        Map<String, ViolationMetaData> actual = processor.filterAndTruncateViolators(config, doNotAutoBlockIpRangeSet,
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("50.39.100.193"), new ViolationMetaData(new Date(), 2));
+        Map<IpAddress, ViolationMetaData> actual = processor.filterAndTruncateViolators(config, doNotAutoBlockIpRangeIndex,
                 violators);
 
         assertTrue("The violators map should be empty after filtering", actual.size() == 0);
@@ -121,18 +146,18 @@ public class RateLimitingProcessorTest {
         processor.setCidrLimitForIpSetOverride(cidrLimit);
         when(config.getBlacklistDurationInMinutes()).thenReturn(10);
 
-        RangeSet<Integer> rangeSet = TreeRangeSet.create();
+        IpRangeIndex rangeSet = IpRangeIndex.empty();
 
-        Map<String, ViolationMetaData> violators = new HashMap<>();
-        violators.put("50.39.100.193", new ViolationMetaData(new Date(), 3));
-        violators.put("50.39.100.191", new ViolationMetaData(new Date(), 1));
-        violators.put("50.39.100.192", new ViolationMetaData(new Date(), 2));
-        violators.put("50.39.100.194", new ViolationMetaData(new Date(), 4));
-        Map<String, ViolationMetaData> actual = processor.filterAndTruncateViolators(config, rangeSet, violators);
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("50.39.100.193"), new ViolationMetaData(new Date(), 3));
+        violators.put(IpAddress.parse("50.39.100.191"), new ViolationMetaData(new Date(), 1));
+        violators.put(IpAddress.parse("50.39.100.192"), new ViolationMetaData(new Date(), 2));
+        violators.put(IpAddress.parse("50.39.100.194"), new ViolationMetaData(new Date(), 4));
+        Map<IpAddress, ViolationMetaData> actual = processor.filterAndTruncateViolators(config, rangeSet, violators);
 
         assertTrue("The violators map should be the size of the cidr limit", actual.size() == cidrLimit);
         assertTrue("violators should contain 193 and 194 the highest offenders",
-                actual.containsKey("50.39.100.193") && actual.containsKey("50.39.100.194"));
+                actual.containsKey(IpAddress.parse("50.39.100.193")) && actual.containsKey(IpAddress.parse("50.39.100.194")));
     }
 
     @Test
@@ -140,22 +165,20 @@ public class RateLimitingProcessorTest {
         String fakeIpSet = "foo";
         when(config.getRateLimitAutoBlacklistIpSetId()).thenReturn(fakeIpSet);
 
-        List<SubnetUtils.SubnetInfo> currentlyAutoBlocked = new LinkedList<>();
-        SubnetUtils subnetUtils = new SubnetUtils("192.168.0.1/32");
-        subnetUtils.setInclusiveHostCount(true);
-        SubnetUtils.SubnetInfo info = subnetUtils.getInfo();
+        List<IpPrefix> currentlyAutoBlocked = new LinkedList<>();
+        IpPrefix info = IpPrefix.parse("192.168.0.1/32");
         currentlyAutoBlocked.add(info);
 
-        doReturn(currentlyAutoBlocked).when(processor).getIpSet(fakeIpSet, 0);
+        doReturn(currentlyAutoBlocked).when(processor).getIpSet(fakeIpSet);
 
-        Map<String, ViolationMetaData> violators = new HashMap<>();
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
 
         processor.processViolators(config, violators);
 
         List<IPSetUpdate> expectedUpdates = new LinkedList<>();
         IPSetDescriptor descriptor = new IPSetDescriptor()
                 .withType(IPSetDescriptorType.IPV4)
-                .withValue(info.getCidrSignature());
+                .withValue(info.toCidr());
 
         IPSetUpdate update = new IPSetUpdate().withIPSetDescriptor(descriptor).withAction(ChangeAction.DELETE);
         expectedUpdates.add(update);
@@ -171,16 +194,14 @@ public class RateLimitingProcessorTest {
         String fakeIpSet = "foo";
         when(config.getRateLimitAutoBlacklistIpSetId()).thenReturn(fakeIpSet);
 
-        List<SubnetUtils.SubnetInfo> currentlyAutoBlocked = new LinkedList<>();
-        SubnetUtils subnetUtils = new SubnetUtils("192.168.0.1/32");
-        subnetUtils.setInclusiveHostCount(true);
-        SubnetUtils.SubnetInfo info = subnetUtils.getInfo();
+        List<IpPrefix> currentlyAutoBlocked = new LinkedList<>();
+        IpPrefix info = IpPrefix.parse("192.168.0.1/32");
         currentlyAutoBlocked.add(info);
 
-        doReturn(currentlyAutoBlocked).when(processor).getIpSet(fakeIpSet, 0);
+        doReturn(currentlyAutoBlocked).when(processor).getIpSet(fakeIpSet);
 
-        Map<String, ViolationMetaData> violators = new HashMap<>();
-        violators.put("192.168.0.1", new ViolationMetaData(new Date(), 10));
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("192.168.0.1"), new ViolationMetaData(new Date(), 10));
 
         processor.processViolators(config, violators);
 
@@ -191,19 +212,16 @@ public class RateLimitingProcessorTest {
     public void testThatProcessViolatorsAddsNewIpsToIpSet() {
         String fakeIpSet = "foo";
         when(config.getRateLimitAutoBlacklistIpSetId()).thenReturn(fakeIpSet);
-        doReturn(new LinkedList<>()).when(processor).getIpSet(fakeIpSet, 0);
-        Map<String, ViolationMetaData> violators = new HashMap<>();
-        violators.put("192.168.0.1", new ViolationMetaData(new Date(), 10));
+        doReturn(new LinkedList<>()).when(processor).getIpSet(fakeIpSet);
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("192.168.0.1"), new ViolationMetaData(new Date(), 10));
 
         processor.processViolators(config, violators);
 
         List<IPSetUpdate> expectedUpdates = new LinkedList<>();
-        SubnetUtils subnetUtils = new SubnetUtils("192.168.0.1/32");
-        subnetUtils.setInclusiveHostCount(true);
-        SubnetUtils.SubnetInfo info = subnetUtils.getInfo();
         IPSetDescriptor descriptor = new IPSetDescriptor()
                 .withType(IPSetDescriptorType.IPV4)
-                .withValue(info.getCidrSignature());
+                .withValue("192.168.0.1/32");
 
         IPSetUpdate update = new IPSetUpdate().withIPSetDescriptor(descriptor).withAction(ChangeAction.INSERT);
         expectedUpdates.add(update);
@@ -214,10 +232,70 @@ public class RateLimitingProcessorTest {
                 .withChangeToken(CHANGE_TOKEN));
     }
 
+    @Test
+    public void testThatProcessLogEventsReadsEachIpSetOncePerRun() {
+        when(config.getManualBlacklistIpSetId()).thenReturn("black");
+        when(config.getManualWhitelistIpSetId()).thenReturn("white");
+        when(config.getRateLimitAutoBlacklistIpSetId()).thenReturn("auto");
+        when(config.getRequestPerIntervalLimit()).thenReturn(1);
+        when(config.getBlacklistDurationInMinutes()).thenReturn(10);
+        doReturn(Collections.singletonList(IpPrefix.parse("10.0.0.0/8"))).when(processor).getIpSet("black");
+        doReturn(new LinkedList<>()).when(processor).getIpSet("white");
+        doReturn(new LinkedList<>()).when(processor).getIpSet("auto");
+        DateTime now = DateTime.now(DateTimeZone.UTC);
+        List<ALBAccessLogEvent> events = Arrays.asList(
+                event(now, "192.168.0.1"), event(now, "192.168.0.1"), event(now, "10.0.0.1"), event(now, "10.0.0.1"));
+
+        processor.processLogEvents(events, config, FAKE_BUCKET_NAME);
+        // the next run diffs against the auto block list it synced
+        processor.processLogEvents(events, config, FAKE_BUCKET_NAME);
+
+        verify(processor, times(2)).getIpSet("black");
+        verify(processor, times(2)).getIpSet("white");
+        verify(processor, times(1)).getIpSet("auto");
+        verify(awswaf, times(1)).updateIPSet(isA(UpdateIPSetRequest.class));
+    }
+
+    @Test
+    public void testThatAStaleCacheIsReadAgainAfterTheDeadlineOfTheRunHasPassed() {
+        when(config.getManualBlacklistIpSetId()).thenReturn("black");
+        when(config.getManualWhitelistIpSetId()).thenReturn("white");
+        when(config.getRateLimitAutoBlacklistIpSetId()).thenReturn("auto");
+        when(config.getRequestPerIntervalLimit()).thenReturn(1);
+        when(config.getBlacklistDurationInMinutes()).thenReturn(10);
+        doReturn(new LinkedList<>()).when(processor).getIpSet("black");
+        doReturn(new LinkedList<>()).when(processor).getIpSet("white");
+        doReturn(new LinkedList<>()).when(processor).getIpSet("auto");
+        when(awswaf.updateIPSet(isA(UpdateIPSetRequest.class)))
+                .thenReturn(null)
+                .thenThrow(new WAFNonexistentItemException("The IP set changed"))
+                .thenReturn(null);
+        DateTime now = DateTime.now(DateTimeZone.UTC);
+        processor.processLogEvents(Arrays.asList(event(now, "192.168.0.1"), event(now, "192.168.0.1")),
+                config, FAKE_BUCKET_NAME);
+
+        // the S3 reads of the warm run take longer than the deadline of its IP set reads, reading an IP set takes a
+        // round trip to WAF
+        processor.setIpSetReadTimeoutOverride(200, TimeUnit.MILLISECONDS);
+        when(amazonS3.getObject(isA(GetObjectRequest.class))).thenAnswer(invocation -> {
+            Thread.sleep(300);
+            return null;
+        });
+        doAnswer(invocation -> {
+            Thread.sleep(50);
+            return new LinkedList<>();
+        }).when(processor).getIpSet("auto");
+        processor.processLogEvents(Arrays.asList(event(now, "192.168.0.2"), event(now, "192.168.0.2")),
+                config, FAKE_BUCKET_NAME);
+
+        verify(processor, times(2)).getIpSet("auto");
+        verify(awswaf, times(3)).updateIPSet(isA(UpdateIPSetRequest.class));
+    }
+
     @Test
     public void testThatGetCurrentlyBlockedIpsAndDateViolatedMapReturnsEmptyMapWhenS3HasNoObject() {
         when(amazonS3.getObject(isA(GetObjectRequest.class))).thenReturn(null);
-        Map<String, ViolationMetaData> map = processor.getCurrentlyBlockedIpsAndDateViolatedMap(FAKE_BUCKET_NAME);
+        Map<IpAddress, ViolationMetaData> map = processor.getCurrentlyBlockedIpsAndDateViolatedMap(FAKE_BUCKET_NAME);
         assertTrue("The map should be empty", map.size() == 0);
     }
 
@@ -227,7 +305,7 @@ public class RateLimitingProcessorTest {
         S3Object object = new S3Object();
         object.setObjectContent(new ByteArrayInputStream(json.getBytes()));
         when(amazonS3.getObject(isA(GetObjectRequest.class))).thenReturn(object);
-        Map<String, ViolationMetaData> map = processor.getCurrentlyBlockedIpsAndDateViolatedMap(FAKE_BUCKET_NAME);
+        Map<IpAddress, ViolationMetaData> map = processor.getCurrentlyBlockedIpsAndDateViolatedMap(FAKE_BUCKET_NAME);
         assertTrue("The map should have one element", map.size() == 1);
     }
 
@@ -245,14 +323,102 @@ public class RateLimitingProcessorTest {
         when(ipSet.getIPSetDescriptors()).thenReturn(descriptors);
         when(awswaf.getIPSet(isA(GetIPSetRequest.class))).thenReturn(result);
 
-        List<SubnetUtils.SubnetInfo> list = processor.getIpSet("DOES NOT MATTER", 0);
+        List<IpPrefix> list = processor.getIpSet("DOES NOT MATTER");
         assertTrue("The list should contain 3 items", list.size() == 3);
     }
 
+    @Test
+    public void testThatGetIpSetReturnsIpv6BlocksAndSkipsInvalidDescriptors() {
+        GetIPSetResult result = mock(GetIPSetResult.class);
+        IPSet ipSet = mock(IPSet.class);
+        when(result.getIPSet()).thenReturn(ipSet);
+
+        List<IPSetDescriptor> descriptors = new LinkedList<>();
+        descriptors.add(new IPSetDescriptor().withType(IPSetDescriptorType.IPV4).withValue("192.168.0.1/32"));
+        descriptors.add(new IPSetDescriptor().withType(IPSetDescriptorType.IPV6).withValue("2600:1f14:0:0:0:0:0:0/64"));
+        descriptors.add(new IPSetDescriptor().withType(IPSetDescriptorType.IPV4).withValue("2600:1f14::1/128"));
+        descriptors.add(new IPSetDescriptor().withType(IPSetDescriptorType.IPV6).withValue("not an ip"));
+
+        when(ipSet.getIPSetDescriptors()).thenReturn(descriptors);
+        when(awswaf.getIPSet(isA(GetIPSetRequest.class))).thenReturn(result);
+
+        List<IpPrefix> list = processor.getIpSet("DOES NOT MATTER");
+        assertEquals(Arrays.asList(IpPrefix.parse("192.168.0.1/32"), IpPrefix.parse("2600:1f14::/64")), list);
+    }
+
+    @Test
+    public void testThatProcessViolatorsBlocksIpv6ViolatorsByTheConfiguredPrefix() {
+        String fakeIpSet = "foo";
+        when(config.getRateLimitAutoBlacklistIpSetId()).thenReturn(fakeIpSet);
+        when(config.getIpv6BlockPrefixLength()).thenReturn(64);
+        doReturn(new LinkedList<>()).when(processor).getIpSet(fakeIpSet);
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        // two violators in the same /64 share one block
+        violators.put(IpAddress.parse("2600:1f14:a:b::1"), new ViolationMetaData(new Date(), 10));
+        violators.put(IpAddress.parse("2600:1f14:a:b::2"), new ViolationMetaData(new Date(), 10));
+
+        processor.processViolators(config, violators);
+
+        IPSetDescriptor descriptor = new IPSetDescriptor()
+                .withType(IPSetDescriptorType.IPV6)
+                .withValue(IpPrefix.parse("2600:1f14:a:b::/64").toCidr());
+        verify(awswaf, times(1)).updateIPSet(new UpdateIPSetRequest()
+                .withIPSetId(fakeIpSet)
+                .withUpdates(Collections.singletonList(
+                        new IPSetUpdate().withIPSetDescriptor(descriptor).withAction(ChangeAction.INSERT)))
+                .withChangeToken(CHANGE_TOKEN));
+    }
+
+    @Test
+    public void testThatIpv6ViolatorsRoundTripThroughTheSavedState() throws Exception {
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("2600:1f14::1"), new ViolationMetaData(new Date(1476224112155L), 10));
+        violators.put(IpAddress.parse("192.168.0.1"), new ViolationMetaData(new Date(1476224112155L), 20));
+
+        processor.saveCurrentViolators(violators, FAKE_BUCKET_NAME);
+
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(amazonS3).putObject(request.capture());
+        S3Object object = new S3Object();
+        object.setObjectContent(request.getValue().getInputStream());
+        when(amazonS3.getObject(isA(GetObjectRequest.class))).thenReturn(object);
+
+        Map<IpAddress, ViolationMetaData> map = processor.getCurrentlyBlockedIpsAndDateViolatedMap(FAKE_BUCKET_NAME);
+        assertEquals(2, map.size());
+        assertEquals(10, map.get(IpAddress.parse("2600:1f14::1")).getMaxRate());
+        assertEquals(20, map.get(IpAddress.parse("192.168.0.1")).getMaxRate());
+    }
+
+    @Test
+    public void testThatTheLegacyJsonDataIsReadUntilThereIsBinaryData() {
+        String json = "{\"192.168.0.1\":{\"date\":1476224112155,\"maxRate\":10}}";
+        when(amazonS3.getObject(isA(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+            if (! request.getKey().equals(RateLimitingProcessor.LEGACY_SERIALIZED_DATA_FILE_NAME)) {
+                AmazonS3Exception e = new AmazonS3Exception("The specified key does not exist.");
+                e.setErrorCode("NoSuchKey");
+                throw e;
+            }
+            S3Object object = new S3Object();
+            object.setObjectContent(new ByteArrayInputStream(json.getBytes()));
+            return object;
+        });
+
+        Map<IpAddress, ViolationMetaData> map = processor.getCurrentlyBlockedIpsAndDateViolatedMap(FAKE_BUCKET_NAME);
+        assertEquals(1, map.size());
+        assertEquals(10, map.get(IpAddress.parse("192.168.0.1")).getMaxRate());
+
+        // the next save migrates the data to the binary format
+        processor.saveCurrentViolators(map, FAKE_BUCKET_NAME);
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(amazonS3).putObject(request.capture());
+        assertEquals(RateLimitingProcessor.SERIALIZED_DATA_FILE_NAME, request.getValue().getKey());
+    }
+
     @Test
     public void testThatSaveCurrentViolatorsCallsPutObject() {
-        Map<String, ViolationMetaData> violators = new HashMap<>();
-        violators.put("192.168.0.1", new ViolationMetaData(new Date(), 10));
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("192.168.0.1"), new ViolationMetaData(new Date(), 10));
 
         processor.saveCurrentViolators(violators, FAKE_BUCKET_NAME);
 
@@ -260,30 +426,25 @@ public class RateLimitingProcessorTest {
     }
 
     @Test
-    public void testThatGetDoNotBlockRangeSetBuildsARangeSet() {
+    public void testThatGetDoNotBlockRangeIndexBuildsARangeIndex() {
         // stub the black list
         String black = "black";
         when(config.getManualBlacklistIpSetId()).thenReturn(black);
-        List<SubnetUtils.SubnetInfo> blackList = Lists.newLinkedList();
+        List<IpPrefix> blackList = Lists.newLinkedList();
         // 192.168.0.0-192.168.0.255
-        SubnetUtils bSubnetUtils = new SubnetUtils("192.168.0.0/24");
-        bSubnetUtils.setInclusiveHostCount(true);
-        SubnetUtils.SubnetInfo bInfo = bSubnetUtils.getInfo();
-        blackList.add(bInfo);
-        doReturn(blackList).when(processor).getIpSet(black, 0);
+        blackList.add(IpPrefix.parse("192.168.0.0/24"));
+        doReturn(blackList).when(processor).getIpSet(black);
 
         // stub the white list
         String white = "white";
         when(config.getManualWhitelistIpSetId()).thenReturn(white);
-        List<SubnetUtils.SubnetInfo> whiteList = Lists.newLinkedList();
+        List<IpPrefix> whiteList = Lists.newLinkedList();
         // 192.150.0.0-192.150.0.255
-        SubnetUtils wSubnetUtils = new SubnetUtils("192.150.0.0/24");
-        wSubnetUtils.setInclusiveHostCount(true);
-        SubnetUtils.SubnetInfo wInfo = wSubnetUtils.getInfo();
-        whiteList.add(wInfo);
-        doReturn(whiteList).when(processor).getIpSet(white, 0);
+        whiteList.add(IpPrefix.parse("192.150.0.0/24"));
+        whiteList.add(IpPrefix.parse("2600:1f14::/32"));
+        doReturn(whiteList).when(processor).getIpSet(white);
 
-        RangeSet<Integer> doNotBlock = processor.getDoNotBlockRangeSet(config);
+        Ipv4RangeIndex doNotBlock = processor.getDoNotBlockRangeIndex(config).getIpv4Ranges();
 
         SubnetUtils utils = new SubnetUtils("0.0.0.0/24");
         Integer onTheBlackListLow = utils.getInfo().asInteger("192.168.0.0");
@@ -297,33 +458,384 @@ public class RateLimitingProcessorTest {
         assertTrue("192.150.0.0 is in the ip range represented by 192.150.0.0/24 and therefor should be in the doNotBlock range set", doNotBlock.contains(onTheWhiteListLow));
         assertTrue("192.150.0.255 is in the ip range represented by 192.150.0.0/24 and therefor should be in the doNotBlock range set", doNotBlock.contains(onTheWhiteListHigh));
         assertFalse("192.168.1.1 is not in 192.168.0.0/24 or 192.150.0.0/24 and should not be in the doNotBlock range set", doNotBlock.contains(shouldBeBlocked));
+        assertTrue(processor.getDoNotBlockRangeIndex(config).contains(IpAddress.parse("2600:1f14:ffff::1")));
     }
 
     @Test
     public void testThatGetCurrentViolatorsReturnsAMapOfIpAddressToMetaData() {
         when(config.getRequestPerIntervalLimit()).thenReturn(2);
-        Map<String, Integer> map = Maps.newHashMap();
-        map.put("108.171.135.164", 10);
-        map.put("108.171.135.160", 1);
+        IpAddressCounter counter = new IpAddressCounter();
+        counter.add(IpAddress.parse("108.171.135.164"), 10);
+        counter.add(IpAddress.parse("108.171.135.160"), 1);
 
-        Map<String, ViolationMetaData> violators = processor.getCurrentViolators(map, config);
+        Map<IpAddress, ViolationMetaData> violators = processor.getCurrentViolators(counter, config);
 
         assertTrue("The map should have one violator", violators.size() == 1);
-        assertTrue("The map should should contain 108.171.135.164", violators.containsKey("108.171.135.164"));
-        assertTrue(violators.get("108.171.135.164").getMaxRate() == 10);
+        assertTrue("The map should should contain 108.171.135.164", violators.containsKey(IpAddress.parse("108.171.135.164")));
+        assertTrue(violators.get(IpAddress.parse("108.171.135.164")).getMaxRate() == 10);
     }
 
     @Test
     public void testThatGetCurrentViolatorsReturnsAMapOfIpAddressToMetaDataAndContainsTheHighestRate() {
         when(config.getRequestPerIntervalLimit()).thenReturn(2);
-        Map<String, Integer> map = Maps.newHashMap();
-        map.put("109.171.135.160", 10);
-        map.put("109.171.135.160", 20);
+        IpAddressCounter counter = new IpAddressCounter();
+        counter.add(IpAddress.parse("109.171.135.160"), 10);
+        counter.add(IpAddress.parse("109.171.135.160"), 10);
+        counter.add(IpAddress.parse("2001:db8::1"), 1);
 
-        Map<String, ViolationMetaData> violators = processor.getCurrentViolators(map, config);
+        Map<IpAddress, ViolationMetaData> violators = processor.getCurrentViolators(counter, config);
 
         assertTrue("The map should have one violator", violators.size() == 1);
-        assertTrue("The map should should contain 109.171.135.164", violators.containsKey("109.171.135.160"));
-        assertTrue(violators.get("109.171.135.160").getMaxRate() == 20);
+        assertTrue("The map should should contain 109.171.135.164", violators.containsKey(IpAddress.parse("109.171.135.160")));
+        assertTrue(violators.get(IpAddress.parse("109.171.135.160")).getMaxRate() == 20);
+    }
+
+    @Test
+    public void testThatCanAddToAutoBlackListOnlyAcceptsBlocksOutsideOfTheRangeIndex() {
+        IpRangeIndex doNotAutoBlockIpRangeIndex = IpRangeIndex.builder()
+                .addCidr("192.168.0.0/24")
+                .addCidr("2600:1f14:a:b::5/128")
+                .build();
+
+        assertFalse(processor.canAddToAutoBlackList(doNotAutoBlockIpRangeIndex, IpPrefix.parse("192.168.0.10/32")));
+        assertTrue(processor.canAddToAutoBlackList(doNotAutoBlockIpRangeIndex, IpPrefix.parse("192.168.1.10/32")));
+        assertTrue(processor.canAddToAutoBlackList(doNotAutoBlockIpRangeIndex, IpPrefix.parse("2600:1f14::1/128")));
+        assertFalse(processor.canAddToAutoBlackList(doNotAutoBlockIpRangeIndex, IpPrefix.parse("2600:1f14:a:b::5/128")));
+        // a /64 block would cover the white listed address
+        assertFalse(processor.canAddToAutoBlackList(doNotAutoBlockIpRangeIndex, IpPrefix.parse("2600:1f14:a:b::/64")));
+    }
+
+    @Test
+    public void testThatFilterAndTruncateViolatorsFiltersIpv6ViolatorsWhoseBlockCoversTheWhiteList() {
+        when(config.getBlacklistDurationInMinutes()).thenReturn(10);
+        when(config.getIpv6BlockPrefixLength()).thenReturn(64);
+        IpRangeIndex doNotAutoBlockIpRangeIndex = IpRangeIndex.builder().addCidr("2600:1f14:a:b::5/128").build();
+
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("2600:1f14:a:b::1"), new ViolationMetaData(new Date(), 10));
+        violators.put(IpAddress.parse("2600:1f14:a:c::1"), new ViolationMetaData(new Date(), 10));
+        Map<IpAddress, ViolationMetaData> actual = processor.filterAndTruncateViolators(config,
+                doNotAutoBlockIpRangeIndex, violators);
+
+        assertEquals(Collections.singleton(IpAddress.parse("2600:1f14:a:c::1")), actual.keySet());
+    }
+
+    @Test
+    public void testThatTheAbuseScoreCatchesIpsThatStayUnderTheLimit() {
+        when(config.getAbuseScoreThreshold()).thenReturn(200.0);
+        when(config.getIntervalInMins()).thenReturn(20);
+        IpAddress steady = IpAddress.parse("50.39.100.194");
+        IpAddress quiet = IpAddress.parse("50.39.100.195");
+        AbuseScoreTable abuseScores = new AbuseScoreTable(60, 16);
+
+        List<Integer> violatingRuns = new LinkedList<>();
+        for (int run = 0; run < 5; run++) {
+            processor.setClockOverride(Clock.fixed(Instant.ofEpochSecond(1500000000L + run * 20 * 60), ZoneOffset.UTC));
+            IpAddressCounter counter = new IpAddressCounter();
+            // under a limit of 100 every single run
+            counter.add(steady, 90);
+            counter.add(quiet, 5);
+            Map<IpAddress, ViolationMetaData> violators = processor.getAbuseScoreViolators(counter, abuseScores,
+                    processor.getScoreUntilEpochMinute(config), config);
+            if (violators.containsKey(steady)) {
+                violatingRuns.add(run);
+            }
+            assertFalse(violators.containsKey(quiet));
+        }
+
+        // 90, 161, 218, ... with a third of a half-life between runs
+        assertEquals(Arrays.asList(2, 3, 4), violatingRuns);
+        // the quiet ip could never reach the threshold, so it was never scored
+        assertEquals(1, abuseScores.size());
+    }
+
+    @Test
+    public void testThatEveryRequestIsScoredOnceWhenRunsOverlap() throws Exception {
+        when(config.getAbuseScoreThreshold()).thenReturn(300.0);
+        when(config.getAbuseScoreHalfLifeInMins()).thenReturn(60);
+        when(config.getAbuseScoreMaxIps()).thenReturn(100);
+        when(config.getIntervalInMins()).thenReturn(20);
+        when(config.getRequestPerIntervalLimit()).thenReturn(1000);
+        IpAddress steady = IpAddress.parse("50.39.100.194");
+        IpAddress quiet = IpAddress.parse("50.39.100.195");
+        DateTime start = new DateTime(2017, 10, 2, 17, 0, DateTimeZone.UTC);
+        AbuseScoreTable abuseScores = new AbuseScoreTable(60, 16);
+
+        List<Integer> violatingMinutes = new LinkedList<>();
+        for (int minute = 20; minute <= 240; minute += 5) {
+            // a run every 5 minutes reads the last 20 minutes of logs
+            List<ALBAccessLogEvent> events = new LinkedList<>();
+            for (int logMinute = minute - 20; logMinute < minute; logMinute++) {
+                for (int i = 0; i < 4; i++) {
+                    events.add(event(start.plusMinutes(logMinute).plusSeconds(i), steady.toString()));
+                }
+                for (int i = 0; i < 3; i++) {
+                    events.add(event(start.plusMinutes(logMinute).plusSeconds(i), quiet.toString()));
+                }
+            }
+
+            Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+            abuseScores = scoreRun(start.plusMinutes(minute), events, abuseScores, violators);
+            if (violators.containsKey(steady)) {
+                violatingMinutes.add(minute);
+            }
+            assertFalse(violators.containsKey(quiet));
+        }
+
+        // 4 requests a minute settle at 4 * 60 / ln 2 = 346, 300 is reached after close to 3 half-lives of scored
+        // minutes, which trail the runs by 10 minutes, scoring every request 4 times would get there within half an hour
+        assertEquals(180, (int) violatingMinutes.get(0));
+        // 3 requests a minute settle under the threshold, 15 requests per run are under the floor so it is not scored
+        assertEquals(-1, abuseScores.ordinalOf(quiet));
+    }
+
+    @Test
+    public void testThatLateLogFilesAreStillScored() throws Exception {
+        when(config.getAbuseScoreThreshold()).thenReturn(2000.0);
+        // long enough for the scores to barely decay over the test
+        when(config.getAbuseScoreHalfLifeInMins()).thenReturn(1000000);
+        when(config.getAbuseScoreMaxIps()).thenReturn(100);
+        when(config.getIntervalInMins()).thenReturn(20);
+        when(config.getRequestPerIntervalLimit()).thenReturn(1000);
+        IpAddress ip = IpAddress.parse("50.39.100.194");
+        DateTime start = new DateTime(2017, 10, 2, 17, 0, DateTimeZone.UTC);
+        AbuseScoreTable abuseScores = new AbuseScoreTable(1000000, 16);
+
+        for (int minute = 20; minute <= 120; minute += 5) {
+            // 10 requests a minute through two load balancer nodes, the file of the second one shows up 8 minutes late
+            List<ALBAccessLogEvent> events = new LinkedList<>();
+            for (int logMinute = minute - 20; logMinute < minute; logMinute++) {
+                for (int i = 0; i < 5; i++) {
+                    events.add(event(start.plusMinutes(logMinute).plusSeconds(i), ip.toString()));
+                    if (logMinute < minute - 8) {
+                        events.add(event(start.plusMinutes(logMinute).plusSeconds(30 + i), ip.toString()));
+                    }
+                }
+            }
+            abuseScores = scoreRun(start.plusMinutes(minute), events, abuseScores, new HashMap<>());
+        }
+
+        // the last run scored up to minute 110, every request of the 110 minutes before it is in the score
+        assertEquals(toEpochMinute(start.plusMinutes(110)), abuseScores.getScoredUntilEpochMinute());
+        assertEquals(1100, abuseScores.getScore(abuseScores.ordinalOf(ip), abuseScores.getScoredUntilEpochMinute()), 1);
+    }
+
+    @Test
+    public void testThatRepeatViolationsGetLongerBlocksUpToTheMax() {
+        when(config.getBlacklistDurationInMinutes()).thenReturn(10);
+        when(config.getMaxBlacklistDurationInMinutes()).thenReturn(25);
+        IpAddress ip = IpAddress.parse("50.39.100.194");
+        AbuseScoreTable abuseScores = new AbuseScoreTable(60, 16);
+
+        List<Integer> durations = new LinkedList<>();
+        for (int violation = 0; violation < 3; violation++) {
+            Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+            violators.put(ip, new ViolationMetaData(new Date(), 200));
+            processor.escalateNewViolations(config, abuseScores, violators, new HashMap<>());
+            durations.add(violators.get(ip).getBlockDurationInMinutes());
+        }
+        assertEquals(Arrays.asList(null, 20, 25), durations);
+
+        // a violator that is still blocked does not violate again
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(ip, new ViolationMetaData(new Date(), 200));
+        Map<IpAddress, ViolationMetaData> currentlyBlocked = new HashMap<>();
+        currentlyBlocked.put(ip, new ViolationMetaData(new Date(), 200));
+        processor.escalateNewViolations(config, abuseScores, violators, currentlyBlocked);
+        assertEquals(3, abuseScores.getViolations(abuseScores.ordinalOf(ip)));
+
+        // an escalated block outlasts the configured duration
+        ViolationMetaData escalated = new ViolationMetaData(new Date(new Date().getTime() - 15 * 60000), 200);
+        escalated.setBlockDurationInMinutes(20);
+        violators = new HashMap<>();
+        violators.put(ip, escalated);
+        assertEquals(1, processor.filterAndTruncateViolators(config, IpRangeIndex.empty(), violators).size());
+    }
+
+    @Test
+    public void testThatARepeatOffenderIsRememberedAfterItsLongestBlockHasExpired() throws Exception {
+        when(config.getAbuseScoreThreshold()).thenReturn(300.0);
+        when(config.getAbuseScoreHalfLifeInMins()).thenReturn(60);
+        when(config.getAbuseScoreMaxIps()).thenReturn(100);
+        when(config.getIntervalInMins()).thenReturn(20);
+        when(config.getBlacklistDurationInMinutes()).thenReturn(60);
+        when(config.getMaxBlacklistDurationInMinutes()).thenReturn(240);
+        IpAddress ip = IpAddress.parse("50.39.100.194");
+        DateTime start = new DateTime(2017, 10, 2, 17, 0, DateTimeZone.UTC);
+        AbuseScoreTable abuseScores = new AbuseScoreTable(60, 16);
+
+        List<Integer> durations = new LinkedList<>();
+        // the third violation gets the max block, which runs out at minute 420, long after the score has decayed
+        for (int minute : new int[] {0, 60, 180, 480}) {
+            processor.setClockOverride(Clock.fixed(Instant.ofEpochMilli(start.plusMinutes(minute).getMillis()),
+                    ZoneOffset.UTC));
+            // a run without the violator, its score is too low to keep
+            abuseScores = saveAndRead(processor.compactAbuseScores(config, abuseScores, new HashMap<>()),
+                    start.plusMinutes(minute));
+
+            Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+            violators.put(ip, new ViolationMetaData(start.plusMinutes(minute).toDate(), 200));
+            processor.escalateNewViolations(config, abuseScores, violators, new HashMap<>());
+            durations.add(violators.get(ip).getBlockDurationInMinutes());
+            abuseScores = saveAndRead(processor.compactAbuseScores(config, abuseScores, violators),
+                    start.plusMinutes(minute));
+        }
+        assertEquals(Arrays.asList(null, 120, 240, 240), durations);
+
+        // twice the max blacklist duration after the last violation it is forgotten
+        processor.setClockOverride(Clock.fixed(Instant.ofEpochMilli(start.plusMinutes(961).getMillis()),
+                ZoneOffset.UTC));
+        abuseScores = processor.compactAbuseScores(config, abuseScores, new HashMap<>());
+        assertEquals(-1, abuseScores.ordinalOf(ip));
+    }
+
+    @Test
+    public void testThatFilterAndTruncateViolatorsAppliesTheLimitToTheAggregatedCidrs() {
+        processor.setCidrLimitForIpSetOverride(2);
+        when(config.getBlacklistDurationInMinutes()).thenReturn(10);
+        when(config.getCidrAggregationDensity()).thenReturn(0.5);
+        IpRangeIndex doNotAutoBlockIpRangeIndex = IpRangeIndex.empty();
+
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        for (int host = 0; host < 200; host++) {
+            violators.put(IpAddress.parse("203.0.113." + host), new ViolationMetaData(new Date(), 5));
+        }
+        violators.put(IpAddress.parse("198.51.100.7"), new ViolationMetaData(new Date(), 100));
+        violators.put(IpAddress.parse("192.0.2.1"), new ViolationMetaData(new Date(), 1));
+        Map<IpAddress, ViolationMetaData> actual = processor.filterAndTruncateViolators(config,
+                doNotAutoBlockIpRangeIndex, violators);
+
+        assertEquals(201, actual.size());
+        assertFalse(actual.containsKey(IpAddress.parse("192.0.2.1")));
+        assertEquals(Sets.newHashSet(IpPrefix.parse("198.51.100.7/32"), IpPrefix.parse("203.0.113.0/24")),
+                processor.getBlocks(config, doNotAutoBlockIpRangeIndex, actual));
+    }
+
+    @Test
+    public void testThatRateLimitRulesAreCountedInTheSamePassAndApplyTheirOwnLimits() {
+        when(config.getRequestPerIntervalLimit()).thenReturn(100);
+        when(config.getIntervalInMins()).thenReturn(20);
+        when(config.getRateLimitWindowInMins()).thenReturn(20);
+        RateLimitRules rules = new RateLimitRules(RateLimitRule.parseAll("path:/dash=10,method:POST=1000"));
+        DateTime start = new DateTime(2017, 10, 2, 17, 0, DateTimeZone.UTC);
+        List<ALBAccessLogEvent> events = new LinkedList<>();
+        for (int i = 0; i < 20; i++) {
+            // 20 requests to /dashboard is under the interval limit but over the limit for /dash
+            events.add(event(start.plusSeconds(i), "50.39.100.1"));
+        }
+        for (int i = 0; i < 5; i++) {
+            events.add(event(start.plusSeconds(i), "50.39.100.2"));
+        }
+        RuleIpCounter ruleCounter = processor.createRuleCounter(config);
+
+        IpAddressCounter counter = processor.countRequests(events, config, rules, ruleCounter);
+        Map<IpAddress, ViolationMetaData> violators = processor.getCurrentRuleViolators(ruleCounter, rules, config);
+
+        assertEquals(2, counter.size());
+        assertTrue(processor.getCurrentViolators(counter, config).isEmpty());
+        assertEquals(Collections.singleton(IpAddress.parse("50.39.100.1")), violators.keySet());
+        assertEquals(20, violators.get(IpAddress.parse("50.39.100.1")).getMaxRate());
+    }
+
+    @Test
+    public void testThatGetCurrentViolatorsAppliesTheLimitToTheBusiestWindow() {
+        when(config.getRequestPerIntervalLimit()).thenReturn(30);
+        when(config.getIntervalInMins()).thenReturn(20);
+        when(config.getRateLimitWindowInMins()).thenReturn(2);
+        DateTime start = new DateTime(2017, 10, 2, 17, 0, DateTimeZone.UTC);
+        IpAddressCounter counter = processor.createRequestCounter(config);
+        for (int minute = 0; minute < 20; minute++) {
+            // a steady client, 100 requests in total but never more than 10 in 2 minutes
+            for (int i = 0; i < 5; i++) {
+                processor.processRequest(event(start.plusMinutes(minute).plusSeconds(i), "50.39.100.1"), counter);
+            }
+        }
+        for (int i = 0; i < 40; i++) {
+            // a burst of 40 requests in the 12th and 13th minutes
+            processor.processRequest(event(start.plusMinutes(12).plusSeconds(i * 3), "50.39.100.2"), counter);
+        }
+
+        Map<IpAddress, ViolationMetaData> violators = processor.getCurrentViolators(counter, config);
+
+        assertEquals(1, violators.size());
+        assertEquals(40, (int) violators.get(IpAddress.parse("50.39.100.2")).getMaxRate());
+    }
+
+    @Test
+    public void testThatGetCurrentViolatorsAppliesTheLimitToTheWholeIntervalByDefault() {
+        when(config.getRequestPerIntervalLimit()).thenReturn(30);
+        when(config.getIntervalInMins()).thenReturn(20);
+        when(config.getRateLimitWindowInMins()).thenReturn(20);
+        DateTime start = new DateTime(2017, 10, 2, 17, 0, DateTimeZone.UTC);
+        IpAddressCounter counter = processor.createRequestCounter(config);
+        for (int minute = 0; minute < 20; minute++) {
+            for (int i = 0; i < 5; i++) {
+                processor.processRequest(event(start.plusMinutes(minute).plusSeconds(i), "50.39.100.1"), counter);
+            }
+        }
+
+        Map<IpAddress, ViolationMetaData> violators = processor.getCurrentViolators(counter, config);
+
+        assertEquals(100, (int) violators.get(IpAddress.parse("50.39.100.1")).getMaxRate());
+    }
+
+    @Test
+    public void testThatHeavyHitterModeFindsTheSameViolatorsAsTheExactCountsInBoundedMemory() {
+        when(config.getRequestPerIntervalLimit()).thenReturn(100);
+        when(config.getIntervalInMins()).thenReturn(20);
+        when(config.getRateLimitWindowInMins()).thenReturn(20);
+        DateTime start = new DateTime(2017, 10, 2, 17, 0, DateTimeZone.UTC);
+        Random random = new Random(23);
+        List<ALBAccessLogEvent> events = new LinkedList<>();
+        for (int i = 0; i < 60000; i++) {
+            // 20 clients around the limit of 100 requests, hidden in a flood of 20000 clients making 2 requests each
+            String ip = random.nextInt(30) == 0 ? "10.0.0." + random.nextInt(20) :
+                    "11.0." + random.nextInt(100) + "." + random.nextInt(200);
+            events.add(event(start.plusMillis(i * 20), ip));
+        }
+
+        Map<IpAddress, ViolationMetaData> exact = processor.getCurrentViolators(processor.countRequests(events, config), config);
+        when(config.getHeavyHitterErrorBound()).thenReturn(0.001);
+        IpAddressCounter candidates = processor.countRequests(events, config);
+        Map<IpAddress, ViolationMetaData> approximate = processor.getCurrentViolators(candidates, config);
+
+        assertFalse(exact.isEmpty());
+        assertEquals(exact.keySet(), approximate.keySet());
+        exact.forEach((ip, metaData) -> assertEquals(metaData.getMaxRate(), approximate.get(ip).getMaxRate()));
+        // only candidates were counted, not the ~20000 distinct clients
+        assertTrue(candidates.size() <= 1000);
+    }
+
+    /**
+     * Runs the abuse score part of a run at the given time and round trips the scores the way the runs save them
+     */
+    private AbuseScoreTable scoreRun(DateTime now, List<ALBAccessLogEvent> events, AbuseScoreTable abuseScores,
+                                     Map<IpAddress, ViolationMetaData> violators) throws IOException {
+        processor.setClockOverride(Clock.fixed(Instant.ofEpochMilli(now.getMillis()), ZoneOffset.UTC));
+        IpAddressCounter counter = processor.countRequests(events, config);
+        int scoreUntil = processor.getScoreUntilEpochMinute(config);
+        IpAddressCounter newRequests = processor.countRequestsToScore(events,
+                abuseScores.getScoredUntilEpochMinute(), scoreUntil, counter);
+        violators.putAll(processor.getAbuseScoreViolators(newRequests, abuseScores, scoreUntil, config));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AbuseScoreTable compacted = processor.compactAbuseScores(config, abuseScores, violators);
+        compacted.writeTo(new DataOutputStream(bytes), compacted.getScoredUntilEpochMinute());
+        return AbuseScoreTable.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                config.getAbuseScoreHalfLifeInMins());
+    }
+
+    private static AbuseScoreTable saveAndRead(AbuseScoreTable abuseScores, DateTime now) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        abuseScores.writeTo(new DataOutputStream(bytes), toEpochMinute(now));
+        return AbuseScoreTable.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 60);
+    }
+
+    private static int toEpochMinute(DateTime time) {
+        return (int) TimeUnit.MILLISECONDS.toMinutes(time.getMillis());
+    }
+
+    private static ALBAccessLogEvent event(DateTime time, String ip) {
+        return AccessLogLine.http1Line().at(time).from(ip).toEvent();
     }
 }
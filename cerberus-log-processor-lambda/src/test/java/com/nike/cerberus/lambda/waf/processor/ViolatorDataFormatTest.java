@@ -0,0 +1,107 @@
+package com.nike.cerberus.lambda.waf.processor;
+
+import com.nike.cerberus.lambda.waf.ViolationMetaData;
+import com.nike.cerberus.lambda.waf.ip.IpAddress;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ViolatorDataFormatTest {
+
+    private static final long MINUTE = 25000000L;
+
+    @Test
+    public void test_that_violators_round_trip_to_the_minute() throws IOException {
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("192.168.0.1"), new ViolationMetaData(new Date(MINUTE * 60000 + 59999), 20));
+        violators.put(IpAddress.parse("255.255.255.255"), new ViolationMetaData(new Date(MINUTE * 60000), 0));
+        ViolationMetaData escalated = new ViolationMetaData(new Date(MINUTE * 60000), 1 << 30);
+        escalated.setBlockDurationInMinutes(240);
+        violators.put(IpAddress.parse("2600:1f14::1"), escalated);
+
+        byte[] bytes = ViolatorDataFormat.write(violators);
+        ViolatorDataFormat.ViolatorData data = ViolatorDataFormat.read(new ByteArrayInputStream(bytes));
+        Map<IpAddress, ViolationMetaData> read = data.toMap();
+
+        assertEquals(3, data.size());
+        assertEquals(violators.keySet(), read.keySet());
+        ViolationMetaData metaData = read.get(IpAddress.parse("192.168.0.1"));
+        assertEquals(MINUTE * 60000, metaData.getDate().getTime());
+        assertEquals(20, metaData.getMaxRate());
+        assertNull(metaData.getBlockDurationInMinutes());
+        assertEquals(0, read.get(IpAddress.parse("255.255.255.255")).getMaxRate());
+        assertEquals(1 << 30, read.get(IpAddress.parse("2600:1f14::1")).getMaxRate());
+        assertEquals(Integer.valueOf(240), read.get(IpAddress.parse("2600:1f14::1")).getBlockDurationInMinutes());
+        // a 5 byte header, 2 counts, 2 * (4 + 4 + 1 + 1) for IPv4 and 16 + 4 + 5 + 2 for IPv6
+        assertEquals(5 + 2 + 20 + 27, bytes.length);
+    }
+
+    @Test
+    public void test_that_the_data_is_sorted_and_large_data_is_gzipped() throws IOException {
+        Map<IpAddress, ViolationMetaData> ascending = new LinkedHashMap<>();
+        Map<IpAddress, ViolationMetaData> descending = new LinkedHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            ascending.put(IpAddress.ofIpv4(0x0A000000 + i), new ViolationMetaData(new Date(MINUTE * 60000), 300 + i % 7));
+            descending.put(IpAddress.ofIpv4(0x0A000000 + 999 - i),
+                    new ViolationMetaData(new Date(MINUTE * 60000), 300 + (999 - i) % 7));
+        }
+
+        byte[] bytes = ViolatorDataFormat.write(ascending);
+
+        assertArrayEquals(bytes, ViolatorDataFormat.write(descending));
+        assertEquals(1, bytes[4]);
+        // under a third of the 10 bytes per violator before compression
+        assertTrue(bytes.length < 10 * 1000 / 3);
+        Map<IpAddress, ViolationMetaData> read = ViolatorDataFormat.read(new ByteArrayInputStream(bytes)).toMap();
+        assertEquals(1000, read.size());
+        assertEquals(305, read.get(IpAddress.ofIpv4(0x0A000000 + 999)).getMaxRate());
+    }
+
+    @Test
+    public void test_that_legacy_json_is_told_apart_without_consuming_it() throws IOException {
+        InputStream json = new BufferedInputStream(new ByteArrayInputStream(
+                "{\"192.168.0.1\":{\"date\":1476224112155,\"maxRate\":10}}".getBytes()));
+        assertFalse(ViolatorDataFormat.isBinary(json));
+        assertEquals('{', json.read());
+
+        InputStream binary = new BufferedInputStream(new ByteArrayInputStream(ViolatorDataFormat.write(new HashMap<>())));
+        assertTrue(ViolatorDataFormat.isBinary(binary));
+        assertEquals(0, ViolatorDataFormat.read(binary).size());
+    }
+
+    @Test
+    public void test_that_unknown_versions_and_truncated_data_are_rejected() throws IOException {
+        Map<IpAddress, ViolationMetaData> violators = new HashMap<>();
+        violators.put(IpAddress.parse("192.168.0.1"), new ViolationMetaData(new Date(), 20));
+        byte[] bytes = ViolatorDataFormat.write(violators);
+
+        byte[] newerVersion = bytes.clone();
+        newerVersion[3] = (byte) (ViolatorDataFormat.VERSION + 1);
+        assertRejected(newerVersion);
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    private static void assertRejected(byte[] bytes) {
+        try {
+            ViolatorDataFormat.read(new ByteArrayInputStream(bytes));
+            fail("Expected the data to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.nike.cerberus.lambda.waf.replay;
+
+import com.amazonaws.regions.Regions;
+import com.nike.cerberus.lambda.waf.AccessLogLine;
+import com.nike.cerberus.lambda.waf.LogProcessorLambdaConfig;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogReplayTest {
+
+    private static final DateTime START = new DateTime(2017, 10, 2, 17, 0, DateTimeZone.UTC);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_that_a_busy_ip_is_blocked_and_unblocked_on_the_log_time() throws IOException {
+        // 1.1.1.1 sends 50 requests a minute between 17:00 and 17:10, 2.2.2.2 sends 5 a minute for an hour and a half
+        List<String> firstFile = new ArrayList<>();
+        List<String> laterFile = new ArrayList<>();
+        for (int minute = 0; minute < 90; minute++) {
+            List<String> lines = minute < 10 ? firstFile : laterFile;
+            for (int i = 0; i < 5; i++) {
+                lines.add(line(START.plusMinutes(minute).plusSeconds(i), "2.2.2.2", "TLSv1.2"));
+            }
+            if (minute < 10) {
+                for (int i = 0; i < 50; i++) {
+                    lines.add(line(START.plusMinutes(minute).plusSeconds(i), "1.1.1.1", i == 0 ? "TLSv1" : "TLSv1.2"));
+                }
+            }
+        }
+        Path gzipped = writeGzipped("111111111111_elasticloadbalancing_us-west-2_app.cerberus.50dc_20171002T1710Z_10.0.0.1_a.log.gz", firstFile);
+        Path decompressed = write("111111111111_elasticloadbalancing_us-west-2_app.cerberus.50dc_20171002T1830Z_10.0.0.1_b.log", laterFile);
+
+        LogReplay replay = new LogReplay(config(300, 20, 60), 5, new PrintStream(new ByteArrayOutputStream()));
+        replay.replay(Arrays.asList(decompressed, gzipped));
+
+        assertEquals(950, replay.getLines());
+        assertEquals(2, replay.getBlockChanges().size());
+        LogReplay.BlockChange blocked = replay.getBlockChanges().get(0);
+        assertTrue(blocked.isBlocked());
+        assertEquals("1.1.1.1", blocked.getIp());
+        // 350 requests by 17:07, the first run that sees more than 300 is at 17:10
+        assertEquals(Instant.parse("2017-10-02T17:10:00Z"), blocked.getTime());
+        LogReplay.BlockChange unblocked = replay.getBlockChanges().get(1);
+        assertFalse(unblocked.isBlocked());
+        assertEquals(Instant.parse("2017-10-02T18:10:00Z"), unblocked.getTime());
+
+        // every run with the first 10 minutes in its interval sees the TLSv1 requests again
+        assertEquals(Long.valueOf(10 * 4), replay.getNonAcceptableTlsRequestsByProtocol().get("TLSv1"));
+    }
+
+    @Test
+    public void test_that_whitelisted_ips_are_never_blocked() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            lines.add(line(START.plusSeconds(i), "1.1.1.1", "TLSv1.2"));
+        }
+        Path file = write("access.log", lines);
+
+        LogReplay replay = new LogReplay(config(300, 20, 60), 5, new PrintStream(new ByteArrayOutputStream()));
+        replay.addToManualIpSet("manual-whitelist", "1.1.0.0/16");
+        replay.replay(Arrays.asList(file));
+
+        assertTrue(replay.getBlockChanges().isEmpty());
+    }
+
+    @Test
+    public void test_that_lines_are_the_same_across_map_windows() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            lines.add(line(START.plusSeconds(i), "10.0.0." + i, "TLSv1.2"));
+        }
+        Path file = write("access.log", lines);
+
+        List<String> read = new ArrayList<>();
+        long count = new LogFileReader(1000).forEachLine(file, line -> read.add(line.toString()));
+
+        assertEquals(100, count);
+        assertEquals(lines, read);
+    }
+
+    private LogProcessorLambdaConfig config(int limit, int intervalInMins, int blacklistDurationInMins) {
+        return new LogProcessorLambdaConfig("replay", "manual-whitelist", "manual-blacklist",
+                "rate-limit-auto-blacklist", blacklistDurationInMins, limit, intervalInMins, null, null, null, null,
+                null, "replay", "arn:aws:iam::000000000000:role/replay", Regions.US_WEST_2);
+    }
+
+    private Path write(String name, List<String> lines) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private Path writeGzipped(String name, List<String> lines) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    private static String line(DateTime time, String ip, String protocol) {
+        return AccessLogLine.line().at(time).from(ip).userAgent("User Agent ü stuff").sslProtocol(protocol).toString();
+    }
+}
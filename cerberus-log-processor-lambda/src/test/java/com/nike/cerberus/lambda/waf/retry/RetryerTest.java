@@ -0,0 +1,173 @@
+package com.nike.cerberus.lambda.waf.retry;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.waf.model.WAFInternalErrorException;
+import com.amazonaws.services.waf.model.WAFNonexistentItemException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryerTest {
+
+    private final List<Long> sleeps = new ArrayList<>();
+
+    private final Retryer retryer = new Retryer(RetryPolicy.aws(), new Random(5), sleeps::add);
+
+    @Test
+    public void test_that_transient_errors_are_retried_with_growing_jittered_delays() {
+        AtomicInteger calls = new AtomicInteger();
+
+        String result = retryer.call("op", () -> {
+            if (calls.incrementAndGet() < 5) {
+                throw internalError();
+            }
+            return "done";
+        });
+
+        assertEquals("done", result);
+        assertEquals(4, sleeps.size());
+        for (int retry = 0; retry < sleeps.size(); retry++) {
+            long ceiling = 100L << retry;
+            assertTrue(sleeps.get(retry) + " is outside of [0, " + ceiling + ")",
+                    sleeps.get(retry) >= 0 && sleeps.get(retry) < ceiling);
+        }
+        RetryMetrics metrics = retryer.getMetrics();
+        assertEquals(1, metrics.getCalls("op"));
+        assertEquals(5, metrics.getAttempts("op"));
+        assertEquals(0, metrics.getFailures("op"));
+        assertEquals(sleeps.stream().mapToLong(Long::longValue).sum(), metrics.getWaitedInMillis("op"));
+    }
+
+    @Test
+    public void test_that_fatal_errors_fail_fast() {
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            retryer.call("op", () -> {
+                calls.incrementAndGet();
+                throw new WAFNonexistentItemException("no such ip set");
+            });
+            fail("the call should have failed");
+        } catch (WAFNonexistentItemException e) {
+            assertEquals(1, calls.get());
+        }
+        assertEquals(0, sleeps.size());
+        assertEquals(1, retryer.getMetrics().getFailures("op"));
+    }
+
+    @Test
+    public void test_that_throttling_backs_off_from_the_throttled_base_delay_and_is_counted() {
+        AmazonServiceException throttled = new AmazonServiceException("slow down");
+        throttled.setErrorCode("ThrottlingException");
+        throttled.setStatusCode(400);
+        AtomicInteger calls = new AtomicInteger();
+        Retryer alwaysMax = new Retryer(RetryPolicy.aws(), new Random() {
+            @Override
+            public double nextDouble() {
+                return 0.999;
+            }
+        }, sleeps::add);
+
+        alwaysMax.call("op", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw throttled;
+            }
+            return null;
+        });
+
+        assertEquals(2, sleeps.size());
+        assertEquals(499, sleeps.get(0).longValue());
+        assertEquals(999, sleeps.get(1).longValue());
+        assertEquals(2, alwaysMax.getMetrics().getThrottled("op"));
+    }
+
+    @Test
+    public void test_that_retries_stop_when_the_budget_runs_out() {
+        AtomicInteger calls = new AtomicInteger();
+        retryer.setBudget(() -> 0);
+        try {
+            retryer.call("op", () -> {
+                calls.incrementAndGet();
+                throw new SdkClientException("connection reset");
+            });
+            fail("the call should have failed");
+        } catch (SdkClientException e) {
+            assertEquals(1, calls.get());
+        }
+        assertEquals(0, sleeps.size());
+    }
+
+    @Test
+    public void test_that_retries_stop_after_the_max_attempts() {
+        Retryer threeAttempts = retryer.withPolicy(RetryPolicy.builder().maxAttempts(3).build());
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            threeAttempts.call("op", () -> {
+                calls.incrementAndGet();
+                throw internalError();
+            });
+            fail("the call should have failed");
+        } catch (WAFInternalErrorException e) {
+            assertEquals(3, calls.get());
+        }
+        // the metrics are shared with the retryer it came from
+        assertEquals(3, retryer.getMetrics().getAttempts("op"));
+    }
+
+    @Test
+    public void test_that_call_until_polls_until_done() {
+        AtomicInteger polls = new AtomicInteger();
+
+        int result = retryer.callUntil("poll", polls::incrementAndGet, count -> count == 3);
+
+        assertEquals(3, result);
+        assertEquals(2, sleeps.size());
+    }
+
+    @Test
+    public void test_that_polls_are_not_counted_as_retries() {
+        AtomicInteger polls = new AtomicInteger();
+
+        retryer.callUntil("poll", polls::incrementAndGet, count -> count == 3);
+
+        RetryMetrics metrics = retryer.getMetrics();
+        assertEquals(1, metrics.getCalls("poll"));
+        assertEquals(1, metrics.getAttempts("poll"));
+        assertEquals(2, metrics.getPolls("poll"));
+        assertFalse(metrics.hasRetriesOrFailures());
+
+        retryer.callUntil("poll", () -> {
+            if (polls.incrementAndGet() == 4) {
+                throw internalError();
+            }
+            return polls.get();
+        }, count -> count == 6);
+
+        assertEquals(2, metrics.getCalls("poll"));
+        assertEquals(3, metrics.getAttempts("poll"));
+        assertEquals(3, metrics.getPolls("poll"));
+        assertTrue(metrics.hasRetriesOrFailures());
+    }
+
+    @Test
+    public void test_that_the_delay_does_not_overflow() {
+        RetryPolicy policy = RetryPolicy.builder().baseDelayInMillis(1000).maxDelayInMillis(5000).build();
+
+        assertEquals(4999, policy.getDelayInMillis(ErrorClassification.TRANSIENT, 40, 0.9999));
+        assertEquals(4999, policy.getDelayInMillis(ErrorClassification.TRANSIENT, 100, 0.9999));
+    }
+
+    private static WAFInternalErrorException internalError() {
+        WAFInternalErrorException error = new WAFInternalErrorException("internal error");
+        error.setStatusCode(500);
+        return error;
+    }
+}